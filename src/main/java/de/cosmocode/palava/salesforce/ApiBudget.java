@@ -0,0 +1,240 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.sforce.soap.enterprise.Soap;
+import com.sun.xml.ws.api.message.Header;
+import com.sun.xml.ws.developer.WSBindingProvider;
+
+/**
+ * Governs the consumption of the daily API request limit of the organization.
+ *
+ * <p>
+ *   The usage reported by Salesforce in the {@code LimitInfoHeader} of every response
+ *   is used to compute the remaining budget. As soon as it falls below twice the
+ *   configured reserve, {@link RequestPriority#LOW} requests are rejected. Below
+ *   the reserve, only {@link RequestPriority#HIGH} requests pass. Additionally,
+ *   a local token bucket limits low and normal priority requests to the configured
+ *   hourly rate, which also protects the budget if Salesforce does not report any usage.
+ * </p>
+ *
+ * @author agent
+ */
+final class ApiBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApiBudget.class);
+
+    private static final String LIMIT_INFO_HEADER = "LimitInfoHeader";
+
+    private static final String API_REQUESTS = "API REQUESTS";
+
+    private final double reserve;
+
+    private final double tokensPerMilli;
+
+    private final double capacity;
+
+    private double tokens;
+
+    private long refilled = System.currentTimeMillis();
+
+    private volatile long used = -1;
+
+    private volatile long limit = -1;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Creates a new {@link ApiBudget}.
+     *
+     * @param reservePercentage the percentage of the daily limit reserved for high priority requests
+     * @param hourlyRate the maximum number of low and normal priority requests per hour, 0 for no limit
+     */
+    ApiBudget(int reservePercentage, int hourlyRate) {
+        Preconditions.checkArgument(reservePercentage >= 0 && reservePercentage < 100,
+            "ReservePercentage must be between 0 and 99");
+        Preconditions.checkArgument(hourlyRate >= 0, "HourlyRate must not be negative");
+        this.reserve = reservePercentage / 100d;
+        this.capacity = hourlyRate;
+        this.tokens = hourlyRate;
+        this.tokensPerMilli = hourlyRate / (double) TimeUnit.HOURS.toMillis(1);
+    }
+
+    /**
+     * Acquires the permission for one request using the priority of the current thread.
+     * Low and normal priority requests may block until the token bucket allows them.
+     *
+     * @throws SalesforceException if the remaining budget is reserved for requests of higher priority
+     */
+    void acquire() {
+        final RequestPriority priority = RequestPriority.current();
+        if (priority == RequestPriority.HIGH) return;
+
+        final double remaining = getRemaining();
+        if (remaining <= reserve || (priority == RequestPriority.LOW && remaining <= 2 * reserve)) {
+            throttled.incrementAndGet();
+            throw new FailedCallException(FailureCategory.REQUEST_LIMIT, String.format(
+                "API request budget exhausted for %s priority requests, %s of %s used", priority, used, limit));
+        }
+
+        if (capacity == 0) return;
+
+        final long wait;
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - refilled) * tokensPerMilli);
+            refilled = now;
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerMilli);
+        }
+
+        if (wait > 0) {
+            throttled.incrementAndGet();
+            LOG.debug("Throttling {} priority request for {}ms", priority, wait);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SalesforceException("Interrupted while waiting for API request budget", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the permission acquired by the current thread using {@link #acquire()}
+     * for a request which has not been sent.
+     */
+    void release() {
+        if (capacity == 0 || RequestPriority.current() == RequestPriority.HIGH) return;
+        synchronized (this) {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+    }
+
+    /**
+     * Reads the usage reported by the last response received by the given endpoint.
+     * Must only be called by the thread currently owning the endpoint.
+     *
+     * @param soap the endpoint
+     */
+    void observe(Soap soap) {
+        final List<Header> headers;
+        try {
+            headers = WSBindingProvider.class.cast(soap).getInboundHeaders();
+        } catch (RuntimeException e) {
+            LOG.trace("No inbound headers available", e);
+            return;
+        }
+        if (headers == null) return;
+        for (Header header : headers) {
+            if (LIMIT_INFO_HEADER.equals(header.getLocalPart())) {
+                try {
+                    read(header.readHeader());
+                } catch (XMLStreamException e) {
+                    LOG.warn("Unable to read " + LIMIT_INFO_HEADER, e);
+                }
+            }
+        }
+    }
+
+    private void read(XMLStreamReader reader) throws XMLStreamException {
+        String element = null;
+        String current = null;
+        String max = null;
+        String type = null;
+
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                element = reader.getLocalName();
+            } else if (event == XMLStreamConstants.CHARACTERS && element != null) {
+                final String text = reader.getText().trim();
+                if (text.length() == 0) continue;
+                if ("current".equals(element)) {
+                    current = text;
+                } else if ("limit".equals(element)) {
+                    max = text;
+                } else if ("type".equals(element)) {
+                    type = text;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                element = null;
+                if ("limitInfo".equals(reader.getLocalName())) {
+                    update(type, current, max);
+                    current = null;
+                    max = null;
+                    type = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the reported usage if the given limit info describes API requests.
+     * 
+     * @param type the limit type
+     * @param current the current usage
+     * @param max the limit
+     */
+    void update(String type, String current, String max) {
+        if (!API_REQUESTS.equalsIgnoreCase(type) || current == null || max == null) return;
+        try {
+            used = Long.parseLong(current);
+            limit = Long.parseLong(max);
+            LOG.trace("{} of {} API requests used", used, limit);
+        } catch (NumberFormatException e) {
+            LOG.warn("Invalid limit info {}/{}", current, max);
+        }
+    }
+
+    /**
+     * Computes the remaining fraction of the daily limit.
+     *
+     * @return the remaining budget between 0 and 1, 1 if unknown
+     */
+    double getRemaining() {
+        final long currentLimit = limit;
+        final long currentUsed = used;
+        if (currentLimit <= 0 || currentUsed < 0) return 1;
+        return Math.max(0, 1 - (double) currentUsed / currentLimit);
+    }
+
+    long getUsed() {
+        return used;
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    long getThrottled() {
+        return throttled.get();
+    }
+
+}
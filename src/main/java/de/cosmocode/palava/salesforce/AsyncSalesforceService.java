@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sforce.soap.enterprise.DeleteResult;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.SaveResult;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Asynchronous variants of the {@link SalesforceService} operations. Every method
+ * returns immediately after the call has been submitted, allowing callers to issue
+ * several calls before waiting for any of them or to register listeners.
+ * 
+ * <p>
+ *   Failed calls complete their future with a {@link SalesforceException}, which
+ *   {@link Future#get()} wraps inside an {@link java.util.concurrent.ExecutionException}.
+ *   Calls exceeding the configured timeout fail the same way.
+ * </p>
+ *
+ * @author agent
+ */
+public interface AsyncSalesforceService {
+
+    /**
+     * Creates a set of objects in Salesforce.
+     * 
+     * @see SalesforceService#create(List)
+     * @param objects the objects being created
+     * @return a future holding the list of {@link SaveResult}s
+     * @throws NullPointerException if objects is null
+     * @throws IllegalArgumentException if objects is empty
+     */
+    ListenableFuture<List<SaveResult>> create(List<SObject> objects);
+
+    /**
+     * Updates a set of objects in Salesforce.
+     * 
+     * @see SalesforceService#update(List)
+     * @param objects the objects being updated
+     * @return a future holding the list of {@link SaveResult}s
+     * @throws NullPointerException if objects is null
+     * @throws IllegalArgumentException if objects is empty
+     */
+    ListenableFuture<List<SaveResult>> update(List<SObject> objects);
+
+    /**
+     * Updates/Inserts a set of objects in Salesforce.
+     * 
+     * @see SalesforceService#upsert(List)
+     * @param objects the objects being updated/inserted
+     * @return a future holding the list of {@link UpsertResult}s
+     * @throws NullPointerException if objects is null
+     * @throws IllegalArgumentException if objects is empty
+     */
+    ListenableFuture<List<UpsertResult>> upsert(List<SObject> objects);
+
+    /**
+     * Deletes a set of objects in Salesforce.
+     * 
+     * @see SalesforceService#delete(String[])
+     * @param identifiers the identifiers of the objects being deleted
+     * @return a future holding the list of {@link DeleteResult}s
+     * @throws NullPointerException if identifiers is null
+     * @throws IllegalArgumentException if identifiers is empty
+     */
+    ListenableFuture<List<DeleteResult>> delete(String[] identifiers);
+
+    /**
+     * Executes a query against Salesforce.
+     * 
+     * @see SalesforceService#execute(String)
+     * @param query the query string
+     * @return a future holding the {@link QueryResult}
+     * @throws NullPointerException if query is null
+     * @throws IllegalArgumentException if query is blank
+     */
+    ListenableFuture<QueryResult> execute(String query);
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A file whose content is replaced atomically. New content is written to a temporary
+ * file in the same directory which is then renamed, so readers never see partial content
+ * and a crash never leaves it behind. Used by the file based stores of this module.
+ *
+ * @author agent
+ */
+public final class AtomicFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AtomicFile.class);
+
+    private final File file;
+
+    public AtomicFile(File file) {
+        this.file = Preconditions.checkNotNull(file, "File");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Replaces the content of this file.
+     *
+     * @param content the new content
+     * @throws NullPointerException if content is null
+     * @throws IOException if writing or renaming the temporary file failed,
+     *         the content of this file remains unchanged in this case
+     */
+    public void write(Content content) throws IOException {
+        Preconditions.checkNotNull(content, "Content");
+        final File temporary = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        OutputStream output = null;
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(temporary));
+            content.writeTo(output);
+            output.close();
+            output = null;
+            replace(temporary, file);
+        } finally {
+            closeQuietly(output);
+            if (temporary.exists() && !temporary.delete()) {
+                LOG.warn("Unable to delete temporary file {}", temporary);
+            }
+        }
+    }
+
+    /**
+     * Reads this file as properties.
+     *
+     * @return the properties, empty if this file does not exist
+     * @throws IOException if reading failed
+     */
+    public Properties readProperties() throws IOException {
+        final Properties properties = new Properties();
+        if (!file.exists()) return properties;
+        final InputStream input = new FileInputStream(file);
+        try {
+            properties.load(input);
+        } finally {
+            closeQuietly(input);
+        }
+        return properties;
+    }
+
+    /**
+     * Replaces the content of this file with the given properties.
+     *
+     * @param properties the properties
+     * @param comments the comments written in front of the properties
+     * @throws NullPointerException if properties is null
+     * @throws IOException if writing failed
+     */
+    public void writeProperties(final Properties properties, final String comments) throws IOException {
+        Preconditions.checkNotNull(properties, "Properties");
+        write(new Content() {
+
+            @Override
+            public void writeTo(OutputStream output) throws IOException {
+                properties.store(output, comments);
+            }
+
+        });
+    }
+
+    /**
+     * Renames the given, completely written temporary file to the given target,
+     * replacing it atomically.
+     *
+     * @param temporary the temporary file
+     * @param target the target
+     * @throws IOException if the rename failed, e.g. on platforms which refuse
+     *         to rename onto an existing file
+     */
+    public static void replace(File temporary, File target) throws IOException {
+        if (!temporary.renameTo(target)) {
+            throw new IOException(String.format("Unable to rename %s to %s", temporary, target));
+        }
+    }
+
+    /**
+     * Closes the given closeable, logging failures.
+     *
+     * @param closeable the closeable, may be null
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.trace("Unable to close " + closeable, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AtomicFile [file=%s]", file);
+    }
+
+    /**
+     * Writes the new content of an {@link AtomicFile}.
+     */
+    public interface Content {
+
+        /**
+         * Writes the content to the given stream. The stream is closed by the caller.
+         *
+         * @param output the stream of the temporary file
+         * @throws IOException if writing failed
+         */
+        void writeTo(OutputStream output) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Splits oversized batches into chunks of at most {@link Salesforce#MAXIMUM_BATCH_SIZE}
+ * elements and processes them in parallel, reassembling the results in input order.
+ * 
+ * <p>
+ *   The calling thread always takes part in processing the chunks. Helpers
+ *   submitted to the executor merely claim chunks which have not been claimed yet.
+ *   Callers therefore never wait for helpers which did not start, which makes it safe
+ *   to dispatch from a thread of the very same executor.
+ * </p>
+ *
+ * @author agent
+ */
+final class BatchDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchDispatcher.class);
+
+    private final Executor executor;
+
+    private final int concurrency;
+
+    private final int chunkSize;
+
+    /**
+     * Creates a new {@link BatchDispatcher}.
+     *
+     * @param executor the executor running helpers, may be null to process all chunks sequentially
+     * @param concurrency the maximum number of chunks processed at the same time
+     * @param chunkSize the maximum number of elements per chunk
+     */
+    BatchDispatcher(Executor executor, int concurrency, int chunkSize) {
+        Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+        Preconditions.checkArgument(chunkSize > 0, "ChunkSize must be positive");
+        this.executor = executor;
+        this.concurrency = concurrency;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Applies the given function to all chunks of the given input.
+     *
+     * @param <I> the generic input type
+     * @param <R> the generic result type
+     * @param input the input elements
+     * @param function the function processing one chunk, producing exactly one result per element
+     * @return the concatenated results in input order
+     * @throws NullPointerException if input or function is null
+     * @throws SalesforceException if processing one of the chunks failed
+     */
+    <I, R> List<R> dispatch(List<I> input, final Function<? super List<I>, List<R>> function) {
+        Preconditions.checkNotNull(input, "Input");
+        Preconditions.checkNotNull(function, "Function");
+
+        final List<List<I>> chunks = Lists.partition(input, chunkSize);
+        if (chunks.size() == 1) return function.apply(input);
+
+        final Chunks<I, R> work = new Chunks<I, R>(chunks, function, RequestPriority.current());
+        final int helpers = executor == null ? 0 : Math.min(concurrency, chunks.size()) - 1;
+        LOG.debug("Dispatching {} elements in {} chunks using {} helper(s)", new Object[] {
+            input.size(), chunks.size(), helpers
+        });
+
+        for (int i = 0; i < helpers; i++) {
+            try {
+                executor.execute(work);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Executor rejected helper, continuing with {} helper(s)", i);
+                break;
+            }
+        }
+
+        work.run();
+        return work.await();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchDispatcher [concurrency=%s, chunkSize=%s]", concurrency, chunkSize);
+    }
+
+    /**
+     * The shared state of one dispatch.
+     *
+     * @param <I> the generic input type
+     * @param <R> the generic result type
+     */
+    private static final class Chunks<I, R> implements Runnable {
+
+        private final List<List<I>> chunks;
+
+        private final Function<? super List<I>, List<R>> function;
+
+        private final RequestPriority priority;
+
+        private final List<List<R>> results;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        private final CountDownLatch done;
+
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        Chunks(List<List<I>> chunks, Function<? super List<I>, List<R>> function, RequestPriority priority) {
+            this.chunks = chunks;
+            this.function = function;
+            this.priority = priority;
+            this.results = Lists.newArrayListWithCapacity(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                results.add(null);
+            }
+            this.done = new CountDownLatch(chunks.size());
+        }
+
+        @Override
+        public void run() {
+            final RequestPriority previous = RequestPriority.set(priority);
+            try {
+                while (true) {
+                    final int index = next.getAndIncrement();
+                    if (index >= chunks.size()) return;
+                    try {
+                        if (failure.get() == null) {
+                            final List<R> result = function.apply(chunks.get(index));
+                            synchronized (results) {
+                                results.set(index, result);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            } finally {
+                RequestPriority.set(previous);
+            }
+        }
+
+        /**
+         * Waits until all claimed chunks have been processed. Must be called after
+         * {@link Chunks#run()} returned on the calling thread, which guarantees
+         * that every chunk has been claimed.
+         */
+        List<R> await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SalesforceException("Interrupted while waiting for batch chunks", e);
+            }
+
+            final RuntimeException e = failure.get();
+            if (e instanceof SalesforceException) {
+                throw e;
+            } else if (e != null) {
+                throw new SalesforceException(e);
+            }
+
+            final List<R> all = Lists.newArrayList();
+            synchronized (results) {
+                for (List<R> result : results) {
+                    all.addAll(result);
+                }
+            }
+            return all;
+        }
+
+    }
+
+}
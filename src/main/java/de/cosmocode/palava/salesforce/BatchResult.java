@@ -0,0 +1,161 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * The per-record outcome of a batch operation which tolerates partial failures.
+ * Every record is identified by its index in the submitted input.
+ *
+ * <p>
+ *   Records which failed with a retryable error have already been resubmitted
+ *   as long as the {@link RetryPolicy} allowed it. Records still listed in
+ *   {@link BatchResult#getRetryableFailures()} exhausted their retries and may
+ *   succeed later, while {@link BatchResult#getPermanentFailures()} will not
+ *   succeed without changing the records.
+ * </p>
+ *
+ * <p>
+ *   Records of a request which failed as a whole have no result. Their failure
+ *   is available using {@link BatchResult#getException(int)}.
+ * </p>
+ *
+ * @author agent
+ * @param <R> the generic result type, e.g. {@link com.sforce.soap.enterprise.SaveResult}
+ */
+public final class BatchResult<R> {
+
+    private final List<R> results;
+
+    private final List<Integer> successes;
+
+    private final List<Integer> retryableFailures;
+
+    private final List<Integer> permanentFailures;
+
+    private final Map<Integer, RuntimeException> exceptions;
+
+    private final int attempts;
+
+    BatchResult(List<R> results, List<Integer> successes, List<Integer> retryableFailures,
+        List<Integer> permanentFailures, Map<Integer, RuntimeException> exceptions, int attempts) {
+        // results of failed requests are null, which ImmutableList does not permit
+        this.results = Collections.unmodifiableList(Lists.newArrayList(
+            Preconditions.checkNotNull(results, "Results")));
+        this.successes = ImmutableList.copyOf(Preconditions.checkNotNull(successes, "Successes"));
+        this.retryableFailures = ImmutableList.copyOf(
+            Preconditions.checkNotNull(retryableFailures, "RetryableFailures"));
+        this.permanentFailures = ImmutableList.copyOf(
+            Preconditions.checkNotNull(permanentFailures, "PermanentFailures"));
+        this.exceptions = ImmutableMap.copyOf(Preconditions.checkNotNull(exceptions, "Exceptions"));
+        this.attempts = attempts;
+    }
+
+    /**
+     * Retrieves the final results of all records, in input order.
+     *
+     * @return an immutable list of results, one per submitted record, null for
+     *         records whose request failed as a whole
+     */
+    public List<R> getResults() {
+        return results;
+    }
+
+    /**
+     * Retrieves the final result of the record at the given input index.
+     *
+     * @param index the input index
+     * @return the result of the record, null if its request failed as a whole
+     * @throws IndexOutOfBoundsException if index is out of range
+     */
+    public R get(int index) {
+        return results.get(index);
+    }
+
+    /**
+     * Retrieves the exception of the request which failed the record at the
+     * given input index as a whole.
+     *
+     * @param index the input index
+     * @return the exception or null if the record has a result
+     */
+    public RuntimeException getException(int index) {
+        return exceptions.get(index);
+    }
+
+    /**
+     * Retrieves the input indices of all successful records.
+     *
+     * @return an immutable, ascending list of indices
+     */
+    public List<Integer> getSuccesses() {
+        return successes;
+    }
+
+    /**
+     * Retrieves the input indices of all records which failed with a retryable
+     * error and exhausted their retries.
+     *
+     * @return an immutable, ascending list of indices
+     */
+    public List<Integer> getRetryableFailures() {
+        return retryableFailures;
+    }
+
+    /**
+     * Retrieves the input indices of all records which failed with a permanent error.
+     *
+     * @return an immutable, ascending list of indices
+     */
+    public List<Integer> getPermanentFailures() {
+        return permanentFailures;
+    }
+
+    /**
+     * Checks whether all records succeeded.
+     *
+     * @return true if there are no failures, false otherwise
+     */
+    public boolean isSuccess() {
+        return retryableFailures.isEmpty() && permanentFailures.isEmpty();
+    }
+
+    /**
+     * Retrieves the number of submissions, including the initial one.
+     *
+     * @return the number of attempts
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchResult [size=%s, successes=%s, retryableFailures=%s, " 
+            + "permanentFailures=%s, attempts=%s]", results.size(), successes.size(), 
+            retryableFailures.size(), permanentFailures.size(), attempts);
+    }
+
+}
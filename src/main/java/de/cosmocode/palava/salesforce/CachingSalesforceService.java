@@ -0,0 +1,718 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBElement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.sforce.soap.enterprise.DeleteResult;
+import com.sforce.soap.enterprise.GetDeletedResult;
+import com.sforce.soap.enterprise.GetUpdatedResult;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.SaveResult;
+import com.sforce.soap.enterprise.Soap;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * A {@link SalesforceService} decorator which caches the results of {@link SalesforceService#execute(String)}.
+ *
+ * <p>
+ *   Entries are keyed on the query with whitespace outside of string literals collapsed,
+ *   expire according to the configured {@link QueryCachePolicy} and are evicted in
+ *   least-recently-used order once their estimated size exceeds the configured maximum.
+ *   Concurrent misses of the same query share a single call. Only complete results, i.e.
+ *   results which don't require {@link SalesforceService#queryMore(String)}, are cached.
+ * </p>
+ *
+ * <p>
+ *   Writes through this service invalidate all entries of the written object types. Queries
+ *   containing subqueries or relationship paths depend on more than one type and are
+ *   invalidated by every write, as are all entries when objects are deleted by identifier.
+ *   Writes bypassing this service, e.g. using {@link SalesforceService#get()}, are not detected.
+ * </p>
+ *
+ * <p>
+ *   Every caller receives its own {@link QueryResult}, but the contained records are
+ *   shared and must not be modified.
+ * </p>
+ *
+ * @author agent
+ */
+final class CachingSalesforceService implements SalesforceService, QueryCacheStatistics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CachingSalesforceService.class);
+
+    /**
+     * Marks entries depending on every object type.
+     */
+    private static final String ANY = "*";
+
+    private static final long REFERENCE_SIZE = 8;
+
+    private static final long OBJECT_OVERHEAD = 16;
+
+    private static final ConcurrentMap<Class<?>, List<Field>> FIELDS = new MapMaker().weakKeys().makeMap();
+
+    private final SalesforceService service;
+
+    private final Map<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final ConcurrentMap<String, FutureTask<QueryResult>> loading = new MapMaker().makeMap();
+
+    private final ConcurrentMap<String, AtomicLong> versions = new MapMaker().makeMap();
+
+    /**
+     * Incremented by every write, used by entries depending on every object type.
+     */
+    private final AtomicLong writes = new AtomicLong();
+
+    private long maximumSize = 16 * 1024 * 1024;
+
+    private long timeToLive = 5;
+
+    private TimeUnit timeToLiveUnit = TimeUnit.MINUTES;
+
+    private QueryCachePolicy policy;
+
+    /**
+     * Guarded by {@link CachingSalesforceService#cache}.
+     */
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    @Inject
+    CachingSalesforceService(DefaultSalesforceService service) {
+        this((SalesforceService) service);
+    }
+
+    CachingSalesforceService(SalesforceService service) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+    }
+
+    @Inject(optional = true)
+    void setMaximumSize(@Named(SalesforceServiceConfig.CACHE_MAXIMUM_SIZE) long maximumSize) {
+        Preconditions.checkArgument(maximumSize > 0, "MaximumSize must be positive");
+        this.maximumSize = maximumSize;
+    }
+
+    @Inject(optional = true)
+    void setTimeToLive(@Named(SalesforceServiceConfig.CACHE_TIME_TO_LIVE) long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    @Inject(optional = true)
+    void setTimeToLiveUnit(@Named(SalesforceServiceConfig.CACHE_TIME_TO_LIVE_UNIT) TimeUnit timeToLiveUnit) {
+        this.timeToLiveUnit = Preconditions.checkNotNull(timeToLiveUnit, "TimeToLiveUnit");
+    }
+
+    @Inject(optional = true)
+    void setPolicy(QueryCachePolicy policy) {
+        this.policy = Preconditions.checkNotNull(policy, "Policy");
+    }
+
+    @Override
+    public QueryResult execute(String query) {
+        Preconditions.checkNotNull(query, "Query");
+        final String key = normalize(query);
+        final String object = objectOf(key);
+
+        final long ttl = timeToLiveOf(object, key);
+        if (ttl <= 0) {
+            LOG.trace("Not caching {}", key);
+            return service.execute(query);
+        }
+
+        final Entry cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return copyOf(cached.result);
+        }
+
+        final FutureTask<QueryResult> task = new FutureTask<QueryResult>(new Load(query, key, object, ttl));
+        final FutureTask<QueryResult> running = loading.putIfAbsent(key, task);
+
+        if (running == null) {
+            misses.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+            return copyOf(await(task));
+        } else {
+            LOG.trace("Waiting for concurrent load of {}", key);
+            hits.incrementAndGet();
+            return copyOf(await(running));
+        }
+    }
+
+    private long timeToLiveOf(String object, String key) {
+        if (policy == null) {
+            return TimeUnit.MILLISECONDS.convert(timeToLive, timeToLiveUnit);
+        } else {
+            return policy.getTimeToLive(ANY.equals(object) ? null : object, key, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Entry lookup(String key) {
+        synchronized (cache) {
+            final Entry entry = cache.get(key);
+            if (entry == null) {
+                return null;
+            } else if (entry.expires <= System.currentTimeMillis()) {
+                LOG.trace("{} expired", key);
+                cache.remove(key);
+                size -= entry.size;
+                return null;
+            } else {
+                return entry;
+            }
+        }
+    }
+
+    private QueryResult await(FutureTask<QueryResult> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SalesforceException("Interrupted while waiting for query result", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw RuntimeException.class.cast(e.getCause());
+            } else if (e.getCause() instanceof Error) {
+                throw Error.class.cast(e.getCause());
+            } else {
+                throw new SalesforceException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Loads a query result and caches it unless a write to the queried
+     * object type happened in the meantime.
+     */
+    private final class Load implements Callable<QueryResult> {
+
+        private final String query;
+
+        private final String key;
+
+        private final String object;
+
+        private final long ttl;
+
+        private Load(String query, String key, String object, long ttl) {
+            this.query = query;
+            this.key = key;
+            this.object = object;
+            this.ttl = ttl;
+        }
+
+        @Override
+        public QueryResult call() {
+            final long version = versionOf(object).get();
+            final QueryResult result = service.execute(query);
+
+            if (result.isDone()) {
+                store(key, object, version, new Entry(result, object, System.currentTimeMillis() + ttl, estimate(result)));
+            } else {
+                LOG.debug("Not caching incomplete result of {}", key);
+            }
+
+            return result;
+        }
+
+    }
+
+    private void store(String key, String object, long version, Entry entry) {
+        if (entry.size > maximumSize) {
+            LOG.debug("Result of {} exceeds maximum cache size ({} > {} bytes)", new Object[] {
+                key, entry.size, maximumSize
+            });
+            return;
+        }
+
+        synchronized (cache) {
+            // checked while holding the lock, invalidations remove entries while holding it too
+            if (versionOf(object).get() != version) {
+                LOG.debug("{} was written while loading {}, not caching", object, key);
+                return;
+            }
+
+            final Entry previous = cache.put(key, entry);
+            if (previous != null) {
+                size -= previous.size;
+            }
+            size += entry.size;
+
+            final Iterator<Entry> iterator = cache.values().iterator();
+            while (size > maximumSize && iterator.hasNext()) {
+                final Entry eldest = iterator.next();
+                iterator.remove();
+                size -= eldest.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private AtomicLong versionOf(String object) {
+        if (ANY.equals(object)) return writes;
+        final String type = object.toLowerCase();
+        final AtomicLong version = versions.get(type);
+        if (version == null) {
+            final AtomicLong created = new AtomicLong();
+            final AtomicLong existing = versions.putIfAbsent(type, created);
+            return existing == null ? created : existing;
+        } else {
+            return version;
+        }
+    }
+
+    /**
+     * Invalidates all entries depending on the types of the given objects.
+     */
+    private void invalidate(List<SObject> objects) {
+        if (objects == null) return;
+        final List<String> types = Lists.newArrayList();
+        for (SObject object : objects) {
+            if (object == null) continue;
+            final String type = object.getClass().getSimpleName().toLowerCase();
+            if (!types.contains(type)) {
+                types.add(type);
+            }
+        }
+
+        synchronized (cache) {
+            writes.incrementAndGet();
+            for (String type : types) {
+                versionOf(type).incrementAndGet();
+            }
+
+            final Iterator<Map.Entry<String, Entry>> iterator = cache.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Entry entry = iterator.next().getValue();
+                if (ANY.equals(entry.object) || types.contains(entry.object)) {
+                    iterator.remove();
+                    size -= entry.size;
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+        LOG.trace("Invalidated cached queries of {}", types);
+    }
+
+    /**
+     * Invalidates all entries, used if the written types are unknown.
+     */
+    private void invalidateAll() {
+        synchronized (cache) {
+            writes.incrementAndGet();
+            for (AtomicLong version : versions.values()) {
+                version.incrementAndGet();
+            }
+            invalidations.addAndGet(cache.size());
+            cache.clear();
+            size = 0;
+        }
+        LOG.trace("Invalidated all cached queries");
+    }
+
+    /**
+     * Collapses all whitespace outside of string literals.
+     *
+     * @param query the query
+     * @return the normalized query
+     */
+    static String normalize(String query) {
+        final StringBuilder builder = new StringBuilder(query.length());
+        boolean quoted = false;
+        boolean space = false;
+
+        for (int i = 0; i < query.length(); i++) {
+            final char c = query.charAt(i);
+            if (quoted) {
+                builder.append(c);
+                if (c == '\'' && query.charAt(i - 1) != '\\') {
+                    quoted = false;
+                }
+            } else if (Character.isWhitespace(c)) {
+                space = builder.length() > 0;
+            } else {
+                if (space) {
+                    builder.append(' ');
+                    space = false;
+                }
+                builder.append(c);
+                quoted = c == '\'';
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Determines the object type a normalized query depends on.
+     *
+     * @param query the normalized query
+     * @return the lower case name of the queried object or {@link CachingSalesforceService#ANY}
+     *         if the query contains subqueries or relationship paths
+     */
+    static String objectOf(String query) {
+        final String upper = query.toUpperCase();
+        if (upper.indexOf('(') != -1 && upper.indexOf("SELECT ", upper.indexOf('(')) != -1) {
+            return ANY;
+        }
+
+        final int from = upper.indexOf(" FROM ");
+        if (!upper.startsWith("SELECT ") || from == -1) return ANY;
+        if (upper.substring(0, from).indexOf('.') != -1) return ANY;
+
+        final int start = from + " FROM ".length();
+        int end = start;
+        while (end < query.length() && Character.isJavaIdentifierPart(query.charAt(end))) {
+            end++;
+        }
+        return end == start ? ANY : query.substring(start, end).toLowerCase();
+    }
+
+    private static QueryResult copyOf(QueryResult result) {
+        final QueryResult copy = new QueryResult();
+        copy.getRecords().addAll(result.getRecords());
+        copy.setDone(result.isDone());
+        copy.setQueryLocator(result.getQueryLocator());
+        copy.setSize(result.getSize());
+        return copy;
+    }
+
+    /**
+     * Estimates the memory consumed by the given query result by walking
+     * the fields of all records.
+     */
+    private static long estimate(QueryResult result) {
+        long estimate = OBJECT_OVERHEAD;
+        for (SObject record : result.getRecords()) {
+            estimate += REFERENCE_SIZE + estimate(record, 0);
+        }
+        return estimate;
+    }
+
+    private static long estimate(Object value, int depth) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return OBJECT_OVERHEAD + 24 + 2L * String.class.cast(value).length();
+        } else if (value instanceof JAXBElement<?>) {
+            return OBJECT_OVERHEAD + estimate(JAXBElement.class.cast(value).getValue(), depth);
+        } else if (value instanceof QueryResult && depth < 3) {
+            return estimate(QueryResult.class.cast(value));
+        } else if (value instanceof SObject && depth < 3) {
+            long estimate = OBJECT_OVERHEAD;
+            for (Field field : fieldsOf(value.getClass())) {
+                estimate += REFERENCE_SIZE;
+                try {
+                    estimate += estimate(field.get(value), depth + 1);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return estimate;
+        } else {
+            return OBJECT_OVERHEAD + REFERENCE_SIZE;
+        }
+    }
+
+    private static List<Field> fieldsOf(Class<?> type) {
+        final List<Field> cached = FIELDS.get(type);
+        if (cached != null) return cached;
+
+        final List<Field> fields = Lists.newArrayList();
+        for (Class<?> current = type; current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) continue;
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        FIELDS.putIfAbsent(type, fields);
+        return fields;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public long getEstimatedSize() {
+        synchronized (cache) {
+            return size;
+        }
+    }
+
+    @Override
+    public QueryResult queryMore(String queryLocator) {
+        return service.queryMore(queryLocator);
+    }
+
+    @Override
+    public <T> T execute(String query, int batchSize, PayloadReader<T> reader) {
+        return service.execute(query, batchSize, reader);
+    }
+
+    @Override
+    public <T> T queryMore(String queryLocator, int batchSize, PayloadReader<T> reader) {
+        return service.queryMore(queryLocator, batchSize, reader);
+    }
+
+    @Override
+    public GetUpdatedResult getUpdated(String type, Date start, Date end) {
+        return service.getUpdated(type, start, end);
+    }
+
+    @Override
+    public GetDeletedResult getDeleted(String type, Date start, Date end) {
+        return service.getDeleted(type, start, end);
+    }
+
+    @Override
+    public Date getServerTimestamp() {
+        return service.getServerTimestamp();
+    }
+
+    @Override
+    public List<SObject> retrieve(String fields, String type, List<String> identifiers) {
+        return service.retrieve(fields, type, identifiers);
+    }
+
+    @Override
+    public Soap connect() {
+        return service.connect();
+    }
+
+    @Override
+    public Soap get() {
+        return service.get();
+    }
+
+    @Override
+    public Soap reconnect() {
+        return service.reconnect();
+    }
+
+    @Override
+    public SalesforceSession getSession() {
+        return service.getSession();
+    }
+
+    @Override
+    public List<SaveResult> create(List<SObject> objects) {
+        try {
+            return service.create(objects);
+        } finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public SaveResult create(SObject object) {
+        try {
+            return service.create(object);
+        } finally {
+            invalidate(Lists.newArrayList(object));
+        }
+    }
+
+    @Override
+    public List<SaveResult> update(List<SObject> objects) {
+        try {
+            return service.update(objects);
+        } finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public SaveResult update(SObject object) {
+        try {
+            return service.update(object);
+        } finally {
+            invalidate(Lists.newArrayList(object));
+        }
+    }
+
+    @Override
+    public List<UpsertResult> upsert(List<SObject> objects) {
+        try {
+            return service.upsert(objects);
+        } finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public UpsertResult upsert(SObject object) {
+        try {
+            return service.upsert(object);
+        } finally {
+            invalidate(Lists.newArrayList(object));
+        }
+    }
+
+    @Override
+    public List<DeleteResult> delete(List<SObject> objects) {
+        try {
+            return service.delete(objects);
+        } finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public List<DeleteResult> delete(String[] identifiers) {
+        try {
+            return service.delete(identifiers);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public DeleteResult delete(SObject object) {
+        try {
+            return service.delete(object);
+        } finally {
+            invalidate(Lists.newArrayList(object));
+        }
+    }
+
+    @Override
+    public DeleteResult delete(String identifier) {
+        try {
+            return service.delete(identifier);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public BatchResult<SaveResult> createBatch(List<SObject> objects) {
+        try {
+            return service.createBatch(objects);
+        } finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public BatchResult<SaveResult> updateBatch(List<SObject> objects) {
+        try {
+            return service.updateBatch(objects);
+        } finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public BatchResult<UpsertResult> upsertBatch(List<SObject> objects) {
+        try {
+            return service.upsertBatch(objects);
+        } finally {
+            invalidate(objects);
+        }
+    }
+
+    @Override
+    public BatchResult<DeleteResult> deleteBatch(String[] identifiers) {
+        try {
+            return service.deleteBatch(identifiers);
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CachingSalesforceService [service=%s]", service);
+    }
+
+    /**
+     * A cached query result.
+     */
+    private static final class Entry {
+
+        private final QueryResult result;
+
+        private final String object;
+
+        private final long expires;
+
+        private final long size;
+
+        private Entry(QueryResult result, String object, long expires, long size) {
+            this.result = result;
+            this.object = object;
+            this.expires = expires;
+            this.size = size;
+        }
+
+    }
+
+}
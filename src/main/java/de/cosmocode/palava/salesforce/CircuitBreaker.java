@@ -0,0 +1,218 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A circuit breaker which protects callers from waiting for a degraded Salesforce endpoint.
+ * 
+ * <p>
+ *   The outcomes of the most recent calls are kept in a fixed size window. As soon as
+ *   the window is full and the failure rate reaches the configured threshold, the circuit
+ *   opens and all calls fail fast. After the open duration, a limited number of trial calls
+ *   is allowed. The circuit closes if all of them succeed and opens again otherwise.
+ * </p>
+ *
+ * @author agent
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final int windowSize;
+    
+    private final double failureRate;
+    
+    private final long openDuration;
+    
+    private final int trialCalls;
+    
+    private final CircuitBreakerListener listener;
+    
+    /**
+     * Ring buffer of the most recent outcomes, true meaning failed.
+     */
+    private final boolean[] window;
+    
+    private int index;
+    
+    private int calls;
+    
+    private int failures;
+    
+    private CircuitState state = CircuitState.CLOSED;
+    
+    private long openedAt;
+    
+    private int trials;
+    
+    private int trialSuccesses;
+    
+    private final AtomicLong rejected = new AtomicLong();
+    
+    CircuitBreaker(int windowSize, double failureRate, long openDuration, TimeUnit openDurationUnit, 
+        int trialCalls, CircuitBreakerListener listener) {
+        Preconditions.checkArgument(windowSize > 0, "WindowSize must be positive");
+        Preconditions.checkArgument(failureRate > 0 && failureRate <= 1, "FailureRate must be in (0, 1]");
+        Preconditions.checkArgument(openDuration >= 0, "OpenDuration must not be negative");
+        Preconditions.checkNotNull(openDurationUnit, "OpenDurationUnit");
+        Preconditions.checkArgument(trialCalls > 0, "TrialCalls must be positive");
+        this.windowSize = windowSize;
+        this.failureRate = failureRate;
+        this.openDuration = openDurationUnit.toMillis(openDuration);
+        this.trialCalls = trialCalls;
+        this.listener = Preconditions.checkNotNull(listener, "Listener");
+        this.window = new boolean[windowSize];
+    }
+    
+    /**
+     * Acquires the permission to call Salesforce. Every successful acquire has to be followed
+     * by exactly one {@link CircuitBreaker#release(boolean)} or {@link CircuitBreaker#cancel()}.
+     * 
+     * @throws CircuitOpenException if the circuit is open or all trial calls are in use
+     */
+    void acquire() {
+        final boolean permitted;
+        boolean halfOpened = false;
+        
+        synchronized (this) {
+            if (state == CircuitState.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+                state = CircuitState.HALF_OPEN;
+                trials = 0;
+                trialSuccesses = 0;
+                halfOpened = true;
+            }
+            
+            if (state == CircuitState.CLOSED) {
+                permitted = true;
+            } else if (state == CircuitState.HALF_OPEN && trials < trialCalls) {
+                trials++;
+                permitted = true;
+            } else {
+                permitted = false;
+            }
+        }
+        
+        if (halfOpened) {
+            fire(CircuitState.OPEN, CircuitState.HALF_OPEN);
+        }
+        
+        if (!permitted) {
+            rejected.incrementAndGet();
+            throw new CircuitOpenException("Salesforce circuit breaker is open");
+        }
+    }
+    
+    /**
+     * Records the outcome of a call permitted by {@link CircuitBreaker#acquire()}.
+     * 
+     * @param failed true if the call failed in a way which indicates a degraded endpoint
+     */
+    void release(boolean failed) {
+        CircuitState from = null;
+        CircuitState to = null;
+        
+        synchronized (this) {
+            if (state == CircuitState.HALF_OPEN) {
+                if (failed) {
+                    from = state;
+                    to = open();
+                } else if (++trialSuccesses >= trialCalls) {
+                    from = state;
+                    to = close();
+                }
+            } else if (state == CircuitState.CLOSED) {
+                if (calls == windowSize) {
+                    if (window[index]) failures--;
+                } else {
+                    calls++;
+                }
+                window[index] = failed;
+                if (failed) failures++;
+                index = (index + 1) % windowSize;
+                
+                if (calls == windowSize && failures >= failureRate * windowSize) {
+                    from = state;
+                    to = open();
+                }
+            }
+        }
+        
+        if (to != null) {
+            fire(from, to);
+        }
+    }
+    
+    /**
+     * Returns a permission acquired using {@link CircuitBreaker#acquire()} without recording
+     * an outcome, e.g. because the call never reached Salesforce. A trial call becomes
+     * available again.
+     */
+    synchronized void cancel() {
+        if (state == CircuitState.HALF_OPEN && trials > 0) {
+            trials--;
+        }
+    }
+    
+    private CircuitState open() {
+        state = CircuitState.OPEN;
+        openedAt = System.currentTimeMillis();
+        return state;
+    }
+    
+    private CircuitState close() {
+        state = CircuitState.CLOSED;
+        index = 0;
+        calls = 0;
+        failures = 0;
+        return state;
+    }
+    
+    private void fire(CircuitState from, CircuitState to) {
+        LOG.warn("Salesforce circuit breaker changed from {} to {}", from, to);
+        try {
+            listener.circuitStateChanged(from, to);
+        } catch (RuntimeException e) {
+            LOG.error("Circuit breaker listener " + listener + " failed", e);
+        }
+    }
+    
+    synchronized CircuitState getState() {
+        return state;
+    }
+    
+    synchronized double getFailureRate() {
+        return calls == 0 ? 0 : (double) failures / calls;
+    }
+    
+    long getRejected() {
+        return rejected.get();
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("CircuitBreaker [state=%s, calls=%s, failures=%s]", state, calls, failures);
+    }
+    
+}
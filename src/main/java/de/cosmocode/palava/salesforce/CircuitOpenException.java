@@ -0,0 +1,39 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+/**
+ * Thrown instead of calling Salesforce while the circuit breaker is open.
+ * Callers may defer their work and try again later.
+ *
+ * @author agent
+ */
+public final class CircuitOpenException extends SalesforceException {
+
+    private static final long serialVersionUID = -2384715038260931377L;
+
+    /**
+     * Creates a new {@link CircuitOpenException} using the specified message.
+     * 
+     * @param message the detail message
+     * @throws NullPointerException if message is null
+     */
+    public CircuitOpenException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+/**
+ * The states of the circuit breaker in front of the Salesforce endpoint.
+ *
+ * @author agent
+ */
+public enum CircuitState {
+
+    /**
+     * Calls pass through, failures are counted.
+     */
+    CLOSED,
+    
+    /**
+     * Calls fail fast with a {@link CircuitOpenException}.
+     */
+    OPEN,
+    
+    /**
+     * A limited number of trial calls is allowed to test whether Salesforce recovered.
+     */
+    HALF_OPEN;
+    
+}
@@ -0,0 +1,389 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.sforce.soap.enterprise.DeleteResult;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.SaveResult;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.core.lifecycle.Initializable;
+
+/**
+ * Default implementation of the {@link AsyncSalesforceService} interface which
+ * runs the blocking {@link SalesforceService} operations on the {@link SalesforceExecutor}.
+ * 
+ * <p>
+ *   The number of calls in flight is bounded. Further calls never block the submitting
+ *   thread, they wait in an unbounded queue and start in submission order as soon as
+ *   one of the running calls completed. If a {@link SalesforceScheduler} is bound, calls
+ *   which did not complete within the configured timeout after their submission, including
+ *   the time spent waiting, complete with a {@link SalesforceException}. Their slot
+ *   is returned as soon as the underlying call actually finished.
+ * </p>
+ *
+ * @author agent
+ */
+final class DefaultAsyncSalesforceService implements AsyncSalesforceService, Initializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DefaultAsyncSalesforceService.class);
+
+    private final SalesforceService service;
+
+    private final ListeningExecutorService executor;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Maximum number of calls in flight.
+     */
+    private int concurrency = 10;
+
+    /**
+     * Maximum duration of one call, 0 means no timeout.
+     */
+    private long timeout;
+
+    /**
+     * The unit of {@link DefaultAsyncSalesforceService#timeout}.
+     */
+    private TimeUnit timeoutUnit = TimeUnit.SECONDS;
+
+    /**
+     * Calls waiting for a slot, guarded by itself.
+     */
+    private final Queue<Call<?>> waiting = Lists.newLinkedList();
+
+    /**
+     * Number of calls in flight, guarded by {@link DefaultAsyncSalesforceService#waiting}.
+     */
+    private int running;
+
+    @Inject
+    DefaultAsyncSalesforceService(SalesforceService service, @SalesforceExecutor ExecutorService executor) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        this.executor = MoreExecutors.listeningDecorator(Preconditions.checkNotNull(executor, "Executor"));
+    }
+
+    @Inject(optional = true)
+    void setScheduler(@SalesforceScheduler ScheduledExecutorService scheduler) {
+        this.scheduler = Preconditions.checkNotNull(scheduler, "Scheduler");
+    }
+
+    @Inject(optional = true)
+    void setConcurrency(@Named(SalesforceServiceConfig.ASYNC_CONCURRENCY) int concurrency) {
+        Preconditions.checkArgument(concurrency > 0, "Concurrency must be positive");
+        this.concurrency = concurrency;
+    }
+
+    @Inject(optional = true)
+    void setTimeout(@Named(SalesforceServiceConfig.ASYNC_TIMEOUT) long timeout) {
+        Preconditions.checkArgument(timeout >= 0, "Timeout must not be negative");
+        this.timeout = timeout;
+    }
+
+    @Inject(optional = true)
+    void setTimeoutUnit(@Named(SalesforceServiceConfig.ASYNC_TIMEOUT_UNIT) TimeUnit timeoutUnit) {
+        this.timeoutUnit = Preconditions.checkNotNull(timeoutUnit, "TimeoutUnit");
+    }
+
+    @Override
+    public void initialize() {
+        if (timeout > 0 && scheduler == null) {
+            LOG.warn("No scheduler bound, timeout of {} {} will not be enforced", timeout, timeoutUnit);
+        }
+    }
+
+    @Override
+    public ListenableFuture<List<SaveResult>> create(List<SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        Preconditions.checkArgument(!objects.isEmpty(), "Objects must not be empty");
+        final List<SObject> copy = ImmutableList.copyOf(objects);
+        return submit(new Callable<List<SaveResult>>() {
+
+            @Override
+            public List<SaveResult> call() {
+                return service.create(copy);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("create(%s)", copy.size());
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<SaveResult>> update(List<SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        Preconditions.checkArgument(!objects.isEmpty(), "Objects must not be empty");
+        final List<SObject> copy = ImmutableList.copyOf(objects);
+        return submit(new Callable<List<SaveResult>>() {
+
+            @Override
+            public List<SaveResult> call() {
+                return service.update(copy);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("update(%s)", copy.size());
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<UpsertResult>> upsert(List<SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        Preconditions.checkArgument(!objects.isEmpty(), "Objects must not be empty");
+        final List<SObject> copy = ImmutableList.copyOf(objects);
+        return submit(new Callable<List<UpsertResult>>() {
+
+            @Override
+            public List<UpsertResult> call() {
+                return service.upsert(copy);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("upsert(%s)", copy.size());
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<List<DeleteResult>> delete(String[] identifiers) {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        Preconditions.checkArgument(identifiers.length > 0, "Identifiers must not be empty");
+        final String[] copy = Arrays.copyOf(identifiers, identifiers.length);
+        return submit(new Callable<List<DeleteResult>>() {
+
+            @Override
+            public List<DeleteResult> call() {
+                return service.delete(copy);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("delete(%s)", copy.length);
+            }
+
+        });
+    }
+
+    @Override
+    public ListenableFuture<QueryResult> execute(final String query) {
+        Preconditions.checkNotNull(query, "Query");
+        Preconditions.checkArgument(StringUtils.isNotBlank(query), "Query must not be blank");
+        return submit(new Callable<QueryResult>() {
+
+            @Override
+            public QueryResult call() {
+                return service.execute(query);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("execute(%s)", query);
+            }
+
+        });
+    }
+
+    private <T> ListenableFuture<T> submit(Callable<T> callable) {
+        final Call<T> call = new Call<T>(callable, RequestPriority.current());
+
+        if (timeout > 0 && scheduler != null) {
+            final ScheduledFuture<?> expiry = scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    call.expire();
+                }
+
+            }, timeout, timeoutUnit);
+            call.addListener(new Runnable() {
+
+                @Override
+                public void run() {
+                    expiry.cancel(false);
+                }
+
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        final boolean start;
+        synchronized (waiting) {
+            start = running < concurrency;
+            if (start) {
+                running++;
+            } else {
+                LOG.trace("Queueing {}, {} call(s) in flight", callable, running);
+                waiting.add(call);
+            }
+        }
+
+        if (start && !call.start()) {
+            release();
+        }
+        return call;
+    }
+
+    /**
+     * Hands the slot of a finished call to the next waiting one, if any.
+     */
+    private void release() {
+        while (true) {
+            final Call<?> next;
+            synchronized (waiting) {
+                next = waiting.poll();
+                if (next == null) {
+                    running--;
+                    return;
+                }
+            }
+            if (next.start()) return;
+        }
+    }
+
+    /**
+     * Retrieves the number of calls waiting for one of the running calls to complete.
+     *
+     * @return the number of waiting calls
+     */
+    int getWaiting() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DefaultAsyncSalesforceService [concurrency=%s, timeout=%s %s]",
+            concurrency, timeout, timeoutUnit.name().toLowerCase());
+    }
+
+    /**
+     * One asynchronous call which holds a slot from its start until the
+     * underlying call actually finished.
+     *
+     * @param <T> the generic result type
+     */
+    private final class Call<T> extends AbstractFuture<T> {
+
+        private final Callable<T> callable;
+
+        private final RequestPriority priority;
+
+        Call(Callable<T> callable, RequestPriority priority) {
+            this.callable = callable;
+            this.priority = priority;
+        }
+
+        /**
+         * Starts this call using the slot of the calling thread.
+         *
+         * @return true if this call took the slot, false if the slot has to be released
+         *         because this call already completed or the executor rejected it
+         */
+        boolean start() {
+            if (isDone()) return false;
+
+            final ListenableFuture<T> future;
+            try {
+                future = executor.submit(new Callable<T>() {
+
+                    @Override
+                    public T call() throws Exception {
+                        final RequestPriority previous = RequestPriority.set(priority);
+                        try {
+                            return callable.call();
+                        } finally {
+                            RequestPriority.set(previous);
+                        }
+                    }
+
+                });
+            } catch (RejectedExecutionException e) {
+                setException(new SalesforceException("Executor rejected " + callable, e));
+                return false;
+            }
+
+            future.addListener(new Runnable() {
+
+                @Override
+                public void run() {
+                    release();
+                    complete(future);
+                }
+
+            }, MoreExecutors.sameThreadExecutor());
+            return true;
+        }
+
+        private void complete(ListenableFuture<T> future) {
+            try {
+                set(future.get());
+            } catch (ExecutionException e) {
+                setException(e.getCause());
+            } catch (CancellationException e) {
+                cancel(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                setException(e);
+            }
+        }
+
+        void expire() {
+            if (isDone()) return;
+            LOG.warn("{} timed out", callable);
+            setException(new SalesforceException(String.format("%s did not complete within %s %s",
+                callable, timeout, timeoutUnit.name().toLowerCase())));
+        }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * An immutable {@link QueryCachePolicy} using a default time to live which
+ * can be overridden per object type.
+ *
+ * @author agent
+ */
+public final class DefaultQueryCachePolicy implements QueryCachePolicy {
+
+    private final long timeToLive;
+
+    private final ImmutableMap<String, Long> objects;
+
+    public DefaultQueryCachePolicy(long timeToLive, TimeUnit unit) {
+        this(ImmutableMap.<String, Long>of(),
+            TimeUnit.MILLISECONDS.convert(timeToLive, Preconditions.checkNotNull(unit, "Unit")));
+    }
+
+    private DefaultQueryCachePolicy(ImmutableMap<String, Long> objects, long timeToLive) {
+        this.timeToLive = timeToLive;
+        this.objects = objects;
+    }
+
+    /**
+     * Creates a copy of this policy using a different time to live for the given object type.
+     *
+     * @param object the object type, e.g. "RecordType", compared case-insensitively
+     * @param ttl the time to live of queries on object, 0 or less to disable caching
+     * @param unit the unit of ttl
+     * @return a new policy
+     * @throws NullPointerException if object or unit is null
+     */
+    public DefaultQueryCachePolicy with(String object, long ttl, TimeUnit unit) {
+        Preconditions.checkNotNull(object, "Object");
+        Preconditions.checkNotNull(unit, "Unit");
+        final Map<String, Long> copy = Maps.newHashMap(objects);
+        copy.put(object.toLowerCase(), TimeUnit.MILLISECONDS.convert(ttl, unit));
+        return new DefaultQueryCachePolicy(ImmutableMap.copyOf(copy), timeToLive);
+    }
+
+    @Override
+    public long getTimeToLive(String object, String query, TimeUnit unit) {
+        final Long override = object == null ? null : objects.get(object.toLowerCase());
+        return unit.convert(override == null ? timeToLive : override.longValue(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DefaultQueryCachePolicy [timeToLive=%sms, objects=%s]", timeToLive, objects);
+    }
+
+}
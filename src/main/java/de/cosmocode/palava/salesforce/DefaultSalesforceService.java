@@ -16,35 +16,67 @@
 
 package de.cosmocode.palava.salesforce;
 
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
 import javax.xml.ws.BindingProvider;
+import javax.xml.ws.Dispatch;
+import javax.xml.ws.Service;
+import javax.xml.ws.WebServiceException;
 import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.soap.SOAPFaultException;
 
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.sforce.soap.enterprise.DeleteResult;
 import com.sforce.soap.enterprise.Error;
+import com.sforce.soap.enterprise.GetDeletedResult;
+import com.sforce.soap.enterprise.GetUpdatedResult;
 import com.sforce.soap.enterprise.GetUserInfoResult;
-import com.sforce.soap.enterprise.InvalidFieldFault;
 import com.sforce.soap.enterprise.InvalidIdFault;
-import com.sforce.soap.enterprise.InvalidQueryLocatorFault;
-import com.sforce.soap.enterprise.InvalidSObjectFault;
 import com.sforce.soap.enterprise.LoginFault;
 import com.sforce.soap.enterprise.LoginResult;
-import com.sforce.soap.enterprise.MalformedQueryFault;
+import com.sforce.soap.enterprise.Query;
+import com.sforce.soap.enterprise.QueryMore;
+import com.sforce.soap.enterprise.QueryOptions;
 import com.sforce.soap.enterprise.QueryResult;
 import com.sforce.soap.enterprise.SaveResult;
 import com.sforce.soap.enterprise.SessionHeader;
@@ -53,10 +85,13 @@ import com.sforce.soap.enterprise.Soap;
 import com.sforce.soap.enterprise.UnexpectedErrorFault;
 import com.sforce.soap.enterprise.UpsertResult;
 import com.sforce.soap.enterprise.sobject.SObject;
-import com.sun.xml.ws.api.message.Header;
+import com.sun.xml.ws.api.SOAPVersion;
 import com.sun.xml.ws.api.message.Headers;
+import com.sun.xml.ws.api.message.Message;
+import com.sun.xml.ws.api.message.Messages;
 import com.sun.xml.ws.developer.WSBindingProvider;
 
+import de.cosmocode.palava.core.Registry;
 import de.cosmocode.palava.core.lifecycle.Disposable;
 import de.cosmocode.palava.core.lifecycle.Initializable;
 import de.cosmocode.palava.core.lifecycle.LifecycleException;
@@ -66,9 +101,61 @@ import de.cosmocode.palava.core.lifecycle.LifecycleException;
  * 
  * @author Willi Schoenborn
  */
-final class DefaultSalesforceService implements SalesforceService, Initializable, Disposable {
+final class DefaultSalesforceService implements SalesforceService, SalesforceStatistics, Initializable, Disposable {
 
     private static final Logger LOG = LoggerFactory.getLogger(DefaultSalesforceService.class);
+    
+    private static final QName PORT_NAME = new QName(Salesforce.SERVICE_NAME.getNamespaceURI(), "Soap");
+
+    /**
+     * Delay before the first retry of a failed background connect, doubled after every attempt.
+     */
+    private static final long INITIAL_BOOT_DELAY = TimeUnit.SECONDS.toMillis(1);
+    
+    /**
+     * Maximum delay between two background connect attempts.
+     */
+    private static final long MAXIMUM_BOOT_DELAY = TimeUnit.MINUTES.toMillis(5);
+    
+    /**
+     * Failure categories which indicate a degraded endpoint and count against the circuit breaker.
+     */
+    private static final Set<FailureCategory> DEGRADATIONS = Sets.immutableEnumSet(
+        FailureCategory.TIMEOUT, FailureCategory.UNEXPECTED, FailureCategory.REQUEST_LIMIT
+    );
+    
+    /**
+     * Extracts the errors of single results, empty on success.
+     */
+    private static final Function<SaveResult, List<Error>> SAVE_ERRORS = 
+        new Function<SaveResult, List<Error>>() {
+        
+            @Override
+            public List<Error> apply(SaveResult from) {
+                return from.isSuccess() ? Collections.<Error>emptyList() : from.getErrors();
+            }
+        
+        };
+    
+    private static final Function<UpsertResult, List<Error>> UPSERT_ERRORS = 
+        new Function<UpsertResult, List<Error>>() {
+        
+            @Override
+            public List<Error> apply(UpsertResult from) {
+                return from.isSuccess() ? Collections.<Error>emptyList() : from.getErrors();
+            }
+        
+        };
+    
+    private static final Function<DeleteResult, List<Error>> DELETE_ERRORS = 
+        new Function<DeleteResult, List<Error>>() {
+        
+            @Override
+            public List<Error> apply(DeleteResult from) {
+                return from.isSuccess() ? Collections.<Error>emptyList() : from.getErrors();
+            }
+        
+        };
 
     /**
      * The location of the wsdl file.
@@ -106,17 +193,185 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
     private String externalIdentifier = "ObjectId__c";
     
     /**
-     * Number of retries all crud operations will perform before failing.
+     * Number of retries all crud operations will perform on invalid sessions
+     * and unexpected errors before failing. Only used if no {@link RetryPolicy} is bound.
      */
     private int maxRetries = 1;
     
+    /**
+     * Decides which failures are retried and when.
+     */
+    private RetryPolicy retryPolicy;
+    
+    /**
+     * Number of retries performed, per failure category.
+     */
+    private final Map<FailureCategory, AtomicLong> retries;
+    
+    /**
+     * Number of outcomes the circuit breaker uses to compute the failure rate.
+     */
+    private int circuitWindowSize = 20;
+    
+    /**
+     * Failure rate which opens the circuit.
+     */
+    private double circuitFailureRate = 0.5;
+    
+    /**
+     * Time the circuit stays open before trial calls are allowed.
+     */
+    private long circuitOpenDuration = 30;
+    
+    /**
+     * The unit of {@link DefaultSalesforceService#circuitOpenDuration}.
+     */
+    private TimeUnit circuitOpenDurationUnit = TimeUnit.SECONDS;
+    
+    /**
+     * Number of successful trial calls required to close the circuit.
+     */
+    private int circuitTrialCalls = 3;
+    
+    /**
+     * Used to notify {@link CircuitBreakerListener}s, may be null.
+     */
+    private Registry registry;
+    
+    private CircuitBreaker circuitBreaker;
+    
+    /**
+     * Percentage of the daily API request limit reserved for high priority requests.
+     */
+    private int apiReserve = 10;
+    
+    /**
+     * Maximum number of low and normal priority requests per hour, 0 means unlimited.
+     */
+    private int apiHourlyRate;
+    
+    private ApiBudget budget;
+    
+    /**
+     * Runs chunks of oversized batches in parallel, may be null.
+     */
+    private ExecutorService executor;
+    
+    /**
+     * Maximum number of chunks of one batch processed at the same time, defaults to the pool size.
+     */
+    private int batchConcurrency;
+    
+    private BatchDispatcher dispatcher;
+    
     /**
      * When set to true a failure connection failure during initialization will result
-     * in an exception.
+     * in an exception. Otherwise the initial connect happens in the background.
      */
     private boolean failOnBoot = true;
     
-    private Soap soap;
+    /**
+     * Maximum time callers wait for the background connect, 0 means fail fast.
+     */
+    private long bootTimeout = 10;
+    
+    /**
+     * The unit of {@link DefaultSalesforceService#bootTimeout}.
+     */
+    private TimeUnit bootTimeoutUnit = TimeUnit.SECONDS;
+    
+    /**
+     * Maximum number of endpoints used concurrently by the crud operations.
+     */
+    private int poolSize = 4;
+    
+    /**
+     * Maximum time to wait for an idle endpoint.
+     */
+    private long poolTimeout = 30;
+    
+    /**
+     * The unit of {@link DefaultSalesforceService#poolTimeout}.
+     */
+    private TimeUnit poolTimeoutUnit = TimeUnit.SECONDS;
+    
+    /**
+     * Delay between two session keep-alive checks.
+     */
+    private long keepAliveInterval = 1;
+    
+    /**
+     * The unit of {@link DefaultSalesforceService#keepAliveInterval}.
+     */
+    private TimeUnit keepAliveIntervalUnit = TimeUnit.MINUTES;
+    
+    /**
+     * Used to schedule the session keep-alive, may be null.
+     */
+    private ScheduledExecutorService scheduler;
+    
+    private ScheduledFuture<?> keepAlive;
+    
+    /**
+     * Persists sessions across restarts, may be null.
+     */
+    private FileSessionStore sessionStore;
+    
+    private int identifierCacheSize;
+    
+    private File identifierCacheFile;
+    
+    /**
+     * Maps external identifiers to Salesforce ids, may be null.
+     */
+    private IdentifierCache identifiers;
+    
+    private volatile ScheduledFuture<?> boot;
+    
+    /**
+     * True while the initial connect is running in the background.
+     */
+    private volatile boolean booting;
+    
+    /**
+     * Released as soon as the first session has been established.
+     */
+    private final CountDownLatch connected = new CountDownLatch(1);
+    
+    /**
+     * The parsed wsdl including its port model, shared by all endpoints.
+     */
+    private volatile SforceService service;
+    
+    private volatile long wsdlParsingTime;
+    
+    private volatile long modelBuildingTime;
+    
+    private volatile long lastLoginTime;
+    
+    private SoapPool pool;
+    
+    /**
+     * The current session, replaced atomically by {@link DefaultSalesforceService#refresh(Session)}.
+     */
+    private final AtomicReference<Session> session = new AtomicReference<Session>();
+    
+    /**
+     * The login currently in progress, if any.
+     */
+    private final AtomicReference<FutureTask<Session>> login = new AtomicReference<FutureTask<Session>>();
+    
+    private final AtomicLong generations = new AtomicLong();
+    
+    /**
+     * The endpoint used for the last login, provided by {@link DefaultSalesforceService#get()}.
+     */
+    private volatile Soap soap;
+    
+    /**
+     * Time of the last endpoint checkout, in milliseconds.
+     */
+    private volatile long lastActivity;
     
     @Inject
     public DefaultSalesforceService(
@@ -133,6 +388,11 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
         this.securityToken = Preconditions.checkNotNull(securityToken, "SecurityToken");
         this.connectionTimeout = Preconditions.checkNotNull(connectionTimeout, "ConnectionTimeout");
         this.connectionTimeoutUnit = Preconditions.checkNotNull(connectionTimeoutUnit, "ConnectionTimeoutUnit");
+        
+        this.retries = new EnumMap<FailureCategory, AtomicLong>(FailureCategory.class);
+        for (FailureCategory category : FailureCategory.values()) {
+            retries.put(category, new AtomicLong());
+        }
     }
     
     @Inject(optional = true)
@@ -145,29 +405,242 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
         this.maxRetries = maxRetries;
     }
     
+    @Inject(optional = true)
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy, "RetryPolicy");
+    }
+    
+    @Inject(optional = true)
+    void setCircuitWindowSize(@Named(SalesforceServiceConfig.CIRCUIT_WINDOW_SIZE) int circuitWindowSize) {
+        this.circuitWindowSize = circuitWindowSize;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitFailureRate(@Named(SalesforceServiceConfig.CIRCUIT_FAILURE_RATE) double circuitFailureRate) {
+        this.circuitFailureRate = circuitFailureRate;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitOpenDuration(@Named(SalesforceServiceConfig.CIRCUIT_OPEN_DURATION) long circuitOpenDuration) {
+        this.circuitOpenDuration = circuitOpenDuration;
+    }
+    
+    @Inject(optional = true)
+    void setCircuitOpenDurationUnit(
+        @Named(SalesforceServiceConfig.CIRCUIT_OPEN_DURATION_UNIT) TimeUnit circuitOpenDurationUnit) {
+        this.circuitOpenDurationUnit = Preconditions.checkNotNull(circuitOpenDurationUnit, "CircuitOpenDurationUnit");
+    }
+    
+    @Inject(optional = true)
+    void setCircuitTrialCalls(@Named(SalesforceServiceConfig.CIRCUIT_TRIAL_CALLS) int circuitTrialCalls) {
+        this.circuitTrialCalls = circuitTrialCalls;
+    }
+    
+    @Inject(optional = true)
+    void setApiReserve(@Named(SalesforceServiceConfig.API_RESERVE) int apiReserve) {
+        this.apiReserve = apiReserve;
+    }
+    
+    @Inject(optional = true)
+    void setApiHourlyRate(@Named(SalesforceServiceConfig.API_HOURLY_RATE) int apiHourlyRate) {
+        this.apiHourlyRate = apiHourlyRate;
+    }
+    
+    @Inject(optional = true)
+    void setExecutor(@SalesforceExecutor ExecutorService executor) {
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+    }
+    
+    @Inject(optional = true)
+    void setBatchConcurrency(@Named(SalesforceServiceConfig.BATCH_CONCURRENCY) int batchConcurrency) {
+        Preconditions.checkArgument(batchConcurrency > 0, "BatchConcurrency must be positive");
+        this.batchConcurrency = batchConcurrency;
+    }
+    
+    @Inject(optional = true)
+    void setRegistry(Registry registry) {
+        this.registry = Preconditions.checkNotNull(registry, "Registry");
+    }
+    
     @Inject(optional = true)
     void setFailOnBoot(@Named(SalesforceServiceConfig.FAIL_ON_BOOT) boolean failOnBoot) {
         this.failOnBoot = failOnBoot;
     }
+    
+    @Inject(optional = true)
+    void setBootTimeout(@Named(SalesforceServiceConfig.BOOT_TIMEOUT) long bootTimeout) {
+        Preconditions.checkArgument(bootTimeout >= 0, "BootTimeout must not be negative");
+        this.bootTimeout = bootTimeout;
+    }
+    
+    @Inject(optional = true)
+    void setBootTimeoutUnit(@Named(SalesforceServiceConfig.BOOT_TIMEOUT_UNIT) TimeUnit bootTimeoutUnit) {
+        this.bootTimeoutUnit = Preconditions.checkNotNull(bootTimeoutUnit, "BootTimeoutUnit");
+    }
+    
+    @Inject(optional = true)
+    void setPoolSize(@Named(SalesforceServiceConfig.POOL_SIZE) int poolSize) {
+        Preconditions.checkArgument(poolSize > 0, "PoolSize must be positive");
+        this.poolSize = poolSize;
+    }
+    
+    @Inject(optional = true)
+    void setPoolTimeout(@Named(SalesforceServiceConfig.POOL_TIMEOUT) long poolTimeout) {
+        this.poolTimeout = poolTimeout;
+    }
+    
+    @Inject(optional = true)
+    void setPoolTimeoutUnit(@Named(SalesforceServiceConfig.POOL_TIMEOUT_UNIT) TimeUnit poolTimeoutUnit) {
+        this.poolTimeoutUnit = Preconditions.checkNotNull(poolTimeoutUnit, "PoolTimeoutUnit");
+    }
+    
+    @Inject(optional = true)
+    void setKeepAliveInterval(@Named(SalesforceServiceConfig.KEEP_ALIVE_INTERVAL) long keepAliveInterval) {
+        Preconditions.checkArgument(keepAliveInterval > 0, "KeepAliveInterval must be positive");
+        this.keepAliveInterval = keepAliveInterval;
+    }
+    
+    @Inject(optional = true)
+    void setKeepAliveIntervalUnit(
+        @Named(SalesforceServiceConfig.KEEP_ALIVE_INTERVAL_UNIT) TimeUnit keepAliveIntervalUnit) {
+        this.keepAliveIntervalUnit = Preconditions.checkNotNull(keepAliveIntervalUnit, "KeepAliveIntervalUnit");
+    }
+    
+    @Inject(optional = true)
+    void setSessionStore(
+        @Named(SalesforceServiceConfig.SESSION_STORE) File file,
+        @Named(SalesforceServiceConfig.SESSION_STORE_KEY) String key) {
+        this.sessionStore = new FileSessionStore(file, key);
+    }
+    
+    @Inject(optional = true)
+    void setIdentifierCacheSize(@Named(SalesforceServiceConfig.IDENTIFIER_CACHE_SIZE) int identifierCacheSize) {
+        Preconditions.checkArgument(identifierCacheSize >= 0, "IdentifierCacheSize must not be negative");
+        this.identifierCacheSize = identifierCacheSize;
+    }
+    
+    @Inject(optional = true)
+    void setIdentifierCacheFile(@Named(SalesforceServiceConfig.IDENTIFIER_CACHE_FILE) File identifierCacheFile) {
+        this.identifierCacheFile = Preconditions.checkNotNull(identifierCacheFile, "IdentifierCacheFile");
+    }
+    
+    @Inject(optional = true)
+    void setScheduler(@SalesforceScheduler ScheduledExecutorService scheduler) {
+        this.scheduler = Preconditions.checkNotNull(scheduler, "Scheduler");
+    }
 
     @Override
     public void initialize() throws LifecycleException {
-        try {
-            soap = connect();
-        } catch (SalesforceException e) {
-            if (failOnBoot) {
+        if (retryPolicy == null) {
+            retryPolicy = ExponentialBackoffRetryPolicy.defaults(maxRetries);
+        }
+        LOG.debug("Using {}", retryPolicy);
+        
+        circuitBreaker = new CircuitBreaker(circuitWindowSize, circuitFailureRate, 
+            circuitOpenDuration, circuitOpenDurationUnit, circuitTrialCalls, new CircuitBreakerListener() {
+                
+                @Override
+                public void circuitStateChanged(CircuitState from, CircuitState to) {
+                    if (registry == null) return;
+                    for (CircuitBreakerListener listener : registry.getListeners(CircuitBreakerListener.class)) {
+                        listener.circuitStateChanged(from, to);
+                    }
+                }
+                
+            });
+        
+        budget = new ApiBudget(apiReserve, apiHourlyRate);
+        
+        if (identifierCacheSize > 0) {
+            identifiers = new IdentifierCache(externalIdentifier, identifierCacheSize);
+            if (identifierCacheFile != null) {
+                identifiers.load(identifierCacheFile);
+            }
+        }
+        dispatcher = new BatchDispatcher(executor, batchConcurrency == 0 ? poolSize : batchConcurrency, 
+            Salesforce.MAXIMUM_BATCH_SIZE);
+        
+        pool = new SoapPool(poolSize, new Supplier<Soap>() {
+            
+            @Override
+            public Soap get() {
+                return newEndpoint();
+            }
+            
+        });
+        
+        if (failOnBoot) {
+            try {
+                refresh(null);
+            } catch (SalesforceException e) {
                 throw new LifecycleException(e);
-            } else {
+            }
+        } else if (scheduler == null) {
+            try {
+                refresh(null);
+            } catch (SalesforceException e) {
                 LOG.warn("Unable to connect to salesforce", e);
             }
+        } else {
+            LOG.info("Connecting to Salesforce in the background");
+            booting = true;
+            boot(0, 0);
+        }
+        
+        if (scheduler == null) {
+            LOG.info("No @SalesforceScheduler bound, session keep-alive is disabled");
+        } else {
+            LOG.debug("Checking session every {} {}", keepAliveInterval, keepAliveIntervalUnit.name().toLowerCase());
+            keepAlive = scheduler.scheduleWithFixedDelay(new Runnable() {
+                
+                @Override
+                public void run() {
+                    keepAlive();
+                }
+                
+            }, keepAliveInterval, keepAliveInterval, keepAliveIntervalUnit);
         }
     }
     
+    /**
+     * Schedules a background connect attempt. Failed attempts are rescheduled
+     * using an exponential backoff until a session has been established.
+     * 
+     * @param attempt the number of failed attempts so far
+     * @param delay the delay in milliseconds
+     */
+    private void boot(final int attempt, long delay) {
+        boot = scheduler.schedule(new Runnable() {
+            
+            @Override
+            public void run() {
+                try {
+                    refresh(null);
+                    LOG.info("Connected to Salesforce after {} failed attempt(s)", attempt);
+                } catch (SalesforceException e) {
+                    final long next = Math.min(INITIAL_BOOT_DELAY << Math.min(attempt, 20), MAXIMUM_BOOT_DELAY);
+                    LOG.warn(String.format("Unable to connect to salesforce, retrying in %sms", next), e);
+                    boot(attempt + 1, next);
+                }
+            }
+            
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
     @Override
     public Soap connect() throws SalesforceException {
-        LOG.info("Connecting to Salesforce using {}", wsdl.toExternalForm());
-        final SforceService service = new SforceService(wsdl, Salesforce.SERVICE_NAME);
-        final Soap endpoint = service.getSoap();
+        final Soap endpoint = newEndpoint();
+        login(endpoint);
+        return endpoint;
+    }
+    
+    /**
+     * Creates a new endpoint which is not yet logged in.
+     * 
+     * @return a new endpoint
+     */
+    private Soap newEndpoint() {
+        final Soap endpoint = service().getSoap();
         
         assert endpoint instanceof WSBindingProvider : 
             String.format("%s should be an instance of %s", endpoint, WSBindingProvider.class);
@@ -184,21 +657,60 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
         LOG.trace("Enabling Gzip compression");
         provider.getRequestContext().put(MessageContext.HTTP_REQUEST_HEADERS, Maps.newHashMap(Salesforce.HTTP_HEADERS));
         
+        return endpoint;
+    }
+    
+    /**
+     * Provides the {@link SforceService} for the configured wsdl. Parsing the wsdl and
+     * building the JAX-WS port model is expensive and happens only once, all
+     * endpoints created afterwards share the same model.
+     * 
+     * @return the shared service
+     */
+    private SforceService service() {
+        SforceService current = service;
+        if (current == null) {
+            synchronized (this) {
+                current = service;
+                if (current == null) {
+                    LOG.info("Connecting to Salesforce using {}", wsdl.toExternalForm());
+                    final long start = System.nanoTime();
+                    current = new SforceService(wsdl, Salesforce.SERVICE_NAME);
+                    final long parsed = System.nanoTime();
+                    
+                    // the first port triggers the creation of the runtime model, later ports reuse it
+                    current.getSoap();
+                    final long built = System.nanoTime();
+                    
+                    wsdlParsingTime = parsed - start;
+                    modelBuildingTime = built - parsed;
+                    LOG.info("Parsed wsdl in {}ms and built port model in {}ms",
+                        TimeUnit.NANOSECONDS.toMillis(wsdlParsingTime),
+                        TimeUnit.NANOSECONDS.toMillis(modelBuildingTime));
+                    service = current;
+                }
+            }
+        }
+        return current;
+    }
+    
+    /**
+     * Logs in using the given endpoint and configures it to use the new session.
+     * 
+     * @param endpoint the endpoint used to login
+     * @return the new session
+     * @throws SalesforceException if login failed
+     */
+    private Session login(Soap endpoint) {
         try {
             LOG.debug("Attempt to login using {}/***", username);
+            final long start = System.nanoTime();
             final LoginResult result = endpoint.login(username, password + securityToken);
+            lastLoginTime = System.nanoTime() - start;
+            LOG.info("Logged into Salesforce in {}ms", TimeUnit.NANOSECONDS.toMillis(lastLoginTime));
             
-            final String serverUrl = result.getServerUrl();
-            LOG.trace("Setting endpoint to {}", serverUrl);
-            provider.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, serverUrl);
-            
-            final SessionHeader sessionHeader = new SessionHeader();
-            LOG.trace("Creating new SessionHeader with Id: {}", result.getSessionId());
-            sessionHeader.setSessionId(result.getSessionId());
-            
-            final Header header = Headers.create(Salesforce.CONTEXT, sessionHeader);
-            LOG.trace("Setting Header {} in provider {}", header, provider);
-            provider.setOutboundHeaders(header);
+            final Session newSession = new Session(result, generations.incrementAndGet());
+            newSession.applyTo(endpoint);
             
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Logged in as user with ID {}", result.getUserId());
@@ -209,6 +721,8 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
                 LOG.trace("Organization: {} [{}]", info.getOrganizationName(), info.getOrganizationId());
                 LOG.trace("Language: {} / Locale: {}", info.getUserLanguage(), info.getUserLocale());
             }
+            
+            return newSession;
         } catch (InvalidIdFault e) {
             throw new SalesforceException("Unable to log into Salesforce", e);
         } catch (LoginFault e) {
@@ -216,58 +730,399 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
         } catch (UnexpectedErrorFault e) {
             throw new SalesforceException("Unable to log into Salesforce", e);
         }
-        return endpoint;
     }
     
     @Override
-    public synchronized Soap get() {
-        return soap == null ? reconnect() : soap;
+    public Soap get() {
+        session();
+        return soap;
     }
     
     @Override
-    public synchronized Soap reconnect() {
-        soap = connect();
+    public Soap reconnect() {
+        refresh(session.get());
         return soap;
     }
     
     @Override
-    public List<SaveResult> create(List<SObject> objects) {
-        return create(objects, 0);
+    public SalesforceSession getSession() {
+        return session();
     }
     
-    private List<SaveResult> create(List<SObject> objects, int retries) {
-        Preconditions.checkNotNull(objects, "Objects");
-        if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
-        final List<SaveResult> results;
+    /**
+     * Borrows an endpoint using the latest session. Sessions read before, e.g. prior
+     * to waiting for the budget, may have been replaced meanwhile.
+     * 
+     * @return an endpoint, see {@link SoapPool.Endpoint#getSession()} for the session it uses
+     */
+    private SoapPool.Endpoint checkout() {
+        final SoapPool.Endpoint endpoint = pool.checkout(session(), poolTimeout, poolTimeoutUnit);
+        lastActivity = System.currentTimeMillis();
+        return endpoint;
+    }
+    
+    /**
+     * Keeps the current session alive. Salesforce sessions expire after a period
+     * of inactivity, so a cheap request is sent once half of that period passed
+     * without any traffic. Sessions which already expired or which are rejected
+     * by the server are renewed, so user requests never pay for a failed round
+     * trip followed by a login.
+     */
+    private void keepAlive() {
+        final Session current = session.get();
+        if (current == null) return;
         
         try {
-            results = get().create(objects);
-        } catch (InvalidFieldFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidIdFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidSObjectFault e) {
-            throw new SalesforceException(e);
-        } catch (UnexpectedErrorFault e) {
-            if (retries < maxRetries) {
-                reconnect();
-                return create(objects, retries + 1);
+            final long timeout = current.getTimeout(TimeUnit.MILLISECONDS);
+            final long idle = System.currentTimeMillis() - lastActivity;
+            
+            if (idle >= timeout) {
+                LOG.info("{} expired after {}ms of inactivity, renewing", current, idle);
+                refresh(current);
+            } else if (idle >= timeout / 2 - keepAliveIntervalUnit.toMillis(keepAliveInterval)) {
+                ping(current, idle);
             } else {
-                throw new SalesforceException(e);
+                LOG.trace("{} is {}ms old and was used {}ms ago", new Object[] {
+                    current, current.getAge(TimeUnit.MILLISECONDS), idle
+                });
             }
+        } catch (RuntimeException e) {
+            LOG.warn("Session keep-alive failed", e);
         }
-        
+    }
+    
+    private void ping(Session current, long idle) {
+        LOG.debug("Pinging {} after {}ms of inactivity", current, idle);
+        boolean rejected = false;
+        final SoapPool.Endpoint endpoint = checkout();
+        final Session used = endpoint.getSession();
+        try {
+            endpoint.getSoap().getServerTimestamp();
+        } catch (UnexpectedErrorFault e) {
+            LOG.info("{} has been rejected, renewing", used);
+            rejected = true;
+        } finally {
+            pool.checkin(endpoint);
+        }
+        
+        if (rejected) {
+            refresh(used);
+        }
+    }
+    
+    private Session session() {
+        final Session current = session.get();
+        if (current != null) {
+            return current;
+        } else if (booting) {
+            return awaitBoot();
+        } else {
+            return refresh(null);
+        }
+    }
+    
+    /**
+     * Waits for the background connect to establish the first session.
+     * 
+     * @return the current session
+     * @throws SalesforceException if no session has been established within the boot timeout
+     */
+    private Session awaitBoot() {
+        try {
+            if (connected.await(bootTimeout, bootTimeoutUnit)) {
+                return session.get();
+            } else {
+                throw new SalesforceException("Not yet connected to Salesforce");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SalesforceException("Interrupted while waiting for connect", e);
+        }
+    }
+    
+    /**
+     * Replaces the given stale session with a new one. Only the first thread
+     * which detects a stale session performs the login, all other threads
+     * wait for the same login to complete. Callers which pass a session that
+     * has already been replaced receive the current session immediately.
+     * 
+     * @param stale the session which turned out to be invalid, may be null
+     * @return the current session
+     * @throws SalesforceException if login failed
+     */
+    private Session refresh(final Session stale) {
+        final long generation = Session.generationOf(stale);
+        while (true) {
+            final Session current = session.get();
+            if (current != null && current.getGeneration() != generation) {
+                LOG.trace("{} has already been replaced by {}", stale, current);
+                return current;
+            }
+            
+            final FutureTask<Session> pending = login.get();
+            if (pending != null) {
+                LOG.trace("Waiting for pending login");
+                return await(pending);
+            }
+            
+            final FutureTask<Session> task = new FutureTask<Session>(new Callable<Session>() {
+                
+                @Override
+                public Session call() {
+                    final Soap endpoint = newEndpoint();
+                    final Session newSession;
+                    final Session restored = stale == null ? restore() : null;
+                    
+                    if (restored == null) {
+                        newSession = login(endpoint);
+                        if (sessionStore != null) {
+                            sessionStore.save(newSession, System.currentTimeMillis());
+                        }
+                    } else {
+                        // the server will reject it if it is no longer valid, causing another refresh
+                        restored.applyTo(endpoint);
+                        newSession = restored;
+                    }
+                    
+                    lastActivity = System.currentTimeMillis();
+                    soap = endpoint;
+                    session.set(newSession);
+                    booting = false;
+                    connected.countDown();
+                    return newSession;
+                }
+                
+            });
+            
+            if (login.compareAndSet(null, task)) {
+                try {
+                    task.run();
+                } finally {
+                    login.compareAndSet(task, null);
+                }
+                return await(task);
+            }
+        }
+    }
+    
+    private Session restore() {
+        return sessionStore == null ? null : sessionStore.load(generations.incrementAndGet());
+    }
+    
+    private Session await(FutureTask<Session> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SalesforceException("Interrupted while waiting for login", e);
+        } catch (ExecutionException e) {
+            throw new SalesforceException("Unable to log into Salesforce", e.getCause());
+        }
+    }
+    
+    /**
+     * Invokes the given call using a pooled endpoint. Failures are classified by the
+     * configured {@link RetryPolicy} and retried iteratively after the delay it
+     * specifies. Calls which are not idempotent are only retried if the server
+     * did not process them, see {@link #isRepeatable(SoapCall, FailureCategory, Throwable)}.
+     * Invalid sessions and unexpected errors cause a session refresh
+     * before the next attempt. Every attempt has to pass the {@link ApiBudget} and the
+     * {@link CircuitBreaker}, in that order, and returns the budget if the circuit rejects it.
+     * Attempts which fail before reaching Salesforce don't count as an outcome of the circuit breaker.
+     * 
+     * @param <T> the generic result type
+     * @param call the call being invoked
+     * @return the result of the first successful attempt
+     * @throws SalesforceException if the call failed and should not be retried
+     * @throws CircuitOpenException if the circuit breaker is open
+     * @throws SalesforceException if the API request budget is reserved for higher priorities
+     */
+    private <T> T invoke(SoapCall<T> call) {
+        for (int attempt = 1; ; attempt++) {
+            Session used = null;
+            Exception failure = null;
+            FailureCategory category = null;
+            
+            // the budget may block, which must not happen while holding a trial slot of the circuit
+            budget.acquire();
+            try {
+                circuitBreaker.acquire();
+            } catch (CircuitOpenException e) {
+                // an open circuit must not consume budget
+                budget.release();
+                throw e;
+            }
+            boolean completed = false;
+            boolean degraded = false;
+            
+            try {
+                try {
+                    final SoapPool.Endpoint endpoint = checkout();
+                    used = endpoint.getSession();
+                    try {
+                        final T result = call.call(endpoint);
+                        completed = true;
+                        return result;
+                    } finally {
+                        budget.observe(endpoint.getSoap());
+                        pool.checkin(endpoint);
+                    }
+                } catch (RetryableErrorsException e) {
+                    failure = e;
+                    category = e.getCategory();
+                } catch (WebServiceException e) {
+                    failure = e;
+                    category = retryPolicy.classify(e);
+                } catch (RuntimeException e) {
+                    // e.g. no idle endpoint or budget, which says nothing about the endpoint
+                    throw e;
+                } catch (Exception e) {
+                    failure = e;
+                    category = retryPolicy.classify(e);
+                }
+                completed = true;
+                degraded = DEGRADATIONS.contains(category);
+            } finally {
+                if (completed) {
+                    circuitBreaker.release(degraded);
+                } else {
+                    circuitBreaker.cancel();
+                }
+            }
+            
+            final long delay = isRepeatable(call, category, failure) 
+                ? retryPolicy.getDelay(category, attempt, TimeUnit.MILLISECONDS) : -1;
+            
+            if (delay < 0) {
+                if (failure instanceof RetryableErrorsException) {
+                    throw new FailedCallException(category, RetryableErrorsException.class.cast(failure).getErrors());
+                } else {
+                    throw new FailedCallException(category, failure);
+                }
+            }
+            
+            retries.get(category).incrementAndGet();
+            LOG.info("Retrying {} failure in {}ms (attempt {}): {}", new Object[] {
+                category, delay, attempt, failure
+            });
+            
+            if (category == FailureCategory.INVALID_SESSION || category == FailureCategory.UNEXPECTED) {
+                refresh(used);
+            }
+            
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SalesforceException("Interrupted while waiting for retry", failure);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Decides whether the given failed call may be sent again. Calls which are not
+     * idempotent, e.g. creates, are only repeated if the server certainly did not
+     * process them: the session has been rejected or no connection could be established.
+     * A read timeout does not qualify, because the server may have committed the call.
+     * 
+     * @param call the failed call
+     * @param category the category of the failure
+     * @param failure the failure
+     * @return true if the call may be repeated, false otherwise
+     */
+    private static boolean isRepeatable(SoapCall<?> call, FailureCategory category, Throwable failure) {
+        return call.isIdempotent() || category == FailureCategory.INVALID_SESSION || isConnectFailure(failure);
+    }
+    
+    /**
+     * Checks whether the given failure happened before the request was sent.
+     * 
+     * @param failure the failure
+     * @return true if no connection could be established, false otherwise
+     */
+    static boolean isConnectFailure(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof UnknownHostException 
+                || t instanceof NoRouteToHostException) {
+                return true;
+            } else if (t instanceof SocketTimeoutException && "connect timed out".equals(t.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Throws a {@link RetryableErrorsException} if all given errors are retryable
+     * according to the configured {@link RetryPolicy}. Must only be used by idempotent
+     * operations, because the complete batch will be sent again.
+     * 
+     * @param errors the errors of all failed records
+     * @throws RetryableErrorsException if errors is not empty and all errors are retryable
+     */
+    private void checkRetryable(List<Error> errors) throws RetryableErrorsException {
+        if (errors.isEmpty()) return;
+        FailureCategory category = null;
+        for (Error error : errors) {
+            final FailureCategory current = retryPolicy.classify(error);
+            if (current.isRetryable()) {
+                category = category == null ? current : category;
+            } else {
+                return;
+            }
+        }
+        throw new RetryableErrorsException(category, errors);
+    }
+    
+    private static List<Error> saveErrors(List<SaveResult> results) {
+        final List<Error> errors = Lists.newArrayList();
+        for (SaveResult failure : Iterables.filter(results, Salesforce.SAVE_FAILURE)) {
+            errors.addAll(failure.getErrors());
+        }
+        return errors;
+    }
+    
+    private static List<Error> upsertErrors(List<UpsertResult> results) {
+        final List<Error> errors = Lists.newArrayList();
+        for (UpsertResult failure : Iterables.filter(results, Salesforce.UPSERT_FAILURE)) {
+            errors.addAll(failure.getErrors());
+        }
+        return errors;
+    }
+    
+    private static List<Error> deleteErrors(List<DeleteResult> results) {
+        final List<Error> errors = Lists.newArrayList();
+        for (DeleteResult failure : Iterables.filter(results, Salesforce.DELETE_FAILURE)) {
+            errors.addAll(failure.getErrors());
+        }
+        return errors;
+    }
+    
+    @Override
+    public List<SaveResult> create(List<SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
+        // creates are not idempotent, a failed chunk would leave the caller unable to resend the others
+        Preconditions.checkArgument(objects.size() <= Salesforce.MAXIMUM_BATCH_SIZE,
+            "Objects must not contain more than %s elements, use createBatch instead", Salesforce.MAXIMUM_BATCH_SIZE);
+        
+        final List<SaveResult> results = invoke(new SoapCall<List<SaveResult>>(false) {
+            
+            @Override
+            public List<SaveResult> call(Soap soap) throws Exception {
+                return soap.create(objects);
+            }
+            
+        });
+        
         if (Iterables.all(results, Salesforce.SAVE_SUCCESS)) {
             final String name = objects.get(0).getClass().getSimpleName();
             LOG.info("Successfully created {} {}(s)", results.size(), name);
             return results;
         } else {
-            final Iterable<SaveResult> failures = Iterables.filter(results, Salesforce.SAVE_FAILURE);
-            final List<Error> errors = Lists.newArrayList();
-            for (SaveResult failure : failures) {
-                errors.addAll(failure.getErrors());
-            }
-            throw new SalesforceException(errors);
+            throw new SalesforceException(saveErrors(results));
         }
     }
 
@@ -278,42 +1133,36 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
 
     @Override
     public List<SaveResult> update(List<SObject> objects) {
-        return update(objects, 0);
-    }
-    
-    private List<SaveResult> update(List<SObject> objects, int retries) {
         Preconditions.checkNotNull(objects, "Objects");
         if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
-        final List<SaveResult> results;
-        
-        try {
-            results = get().update(objects);
-        } catch (InvalidFieldFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidIdFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidSObjectFault e) {
-            throw new SalesforceException(e);
-        } catch (UnexpectedErrorFault e) {
-            if (retries < maxRetries) {
-                reconnect();
-                return update(objects, retries + 1);
-            } else {
-                throw new SalesforceException(e);
+        return dispatcher.dispatch(objects, new Function<List<SObject>, List<SaveResult>>() {
+            
+            @Override
+            public List<SaveResult> apply(List<SObject> chunk) {
+                return updateChunk(chunk);
             }
-        }
+            
+        });
+    }
+    
+    private List<SaveResult> updateChunk(final List<SObject> objects) {
+        final List<SaveResult> results = invoke(new SoapCall<List<SaveResult>>(true) {
+            
+            @Override
+            public List<SaveResult> call(Soap soap) throws Exception {
+                final List<SaveResult> results = soap.update(objects);
+                checkRetryable(saveErrors(results));
+                return results;
+            }
+            
+        });
         
         if (Iterables.all(results, Salesforce.SAVE_SUCCESS)) {
             final String name = objects.get(0).getClass().getSimpleName();
             LOG.info("Successfully updated {} {}(s)", results.size(), name);
             return results;
         } else {
-            final Iterable<SaveResult> failures = Iterables.filter(results, Salesforce.SAVE_FAILURE);
-            final List<Error> errors = Lists.newArrayList();
-            for (SaveResult failure : failures) {
-                errors.addAll(failure.getErrors());
-            }
-            throw new SalesforceException(errors);
+            throw new SalesforceException(saveErrors(results));
         }
     }
 
@@ -324,30 +1173,20 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
 
     @Override
     public List<UpsertResult> upsert(List<SObject> objects) {
-        return upsert(objects, 0);
-    }
-    
-    private List<UpsertResult> upsert(List<SObject> objects, int retries) {
         Preconditions.checkNotNull(objects, "Objects");
         if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
-        final List<UpsertResult> results;
-        
-        try {
-            results = get().upsert(externalIdentifier, objects);
-        } catch (InvalidFieldFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidIdFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidSObjectFault e) {
-            throw new SalesforceException(e);
-        } catch (UnexpectedErrorFault e) {
-            if (retries < maxRetries) {
-                reconnect();
-                return upsert(objects, retries + 1);
-            } else {
-                throw new SalesforceException(e);
+        return dispatcher.dispatch(objects, new Function<List<SObject>, List<UpsertResult>>() {
+            
+            @Override
+            public List<UpsertResult> apply(List<SObject> chunk) {
+                return upsertChunk(chunk);
             }
-        }
+            
+        });
+    }
+    
+    private List<UpsertResult> upsertChunk(List<SObject> objects) {
+        final List<UpsertResult> results = upsert(objects, true);
 
         if (Iterables.all(results, Salesforce.UPSERT_SUCCESS)) {
             final String name = objects.get(0).getClass().getSimpleName();
@@ -357,12 +1196,7 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
             });
             return results;
         } else {
-            final Iterable<UpsertResult> failures = Iterables.filter(results, Salesforce.UPSERT_FAILURE);
-            final List<Error> errors = Lists.newArrayList();
-            for (UpsertResult failure : failures) {
-                errors.addAll(failure.getErrors());
-            }
-            throw new SalesforceException(errors);
+            throw new SalesforceException(upsertErrors(results));
         }
     }
 
@@ -370,47 +1204,189 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
     public UpsertResult upsert(SObject object) {
         return upsert(ImmutableList.of(object)).get(0);
     }
+    
+    /**
+     * Upserts the given objects. Objects whose Salesforce id is known to the
+     * {@link IdentifierCache} are updated directly, sparing Salesforce the lookup
+     * of their external identifier. Failed updates are retried as upserts, because
+     * the cached id may be stale. Updates are sent using copies carrying the cached
+     * id, the given objects are never modified.
+     * 
+     * <p>
+     *   The update and the upsert are invoked separately, so each call passes the
+     *   {@link CircuitBreaker} and the {@link ApiBudget} on its own and a failed upsert
+     *   does not send the committed update again.
+     * </p>
+     * 
+     * @param objects the objects being updated/inserted
+     * @param retryErrors whether upserts are retried if all failed records failed for
+     *        retryable reasons, see {@link #checkRetryable(List)}
+     * @return the results in the order of objects
+     * @throws SalesforceException if a call failed
+     */
+    private List<UpsertResult> upsert(List<SObject> objects, boolean retryErrors) {
+        if (identifiers == null) {
+            return invoke(upsertCall(objects, retryErrors));
+        }
+        
+        final UpsertResult[] results = new UpsertResult[objects.size()];
+        final List<Integer> known = Lists.newArrayList();
+        final List<SObject> updates = Lists.newArrayList();
+        
+        for (int i = 0; i < objects.size(); i++) {
+            final SObject object = objects.get(i);
+            if (object.getId() != null) continue;
+            final String identifier = identifiers.get(object);
+            if (identifier == null) continue;
+            final SObject copy = copyOf(object);
+            copy.setId(identifier);
+            known.add(i);
+            updates.add(copy);
+        }
+        
+        if (!updates.isEmpty()) {
+            final List<SaveResult> saved = invoke(new SoapCall<List<SaveResult>>(true) {
+                
+                @Override
+                public List<SaveResult> call(Soap soap) throws Exception {
+                    return soap.update(updates);
+                }
+                
+            });
+            for (int i = 0; i < saved.size(); i++) {
+                final SaveResult result = saved.get(i);
+                if (result.isSuccess()) {
+                    final UpsertResult converted = new UpsertResult();
+                    converted.setId(result.getId());
+                    converted.setSuccess(true);
+                    converted.setCreated(false);
+                    results[known.get(i)] = converted;
+                } else {
+                    LOG.debug("Update of cached {} failed, falling back to upsert", updates.get(i));
+                    identifiers.remove(updates.get(i));
+                }
+            }
+            LOG.trace("Updated {} of {} object(s) using cached ids", updates.size(), objects.size());
+        }
+        
+        final List<Integer> remaining = Lists.newArrayList();
+        final List<SObject> upserts = Lists.newArrayList();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) continue;
+            remaining.add(i);
+            upserts.add(objects.get(i));
+        }
+        
+        if (!upserts.isEmpty()) {
+            final List<UpsertResult> upserted = invoke(upsertCall(upserts, retryErrors));
+            for (int i = 0; i < upserted.size(); i++) {
+                final UpsertResult result = upserted.get(i);
+                if (result.isSuccess() && result.getId() != null) {
+                    identifiers.put(upserts.get(i), result.getId());
+                }
+                results[remaining.get(i)] = result;
+            }
+        }
+        
+        return Arrays.asList(results);
+    }
+    
+    private SoapCall<List<UpsertResult>> upsertCall(final List<SObject> objects, final boolean retryErrors) {
+        return new SoapCall<List<UpsertResult>>(true) {
+            
+            @Override
+            public List<UpsertResult> call(Soap soap) throws Exception {
+                final List<UpsertResult> results = soap.upsert(externalIdentifier, objects);
+                if (retryErrors) {
+                    checkRetryable(upsertErrors(results));
+                }
+                return results;
+            }
+            
+        };
+    }
+    
+    /**
+     * Creates a shallow copy of the given object.
+     * 
+     * @param object the object being copied
+     * @return a new instance of the same type sharing all field values
+     */
+    private static SObject copyOf(SObject object) {
+        final SObject copy;
+        try {
+            copy = object.getClass().newInstance();
+            for (Class<?> type = object.getClass(); type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) continue;
+                    // the list must not be shared
+                    if ("fieldsToNull".equals(field.getName())) continue;
+                    field.setAccessible(true);
+                    field.set(copy, field.get(object));
+                }
+            }
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        copy.getFieldsToNull().addAll(object.getFieldsToNull());
+        return copy;
+    }
 
     @Override
     public List<DeleteResult> delete(List<SObject> objects) {
         Preconditions.checkNotNull(objects, "Objects");
         if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
-        final List<String> identifiers = Lists.newArrayList(Iterables.transform(objects, Salesforce.ID_FUNCTION));
-        return delete(identifiers.toArray(new String[identifiers.size()]));
+        final String[] ids = new String[objects.size()];
+        for (int i = 0; i < ids.length; i++) {
+            final SObject object = objects.get(i);
+            final String id = object.getId();
+            // objects known to the cache can be deleted without querying their id first
+            ids[i] = id == null && identifiers != null ? identifiers.get(object) : id;
+        }
+        final List<DeleteResult> results = delete(ids);
+        if (identifiers != null) {
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i).isSuccess()) {
+                    identifiers.remove(objects.get(i));
+                }
+            }
+        }
+        return results;
     }
     
     @Override
     public List<DeleteResult> delete(String[] identifiers) {
-        return delete(identifiers, 0);
-    }
-    
-    private List<DeleteResult> delete(String[] identifiers, int retries) {
         Preconditions.checkNotNull(identifiers, "Identifiers");
         Preconditions.checkArgument(identifiers.length > 0, "Identifiers must not be empty");
-        
-        final List<DeleteResult> results;
-        
-        try {
-            results = get().delete(Arrays.asList(identifiers));
-        } catch (UnexpectedErrorFault e) {
-            if (retries < maxRetries) {
-                reconnect();
-                return delete(identifiers, retries + 1);
-            } else {
-                throw new SalesforceException(e);
+        return dispatcher.dispatch(Arrays.asList(identifiers), new Function<List<String>, List<DeleteResult>>() {
+            
+            @Override
+            public List<DeleteResult> apply(List<String> chunk) {
+                return deleteChunk(chunk);
             }
-        }
+            
+        });
+    }
+    
+    private List<DeleteResult> deleteChunk(final List<String> identifiers) {
+        final List<DeleteResult> results = invoke(new SoapCall<List<DeleteResult>>(true) {
+            
+            @Override
+            public List<DeleteResult> call(Soap soap) throws Exception {
+                final List<DeleteResult> results = soap.delete(identifiers);
+                checkRetryable(deleteErrors(results));
+                return results;
+            }
+            
+        });
 
         if (Iterables.all(results, Salesforce.DELETE_SUCCESS)) {
             LOG.info("Successfully deleted {} objects", results.size());
             return results;
         } else {
-            final Iterable<DeleteResult> failures = Iterables.filter(results, Salesforce.DELETE_FAILURE);
-            final List<Error> errors = Lists.newArrayList();
-            for (DeleteResult failure : failures) {
-                errors.addAll(failure.getErrors());
-            }
-            throw new SalesforceException(errors);
+            throw new SalesforceException(deleteErrors(results));
         }
     }
 
@@ -426,45 +1402,628 @@ final class DefaultSalesforceService implements SalesforceService, Initializable
     }
     
     @Override
-    public QueryResult execute(String query) {
-        return execute(query, 0);
+    public BatchResult<SaveResult> createBatch(List<SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
+        return submit(objects, new Function<List<SObject>, List<SaveResult>>() {
+            
+            @Override
+            public List<SaveResult> apply(final List<SObject> chunk) {
+                return invoke(new SoapCall<List<SaveResult>>(false) {
+                    
+                    @Override
+                    public List<SaveResult> call(Soap soap) throws Exception {
+                        return soap.create(chunk);
+                    }
+                    
+                });
+            }
+            
+        }, SAVE_ERRORS);
+    }
+    
+    @Override
+    public BatchResult<SaveResult> updateBatch(List<SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
+        return submit(objects, new Function<List<SObject>, List<SaveResult>>() {
+            
+            @Override
+            public List<SaveResult> apply(final List<SObject> chunk) {
+                return invoke(new SoapCall<List<SaveResult>>(true) {
+                    
+                    @Override
+                    public List<SaveResult> call(Soap soap) throws Exception {
+                        return soap.update(chunk);
+                    }
+                    
+                });
+            }
+            
+        }, SAVE_ERRORS);
+    }
+    
+    @Override
+    public BatchResult<UpsertResult> upsertBatch(List<SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        if (objects.isEmpty()) throw new IllegalArgumentException("Objects must not be empty");
+        return submit(objects, new Function<List<SObject>, List<UpsertResult>>() {
+            
+            @Override
+            public List<UpsertResult> apply(List<SObject> chunk) {
+                return upsert(chunk, false);
+            }
+            
+        }, UPSERT_ERRORS);
+    }
+    
+    @Override
+    public BatchResult<DeleteResult> deleteBatch(String[] identifiers) {
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        Preconditions.checkArgument(identifiers.length > 0, "Identifiers must not be empty");
+        return submit(Arrays.asList(identifiers), new Function<List<String>, List<DeleteResult>>() {
+            
+            @Override
+            public List<DeleteResult> apply(final List<String> chunk) {
+                return invoke(new SoapCall<List<DeleteResult>>(true) {
+                    
+                    @Override
+                    public List<DeleteResult> call(Soap soap) throws Exception {
+                        return soap.delete(chunk);
+                    }
+                    
+                });
+            }
+            
+        }, DELETE_ERRORS);
+    }
+    
+    /**
+     * Submits the given records and resubmits those which failed with a retryable
+     * error, as long as the configured {@link RetryPolicy} allows it. Successful
+     * records are never sent twice.
+     * 
+     * <p>
+     *   A chunk which fails as a whole, e.g. due to a timeout which could not be retried,
+     *   does not affect the other chunks. Its records are reported as retryable or permanent
+     *   failures, depending on the category of the exception, and their results are null.
+     *   The exception is available using {@link BatchResult#getException(int)}.
+     * </p>
+     * 
+     * @param <I> the generic input type
+     * @param <R> the generic result type
+     * @param input the records being submitted
+     * @param function the function sending one chunk of records
+     * @param errorsOf the function extracting the errors of one result, empty on success
+     * @return the per-record outcome
+     */
+    private <I, R> BatchResult<R> submit(final List<I> input, final Function<List<I>, List<R>> function,
+        Function<R, List<Error>> errorsOf) {
+        
+        final List<R> results = Lists.newArrayListWithCapacity(input.size());
+        final List<Integer> pending = Lists.newArrayListWithCapacity(input.size());
+        for (int i = 0; i < input.size(); i++) {
+            results.add(null);
+            pending.add(i);
+        }
+        
+        final List<Integer> successes = Lists.newArrayList();
+        final List<Integer> retryable = Lists.newArrayList();
+        final List<Integer> permanent = Lists.newArrayList();
+        
+        final Map<Integer, RuntimeException> exceptions = Maps.newHashMap();
+        int attempt = 1;
+        
+        while (true) {
+            final Map<Integer, RuntimeException> failures = new MapMaker().makeMap();
+            final List<R> current = dispatcher.dispatch(pending, new Function<List<Integer>, List<R>>() {
+                
+                @Override
+                public List<R> apply(List<Integer> indices) {
+                    final List<I> records = Lists.newArrayListWithCapacity(indices.size());
+                    for (Integer index : indices) {
+                        records.add(input.get(index));
+                    }
+                    try {
+                        return function.apply(records);
+                    } catch (RuntimeException e) {
+                        LOG.warn(String.format("Chunk of %s record(s) failed", indices.size()), e);
+                        for (Integer index : indices) {
+                            failures.put(index, e);
+                        }
+                        return Collections.nCopies(indices.size(), null);
+                    }
+                }
+                
+            });
+            final List<Integer> resubmit = Lists.newArrayList();
+            long delay = 0;
+            
+            for (int i = 0; i < current.size(); i++) {
+                final Integer index = pending.get(i);
+                
+                final RuntimeException failure = failures.get(index);
+                if (failure != null) {
+                    // the chunk has already been retried by invoke
+                    exceptions.put(index, failure);
+                    if (categoryOf(failure).isRetryable()) {
+                        retryable.add(index);
+                    } else {
+                        permanent.add(index);
+                    }
+                    continue;
+                }
+                
+                final R result = current.get(i);
+                results.set(index, result);
+                
+                final List<Error> errors = errorsOf.apply(result);
+                if (errors.isEmpty()) {
+                    successes.add(index);
+                    continue;
+                }
+                
+                final FailureCategory category = classify(errors, attempt);
+                if (!category.isRetryable()) {
+                    permanent.add(index);
+                    continue;
+                }
+                
+                final long wait = retryPolicy.getDelay(category, attempt, TimeUnit.MILLISECONDS);
+                if (wait < 0) {
+                    retryable.add(index);
+                } else {
+                    retries.get(category).incrementAndGet();
+                    resubmit.add(index);
+                    delay = Math.max(delay, wait);
+                }
+            }
+            
+            if (resubmit.isEmpty()) break;
+            
+            LOG.info("Resubmitting {} of {} record(s) in {}ms (attempt {})", new Object[] {
+                resubmit.size(), input.size(), delay, attempt
+            });
+            
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    retryable.addAll(resubmit);
+                    break;
+                }
+            }
+            
+            pending.clear();
+            pending.addAll(resubmit);
+            attempt++;
+        }
+        
+        Collections.sort(successes);
+        Collections.sort(retryable);
+        Collections.sort(permanent);
+        
+        final BatchResult<R> result = new BatchResult<R>(results, successes, retryable, permanent, exceptions, attempt);
+        LOG.info("Submitted {}", result);
+        return result;
+    }
+    
+    /**
+     * Classifies the failure of a chunk which failed as a whole. The failure has already
+     * been classified by {@link #invoke(SoapCall)}, which wraps it, so it must not be
+     * classified again.
+     * 
+     * @param failure the failure of the chunk
+     * @return the category of the failure
+     */
+    private FailureCategory categoryOf(RuntimeException failure) {
+        if (failure instanceof FailedCallException) {
+            return FailedCallException.class.cast(failure).getCategory();
+        } else if (failure instanceof CircuitOpenException) {
+            // the chunk never reached Salesforce and can be sent once the circuit closes
+            return FailureCategory.TIMEOUT;
+        } else {
+            return retryPolicy.classify(failure);
+        }
+    }
+    
+    /**
+     * Classifies all errors of a single record. The record failed permanently if any of its
+     * errors is permanent. Otherwise the category which has to wait the longest before the
+     * given attempt wins, and a category whose retries are exhausted wins over all others.
+     * 
+     * @param errors the errors of one record, must not be empty
+     * @param attempt the current attempt
+     * @return the category of the record
+     */
+    private FailureCategory classify(List<Error> errors, int attempt) {
+        FailureCategory worst = null;
+        long longest = 0;
+        for (Error error : errors) {
+            final FailureCategory category = retryPolicy.classify(error);
+            if (!category.isRetryable()) return category;
+            final long delay = retryPolicy.getDelay(category, attempt, TimeUnit.MILLISECONDS);
+            if (worst == null || longest >= 0 && (delay < 0 || delay > longest)) {
+                worst = category;
+                longest = delay;
+            }
+        }
+        return worst;
+    }
+    
+    @Override
+    public QueryResult execute(final String query) {
+        Preconditions.checkNotNull(query, "Query");
+        Preconditions.checkArgument(StringUtils.isNotBlank(query), "Query must not be blank");
+        
+        LOG.debug("Executing query '{}' against Salesforce", query);
+        return invoke(new SoapCall<QueryResult>(true) {
+            
+            @Override
+            public QueryResult call(Soap soap) throws Exception {
+                final QueryResult result = soap.query(query);
+                learn(result);
+                return result;
+            }
+            
+        });
+    }
+    
+    @Override
+    public QueryResult queryMore(final String queryLocator) {
+        Preconditions.checkNotNull(queryLocator, "QueryLocator");
+        
+        LOG.trace("Fetching next page of {}", queryLocator);
+        return invoke(new SoapCall<QueryResult>(true) {
+            
+            @Override
+            public QueryResult call(Soap soap) throws Exception {
+                final QueryResult result = soap.queryMore(queryLocator);
+                learn(result);
+                return result;
+            }
+            
+        });
     }
     
-    private QueryResult execute(String query, int retries) {
+    @Override
+    public <T> T execute(String query, int batchSize, PayloadReader<T> reader) {
         Preconditions.checkNotNull(query, "Query");
         Preconditions.checkArgument(StringUtils.isNotBlank(query), "Query must not be blank");
+        Preconditions.checkNotNull(reader, "Reader");
         
-        try {
-            LOG.debug("Executing query '{}' against Salesforce", query);
-            return get().query(query);
-        } catch (InvalidFieldFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidIdFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidQueryLocatorFault e) {
-            throw new SalesforceException(e);
-        } catch (InvalidSObjectFault e) {
-            throw new SalesforceException(e);
-        } catch (MalformedQueryFault e) {
-            throw new SalesforceException(e);
-        } catch (UnexpectedErrorFault e) {
-            if (retries < maxRetries) {
-                reconnect();
-                return execute(query, retries + 1);
-            } else {
-                throw new SalesforceException(e);
+        LOG.debug("Executing query '{}' against Salesforce", query);
+        final Query request = new Query();
+        request.setQueryString(query);
+        return invoke(new PayloadCall<T>(request, batchSize, reader));
+    }
+    
+    @Override
+    public <T> T queryMore(String queryLocator, int batchSize, PayloadReader<T> reader) {
+        Preconditions.checkNotNull(queryLocator, "QueryLocator");
+        Preconditions.checkNotNull(reader, "Reader");
+        
+        LOG.trace("Fetching next page of {}", queryLocator);
+        final QueryMore request = new QueryMore();
+        request.setQueryLocator(queryLocator);
+        return invoke(new PayloadCall<T>(request, batchSize, reader));
+    }
+    
+    /**
+     * Fills the {@link IdentifierCache} using the records of the given result.
+     */
+    private void learn(QueryResult result) {
+        if (identifiers == null) return;
+        identifiers.putAll(result.getRecords());
+    }
+    
+    @Override
+    public GetUpdatedResult getUpdated(final String type, Date start, Date end) {
+        Preconditions.checkNotNull(type, "Type");
+        final XMLGregorianCalendar from = Salesforce.toXMLGregorianCalendar(Preconditions.checkNotNull(start, "Start"));
+        final XMLGregorianCalendar to = Salesforce.toXMLGregorianCalendar(Preconditions.checkNotNull(end, "End"));
+        
+        LOG.debug("Fetching {}s updated between {} and {}", new Object[] {type, start, end});
+        return invoke(new SoapCall<GetUpdatedResult>(true) {
+            
+            @Override
+            public GetUpdatedResult call(Soap soap) throws Exception {
+                return soap.getUpdated(type, from, to);
             }
-        }
+            
+        });
+    }
+    
+    @Override
+    public GetDeletedResult getDeleted(final String type, Date start, Date end) {
+        Preconditions.checkNotNull(type, "Type");
+        final XMLGregorianCalendar from = Salesforce.toXMLGregorianCalendar(Preconditions.checkNotNull(start, "Start"));
+        final XMLGregorianCalendar to = Salesforce.toXMLGregorianCalendar(Preconditions.checkNotNull(end, "End"));
+        
+        LOG.debug("Fetching {}s deleted between {} and {}", new Object[] {type, start, end});
+        return invoke(new SoapCall<GetDeletedResult>(true) {
+            
+            @Override
+            public GetDeletedResult call(Soap soap) throws Exception {
+                return soap.getDeleted(type, from, to);
+            }
+            
+        });
+    }
+    
+    @Override
+    public Date getServerTimestamp() {
+        LOG.trace("Fetching server timestamp");
+        return invoke(new SoapCall<Date>(true) {
+            
+            @Override
+            public Date call(Soap soap) throws Exception {
+                return soap.getServerTimestamp().getTimestamp().toGregorianCalendar().getTime();
+            }
+            
+        });
+    }
+    
+    @Override
+    public List<SObject> retrieve(final String fields, final String type, final List<String> identifiers) {
+        Preconditions.checkNotNull(fields, "Fields");
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(identifiers, "Identifiers");
+        Preconditions.checkArgument(!identifiers.isEmpty(), "Identifiers must not be empty");
+        Preconditions.checkArgument(identifiers.size() <= Salesforce.MAXIMUM_RETRIEVE_SIZE,
+            "Identifiers must not contain more than %s elements", Salesforce.MAXIMUM_RETRIEVE_SIZE);
+        
+        LOG.debug("Retrieving {} {}(s)", identifiers.size(), type);
+        return invoke(new SoapCall<List<SObject>>(true) {
+            
+            @Override
+            public List<SObject> call(Soap soap) throws Exception {
+                return soap.retrieve(fields, type, identifiers);
+            }
+            
+        });
+    }
+    
+    @Override
+    public long getRetries(FailureCategory category) {
+        Preconditions.checkNotNull(category, "Category");
+        return retries.get(category).get();
+    }
+    
+    @Override
+    public CircuitState getCircuitState() {
+        return circuitBreaker.getState();
+    }
+    
+    @Override
+    public double getFailureRate() {
+        return circuitBreaker.getFailureRate();
+    }
+    
+    @Override
+    public long getRejectedCalls() {
+        return circuitBreaker.getRejected();
+    }
+    
+    @Override
+    public long getApiRequestsUsed() {
+        return budget.getUsed();
+    }
+    
+    @Override
+    public long getApiRequestLimit() {
+        return budget.getLimit();
+    }
+    
+    @Override
+    public long getThrottledCalls() {
+        return budget.getThrottled();
+    }
+    
+    @Override
+    public int getPoolSize() {
+        return pool.getSize();
+    }
+    
+    @Override
+    public int getIdleEndpoints() {
+        return pool.getIdle() + pool.getSize() - pool.getCreated();
+    }
+    
+    @Override
+    public long getCheckouts() {
+        return pool.getCheckouts();
+    }
+    
+    @Override
+    public long getCheckoutTimeouts() {
+        return pool.getTimeouts();
+    }
+    
+    @Override
+    public long getAverageWaitingTime(TimeUnit unit) {
+        Preconditions.checkNotNull(unit, "Unit");
+        return pool.getAverageWaitingTime(unit);
+    }
+    
+    @Override
+    public long getMaximumWaitingTime(TimeUnit unit) {
+        Preconditions.checkNotNull(unit, "Unit");
+        return pool.getMaximumWaitingTime(unit);
+    }
+    
+    @Override
+    public long getWsdlParsingTime(TimeUnit unit) {
+        Preconditions.checkNotNull(unit, "Unit");
+        return unit.convert(wsdlParsingTime, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public long getModelBuildingTime(TimeUnit unit) {
+        Preconditions.checkNotNull(unit, "Unit");
+        return unit.convert(modelBuildingTime, TimeUnit.NANOSECONDS);
+    }
+    
+    @Override
+    public long getLastLoginTime(TimeUnit unit) {
+        Preconditions.checkNotNull(unit, "Unit");
+        return unit.convert(lastLoginTime, TimeUnit.NANOSECONDS);
     }
     
     @Override
     public void dispose() throws LifecycleException {
+        if (keepAlive != null) {
+            keepAlive.cancel(false);
+        }
+        
+        if (identifiers != null && identifierCacheFile != null) {
+            identifiers.save(identifierCacheFile);
+        }
+        
+        final ScheduledFuture<?> pending = boot;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        
+        final Session current = session.get();
+        if (current == null) return;
+        
+        if (sessionStore != null) {
+            LOG.info("Keeping {} for the next start", current);
+            sessionStore.save(current, lastActivity);
+            return;
+        }
+        
         try {
             LOG.info("Logging out from Salesforce");
-            soap.logout();
+            final SoapPool.Endpoint endpoint = pool.checkout(current, poolTimeout, poolTimeoutUnit);
+            try {
+                endpoint.getSoap().logout();
+            } finally {
+                pool.checkin(endpoint);
+            }
         } catch (UnexpectedErrorFault e) {
             LOG.error("Logout from Salesforce failed", e);
+        } catch (SalesforceException e) {
+            LOG.error("Logout from Salesforce failed", e);
+        }
+    }
+
+    /**
+     * A single call against a {@link Soap} endpoint.
+     *
+     * @param <T> the generic result type
+     */
+    private abstract static class SoapCall<T> {
+        
+        private final boolean idempotent;
+        
+        /**
+         * Creates a new {@link SoapCall}.
+         * 
+         * @param idempotent true if sending the call twice has the same effect as sending it once
+         */
+        SoapCall(boolean idempotent) {
+            this.idempotent = idempotent;
+        }
+        
+        abstract T call(Soap soap) throws Exception;
+        
+        /**
+         * Invokes this call using the given endpoint. Calls which need more than
+         * its {@link Soap} port override this method.
+         * 
+         * @param endpoint the checked out endpoint
+         * @return the result
+         * @throws Exception if the call failed
+         */
+        T call(SoapPool.Endpoint endpoint) throws Exception {
+            return call(endpoint.getSoap());
+        }
+        
+        boolean isIdempotent() {
+            return idempotent;
+        }
+        
+    }
+    
+    /**
+     * A query or queryMore whose response is passed to a {@link PayloadReader} while it is
+     * streamed. The request is sent by a {@link Dispatch} which uses the address, timeout,
+     * http headers and session of the checked out endpoint.
+     *
+     * @param <T> the generic result type
+     */
+    private final class PayloadCall<T> extends SoapCall<T> {
+        
+        private final Object request;
+        
+        private final int batchSize;
+        
+        private final PayloadReader<T> reader;
+        
+        PayloadCall(Object request, int batchSize, PayloadReader<T> reader) {
+            super(true);
+            this.request = request;
+            this.batchSize = batchSize;
+            this.reader = reader;
+        }
+        
+        @Override
+        T call(Soap soap) {
+            throw new UnsupportedOperationException("PayloadCall requires an endpoint");
         }
+        
+        @Override
+        T call(SoapPool.Endpoint endpoint) throws Exception {
+            final Dispatch<Message> dispatch = service().createDispatch(PORT_NAME, Message.class, Service.Mode.MESSAGE);
+            dispatch.getRequestContext().putAll(BindingProvider.class.cast(endpoint.getSoap()).getRequestContext());
+            
+            final SessionHeader session = new SessionHeader();
+            session.setSessionId(endpoint.getSession().getSessionId());
+            final QueryOptions options = new QueryOptions();
+            options.setBatchSize(batchSize);
+            
+            final Message message = Messages.create(Salesforce.CONTEXT, request, SOAPVersion.SOAP_11);
+            message.getHeaders().add(Headers.create(Salesforce.CONTEXT, session));
+            message.getHeaders().add(Headers.create(Salesforce.CONTEXT, options));
+            
+            final Message response = dispatch.invoke(message);
+            if (response.isFault()) {
+                // faults are small, the retry policy classifies them like the ones of the port
+                throw new SOAPFaultException(response.readAsSOAPMessage().getSOAPBody().getFault());
+            }
+            return reader.read(response.readPayload());
+        }
+        
+    }
+    
+    /**
+     * Signals that all failed records of a batch failed for retryable reasons.
+     */
+    private static final class RetryableErrorsException extends Exception {
+        
+        private static final long serialVersionUID = 3528398405573720962L;
+
+        private final FailureCategory category;
+        
+        private final List<Error> errors;
+        
+        public RetryableErrorsException(FailureCategory category, List<Error> errors) {
+            super(String.format("%s record error(s) of category %s", errors.size(), category));
+            this.category = category;
+            this.errors = errors;
+        }
+        
+        public FailureCategory getCategory() {
+            return category;
+        }
+        
+        public List<Error> getErrors() {
+            return errors;
+        }
+        
     }
 
 }
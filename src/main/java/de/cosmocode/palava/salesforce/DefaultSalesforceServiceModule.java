@@ -22,7 +22,8 @@ import com.google.inject.Singleton;
 import com.sforce.soap.enterprise.Soap;
 
 /**
- * Binds the {@link SalesforceService} to its default implementation.
+ * Binds the {@link SalesforceService} and its {@link SalesforceStatistics}
+ * to the default implementation.
  *
  * @author Willi Schoenborn
  */
@@ -30,7 +31,9 @@ public final class DefaultSalesforceServiceModule implements Module {
 
     @Override
     public void configure(Binder binder) {
-        binder.bind(SalesforceService.class).to(DefaultSalesforceService.class).in(Singleton.class);
+        binder.bind(DefaultSalesforceService.class).in(Singleton.class);
+        binder.bind(SalesforceService.class).to(DefaultSalesforceService.class);
+        binder.bind(SalesforceStatistics.class).to(DefaultSalesforceService.class);
         binder.bind(Soap.class).toProvider(SalesforceService.class);
     }
 
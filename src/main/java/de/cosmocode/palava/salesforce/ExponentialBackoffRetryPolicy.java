@@ -0,0 +1,212 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.soap.DetailEntry;
+import javax.xml.soap.SOAPFault;
+import javax.xml.ws.WebServiceException;
+import javax.xml.ws.soap.SOAPFaultException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.Error;
+import com.sforce.soap.enterprise.UnexpectedErrorFault;
+
+/**
+ * A {@link RetryPolicy} which retries every {@link FailureCategory} using its own
+ * {@link Schedule}. Delays grow exponentially with every attempt and are randomized
+ * using a jitter to prevent concurrent callers from retrying in lockstep.
+ *
+ * @author agent
+ */
+public final class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    private final Map<FailureCategory, Schedule> schedules;
+    
+    private final double jitter;
+    
+    private final Random random = new Random();
+    
+    /**
+     * Creates a new {@link ExponentialBackoffRetryPolicy}.
+     * 
+     * @param schedules the schedule of each category, categories without a schedule are not retried
+     * @param jitter the maximum fraction of a delay which is randomly subtracted, between 0 and 1
+     * @throws NullPointerException if schedules is null
+     * @throws IllegalArgumentException if jitter is not between 0 and 1
+     */
+    public ExponentialBackoffRetryPolicy(Map<FailureCategory, Schedule> schedules, double jitter) {
+        Preconditions.checkNotNull(schedules, "Schedules");
+        Preconditions.checkArgument(jitter >= 0 && jitter <= 1, "Jitter must be between 0 and 1");
+        this.schedules = Maps.newEnumMap(FailureCategory.class);
+        this.schedules.putAll(schedules);
+        this.jitter = jitter;
+    }
+    
+    /**
+     * Creates a policy using sensible defaults. Invalid sessions and unexpected errors are
+     * retried immediately, lock contention, request limits and timeouts back off
+     * exponentially.
+     * 
+     * @param maxRetries the number of retries for invalid sessions and unexpected errors
+     * @return a new policy
+     */
+    public static ExponentialBackoffRetryPolicy defaults(int maxRetries) {
+        final Map<FailureCategory, Schedule> schedules = new EnumMap<FailureCategory, Schedule>(FailureCategory.class);
+        schedules.put(FailureCategory.INVALID_SESSION, new Schedule(maxRetries, 0, 0, TimeUnit.MILLISECONDS));
+        schedules.put(FailureCategory.UNEXPECTED, new Schedule(maxRetries, 0, 0, TimeUnit.MILLISECONDS));
+        schedules.put(FailureCategory.LOCK_CONTENTION, new Schedule(5, 100, 5000, TimeUnit.MILLISECONDS));
+        schedules.put(FailureCategory.TIMEOUT, new Schedule(3, 1000, 30000, TimeUnit.MILLISECONDS));
+        schedules.put(FailureCategory.REQUEST_LIMIT, new Schedule(3, 30000, 300000, TimeUnit.MILLISECONDS));
+        return new ExponentialBackoffRetryPolicy(schedules, 0.5);
+    }
+    
+    @Override
+    public FailureCategory classify(Throwable cause) {
+        Preconditions.checkNotNull(cause, "Cause");
+        if (cause instanceof UnexpectedErrorFault) {
+            final UnexpectedErrorFault fault = UnexpectedErrorFault.class.cast(cause);
+            if (fault.getFaultInfo() == null) {
+                return FailureCategory.UNEXPECTED;
+            } else {
+                return classifyExceptionCode(String.valueOf(fault.getFaultInfo().getExceptionCode()));
+            }
+        } else if (cause instanceof SOAPFaultException) {
+            return classifyFault(SOAPFaultException.class.cast(cause).getFault());
+        } else if (cause instanceof WebServiceException) {
+            for (Throwable t = cause; t != null; t = t.getCause()) {
+                if (t instanceof IOException) return FailureCategory.TIMEOUT;
+            }
+            return FailureCategory.PERMANENT;
+        } else {
+            return FailureCategory.PERMANENT;
+        }
+    }
+    
+    /**
+     * Classifies a fault which has not been mapped to its declared exception, e.g. the one
+     * of a dispatched call, the same way as the declared {@link UnexpectedErrorFault}.
+     */
+    private FailureCategory classifyFault(SOAPFault fault) {
+        if (fault.getDetail() == null) return FailureCategory.PERMANENT;
+        final Iterator<?> entries = fault.getDetail().getDetailEntries();
+        final String type = entries.hasNext() ? DetailEntry.class.cast(entries.next()).getLocalName() : null;
+        if ("UnexpectedErrorFault".equals(type)) {
+            return classifyExceptionCode(fault.getFaultCodeAsQName().getLocalPart());
+        } else {
+            return FailureCategory.PERMANENT;
+        }
+    }
+    
+    private FailureCategory classifyExceptionCode(String code) {
+        if ("INVALID_SESSION_ID".equals(code)) {
+            return FailureCategory.INVALID_SESSION;
+        } else if ("REQUEST_LIMIT_EXCEEDED".equals(code)) {
+            return FailureCategory.REQUEST_LIMIT;
+        } else if ("UNABLE_TO_LOCK_ROW".equals(code)) {
+            return FailureCategory.LOCK_CONTENTION;
+        } else if ("QUERY_TIMEOUT".equals(code) || "SERVER_UNAVAILABLE".equals(code)) {
+            return FailureCategory.TIMEOUT;
+        } else {
+            return FailureCategory.UNEXPECTED;
+        }
+    }
+    
+    @Override
+    public FailureCategory classify(Error error) {
+        Preconditions.checkNotNull(error, "Error");
+        final String code = String.valueOf(error.getStatusCode());
+        if ("UNABLE_TO_LOCK_ROW".equals(code)) {
+            return FailureCategory.LOCK_CONTENTION;
+        } else if ("REQUEST_LIMIT_EXCEEDED".equals(code)) {
+            return FailureCategory.REQUEST_LIMIT;
+        } else {
+            return FailureCategory.PERMANENT;
+        }
+    }
+    
+    @Override
+    public long getDelay(FailureCategory category, int attempt, TimeUnit unit) {
+        Preconditions.checkNotNull(category, "Category");
+        Preconditions.checkArgument(attempt >= 1, "Attempt must be at least 1");
+        Preconditions.checkNotNull(unit, "Unit");
+        
+        final Schedule schedule = schedules.get(category);
+        if (schedule == null || attempt > schedule.maxRetries) return -1;
+        
+        final int shift = Math.min(attempt - 1, 30);
+        final long exponential = schedule.initialDelay << shift;
+        final long delay = exponential < 0 ? schedule.maximumDelay : Math.min(exponential, schedule.maximumDelay);
+        final double randomized;
+        synchronized (random) {
+            randomized = delay - delay * jitter * random.nextDouble();
+        }
+        return unit.convert(Math.round(randomized), TimeUnit.MILLISECONDS);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("ExponentialBackoffRetryPolicy [schedules=%s, jitter=%s]", schedules, jitter);
+    }
+
+    /**
+     * The retry schedule of one {@link FailureCategory}.
+     */
+    public static final class Schedule {
+        
+        private final int maxRetries;
+        
+        private final long initialDelay;
+        
+        private final long maximumDelay;
+        
+        /**
+         * Creates a new {@link Schedule}.
+         * 
+         * @param maxRetries the maximum number of retries
+         * @param initialDelay the delay before the first retry, doubled for every further retry
+         * @param maximumDelay the upper bound of all delays
+         * @param unit the unit of initialDelay and maximumDelay
+         * @throws IllegalArgumentException if any number is negative or maximumDelay is less than initialDelay
+         * @throws NullPointerException if unit is null
+         */
+        public Schedule(int maxRetries, long initialDelay, long maximumDelay, TimeUnit unit) {
+            Preconditions.checkArgument(maxRetries >= 0, "MaxRetries must not be negative");
+            Preconditions.checkArgument(initialDelay >= 0, "InitialDelay must not be negative");
+            Preconditions.checkArgument(maximumDelay >= initialDelay, "MaximumDelay must not be less than InitialDelay");
+            Preconditions.checkNotNull(unit, "Unit");
+            this.maxRetries = maxRetries;
+            this.initialDelay = unit.toMillis(initialDelay);
+            this.maximumDelay = unit.toMillis(maximumDelay);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("Schedule [maxRetries=%s, initialDelay=%sms, maximumDelay=%sms]",
+                maxRetries, initialDelay, maximumDelay);
+        }
+        
+    }
+    
+}
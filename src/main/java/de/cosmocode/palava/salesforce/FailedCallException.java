@@ -0,0 +1,82 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.sforce.soap.enterprise.Error;
+
+/**
+ * Thrown by {@link DefaultSalesforceService} when a call failed and will not be
+ * retried any further. Carries the {@link FailureCategory} of the last failure, so
+ * callers can tell whether sending the same request later may succeed.
+ *
+ * @author agent
+ */
+final class FailedCallException extends SalesforceException {
+
+    private static final long serialVersionUID = 6392746381104563274L;
+
+    private final FailureCategory category;
+
+    /**
+     * Creates a new {@link FailedCallException} using the specified message.
+     *
+     * @param category the category of the failure
+     * @param message the detail message
+     * @throws NullPointerException if category or message is null
+     */
+    FailedCallException(FailureCategory category, String message) {
+        super(message);
+        this.category = Preconditions.checkNotNull(category, "Category");
+    }
+
+    /**
+     * Creates a new {@link FailedCallException} using the specified cause.
+     *
+     * @param category the category of the failure
+     * @param cause the cause
+     * @throws NullPointerException if category or cause is null
+     */
+    FailedCallException(FailureCategory category, Throwable cause) {
+        super(cause);
+        this.category = Preconditions.checkNotNull(category, "Category");
+    }
+
+    /**
+     * Creates a new {@link FailedCallException} using the specified errors.
+     *
+     * @param category the category of the errors
+     * @param errors the errors
+     * @throws NullPointerException if category or errors is null
+     */
+    FailedCallException(FailureCategory category, List<Error> errors) {
+        super(errors);
+        this.category = Preconditions.checkNotNull(category, "Category");
+    }
+
+    /**
+     * Provides the category of the last failure.
+     *
+     * @return the category
+     */
+    FailureCategory getCategory() {
+        return category;
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+/**
+ * Categories of failures which may occur during Salesforce API calls.
+ * A {@link RetryPolicy} maps faults and {@link com.sforce.soap.enterprise.Error}s
+ * to these categories and decides how each category is retried.
+ *
+ * @author agent
+ */
+public enum FailureCategory {
+
+    /**
+     * The session expired or has been invalidated, retrying requires a new session.
+     */
+    INVALID_SESSION,
+    
+    /**
+     * A record could not be locked because another transaction holds the lock.
+     */
+    LOCK_CONTENTION,
+    
+    /**
+     * The organization exceeded a request limit.
+     */
+    REQUEST_LIMIT,
+    
+    /**
+     * The request timed out or the server was temporarily unavailable.
+     */
+    TIMEOUT,
+    
+    /**
+     * Any other unexpected error, which may be caused by an invalid session.
+     */
+    UNEXPECTED,
+    
+    /**
+     * A failure which will not go away by retrying, e.g. an invalid field or query.
+     */
+    PERMANENT;
+    
+    /**
+     * Checks whether failures of this category can be retried at all.
+     * 
+     * @return true if this is not {@link FailureCategory#PERMANENT}
+     */
+    public boolean isRetryable() {
+        return this != PERMANENT;
+    }
+    
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Persists a {@link Session} in an encrypted file, allowing a restarted
+ * application to reuse it instead of logging in again.
+ *
+ * <p>
+ *   The file contains a version, a random salt, a random initialization vector,
+ *   the AES encrypted session id, server url, timeout and expiry date and an
+ *   HMAC of everything before it. The encryption and HMAC keys are derived from
+ *   the configured secret and the salt using PBKDF2. The file is replaced atomically
+ *   using an {@link AtomicFile}.
+ * </p>
+ *
+ * @author agent
+ */
+final class FileSessionStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileSessionStore.class);
+
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    private static final String KDF = "PBKDF2WithHmacSHA1";
+
+    private static final String MAC = "HmacSHA256";
+
+    private static final int ITERATIONS = 10000;
+
+    private static final int KEY_LENGTH = 16;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final int IV_LENGTH = 16;
+
+    private static final int MAC_LENGTH = 32;
+
+    private static final int HEADER_LENGTH = 4 + SALT_LENGTH + IV_LENGTH;
+
+    private static final int VERSION = 2;
+
+    private final File file;
+
+    private final char[] secret;
+
+    private final SecureRandom random = new SecureRandom();
+
+    FileSessionStore(File file, String secret) {
+        this.file = Preconditions.checkNotNull(file, "File");
+        Preconditions.checkNotNull(secret, "Secret");
+        Preconditions.checkArgument(secret.length() > 0, "Secret must not be empty");
+        this.secret = secret.toCharArray();
+    }
+
+    /**
+     * Derives the encryption key followed by the HMAC key.
+     */
+    private byte[] deriveKeys(byte[] salt) throws GeneralSecurityException {
+        final PBEKeySpec spec = new PBEKeySpec(secret, salt, ITERATIONS, 2 * KEY_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance(KDF).generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] sign(byte[] keys, byte[] content, int length) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(MAC);
+        mac.init(new SecretKeySpec(keys, KEY_LENGTH, KEY_LENGTH, MAC));
+        mac.update(content, 0, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * Loads the stored session, if any.
+     *
+     * @param generation the generation of the restored session
+     * @return the stored session or null if there is none, it expired or it could not be read
+     */
+    Session load(long generation) {
+        if (!file.exists()) {
+            LOG.debug("No stored session found in {}", file);
+            return null;
+        }
+
+        InputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[1024];
+            int read;
+            while ((read = stream.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+            final byte[] content = buffer.toByteArray();
+            if (content.length <= HEADER_LENGTH + MAC_LENGTH) {
+                LOG.warn("Ignoring truncated session store {}", file);
+                return null;
+            }
+
+            final int version = new DataInputStream(new ByteArrayInputStream(content)).readInt();
+            if (version != VERSION) {
+                LOG.warn("Ignoring session store {} with unknown version {}", file, version);
+                return null;
+            }
+
+            final byte[] salt = Arrays.copyOfRange(content, 4, 4 + SALT_LENGTH);
+            final byte[] keys = deriveKeys(salt);
+            final int signed = content.length - MAC_LENGTH;
+            if (!matches(sign(keys, content, signed), content, signed)) {
+                LOG.warn("Ignoring session store {} which has been modified or uses another secret", file);
+                return null;
+            }
+
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            final IvParameterSpec iv = new IvParameterSpec(content, 4 + SALT_LENGTH, IV_LENGTH);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys, 0, KEY_LENGTH, "AES"), iv);
+            final byte[] plain = cipher.doFinal(content, HEADER_LENGTH, signed - HEADER_LENGTH);
+
+            final DataInputStream input = new DataInputStream(new ByteArrayInputStream(plain));
+            final String sessionId = input.readUTF();
+            final String serverUrl = input.readUTF();
+            final long secondsValid = input.readLong();
+            final long expiry = input.readLong();
+
+            if (expiry <= System.currentTimeMillis()) {
+                LOG.debug("Stored session in {} expired", file);
+                return null;
+            }
+
+            final Session session = new Session(sessionId, serverUrl, secondsValid, generation);
+            LOG.info("Restored {} from {}", session, file);
+            return session;
+        } catch (IOException e) {
+            LOG.warn("Unable to read session store " + file, e);
+            return null;
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Unable to decrypt session store " + file, e);
+            return null;
+        } finally {
+            AtomicFile.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Compares the given mac with the one stored at the given offset in constant time.
+     */
+    private static boolean matches(byte[] mac, byte[] content, int offset) {
+        int difference = 0;
+        for (int i = 0; i < MAC_LENGTH; i++) {
+            difference |= mac[i] ^ content[offset + i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Stores the given session, replacing the previous one atomically.
+     *
+     * @param session the session being stored
+     * @param lastActivity the time of the last request using session, in milliseconds
+     * @throws NullPointerException if session is null
+     */
+    void save(Session session, long lastActivity) {
+        Preconditions.checkNotNull(session, "Session");
+        final long expiry = lastActivity + session.getTimeout(TimeUnit.MILLISECONDS);
+
+        try {
+            final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(plain);
+            output.writeUTF(session.getSessionId());
+            output.writeUTF(session.getServerUrl());
+            output.writeLong(session.getTimeout(TimeUnit.SECONDS));
+            output.writeLong(expiry);
+            output.flush();
+
+            final byte[] salt = new byte[SALT_LENGTH];
+            random.nextBytes(salt);
+            final byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            final byte[] keys = deriveKeys(salt);
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys, 0, KEY_LENGTH, "AES"), new IvParameterSpec(iv));
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream content = new DataOutputStream(bytes);
+            content.writeInt(VERSION);
+            content.write(salt);
+            content.write(iv);
+            content.write(cipher.doFinal(plain.toByteArray()));
+            content.flush();
+            final byte[] signed = bytes.toByteArray();
+            final byte[] mac = sign(keys, signed, signed.length);
+
+            new AtomicFile(file).write(new AtomicFile.Content() {
+
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    stream.write(signed);
+                    stream.write(mac);
+                }
+
+            });
+            LOG.debug("Stored {} in {}", session, file);
+        } catch (IOException e) {
+            LOG.warn("Unable to write session store " + file, e);
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Unable to encrypt session store " + file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileSessionStore [file=%s]", file);
+    }
+
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.bind.JAXBElement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.salesforce.sync.NullFieldCollector;
+
+/**
+ * A bounded cache mapping the external identifiers of Salesforce objects to their
+ * Salesforce ids, allowing objects which are known to exist to be updated or deleted
+ * directly instead of letting Salesforce resolve the external identifier again.
+ *
+ * <p>
+ *   The cache is split into segments which are locked independently. Every segment
+ *   evicts its least recently used mapping once it is full. The content can be
+ *   persisted using {@link IdentifierCache#save(File)} and restored using
+ *   {@link IdentifierCache#load(File)}.
+ * </p>
+ *
+ * @author agent
+ */
+public final class IdentifierCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IdentifierCache.class);
+
+    private static final int SEGMENTS = 16;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Marks types which don't have the external identifier field.
+     */
+    private static final Field[] NONE = {};
+
+    private final String field;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final ConcurrentMap<Class<?>, Field[]> fields = new MapMaker().weakKeys().makeMap();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new {@link IdentifierCache}.
+     *
+     * @param field the name of the external identifier field, e.g. "ObjectId__c"
+     * @param maximumSize the maximum number of cached mappings
+     * @throws NullPointerException if field is null
+     * @throws IllegalArgumentException if maximumSize is not positive
+     */
+    public IdentifierCache(String field, int maximumSize) {
+        this.field = Preconditions.checkNotNull(field, "Field");
+        Preconditions.checkArgument(maximumSize > 0, "MaximumSize must be positive");
+        final int capacity = Math.max(1, (maximumSize + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity);
+        }
+    }
+
+    private static String keyOf(String type, String externalIdentifier) {
+        return type + ':' + externalIdentifier;
+    }
+
+    private Segment segmentOf(String key) {
+        final int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Looks up the Salesforce id of an object.
+     *
+     * @param type the object type, e.g. "Account"
+     * @param externalIdentifier the value of the external identifier field
+     * @return the Salesforce id or null if unknown
+     * @throws NullPointerException if type or externalIdentifier is null
+     */
+    public String get(String type, String externalIdentifier) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(externalIdentifier, "ExternalIdentifier");
+        final String key = keyOf(type, externalIdentifier);
+        final Segment segment = segmentOf(key);
+        final String identifier;
+        synchronized (segment) {
+            identifier = segment.get(key);
+        }
+        (identifier == null ? misses : hits).incrementAndGet();
+        return identifier;
+    }
+
+    /**
+     * Looks up the Salesforce id of the given object using its external identifier.
+     *
+     * @param object the object
+     * @return the Salesforce id or null if unknown or object has no external identifier
+     * @throws NullPointerException if object is null
+     */
+    public String get(SObject object) {
+        Preconditions.checkNotNull(object, "Object");
+        final String externalIdentifier = externalIdentifierOf(object);
+        return externalIdentifier == null ? null : get(typeOf(object), externalIdentifier);
+    }
+
+    /**
+     * Stores the Salesforce id of an object.
+     *
+     * @param type the object type, e.g. "Account"
+     * @param externalIdentifier the value of the external identifier field
+     * @param identifier the Salesforce id
+     * @throws NullPointerException if any argument is null
+     */
+    public void put(String type, String externalIdentifier, String identifier) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(externalIdentifier, "ExternalIdentifier");
+        Preconditions.checkNotNull(identifier, "Identifier");
+        final String key = keyOf(type, externalIdentifier);
+        final Segment segment = segmentOf(key);
+        synchronized (segment) {
+            segment.put(key, identifier);
+        }
+    }
+
+    /**
+     * Stores the Salesforce id of the given object, if it has an external identifier.
+     *
+     * @param object the object
+     * @param identifier the Salesforce id
+     * @throws NullPointerException if object or identifier is null
+     */
+    public void put(SObject object, String identifier) {
+        Preconditions.checkNotNull(object, "Object");
+        final String externalIdentifier = externalIdentifierOf(object);
+        if (externalIdentifier == null) return;
+        put(typeOf(object), externalIdentifier, identifier);
+    }
+
+    /**
+     * Stores the ids of all given objects which carry both their id and their
+     * external identifier, e.g. the records of a query result.
+     *
+     * @param objects the objects
+     * @throws NullPointerException if objects is null
+     */
+    public void putAll(List<? extends SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+        for (SObject object : objects) {
+            if (object == null || object.getId() == null) continue;
+            put(object, object.getId());
+        }
+    }
+
+    /**
+     * Removes the mapping of the given object, e.g. because it has been deleted.
+     *
+     * @param object the object
+     * @throws NullPointerException if object is null
+     */
+    public void remove(SObject object) {
+        Preconditions.checkNotNull(object, "Object");
+        final String externalIdentifier = externalIdentifierOf(object);
+        if (externalIdentifier == null) return;
+        final String key = keyOf(typeOf(object), externalIdentifier);
+        final Segment segment = segmentOf(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Removes all mappings.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static String typeOf(SObject object) {
+        return object.getClass().getSimpleName();
+    }
+
+    /**
+     * Reads the external identifier of the given object.
+     *
+     * @param object the object
+     * @return the external identifier or null if object does not have one
+     */
+    String externalIdentifierOf(SObject object) {
+        final Field[] candidates = fieldsOf(object.getClass());
+        if (candidates.length == 0) return null;
+        try {
+            final Object value = candidates[0].get(object);
+            final Object raw = value instanceof JAXBElement<?> ? JAXBElement.class.cast(value).getValue() : value;
+            return raw == null ? null : raw.toString();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Field[] fieldsOf(Class<?> type) {
+        final Field[] cached = fields.get(type);
+        if (cached != null) return cached;
+
+        Field[] found = NONE;
+        for (Class<?> current = type; current != Object.class && found == NONE; current = current.getSuperclass()) {
+            for (Field candidate : current.getDeclaredFields()) {
+                if (Modifier.isStatic(candidate.getModifiers())) continue;
+                if (field.equals(NullFieldCollector.nameOf(candidate))) {
+                    candidate.setAccessible(true);
+                    found = new Field[] {candidate};
+                    break;
+                }
+            }
+        }
+
+        fields.putIfAbsent(type, found);
+        return found;
+    }
+
+    /**
+     * Restores the mappings saved using {@link IdentifierCache#save(File)}. Missing
+     * or unreadable files are ignored.
+     *
+     * @param file the file
+     * @throws NullPointerException if file is null
+     */
+    public void load(File file) {
+        Preconditions.checkNotNull(file, "File");
+        if (!file.exists()) {
+            LOG.debug("No stored identifiers found in {}", file);
+            return;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final int version = input.readInt();
+            if (version != VERSION) {
+                LOG.warn("Ignoring identifier store {} with unknown version {}", file, version);
+                return;
+            }
+            final int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = input.readUTF();
+                final String identifier = input.readUTF();
+                final Segment segment = segmentOf(key);
+                synchronized (segment) {
+                    segment.put(key, identifier);
+                }
+            }
+            LOG.info("Restored {} identifier(s) from {}", count, file);
+        } catch (IOException e) {
+            LOG.warn("Unable to read identifier store " + file, e);
+        } finally {
+            AtomicFile.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Saves all mappings, replacing the content of the given file atomically.
+     *
+     * @param file the file
+     * @throws NullPointerException if file is null
+     */
+    public void save(File file) {
+        Preconditions.checkNotNull(file, "File");
+        final Map<String, String> copy = new LinkedHashMap<String, String>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                copy.putAll(segment);
+            }
+        }
+
+        try {
+            new AtomicFile(file).write(new AtomicFile.Content() {
+
+                @Override
+                public void writeTo(OutputStream stream) throws IOException {
+                    final DataOutputStream output = new DataOutputStream(stream);
+                    output.writeInt(VERSION);
+                    output.writeInt(copy.size());
+                    for (Map.Entry<String, String> entry : copy.entrySet()) {
+                        output.writeUTF(entry.getKey());
+                        output.writeUTF(entry.getValue());
+                    }
+                    output.flush();
+                }
+
+            });
+            LOG.info("Stored {} identifier(s) in {}", copy.size(), file);
+        } catch (IOException e) {
+            LOG.warn("Unable to write identifier store " + file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("IdentifierCache [field=%s, size=%s]", field, size());
+    }
+
+    /**
+     * A segment of the cache, evicting its least recently used mapping once full.
+     */
+    private static final class Segment extends LinkedHashMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > capacity;
+        }
+
+    }
+
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Executes disjoint partitions of one query concurrently and merges their records
+ * into a single {@link Iterator}. Partitions are usually created using {@link QueryPartitions}.
+ * 
+ * <p>
+ *   Every partition is fetched by tasks on the given executor. In ordered mode,
+ *   the records of the first partition are returned first, followed by the records
+ *   of the second one and so on, while the other partitions keep fetching ahead.
+ *   In unordered mode, records are returned as soon as any partition fetched them.
+ *   Each partition keeps at most the configured number of pages ahead of the caller.
+ * </p>
+ * 
+ * <p>
+ *   A partition whose pages are not consumed does not block a thread of the executor.
+ *   Its task returns once the buffer is full and the caller resubmits it after taking
+ *   a page, which makes executors with fewer threads than partitions safe. Every partition
+ *   ends its buffer with either an end marker or its failure, so the caller never waits
+ *   for a partition which stopped fetching.
+ * </p>
+ *
+ * @author agent
+ */
+public final class PartitionedQuery implements Iterator<SObject> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PartitionedQuery.class);
+
+    /**
+     * Marks the end of one partition.
+     */
+    private static final Page END = new Page(ImmutableList.<SObject>of(), null);
+
+    private final SalesforceService service;
+
+    private final Executor executor;
+
+    private final RequestPriority priority;
+
+    private final List<BlockingQueue<Page>> queues;
+
+    private final List<Partition> fetches;
+
+    private final boolean ordered;
+
+    private final int partitions;
+
+    private final int capacity;
+
+    private int finished;
+
+    /**
+     * The index of the queue being consumed, written by the consuming thread only.
+     */
+    private int queue;
+
+    private Iterator<SObject> current = ImmutableList.<SObject>of().iterator();
+
+    private volatile boolean cancelled;
+
+    /**
+     * Starts fetching all partitions of the given query.
+     *
+     * @param service the service
+     * @param query the query, which may contain a where clause
+     * @param conditions the partition conditions
+     * @param ordered true to return partitions in the given order, false to return records as they arrive
+     * @param executor the executor fetching the partitions
+     * @param prefetch the maximum number of pages fetched ahead per partition
+     * @throws NullPointerException if service, query, conditions or executor is null
+     * @throws IllegalArgumentException if conditions is empty, prefetch is not positive
+     *         or query contains a limit or offset clause
+     */
+    public PartitionedQuery(SalesforceService service, String query, List<String> conditions, boolean ordered,
+        Executor executor, int prefetch) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        Preconditions.checkNotNull(query, "Query");
+        Preconditions.checkNotNull(conditions, "Conditions");
+        Preconditions.checkArgument(!conditions.isEmpty(), "Conditions must not be empty");
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkArgument(prefetch > 0, "Prefetch must be positive");
+
+        this.priority = RequestPriority.current();
+        this.ordered = ordered;
+        this.partitions = conditions.size();
+        this.capacity = ordered ? prefetch : prefetch * partitions;
+        final int count = ordered ? partitions : 1;
+        this.queues = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            queues.add(new LinkedBlockingQueue<Page>());
+        }
+
+        this.fetches = Lists.newArrayListWithCapacity(partitions);
+        for (int i = 0; i < partitions; i++) {
+            final String partition = QueryPartitions.restrict(query, conditions.get(i));
+            fetches.add(new Partition(partition, queues.get(ordered ? i : 0)));
+        }
+        for (Partition fetch : fetches) {
+            executor.execute(fetch);
+        }
+        LOG.debug("Started {} partition(s) of '{}'", partitions, query);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (cancelled || finished == partitions) return false;
+            final BlockingQueue<Page> source = queues.get(queue);
+            final Page page;
+            try {
+                page = source.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SalesforceException("Interrupted while waiting for next page", e);
+            }
+            if (page == END) {
+                finished++;
+                if (ordered) queue++;
+            } else if (page.failure != null) {
+                cancel();
+                throw page.failure instanceof SalesforceException
+                    ? (SalesforceException) page.failure : new SalesforceException(page.failure);
+            } else {
+                resume(source);
+                current = page.records.iterator();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resubmits all partitions which stopped fetching because the given queue was full.
+     */
+    private void resume(BlockingQueue<Page> source) {
+        final List<Partition> resumed = Lists.newArrayList();
+        synchronized (source) {
+            for (Partition fetch : fetches) {
+                if (fetch.target == source && fetch.parked && source.size() < capacity) {
+                    fetch.parked = false;
+                    resumed.add(fetch);
+                }
+            }
+        }
+        for (Partition fetch : resumed) {
+            executor.execute(fetch);
+        }
+    }
+
+    @Override
+    public SObject next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops fetching all partitions. Subsequent calls to {@link PartitionedQuery#hasNext()} return false.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (BlockingQueue<Page> each : queues) {
+            each.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PartitionedQuery [partitions=%s, finished=%s, ordered=%s]", 
+            partitions, finished, ordered);
+    }
+
+    /**
+     * Fetches the pages of one partition until its queue is full or the partition is done.
+     */
+    private final class Partition implements Runnable {
+
+        private final String query;
+
+        private final BlockingQueue<Page> target;
+
+        /**
+         * The last fetched result, accessed by one running task at a time.
+         */
+        private QueryResult result;
+
+        /**
+         * Whether this partition waits to be resumed, guarded by the target queue.
+         */
+        private boolean parked;
+
+        Partition(String query, BlockingQueue<Page> target) {
+            this.query = query;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            final RequestPriority previous = RequestPriority.set(priority);
+            try {
+                boolean more = true;
+                while (more) {
+                    more = fetch();
+                }
+            } finally {
+                RequestPriority.set(previous);
+            }
+        }
+
+        /**
+         * Fetches the next page.
+         *
+         * @return true if the next page should be fetched right away
+         */
+        private boolean fetch() {
+            if (cancelled) return false;
+            Page page;
+            boolean done;
+            try {
+                result = result == null ? service.execute(query) : service.queryMore(result.getQueryLocator());
+                page = new Page(result.getRecords(), null);
+                done = result.isDone();
+            } catch (RuntimeException e) {
+                LOG.warn("Fetching partition '" + query + "' failed", e);
+                page = new Page(null, e);
+                done = true;
+            }
+            synchronized (target) {
+                if (cancelled) return false;
+                // end marker and failures are added regardless of the capacity
+                target.add(page);
+                if (done) {
+                    if (page.failure == null) target.add(END);
+                    return false;
+                } else if (target.size() >= capacity) {
+                    parked = true;
+                    return false;
+                } else {
+                    return true;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * One fetched page or the failure which occurred while fetching it.
+     */
+    private static final class Page {
+
+        private final List<SObject> records;
+
+        private final RuntimeException failure;
+
+        Page(List<SObject> records, RuntimeException failure) {
+            this.records = records;
+            this.failure = failure;
+        }
+
+    }
+
+}
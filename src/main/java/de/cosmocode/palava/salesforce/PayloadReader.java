@@ -0,0 +1,40 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the payload of a soap response, i.e. the content of its body, while it is streamed.
+ *
+ * @author agent
+ * @param <T> the result type
+ */
+public interface PayloadReader<T> {
+
+    /**
+     * Reads the given payload. The reader is positioned at the start tag of the payload
+     * and must not be closed.
+     *
+     * @param payload the payload
+     * @return the result
+     * @throws XMLStreamException if the payload could not be read
+     */
+    T read(XMLStreamReader payload) throws XMLStreamException;
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A lazy {@link Iterator} over the projected records of a query.
+ *
+ * <p>
+ *   Pages are requested using {@link SalesforceService#execute(String, int, PayloadReader)}
+ *   and mapped while the response is read. No {@link com.sforce.soap.enterprise.sobject.SObject}s
+ *   are created and only the records of the current page are referenced, which keeps the heap
+ *   usage of large reads close to the size of the mapped records. Like any other call of the
+ *   {@link SalesforceService}, these requests are retried and subject to its circuit breaker
+ *   and API budget.
+ * </p>
+ *
+ * @author agent
+ * @param <R> the record type
+ */
+public final class ProjectedQuery<R> implements Iterator<R> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProjectedQuery.class);
+
+    private static final int MINIMUM_BATCH_SIZE = 200;
+
+    private static final int MAXIMUM_BATCH_SIZE = 2000;
+
+    private final SalesforceService service;
+
+    private final ProjectionReader<R> reader;
+
+    private final int batchSize;
+
+    private Iterator<R> current;
+
+    private String locator;
+
+    private boolean done;
+
+    /**
+     * Executes a query selecting the fields of the given projection and creates an
+     * iterator over all of its records. The first page is fetched before this
+     * constructor returns.
+     *
+     * @param service the service executing the query
+     * @param projection the projection
+     * @param from the queried object and optional clauses, e.g. "Account WHERE Type = 'Partner'"
+     * @param batchSize the preferred number of records per page, between 200 and 2000
+     * @throws NullPointerException if service, projection or from is null
+     * @throws IllegalArgumentException if batchSize is out of range
+     * @throws SalesforceException if the query failed
+     */
+    public ProjectedQuery(SalesforceService service, Projection<R> projection, String from, int batchSize) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        Preconditions.checkNotNull(projection, "Projection");
+        Preconditions.checkArgument(batchSize >= MINIMUM_BATCH_SIZE && batchSize <= MAXIMUM_BATCH_SIZE,
+            "BatchSize must be between %s and %s", MINIMUM_BATCH_SIZE, MAXIMUM_BATCH_SIZE);
+        this.reader = new ProjectionReader<R>(projection);
+        this.batchSize = batchSize;
+
+        final String query = projection.toQuery(from);
+        LOG.debug("Executing projected query {}", query);
+        accept(service.execute(query, batchSize, reader));
+    }
+
+    private void accept(ProjectionReader.Page<R> page) {
+        current = page.getRecords().iterator();
+        done = page.isDone() || page.getLocator() == null;
+        locator = page.getLocator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (done) return false;
+            // drop the exhausted page before reading the next one
+            current = null;
+            accept(service.queryMore(locator, batchSize, reader));
+        }
+        return true;
+    }
+
+    @Override
+    public R next() {
+        if (hasNext()) {
+            return current.next();
+        } else {
+            throw new NoSuchElementException();
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ProjectedQuery [done=%s, batchSize=%s]", done, batchSize);
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A list of fields queried from Salesforce and the {@link RowMapper} turning
+ * their values into records. Relationship fields are specified using their
+ * path, e.g. "Account.Name". Subqueries are not supported.
+ *
+ * @author agent
+ * @param <R> the record type
+ */
+public final class Projection<R> {
+
+    private static final RowMapper<String[]> IDENTITY = new RowMapper<String[]>() {
+
+        @Override
+        public String[] map(String[] row) {
+            return row;
+        }
+
+    };
+
+    private final ImmutableList<String> fields;
+
+    private final RowMapper<R> mapper;
+
+    private Projection(ImmutableList<String> fields, RowMapper<R> mapper) {
+        this.fields = fields;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Creates a projection of the given fields.
+     *
+     * @param <R> the record type
+     * @param mapper the mapper
+     * @param fields the fields
+     * @return a new projection
+     * @throws NullPointerException if mapper or fields is null
+     * @throws IllegalArgumentException if fields is empty
+     */
+    public static <R> Projection<R> of(RowMapper<R> mapper, String... fields) {
+        Preconditions.checkNotNull(mapper, "Mapper");
+        Preconditions.checkNotNull(fields, "Fields");
+        Preconditions.checkArgument(fields.length > 0, "Fields must not be empty");
+        return new Projection<R>(ImmutableList.of(fields), mapper);
+    }
+
+    /**
+     * Creates a projection of the given fields, returning the raw rows.
+     *
+     * @param fields the fields
+     * @return a new projection
+     * @throws NullPointerException if fields is null
+     * @throws IllegalArgumentException if fields is empty
+     */
+    public static Projection<String[]> of(String... fields) {
+        return of(IDENTITY, fields);
+    }
+
+    public ImmutableList<String> getFields() {
+        return fields;
+    }
+
+    public RowMapper<R> getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Builds the query selecting the fields of this projection.
+     *
+     * @param from the object and optional clauses, e.g. "Account WHERE Type = 'Partner'"
+     * @return the query
+     * @throws NullPointerException if from is null
+     */
+    public String toQuery(String from) {
+        Preconditions.checkNotNull(from, "From");
+        return "SELECT " + Joiner.on(", ").join(fields) + " FROM " + from;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Projection [fields=%s, mapper=%s]", fields, mapper);
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Reads the records of a query or queryMore soap response directly into
+ * the records of a {@link Projection}, without creating {@link com.sforce.soap.enterprise.sobject.SObject}s.
+ * Fields which are not part of the projection are skipped.
+ *
+ * @author agent
+ * @param <R> the record type
+ */
+final class ProjectionReader<R> implements PayloadReader<ProjectionReader.Page<R>> {
+
+    /**
+     * The depth of records, done and queryLocator: queryResponse/result/records.
+     */
+    private static final int RESULT_DEPTH = 3;
+
+    private static final Joiner PATH = Joiner.on('.');
+
+    private final Projection<R> projection;
+
+    private final Map<String, Integer> indices = Maps.newHashMap();
+
+    ProjectionReader(Projection<R> projection) {
+        this.projection = Preconditions.checkNotNull(projection, "Projection");
+        for (int i = 0; i < projection.getFields().size(); i++) {
+            indices.put(projection.getFields().get(i).toLowerCase(), i);
+        }
+    }
+
+    /**
+     * Reads the payload of a single response, which ends at the end tag of the payload.
+     *
+     * @param payload the response payload, positioned at the start tag of queryResponse
+     * @return the page
+     * @throws XMLStreamException if the payload could not be read
+     */
+    @Override
+    public Page<R> read(XMLStreamReader payload) throws XMLStreamException {
+        final Page<R> page = new Page<R>();
+        final List<String> path = Lists.newArrayList();
+        final StringBuilder text = new StringBuilder();
+        String[] row = null;
+        int depth = 1;
+        boolean leaf = false;
+        boolean nil = false;
+
+        while (depth > 0) {
+            final int event = payload.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                final String name = payload.getLocalName();
+                if (row == null && depth == RESULT_DEPTH && "records".equals(name)) {
+                    row = new String[indices.size()];
+                } else if (row != null) {
+                    path.add(name);
+                }
+                leaf = true;
+                nil = "true".equals(payload.getAttributeValue(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "nil"));
+                text.setLength(0);
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                text.append(payload.getText());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                final String name = payload.getLocalName();
+                if (row != null && depth == RESULT_DEPTH) {
+                    page.records.add(projection.getMapper().map(row));
+                    row = null;
+                } else if (row != null) {
+                    if (leaf && !nil) {
+                        final Integer index = indices.get(PATH.join(path).toLowerCase());
+                        if (index != null) {
+                            row[index.intValue()] = text.toString();
+                        }
+                    }
+                    path.remove(path.size() - 1);
+                } else if (depth == RESULT_DEPTH && "done".equals(name)) {
+                    page.done = "true".equals(text.toString().trim());
+                } else if (depth == RESULT_DEPTH && "queryLocator".equals(name)) {
+                    page.locator = nil ? null : text.toString().trim();
+                }
+                leaf = false;
+                depth--;
+            }
+        }
+
+        return page;
+    }
+
+    /**
+     * A single page of mapped records.
+     *
+     * @param <R> the record type
+     */
+    static final class Page<R> {
+
+        private final List<R> records = Lists.newArrayList();
+
+        private boolean done = true;
+
+        private String locator;
+
+        List<R> getRecords() {
+            return records;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        String getLocator() {
+            return locator;
+        }
+
+    }
+
+}
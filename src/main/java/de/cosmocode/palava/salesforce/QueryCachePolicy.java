@@ -0,0 +1,39 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how long the results of a query are cached by the caching {@link SalesforceService}.
+ *
+ * @author agent
+ */
+public interface QueryCachePolicy {
+
+    /**
+     * Computes the time to live of the result of the given query.
+     *
+     * @param object the lower case name of the queried object type, e.g. "account",
+     *        null if the query depends on more than one type
+     * @param query the normalized query
+     * @param unit the desired time unit
+     * @return the time to live in the given unit, 0 or less to skip caching
+     */
+    long getTimeToLive(String object, String query, TimeUnit unit);
+
+}
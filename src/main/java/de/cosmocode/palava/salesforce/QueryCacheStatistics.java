@@ -0,0 +1,61 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+/**
+ * Read-only runtime statistics of the query cache.
+ *
+ * @author agent
+ */
+public interface QueryCacheStatistics {
+
+    /**
+     * Retrieves the number of queries answered from the cache.
+     *
+     * @return the number of hits
+     */
+    long getHits();
+
+    /**
+     * Retrieves the number of queries which had to be sent to Salesforce.
+     *
+     * @return the number of misses
+     */
+    long getMisses();
+
+    /**
+     * Retrieves the number of entries evicted to stay within the size limit.
+     *
+     * @return the number of evictions
+     */
+    long getEvictions();
+
+    /**
+     * Retrieves the number of entries removed because of writes to their object type.
+     *
+     * @return the number of invalidations
+     */
+    long getInvalidations();
+
+    /**
+     * Retrieves the estimated size of all cached results.
+     *
+     * @return the estimated size in bytes
+     */
+    long getEstimatedSize();
+
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * A lazy {@link Iterator} over all records of a query which follows the query
+ * locators using {@link SalesforceService#queryMore(String)}.
+ * 
+ * <p>
+ *   If an executor is given, the following pages are fetched in the background while
+ *   the caller processes the current one. At most the configured number of pages is
+ *   kept ahead of the caller, so arbitrary large results are iterated in constant memory.
+ *   Callers which stop iterating early should call {@link QueryIterator#cancel()}
+ *   to release the background fetch.
+ * </p>
+ *
+ * @author agent
+ */
+public final class QueryIterator implements Iterator<SObject> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryIterator.class);
+
+    /**
+     * Marks the end of the result in the page queue.
+     */
+    private static final Page END = new Page(ImmutableList.<SObject>of(), null);
+
+    private final SalesforceService service;
+
+    private final BlockingQueue<Page> pages;
+
+    private final boolean prefetching;
+
+    private Iterator<SObject> current;
+
+    private String locator;
+
+    private boolean done;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Executes the given query and creates an iterator over all of its records.
+     * The first page is fetched before this constructor returns.
+     *
+     * @param service the service
+     * @param query the query
+     * @param executor the executor fetching pages in the background, may be null
+     * @param prefetch the maximum number of pages fetched ahead of the caller
+     * @throws NullPointerException if service or query is null
+     * @throws IllegalArgumentException if prefetch is not positive
+     * @throws SalesforceException if the query failed
+     */
+    public QueryIterator(SalesforceService service, String query, Executor executor, int prefetch) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        Preconditions.checkNotNull(query, "Query");
+        Preconditions.checkArgument(prefetch > 0, "Prefetch must be positive");
+
+        final QueryResult first = service.execute(query);
+        this.current = first.getRecords().iterator();
+        this.done = first.isDone();
+        this.locator = first.getQueryLocator();
+        this.pages = new ArrayBlockingQueue<Page>(prefetch);
+        this.prefetching = executor != null && !done;
+
+        if (prefetching) {
+            final RequestPriority priority = RequestPriority.current();
+            final String start = locator;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    final RequestPriority previous = RequestPriority.set(priority);
+                    try {
+                        fetch(start);
+                    } finally {
+                        RequestPriority.set(previous);
+                    }
+                }
+
+            });
+        }
+    }
+
+    /**
+     * Fetches all pages starting at the given locator into the page queue.
+     */
+    private void fetch(String start) {
+        String next = start;
+        try {
+            while (next != null && !cancelled) {
+                final QueryResult result = service.queryMore(next);
+                next = result.isDone() ? null : result.getQueryLocator();
+                if (!put(new Page(result.getRecords(), null))) return;
+            }
+            put(END);
+        } catch (RuntimeException e) {
+            LOG.warn("Prefetching query result failed", e);
+            put(new Page(null, e));
+        }
+    }
+
+    /**
+     * Adds the given page, waiting for room unless cancelled. If interrupted, the buffered
+     * pages are replaced by a failure, so the caller does not wait for pages which never come.
+     *
+     * @return true if the page has been added
+     */
+    private boolean put(Page page) {
+        try {
+            while (!cancelled) {
+                if (pages.offer(page, 1, TimeUnit.SECONDS)) return true;
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Prefetching query result has been interrupted");
+            // this is the only producer, so the cleared queue has room for the failure
+            pages.clear();
+            pages.offer(new Page(null, new SalesforceException("Interrupted while prefetching query result", e)));
+            return false;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (cancelled) return false;
+            final List<SObject> next = nextPage();
+            if (next == null) return false;
+            current = next.iterator();
+        }
+        return true;
+    }
+
+    private List<SObject> nextPage() {
+        if (prefetching) {
+            final Page page;
+            try {
+                page = pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SalesforceException("Interrupted while waiting for next page", e);
+            }
+            if (page == END) {
+                // keep END for subsequent calls
+                pages.offer(END);
+                return null;
+            } else if (page.failure != null) {
+                pages.offer(page);
+                throw page.failure instanceof SalesforceException 
+                    ? (SalesforceException) page.failure : new SalesforceException(page.failure);
+            }
+            return page.records;
+        } else if (done) {
+            return null;
+        } else {
+            final QueryResult result = service.queryMore(locator);
+            done = result.isDone();
+            locator = result.getQueryLocator();
+            return result.getRecords();
+        }
+    }
+
+    @Override
+    public SObject next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops fetching further pages. Subsequent calls to {@link QueryIterator#hasNext()} return false.
+     */
+    public void cancel() {
+        cancelled = true;
+        pages.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("QueryIterator [prefetching=%s, buffered=%s, cancelled=%s]", 
+            prefetching, pages.size(), cancelled);
+    }
+
+    /**
+     * One fetched page or the failure which occurred while fetching it.
+     */
+    private static final class Page {
+
+        private final List<SObject> records;
+
+        private final RuntimeException failure;
+
+        Page(List<SObject> records, RuntimeException failure) {
+            this.records = records;
+            this.failure = failure;
+        }
+
+    }
+
+}
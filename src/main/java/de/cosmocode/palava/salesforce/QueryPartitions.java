@@ -0,0 +1,185 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * A utility class used to split queries into disjoint partitions for a {@link PartitionedQuery}.
+ * Every partition is a soql condition. The partitions of one split cover the complete
+ * range and the first and last partition are open ended, so no records are lost.
+ *
+ * @author agent
+ */
+public final class QueryPartitions {
+
+    private QueryPartitions() {
+
+    }
+
+    /**
+     * Splits a numeric field into partitions of equal width.
+     *
+     * @param field the field name, e.g. "ObjectId__c"
+     * @param min the expected minimum value
+     * @param max the expected maximum value
+     * @param count the number of partitions
+     * @return count conditions
+     * @throws NullPointerException if field is null
+     * @throws IllegalArgumentException if count is not positive or max is less than min
+     */
+    public static List<String> byNumber(String field, long min, long max, int count) {
+        Preconditions.checkNotNull(field, "Field");
+        Preconditions.checkArgument(count > 0, "Count must be positive");
+        Preconditions.checkArgument(max >= min, "Max must not be less than min");
+        final List<String> boundaries = Lists.newArrayList();
+        final double width = (max - min + 1) / (double) count;
+        for (int i = 1; i < count; i++) {
+            boundaries.add(Long.toString(min + (long) Math.ceil(i * width)));
+        }
+        return between(field, boundaries);
+    }
+
+    /**
+     * Splits a datetime field, e.g. "CreatedDate", into partitions of equal duration.
+     *
+     * @param field the field name
+     * @param from the expected earliest value
+     * @param to the expected latest value
+     * @param count the number of partitions
+     * @return count conditions
+     * @throws NullPointerException if field, from or to is null
+     * @throws IllegalArgumentException if count is not positive or to is before from
+     */
+    public static List<String> byDate(String field, Date from, Date to, int count) {
+        Preconditions.checkNotNull(field, "Field");
+        Preconditions.checkNotNull(from, "From");
+        Preconditions.checkNotNull(to, "To");
+        Preconditions.checkArgument(count > 0, "Count must be positive");
+        Preconditions.checkArgument(!to.before(from), "To must not be before from");
+        final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final List<String> boundaries = Lists.newArrayList();
+        final double width = (to.getTime() - from.getTime()) / (double) count;
+        for (int i = 1; i < count; i++) {
+            boundaries.add(format.format(new Date(from.getTime() + (long) (i * width))));
+        }
+        return between(field, boundaries);
+    }
+
+    /**
+     * Splits a string field, e.g. "Id", at the given boundaries, which have to be sorted ascending.
+     *
+     * @param field the field name
+     * @param boundaries the sorted boundaries, n boundaries produce n + 1 partitions
+     * @return boundaries.size() + 1 conditions
+     * @throws NullPointerException if field or boundaries is null
+     */
+    public static List<String> byBoundaries(String field, List<String> boundaries) {
+        Preconditions.checkNotNull(field, "Field");
+        Preconditions.checkNotNull(boundaries, "Boundaries");
+        final List<String> quoted = Lists.newArrayListWithCapacity(boundaries.size());
+        for (String boundary : boundaries) {
+            quoted.add("'" + boundary.replace("\\", "\\\\").replace("'", "\\'") + "'");
+        }
+        return between(field, quoted);
+    }
+
+    private static List<String> between(String field, List<String> boundaries) {
+        final List<String> conditions = Lists.newArrayListWithCapacity(boundaries.size() + 1);
+        String lower = null;
+        for (String upper : boundaries) {
+            if (lower == null) {
+                conditions.add(String.format("%s < %s", field, upper));
+            } else {
+                conditions.add(String.format("%s >= %s AND %s < %s", field, lower, field, upper));
+            }
+            lower = upper;
+        }
+        if (lower == null) {
+            conditions.add(String.format("%s != null OR %s = null", field, field));
+        } else {
+            conditions.add(String.format("%s >= %s OR %s = null", field, lower, field));
+        }
+        return conditions;
+    }
+
+    /**
+     * Restricts the given query to the given condition, combining it with an existing where clause.
+     * Queries with a limit or offset clause can not be restricted, because every partition
+     * would apply it on its own.
+     *
+     * @param query the query
+     * @param condition the additional condition
+     * @return the restricted query
+     * @throws NullPointerException if query or condition is null
+     * @throws IllegalArgumentException if query contains a limit or offset clause
+     */
+    public static String restrict(String query, String condition) {
+        Preconditions.checkNotNull(query, "Query");
+        Preconditions.checkNotNull(condition, "Condition");
+
+        final String upper = query.toUpperCase();
+        int where = -1;
+        int tail = query.length();
+        int depth = 0;
+        boolean quoted = false;
+
+        for (int i = 0; i < query.length(); i++) {
+            final char c = query.charAt(i);
+            if (c == '\'' && (i == 0 || query.charAt(i - 1) != '\\')) {
+                quoted = !quoted;
+            } else if (quoted) {
+                continue;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && Character.isWhitespace(c)) {
+                Preconditions.checkArgument(!keywordAt(upper, i + 1, "LIMIT") && !keywordAt(upper, i + 1, "OFFSET"),
+                    "Query must not contain limit or offset: %s", query);
+                if (where == -1 && tail == query.length() && keywordAt(upper, i + 1, "WHERE")) {
+                    where = i + 1;
+                } else if (tail == query.length() && (keywordAt(upper, i + 1, "ORDER BY") 
+                    || keywordAt(upper, i + 1, "GROUP BY"))) {
+                    tail = i;
+                }
+            }
+        }
+
+        if (where == -1) {
+            return query.substring(0, tail) + " WHERE (" + condition + ")" + query.substring(tail);
+        } else {
+            final String existing = query.substring(where + "WHERE".length(), tail).trim();
+            return query.substring(0, where) + "WHERE (" + condition + ") AND (" + existing + ")" 
+                + query.substring(tail);
+        }
+    }
+
+    private static boolean keywordAt(String upper, int index, String keyword) {
+        final int end = index + keyword.length();
+        return upper.startsWith(keyword, index) && (end == upper.length() || Character.isWhitespace(upper.charAt(end)));
+    }
+
+}
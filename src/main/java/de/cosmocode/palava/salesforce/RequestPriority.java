@@ -0,0 +1,86 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Priorities of Salesforce API requests. When the API request budget runs low,
+ * requests of lower priority are throttled first. The priority is bound to the
+ * current thread:
+ *
+ * <pre>
+ * final RequestPriority previous = RequestPriority.set(RequestPriority.LOW);
+ * try {
+ *     service.upsert(objects);
+ * } finally {
+ *     RequestPriority.set(previous);
+ * }
+ * </pre>
+ *
+ * @author agent
+ */
+public enum RequestPriority {
+
+    /**
+     * Background work like complete syncs, throttled first.
+     */
+    LOW,
+
+    /**
+     * The default priority.
+     */
+    NORMAL,
+
+    /**
+     * Requests which may use the reserved part of the budget.
+     */
+    HIGH;
+
+    private static final ThreadLocal<RequestPriority> CURRENT = new ThreadLocal<RequestPriority>() {
+
+        @Override
+        protected RequestPriority initialValue() {
+            return NORMAL;
+        }
+
+    };
+
+    /**
+     * Retrieves the priority of the current thread.
+     *
+     * @return the current priority, {@link RequestPriority#NORMAL} by default
+     */
+    public static RequestPriority current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Sets the priority of the current thread.
+     *
+     * @param priority the new priority
+     * @return the previous priority
+     * @throws NullPointerException if priority is null
+     */
+    public static RequestPriority set(RequestPriority priority) {
+        Preconditions.checkNotNull(priority, "Priority");
+        final RequestPriority previous = CURRENT.get();
+        CURRENT.set(priority);
+        return previous;
+    }
+
+}
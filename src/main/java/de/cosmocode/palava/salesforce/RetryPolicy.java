@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.TimeUnit;
+
+import com.sforce.soap.enterprise.Error;
+
+/**
+ * A {@link RetryPolicy} decides whether and when a failed Salesforce API call
+ * should be retried. Failures are first classified into {@link FailureCategory}s,
+ * every category may use its own delay schedule.
+ *
+ * @author agent
+ */
+public interface RetryPolicy {
+
+    /**
+     * Classifies the given fault or exception thrown by a {@link com.sforce.soap.enterprise.Soap} call.
+     * 
+     * @param cause the cause of the failure
+     * @return the category of cause
+     * @throws NullPointerException if cause is null
+     */
+    FailureCategory classify(Throwable cause);
+    
+    /**
+     * Classifies the given record-level error.
+     * 
+     * @param error the error returned as part of a save, upsert or delete result
+     * @return the category of error
+     * @throws NullPointerException if error is null
+     */
+    FailureCategory classify(Error error);
+    
+    /**
+     * Computes the delay before the given retry attempt.
+     * 
+     * @param category the category of the last failure
+     * @param attempt the number of the upcoming retry, starting with 1
+     * @param unit the desired time unit
+     * @return the delay in the given unit or a negative value if the call should not be retried
+     * @throws NullPointerException if category or unit is null
+     * @throws IllegalArgumentException if attempt is less than 1
+     */
+    long getDelay(FailureCategory category, int attempt, TimeUnit unit);
+    
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+/**
+ * Maps a single projected query row to a compact record.
+ *
+ * @author agent
+ * @param <R> the record type
+ */
+public interface RowMapper<R> {
+
+    /**
+     * Maps the given row. The array is owned by the caller and may be kept.
+     *
+     * @param row the raw field values in the order of {@link Projection#getFields()},
+     *        null for empty fields
+     * @return the record
+     */
+    R map(String[] row);
+
+}
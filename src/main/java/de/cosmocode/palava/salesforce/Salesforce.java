@@ -48,6 +48,8 @@ public final class Salesforce {
     
     public static final int MAXIMUM_BATCH_SIZE = 200;
     
+    public static final int MAXIMUM_RETRIEVE_SIZE = 2000;
+    
     public static final ObjectFactory FACTORY = new ObjectFactory();
     
     public static final Function<SObject, String> ID_FUNCTION = new Function<SObject, String>() {
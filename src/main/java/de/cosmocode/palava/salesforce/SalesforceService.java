@@ -16,10 +16,13 @@
 
 package de.cosmocode.palava.salesforce;
 
+import java.util.Date;
 import java.util.List;
 
 import com.google.inject.Provider;
 import com.sforce.soap.enterprise.DeleteResult;
+import com.sforce.soap.enterprise.GetDeletedResult;
+import com.sforce.soap.enterprise.GetUpdatedResult;
 import com.sforce.soap.enterprise.QueryResult;
 import com.sforce.soap.enterprise.SaveResult;
 import com.sforce.soap.enterprise.Soap;
@@ -68,14 +71,31 @@ public interface SalesforceService extends Provider<Soap> {
      * @return a Soap instance
      */
     Soap reconnect();
+    
+    /**
+     * Retrieves the current session, connecting if necessary. Allows
+     * other Salesforce APIs, e.g. the Bulk API, to share the session.
+     * 
+     * @return the current session
+     * @throws SalesforceException if connect failed
+     */
+    SalesforceSession getSession();
 
     /**
      * Creates a set of objects in Salesforce.
      * 
+     * <p>
+     *   Unlike the other operations, creates are not split into chunks. A failed chunk
+     *   would leave the caller unable to tell which objects have been created, so resending
+     *   them would create duplicates. Use {@link #createBatch(List)} for larger lists,
+     *   which reports the outcome of every object.
+     * </p>
+     * 
      * @param objects the objects being created
      * @return a list of {@link SaveResult}s
      * @throws NullPointerException if objects is null
-     * @throws IllegalArgumentException if objects is empty
+     * @throws IllegalArgumentException if objects is empty or contains more than
+     *         {@link Salesforce#MAXIMUM_BATCH_SIZE} elements
      * @throws SalesforceException if creation failed
      */
     List<SaveResult> create(List<SObject> objects);
@@ -93,6 +113,11 @@ public interface SalesforceService extends Provider<Soap> {
     /**
      * Updates a set of objects in Salesforce.
      * 
+     * <p>
+     *   Lists exceeding {@link Salesforce#MAXIMUM_BATCH_SIZE} elements are split into
+     *   chunks which may be sent in parallel. Results are returned in input order.
+     * </p>
+     * 
      * @param objects the objects being updated
      * @return a list of {@link SaveResult}s
      * @throws NullPointerException if objects is null
@@ -114,6 +139,11 @@ public interface SalesforceService extends Provider<Soap> {
     /**
      * Updates/Inserts a set of objects in Salesforce.
      * 
+     * <p>
+     *   Lists exceeding {@link Salesforce#MAXIMUM_BATCH_SIZE} elements are split into
+     *   chunks which may be sent in parallel. Results are returned in input order.
+     * </p>
+     * 
      * @param objects the objects being updated/inserted
      * @return a list of {@link UpsertResult}s
      * @throws NullPointerException if objects is null
@@ -135,6 +165,11 @@ public interface SalesforceService extends Provider<Soap> {
     /**
      * Deletes a set of objects in Salesforce.
      * 
+     * <p>
+     *   Lists exceeding {@link Salesforce#MAXIMUM_BATCH_SIZE} elements are split into
+     *   chunks which may be sent in parallel. Results are returned in input order.
+     * </p>
+     * 
      * @param objects the objects being deleted
      * @return a list of {@link DeleteResult}s
      * @throws NullPointerException if objects is null
@@ -146,6 +181,11 @@ public interface SalesforceService extends Provider<Soap> {
     /**
      * Delets a set of objects in Salesforce.
      * 
+     * <p>
+     *   Lists exceeding {@link Salesforce#MAXIMUM_BATCH_SIZE} elements are split into
+     *   chunks which may be sent in parallel. Results are returned in input order.
+     * </p>
+     * 
      * @param identifiers the object identifiers
      * @return a list of {@link DeleteResult}s
      * @throws NullPointerException if identifiers is null
@@ -174,6 +214,52 @@ public interface SalesforceService extends Provider<Soap> {
      */
     DeleteResult delete(String identifier);
     
+    /**
+     * Creates a set of objects in Salesforce, tolerating failures of single records.
+     * Records which failed with a retryable error are resubmitted without
+     * sending the successful ones again. A request which fails as a whole only
+     * fails its own records, see {@link BatchResult#getException(int)}.
+     * 
+     * @param objects the objects being created
+     * @return the per-record outcome
+     * @throws NullPointerException if objects is null
+     * @throws IllegalArgumentException if objects is empty
+     */
+    BatchResult<SaveResult> createBatch(List<SObject> objects);
+    
+    /**
+     * Updates a set of objects in Salesforce, tolerating failures of single records.
+     * 
+     * @see SalesforceService#createBatch(List)
+     * @param objects the objects being updated
+     * @return the per-record outcome
+     * @throws NullPointerException if objects is null
+     * @throws IllegalArgumentException if objects is empty
+     */
+    BatchResult<SaveResult> updateBatch(List<SObject> objects);
+    
+    /**
+     * Updates/Inserts a set of objects in Salesforce, tolerating failures of single records.
+     * 
+     * @see SalesforceService#createBatch(List)
+     * @param objects the objects being updated/inserted
+     * @return the per-record outcome
+     * @throws NullPointerException if objects is null
+     * @throws IllegalArgumentException if objects is empty
+     */
+    BatchResult<UpsertResult> upsertBatch(List<SObject> objects);
+    
+    /**
+     * Deletes a set of objects in Salesforce, tolerating failures of single records.
+     * 
+     * @see SalesforceService#createBatch(List)
+     * @param identifiers the identifiers of the objects being deleted
+     * @return the per-record outcome
+     * @throws NullPointerException if identifiers is null
+     * @throws IllegalArgumentException if identifiers is empty
+     */
+    BatchResult<DeleteResult> deleteBatch(String[] identifiers);
+    
 
     /**
      * Executes a query against Salesforce and returns
@@ -188,4 +274,92 @@ public interface SalesforceService extends Provider<Soap> {
      */
     QueryResult execute(String query);
     
+    /**
+     * Retrieves the next page of a query result.
+     * 
+     * @param queryLocator the query locator of the previous page
+     * @return the next {@link QueryResult} page
+     * @throws SalesforceException if an error occurs
+     * @throws NullPointerException if queryLocator is null
+     */
+    QueryResult queryMore(String queryLocator);
+    
+    /**
+     * Executes a query like {@link SalesforceService#execute(String)}, but passes the
+     * streamed response to the given reader instead of creating {@link SObject}s.
+     * 
+     * @param <T> the generic result type
+     * @param query the query string
+     * @param batchSize the preferred number of records per page
+     * @param reader the reader of the response
+     * @return the result of the reader
+     * @throws SalesforceException if an error occurs
+     * @throws NullPointerException if query or reader is null
+     * @throws IllegalArgumentException if query is blank
+     */
+    <T> T execute(String query, int batchSize, PayloadReader<T> reader);
+    
+    /**
+     * Retrieves the next page of a query result like {@link SalesforceService#queryMore(String)},
+     * but passes the streamed response to the given reader instead of creating {@link SObject}s.
+     * 
+     * @param <T> the generic result type
+     * @param queryLocator the query locator of the previous page
+     * @param batchSize the preferred number of records per page
+     * @param reader the reader of the response
+     * @return the result of the reader
+     * @throws SalesforceException if an error occurs
+     * @throws NullPointerException if queryLocator or reader is null
+     */
+    <T> T queryMore(String queryLocator, int batchSize, PayloadReader<T> reader);
+    
+    /**
+     * Retrieves the identifiers of all objects of the given type which were
+     * created or updated in the given time span.
+     * 
+     * @param type the object type, e.g. "Account"
+     * @param start the inclusive start, at most 30 days ago
+     * @param end the exclusive end, at least one minute after start
+     * @return the {@link GetUpdatedResult}
+     * @throws NullPointerException if type, start or end is null
+     * @throws SalesforceException if an error occurs
+     */
+    GetUpdatedResult getUpdated(String type, Date start, Date end);
+    
+    /**
+     * Retrieves the identifiers of all objects of the given type which were
+     * deleted in the given time span.
+     * 
+     * @param type the object type, e.g. "Account"
+     * @param start the inclusive start, at most 30 days ago
+     * @param end the exclusive end, at least one minute after start
+     * @return the {@link GetDeletedResult}
+     * @throws NullPointerException if type, start or end is null
+     * @throws SalesforceException if an error occurs
+     */
+    GetDeletedResult getDeleted(String type, Date start, Date end);
+    
+    /**
+     * Retrieves the current time of the Salesforce server. Time spans passed to
+     * {@link #getUpdated(String, Date, Date)} and {@link #getDeleted(String, Date, Date)}
+     * should be based on it rather than the local clock.
+     * 
+     * @return the current server time
+     * @throws SalesforceException if an error occurs
+     */
+    Date getServerTimestamp();
+    
+    /**
+     * Retrieves the given fields of the objects with the given identifiers.
+     * 
+     * @param fields the comma separated field list, e.g. "Id, Name"
+     * @param type the object type, e.g. "Account"
+     * @param identifiers at most {@link Salesforce#MAXIMUM_RETRIEVE_SIZE} object identifiers
+     * @return the objects in the order of identifiers, containing null for objects which don't exist
+     * @throws NullPointerException if fields, type or identifiers is null
+     * @throws IllegalArgumentException if identifiers is empty or too large
+     * @throws SalesforceException if an error occurs
+     */
+    List<SObject> retrieve(String fields, String type, List<String> identifiers);
+    
 }
@@ -43,6 +43,56 @@ public final class SalesforceServiceConfig {
     
     public static final String FAIL_ON_BOOT = PREFIX + "failOnBoot";
     
+    public static final String POOL_SIZE = PREFIX + "poolSize";
+    
+    public static final String POOL_TIMEOUT = PREFIX + "poolTimeout";
+    
+    public static final String POOL_TIMEOUT_UNIT = PREFIX + "poolTimeoutUnit";
+    
+    public static final String KEEP_ALIVE_INTERVAL = PREFIX + "keepAliveInterval";
+    
+    public static final String KEEP_ALIVE_INTERVAL_UNIT = PREFIX + "keepAliveIntervalUnit";
+    
+    public static final String BOOT_TIMEOUT = PREFIX + "bootTimeout";
+    
+    public static final String BOOT_TIMEOUT_UNIT = PREFIX + "bootTimeoutUnit";
+    
+    public static final String SESSION_STORE = PREFIX + "sessionStore";
+    
+    public static final String SESSION_STORE_KEY = PREFIX + "sessionStoreKey";
+    
+    public static final String CIRCUIT_WINDOW_SIZE = PREFIX + "circuitWindowSize";
+    
+    public static final String CIRCUIT_FAILURE_RATE = PREFIX + "circuitFailureRate";
+    
+    public static final String CIRCUIT_OPEN_DURATION = PREFIX + "circuitOpenDuration";
+    
+    public static final String CIRCUIT_OPEN_DURATION_UNIT = PREFIX + "circuitOpenDurationUnit";
+    
+    public static final String CIRCUIT_TRIAL_CALLS = PREFIX + "circuitTrialCalls";
+    
+    public static final String API_RESERVE = PREFIX + "apiReserve";
+    
+    public static final String API_HOURLY_RATE = PREFIX + "apiHourlyRate";
+    
+    public static final String BATCH_CONCURRENCY = PREFIX + "batchConcurrency";
+    
+    public static final String ASYNC_CONCURRENCY = PREFIX + "asyncConcurrency";
+    
+    public static final String ASYNC_TIMEOUT = PREFIX + "asyncTimeout";
+    
+    public static final String ASYNC_TIMEOUT_UNIT = PREFIX + "asyncTimeoutUnit";
+    
+    public static final String CACHE_MAXIMUM_SIZE = PREFIX + "cacheMaximumSize";
+    
+    public static final String CACHE_TIME_TO_LIVE = PREFIX + "cacheTimeToLive";
+    
+    public static final String CACHE_TIME_TO_LIVE_UNIT = PREFIX + "cacheTimeToLiveUnit";
+    
+    public static final String IDENTIFIER_CACHE_SIZE = PREFIX + "identifierCacheSize";
+    
+    public static final String IDENTIFIER_CACHE_FILE = PREFIX + "identifierCacheFile";
+    
     private SalesforceServiceConfig() {
         
     }
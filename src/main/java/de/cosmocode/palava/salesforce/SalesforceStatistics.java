@@ -0,0 +1,153 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only runtime statistics of a {@link SalesforceService}.
+ *
+ * @author agent
+ */
+public interface SalesforceStatistics {
+
+    /**
+     * Retrieves the maximum number of pooled endpoints.
+     *
+     * @return the configured pool size
+     */
+    int getPoolSize();
+
+    /**
+     * Retrieves the number of endpoints which are currently not in use.
+     *
+     * @return the number of idle endpoints
+     */
+    int getIdleEndpoints();
+
+    /**
+     * Retrieves the total number of endpoint checkouts.
+     *
+     * @return the number of checkouts
+     */
+    long getCheckouts();
+
+    /**
+     * Retrieves the number of checkouts which failed because no endpoint
+     * became available in time.
+     *
+     * @return the number of checkout timeouts
+     */
+    long getCheckoutTimeouts();
+
+    /**
+     * Retrieves the average time callers had to wait for an endpoint.
+     *
+     * @param unit the desired time unit
+     * @return the average waiting time in the given unit
+     * @throws NullPointerException if unit is null
+     */
+    long getAverageWaitingTime(TimeUnit unit);
+
+    /**
+     * Retrieves the longest time a caller had to wait for an endpoint.
+     *
+     * @param unit the desired time unit
+     * @return the maximum waiting time in the given unit
+     * @throws NullPointerException if unit is null
+     */
+    long getMaximumWaitingTime(TimeUnit unit);
+
+    /**
+     * Retrieves the time it took to parse the wsdl.
+     *
+     * @param unit the desired time unit
+     * @return the parsing time in the given unit, 0 if not yet parsed
+     * @throws NullPointerException if unit is null
+     */
+    long getWsdlParsingTime(TimeUnit unit);
+
+    /**
+     * Retrieves the time it took to build the JAX-WS port model.
+     *
+     * @param unit the desired time unit
+     * @return the building time in the given unit, 0 if not yet built
+     * @throws NullPointerException if unit is null
+     */
+    long getModelBuildingTime(TimeUnit unit);
+
+    /**
+     * Retrieves the duration of the most recent login call.
+     *
+     * @param unit the desired time unit
+     * @return the login time in the given unit, 0 if not yet logged in
+     * @throws NullPointerException if unit is null
+     */
+    long getLastLoginTime(TimeUnit unit);
+
+    /**
+     * Retrieves the number of retries performed because of failures of the given category.
+     *
+     * @param category the failure category
+     * @return the number of retries
+     * @throws NullPointerException if category is null
+     */
+    long getRetries(FailureCategory category);
+
+    /**
+     * Retrieves the current state of the circuit breaker.
+     *
+     * @return the circuit state
+     */
+    CircuitState getCircuitState();
+
+    /**
+     * Retrieves the failure rate of the calls in the current circuit breaker window.
+     *
+     * @return the failure rate between 0 and 1
+     */
+    double getFailureRate();
+
+    /**
+     * Retrieves the number of calls rejected because the circuit was open.
+     *
+     * @return the number of rejected calls
+     */
+    long getRejectedCalls();
+
+    /**
+     * Retrieves the number of API requests used today, as reported by Salesforce.
+     *
+     * @return the number of used API requests, -1 if unknown
+     */
+    long getApiRequestsUsed();
+
+    /**
+     * Retrieves the daily API request limit of the organization, as reported by Salesforce.
+     *
+     * @return the API request limit, -1 if unknown
+     */
+    long getApiRequestLimit();
+
+    /**
+     * Retrieves the number of calls which were delayed or rejected to preserve the API request budget.
+     *
+     * @return the number of throttled calls
+     */
+    long getThrottledCalls();
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.ws.BindingProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.sforce.soap.enterprise.GetUserInfoResult;
+import com.sforce.soap.enterprise.LoginResult;
+import com.sforce.soap.enterprise.SessionHeader;
+import com.sforce.soap.enterprise.Soap;
+import com.sun.xml.ws.api.message.Header;
+import com.sun.xml.ws.api.message.Headers;
+import com.sun.xml.ws.developer.WSBindingProvider;
+
+/**
+ * An immutable Salesforce session, consisting of the session id
+ * and the server url returned by a successful login. One session
+ * can be shared by any number of {@link Soap} endpoints.
+ * 
+ * <p>
+ *   Every session carries a generation which increases with every login.
+ *   Comparing generations allows callers to detect whether the session they
+ *   used has already been replaced by another thread.
+ * </p>
+ *
+ * @author agent
+ */
+final class Session implements SalesforceSession {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Session.class);
+
+    /**
+     * The Salesforce default session timeout, used if the login result does not specify one.
+     */
+    private static final long DEFAULT_TIMEOUT = TimeUnit.HOURS.toSeconds(2);
+
+    private final String sessionId;
+
+    private final String serverUrl;
+
+    private final long generation;
+
+    private final long created;
+
+    /**
+     * The number of seconds this session stays valid without any activity.
+     */
+    private final long secondsValid;
+
+    Session(LoginResult result, long generation) {
+        Preconditions.checkNotNull(result, "Result");
+        this.sessionId = Preconditions.checkNotNull(result.getSessionId(), "SessionId");
+        this.serverUrl = Preconditions.checkNotNull(result.getServerUrl(), "ServerUrl");
+        this.generation = generation;
+        this.created = System.currentTimeMillis();
+
+        final GetUserInfoResult info = result.getUserInfo();
+        if (info == null || info.getSessionSecondsValid() <= 0) {
+            this.secondsValid = DEFAULT_TIMEOUT;
+        } else {
+            this.secondsValid = info.getSessionSecondsValid();
+        }
+    }
+
+    /**
+     * Restores a previously established session, e.g. from a {@link FileSessionStore}.
+     */
+    Session(String sessionId, String serverUrl, long secondsValid, long generation) {
+        this.sessionId = Preconditions.checkNotNull(sessionId, "SessionId");
+        this.serverUrl = Preconditions.checkNotNull(serverUrl, "ServerUrl");
+        Preconditions.checkArgument(secondsValid > 0, "SecondsValid must be positive");
+        this.secondsValid = secondsValid;
+        this.generation = generation;
+        this.created = System.currentTimeMillis();
+    }
+
+    @Override
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    @Override
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Retrieves the age of this session.
+     *
+     * @param unit the desired time unit
+     * @return the time since login in the given unit
+     */
+    long getAge(TimeUnit unit) {
+        return unit.convert(System.currentTimeMillis() - created, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves the inactivity timeout of this session as configured for the organization.
+     *
+     * @param unit the desired time unit
+     * @return the timeout in the given unit
+     */
+    long getTimeout(TimeUnit unit) {
+        return unit.convert(secondsValid, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Retrieves the generation of the given session.
+     *
+     * @param session the session, may be null
+     * @return the generation of session or 0 if session is null
+     */
+    static long generationOf(Session session) {
+        return session == null ? 0 : session.generation;
+    }
+
+    /**
+     * Points the given endpoint to the server url of this session
+     * and sets the corresponding {@link SessionHeader}.
+     *
+     * <p>
+     *   <strong>Note</strong>: The request context of an endpoint is not
+     *   thread-safe. Callers have to make sure that no other thread uses
+     *   the endpoint at the same time.
+     * </p>
+     *
+     * @param endpoint the endpoint being configured
+     * @throws NullPointerException if endpoint is null
+     */
+    void applyTo(Soap endpoint) {
+        Preconditions.checkNotNull(endpoint, "Endpoint");
+        final WSBindingProvider provider = WSBindingProvider.class.cast(endpoint);
+
+        LOG.trace("Setting endpoint to {}", serverUrl);
+        provider.getRequestContext().put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, serverUrl);
+
+        final SessionHeader sessionHeader = new SessionHeader();
+        LOG.trace("Creating new SessionHeader with Id: {}", sessionId);
+        sessionHeader.setSessionId(sessionId);
+
+        final Header header = Headers.create(Salesforce.CONTEXT, sessionHeader);
+        LOG.trace("Setting Header {} in provider {}", header, provider);
+        provider.setOutboundHeaders(header);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Session [generation=%s, serverUrl=%s]", generation, serverUrl);
+    }
+
+}
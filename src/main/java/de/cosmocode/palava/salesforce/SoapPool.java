@@ -0,0 +1,232 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.sforce.soap.enterprise.Soap;
+
+/**
+ * A bounded pool of {@link Soap} endpoints. Every endpoint is used by
+ * at most one thread at a time, because the request context of a JAX-WS
+ * proxy is not safe to share. All endpoints share the {@link Session}
+ * passed to {@link SoapPool#checkout(Session, long, TimeUnit)}, which
+ * is applied lazily whenever an endpoint still carries an older one.
+ * Sessions are compared by their {@link Session#getGeneration() generation},
+ * an endpoint never goes back to an older session than the one it carries.
+ *
+ * @author agent
+ */
+final class SoapPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SoapPool.class);
+
+    private final int size;
+
+    private final Supplier<Soap> factory;
+
+    private final BlockingQueue<Endpoint> idle;
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final AtomicLong checkouts = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong waitingTime = new AtomicLong();
+
+    private final AtomicLong maximumWaitingTime = new AtomicLong();
+
+    SoapPool(int size, Supplier<Soap> factory) {
+        Preconditions.checkArgument(size > 0, "Size must be positive");
+        this.size = size;
+        this.factory = Preconditions.checkNotNull(factory, "Factory");
+        this.idle = new LinkedBlockingQueue<Endpoint>(size);
+    }
+
+    /**
+     * Borrows an endpoint from this pool. Endpoints are created on demand until
+     * the pool is full, afterwards callers have to wait until another
+     * thread returns an endpoint using {@link SoapPool#checkin(Endpoint)}.
+     *
+     * @param session the current session
+     * @param timeout the maximum time to wait for an idle endpoint
+     * @param unit the unit of timeout
+     * @return an endpoint which is configured to use the given session or a newer one
+     * @throws NullPointerException if session or unit is null
+     * @throws SalesforceException if no endpoint became available within the given timeout
+     */
+    Endpoint checkout(Session session, long timeout, TimeUnit unit) {
+        Preconditions.checkNotNull(session, "Session");
+        Preconditions.checkNotNull(unit, "Unit");
+
+        final long start = System.nanoTime();
+        Endpoint endpoint = idle.poll();
+
+        if (endpoint == null) {
+            endpoint = create();
+        }
+
+        if (endpoint == null) {
+            try {
+                endpoint = idle.poll(timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SalesforceException("Interrupted while waiting for an idle endpoint", e);
+            }
+        }
+
+        if (endpoint == null) {
+            timeouts.incrementAndGet();
+            throw new SalesforceException(String.format(
+                "No idle endpoint available within %s %s", timeout, unit.name().toLowerCase()));
+        }
+
+        record(System.nanoTime() - start);
+
+        if (Session.generationOf(endpoint.session) < session.getGeneration()) {
+            LOG.trace("Applying {} to {}", session, endpoint);
+            session.applyTo(endpoint.soap);
+            endpoint.session = session;
+        } else if (endpoint.session != session) {
+            LOG.trace("Keeping newer {} of {} instead of {}", new Object[] {endpoint.session, endpoint, session});
+        }
+
+        return endpoint;
+    }
+
+    /**
+     * Returns an endpoint previously borrowed using
+     * {@link SoapPool#checkout(Session, long, TimeUnit)}.
+     *
+     * @param endpoint the endpoint being returned
+     * @throws NullPointerException if endpoint is null
+     */
+    void checkin(Endpoint endpoint) {
+        Preconditions.checkNotNull(endpoint, "Endpoint");
+        final boolean offered = idle.offer(endpoint);
+        assert offered : String.format("%s exceeded its size of %s", this, size);
+    }
+
+    private Endpoint create() {
+        while (true) {
+            final int current = created.get();
+            if (current >= size) {
+                return null;
+            } else if (created.compareAndSet(current, current + 1)) {
+                LOG.debug("Creating endpoint {} of {}", current + 1, size);
+                try {
+                    return new Endpoint(factory.get());
+                } catch (RuntimeException e) {
+                    created.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void record(long nanos) {
+        checkouts.incrementAndGet();
+        waitingTime.addAndGet(nanos);
+        while (true) {
+            final long maximum = maximumWaitingTime.get();
+            if (nanos <= maximum || maximumWaitingTime.compareAndSet(maximum, nanos)) {
+                return;
+            }
+        }
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    int getCreated() {
+        return created.get();
+    }
+
+    int getIdle() {
+        return idle.size();
+    }
+
+    long getCheckouts() {
+        return checkouts.get();
+    }
+
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    long getAverageWaitingTime(TimeUnit unit) {
+        final long count = checkouts.get();
+        return count == 0 ? 0 : unit.convert(waitingTime.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    long getMaximumWaitingTime(TimeUnit unit) {
+        return unit.convert(maximumWaitingTime.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SoapPool [size=%s, created=%s, idle=%s]", size, created.get(), idle.size());
+    }
+
+    /**
+     * A pooled {@link Soap} endpoint.
+     */
+    static final class Endpoint {
+
+        private final Soap soap;
+
+        /**
+         * The session currently applied to {@link Endpoint#soap}, only accessed by the owning thread.
+         */
+        private Session session;
+
+        private Endpoint(Soap soap) {
+            this.soap = Preconditions.checkNotNull(soap, "Soap");
+        }
+
+        Soap getSoap() {
+            return soap;
+        }
+
+        /**
+         * Retrieves the session applied to this endpoint.
+         *
+         * @return the session, null if this endpoint has never been checked out
+         */
+        Session getSession() {
+            return session;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Endpoint [soap=%s]", soap);
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+/**
+ * The processing states of a Bulk API batch.
+ *
+ * @author agent
+ */
+public enum BulkBatchState {
+
+    QUEUED,
+
+    IN_PROGRESS,
+
+    COMPLETED,
+
+    FAILED,
+
+    NOT_PROCESSED;
+
+    /**
+     * Checks whether this state is final.
+     *
+     * @return true if the batch will not change its state anymore
+     */
+    public boolean isDone() {
+        return this == COMPLETED || this == FAILED || this == NOT_PROCESSED;
+    }
+
+    /**
+     * Parses the state as returned by the Bulk API, e.g. "InProgress".
+     *
+     * @param value the state value
+     * @return the corresponding state
+     * @throws NullPointerException if value is null
+     * @throws IllegalArgumentException if value is no known state
+     */
+    public static BulkBatchState parse(String value) {
+        if ("Queued".equals(value)) {
+            return QUEUED;
+        } else if ("InProgress".equals(value)) {
+            return IN_PROGRESS;
+        } else if ("Completed".equals(value)) {
+            return COMPLETED;
+        } else if ("Failed".equals(value)) {
+            return FAILED;
+        } else if ("Not Processed".equals(value)) {
+            return NOT_PROCESSED;
+        } else if (value == null) {
+            throw new NullPointerException("Value");
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown batch state %s", value));
+        }
+    }
+
+}
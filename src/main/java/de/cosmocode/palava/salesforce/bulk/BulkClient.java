@@ -0,0 +1,85 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+import java.util.List;
+
+import de.cosmocode.palava.salesforce.SalesforceException;
+
+/**
+ * A client of the Salesforce Bulk API, which processes large sets of records
+ * asynchronously in jobs consisting of csv batches.
+ *
+ * @author agent
+ */
+public interface BulkClient {
+
+    /**
+     * Opens a new job.
+     *
+     * @param object the name of the object type, e.g. "Account"
+     * @param operation the operation
+     * @param externalIdentifier the external identifier field, only used for upserts
+     * @return the job id
+     * @throws NullPointerException if object or operation is null
+     * @throws SalesforceException if the job could not be created
+     */
+    String createJob(String object, BulkOperation operation, String externalIdentifier);
+
+    /**
+     * Adds a batch to an open job.
+     *
+     * @param jobId the job id
+     * @param csv the batch content, a header line followed by one line per record
+     * @return the batch id
+     * @throws NullPointerException if jobId or csv is null
+     * @throws SalesforceException if the batch could not be added
+     */
+    String addBatch(String jobId, byte[] csv);
+
+    /**
+     * Closes a job, no further batches can be added afterwards.
+     *
+     * @param jobId the job id
+     * @throws NullPointerException if jobId is null
+     * @throws SalesforceException if the job could not be closed
+     */
+    void closeJob(String jobId);
+
+    /**
+     * Retrieves the current state of a batch.
+     *
+     * @param jobId the job id
+     * @param batchId the batch id
+     * @return the batch state
+     * @throws NullPointerException if jobId or batchId is null
+     * @throws SalesforceException if the state could not be retrieved
+     */
+    BulkBatchState getBatchState(String jobId, String batchId);
+
+    /**
+     * Retrieves the results of a completed batch, in the order of its records.
+     *
+     * @param jobId the job id
+     * @param batchId the batch id
+     * @return one result per record
+     * @throws NullPointerException if jobId or batchId is null
+     * @throws SalesforceException if the results could not be retrieved
+     */
+    List<BulkResult> getBatchResults(String jobId, String batchId);
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+/**
+ * The result of one record of a Bulk API batch.
+ *
+ * @author agent
+ */
+public final class BulkResult {
+
+    private final String id;
+
+    private final boolean success;
+
+    private final boolean created;
+
+    private final String error;
+
+    public BulkResult(String id, boolean success, boolean created, String error) {
+        this.id = id;
+        this.success = success;
+        this.created = created;
+        this.error = error;
+    }
+
+    /**
+     * Retrieves the Salesforce id of the record.
+     *
+     * @return the id or null if the record failed
+     */
+    public String getId() {
+        return id;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public boolean isCreated() {
+        return created;
+    }
+
+    /**
+     * Retrieves the error message of a failed record.
+     *
+     * @return the error message or null if the record succeeded
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BulkResult [id=%s, success=%s, created=%s, error=%s]", id, success, created, error);
+    }
+
+}
@@ -0,0 +1,237 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.SalesforceException;
+
+/**
+ * Syncs large sets of entities using a single Bulk API upsert job, intended for
+ * implementations of {@link de.cosmocode.palava.salesforce.sync.SyncService#complete(boolean)}.
+ * 
+ * <p>
+ *   Entities are copied and written into csv batches while iterating, so only one
+ *   batch is kept in memory. After all batches have been submitted, the job is closed
+ *   and the batches are polled until Salesforce processed them. The results are
+ *   reported per entity id to a {@link BulkSyncListener}.
+ * </p>
+ *
+ * @author agent
+ */
+public final class BulkSyncEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BulkSyncEngine.class);
+
+    /**
+     * The maximum number of records per batch allowed by the Bulk API.
+     */
+    public static final int MAXIMUM_BATCH_SIZE = 10000;
+
+    private final BulkClient client;
+
+    private final int batchSize;
+
+    private final long pollInterval;
+
+    private final TimeUnit pollIntervalUnit;
+
+    /**
+     * Creates a new {@link BulkSyncEngine}.
+     *
+     * @param client the client
+     * @param batchSize the number of records per batch, at most {@link #MAXIMUM_BATCH_SIZE}
+     * @param pollInterval the time between two status polls
+     * @param pollIntervalUnit the unit of pollInterval
+     * @throws NullPointerException if client or pollIntervalUnit is null
+     * @throws IllegalArgumentException if batchSize is out of range or pollInterval is not positive
+     */
+    public BulkSyncEngine(BulkClient client, int batchSize, long pollInterval, TimeUnit pollIntervalUnit) {
+        this.client = Preconditions.checkNotNull(client, "Client");
+        Preconditions.checkArgument(batchSize > 0 && batchSize <= MAXIMUM_BATCH_SIZE,
+            "BatchSize must be between 1 and %s", MAXIMUM_BATCH_SIZE);
+        Preconditions.checkArgument(pollInterval > 0, "PollInterval must be positive");
+        this.batchSize = batchSize;
+        this.pollInterval = pollInterval;
+        this.pollIntervalUnit = Preconditions.checkNotNull(pollIntervalUnit, "PollIntervalUnit");
+    }
+
+    /**
+     * Upserts all given entities.
+     *
+     * @param <S> the generic entity type
+     * @param <T> the generic salesforce object type
+     * @param entities the entities being synced
+     * @param function the copy function
+     * @param externalIdentifier the external identifier field used for the upsert
+     * @param listener the listener receiving the results
+     * @param failFast if true, an exception is thrown as soon as a failed record was detected
+     * @return the number of failed records
+     * @throws NullPointerException if any argument is null
+     * @throws SalesforceException if the job failed or a record failed and failFast is true
+     */
+    public <S extends EntityBase, T extends SObject> long sync(Iterator<S> entities, Function<S, T> function,
+        String externalIdentifier, BulkSyncListener listener, boolean failFast) {
+
+        Preconditions.checkNotNull(entities, "Entities");
+        Preconditions.checkNotNull(function, "Function");
+        Preconditions.checkNotNull(externalIdentifier, "ExternalIdentifier");
+        Preconditions.checkNotNull(listener, "Listener");
+
+        String jobId = null;
+        final List<Batch> batches = Lists.newArrayList();
+        final List<T> objects = Lists.newArrayListWithCapacity(batchSize);
+        final List<Long> ids = Lists.newArrayListWithCapacity(batchSize);
+
+        try {
+            while (entities.hasNext()) {
+                final S entity = entities.next();
+                final T object = function.apply(entity);
+                if (jobId == null) {
+                    jobId = client.createJob(object.getClass().getSimpleName(), BulkOperation.UPSERT,
+                        externalIdentifier);
+                }
+                objects.add(object);
+                ids.add(entity.getId());
+                if (objects.size() == batchSize) {
+                    batches.add(submit(jobId, objects, ids));
+                }
+            }
+            if (!objects.isEmpty()) {
+                batches.add(submit(jobId, objects, ids));
+            }
+        } finally {
+            if (jobId != null) {
+                client.closeJob(jobId);
+            }
+        }
+
+        if (jobId == null) {
+            LOG.info("Nothing to sync");
+            return 0;
+        }
+
+        LOG.info("Submitted {} batch(es) to job {}", batches.size(), jobId);
+        return await(jobId, batches, listener, failFast);
+    }
+
+    private <T extends SObject> Batch submit(String jobId, List<T> objects, List<Long> ids) {
+        final String batchId = client.addBatch(jobId, SObjectCsv.write(objects));
+        final long[] batchIds = new long[ids.size()];
+        for (int i = 0; i < batchIds.length; i++) {
+            batchIds[i] = ids.get(i);
+        }
+        objects.clear();
+        ids.clear();
+        return new Batch(batchId, batchIds);
+    }
+
+    private long await(String jobId, List<Batch> batches, BulkSyncListener listener, boolean failFast) {
+        final List<Batch> pending = Lists.newArrayList(batches);
+        long failed = 0;
+
+        while (true) {
+            final Iterator<Batch> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                final Batch batch = iterator.next();
+                final BulkBatchState state = client.getBatchState(jobId, batch.id);
+                if (!state.isDone()) continue;
+                iterator.remove();
+                failed += complete(jobId, batch, state, listener, failFast);
+            }
+
+            if (pending.isEmpty()) break;
+
+            LOG.debug("Waiting for {} of {} batch(es) of job {}", new Object[] {
+                pending.size(), batches.size(), jobId
+            });
+            try {
+                pollIntervalUnit.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SalesforceException("Interrupted while waiting for job " + jobId, e);
+            }
+        }
+
+        LOG.info("Job {} completed with {} failed record(s)", jobId, failed);
+        return failed;
+    }
+
+    private long complete(String jobId, Batch batch, BulkBatchState state, BulkSyncListener listener,
+        boolean failFast) {
+
+        if (state != BulkBatchState.COMPLETED) {
+            final BulkResult failure = new BulkResult(null, false, false, "Batch " + batch.id + " " + state);
+            for (long id : batch.ids) {
+                listener.completed(id, failure);
+            }
+            if (failFast) throw new SalesforceException(failure.getError());
+            return batch.ids.length;
+        }
+
+        final List<BulkResult> results = client.getBatchResults(jobId, batch.id);
+        if (results.size() != batch.ids.length) {
+            throw new SalesforceException(String.format("Batch %s returned %s results for %s records",
+                batch.id, results.size(), batch.ids.length));
+        }
+
+        long failed = 0;
+        for (int i = 0; i < batch.ids.length; i++) {
+            final BulkResult result = results.get(i);
+            listener.completed(batch.ids[i], result);
+            if (result.isSuccess()) continue;
+            failed++;
+            if (failFast) {
+                throw new SalesforceException(String.format("Sync of %s failed: %s", batch.ids[i], result.getError()));
+            }
+        }
+        return failed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BulkSyncEngine [client=%s, batchSize=%s]", client, batchSize);
+    }
+
+    /**
+     * A submitted batch and the ids of its entities, in record order.
+     */
+    private static final class Batch {
+
+        private final String id;
+
+        private final long[] ids;
+
+        Batch(String id, long[] ids) {
+            this.id = id;
+            this.ids = ids;
+        }
+
+    }
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+/**
+ * Receives the results of a {@link BulkSyncEngine} run, mapped back to entities.
+ *
+ * @author agent
+ */
+public interface BulkSyncListener {
+
+    /**
+     * Called once per synced entity, as soon as the result of its batch is known.
+     *
+     * @param entityId the id of the entity
+     * @param result the result of the corresponding record
+     */
+    void completed(long entityId, BulkResult result);
+
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+import de.cosmocode.palava.salesforce.SalesforceSession;
+
+/**
+ * A {@link BulkClient} talking to the Bulk API via plain http, sharing
+ * the session of a {@link SalesforceService}.
+ *
+ * @author agent
+ */
+public final class HttpBulkClient implements BulkClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpBulkClient.class);
+
+    /**
+     * The Bulk API version matching the enterprise wsdl.
+     */
+    private static final String VERSION = "18.0";
+
+    private static final String NAMESPACE = "http://www.force.com/2009/06/asyncapi/dataload";
+
+    private static final String INVALID_SESSION = "InvalidSessionId";
+
+    private static final int TIMEOUT = (int) TimeUnit.MINUTES.toMillis(2);
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+    private final SalesforceService service;
+
+    public HttpBulkClient(SalesforceService service) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+    }
+
+    @Override
+    public String createJob(String object, BulkOperation operation, String externalIdentifier) {
+        Preconditions.checkNotNull(object, "Object");
+        Preconditions.checkNotNull(operation, "Operation");
+        final StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<jobInfo xmlns=\"").append(NAMESPACE).append("\">");
+        xml.append("<operation>").append(operation.getName()).append("</operation>");
+        xml.append("<object>").append(StringEscapeUtils.escapeXml(object)).append("</object>");
+        if (operation == BulkOperation.UPSERT) {
+            Preconditions.checkNotNull(externalIdentifier, "ExternalIdentifier");
+            xml.append("<externalIdFieldName>").append(StringEscapeUtils.escapeXml(externalIdentifier));
+            xml.append("</externalIdFieldName>");
+        }
+        xml.append("<contentType>CSV</contentType>");
+        xml.append("</jobInfo>");
+
+        final String id = parse(request("POST", "/job", "application/xml", utf8(xml.toString()))).get("id");
+        LOG.info("Created bulk {} job {} for {}", new Object[] {operation.getName(), id, object});
+        return id;
+    }
+
+    @Override
+    public String addBatch(String jobId, byte[] csv) {
+        Preconditions.checkNotNull(jobId, "JobId");
+        Preconditions.checkNotNull(csv, "Csv");
+        final String id = parse(request("POST", "/job/" + jobId + "/batch", "text/csv", csv)).get("id");
+        LOG.debug("Added batch {} of {} bytes to job {}", new Object[] {id, csv.length, jobId});
+        return id;
+    }
+
+    @Override
+    public void closeJob(String jobId) {
+        Preconditions.checkNotNull(jobId, "JobId");
+        final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><jobInfo xmlns=\"" + NAMESPACE
+            + "\"><state>Closed</state></jobInfo>";
+        request("POST", "/job/" + jobId, "application/xml", utf8(xml));
+        LOG.debug("Closed job {}", jobId);
+    }
+
+    @Override
+    public BulkBatchState getBatchState(String jobId, String batchId) {
+        Preconditions.checkNotNull(jobId, "JobId");
+        Preconditions.checkNotNull(batchId, "BatchId");
+        final Map<String, String> info = parse(request("GET", "/job/" + jobId + "/batch/" + batchId, null, null));
+        final BulkBatchState state = BulkBatchState.parse(info.get("state"));
+        if (state == BulkBatchState.FAILED) {
+            LOG.warn("Batch {} of job {} failed: {}", new Object[] {batchId, jobId, info.get("stateMessage")});
+        }
+        return state;
+    }
+
+    @Override
+    public List<BulkResult> getBatchResults(String jobId, String batchId) {
+        Preconditions.checkNotNull(jobId, "JobId");
+        Preconditions.checkNotNull(batchId, "BatchId");
+        final byte[] csv = request("GET", "/job/" + jobId + "/batch/" + batchId + "/result", null, null);
+        return parseResults(csv);
+    }
+
+    /**
+     * Parses the csv result of a batch. Quoted values may contain commas, escaped
+     * quotes and line breaks, e.g. multi-line error messages.
+     *
+     * @param csv the utf-8 encoded csv content
+     * @return the parsed results, in batch order
+     * @throws NullPointerException if csv is null
+     * @throws SalesforceException if a quoted value is not terminated
+     */
+    static List<BulkResult> parseResults(byte[] csv) {
+        Preconditions.checkNotNull(csv, "Csv");
+        final List<List<String>> records = parseCsv(utf8(csv));
+        final List<BulkResult> results = Lists.newArrayListWithCapacity(Math.max(0, records.size() - 1));
+        // skip header: "Id","Success","Created","Error"
+        for (List<String> values : records.subList(Math.min(1, records.size()), records.size())) {
+            final String id = values.get(0);
+            results.add(new BulkResult(
+                id.length() == 0 ? null : id,
+                values.size() > 1 && Boolean.parseBoolean(values.get(1)),
+                values.size() > 2 && Boolean.parseBoolean(values.get(2)),
+                values.size() > 3 && values.get(3).length() > 0 ? values.get(3) : null
+            ));
+        }
+        return results;
+    }
+
+    private static List<List<String>> parseCsv(String csv) {
+        final List<List<String>> records = Lists.newArrayList();
+        List<String> values = Lists.newArrayList();
+        final StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+        for (int i = 0; i < csv.length(); i++) {
+            final char c = csv.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < csv.length() && csv.charAt(i + 1) == '"') {
+                    current.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                empty = false;
+            } else if (c == ',') {
+                values.add(current.toString());
+                current.setLength(0);
+                empty = false;
+            } else if (c == '\r' || c == '\n') {
+                if (c == '\r' && i + 1 < csv.length() && csv.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                if (!empty) {
+                    values.add(current.toString());
+                    records.add(values);
+                }
+                values = Lists.newArrayList();
+                current.setLength(0);
+                empty = true;
+            } else {
+                current.append(c);
+                empty = false;
+            }
+        }
+        if (quoted) {
+            throw new SalesforceException("Unterminated quoted value in batch result");
+        } else if (!empty) {
+            values.add(current.toString());
+            records.add(values);
+        }
+        return records;
+    }
+
+    private static String utf8(byte[] value) {
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] request(String method, String path, String contentType, byte[] body) {
+        try {
+            return request(service.getSession(), method, path, contentType, body);
+        } catch (InvalidSessionException e) {
+            LOG.info("Session expired, reconnecting");
+            service.reconnect();
+            try {
+                return request(service.getSession(), method, path, contentType, body);
+            } catch (InvalidSessionException again) {
+                throw new SalesforceException(again.getMessage());
+            }
+        }
+    }
+
+    private byte[] request(SalesforceSession session, String method, String path, String contentType,
+        byte[] body) throws InvalidSessionException {
+
+        final URL url = endpointOf(session, path);
+        HttpURLConnection connection = null;
+        OutputStream output = null;
+        InputStream input = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestProperty("X-SFDC-Session", session.getSessionId());
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", contentType + "; charset=UTF-8");
+                connection.setFixedLengthStreamingMode(body.length);
+                output = connection.getOutputStream();
+                output.write(body);
+                output.close();
+                output = null;
+            }
+
+            final int status = connection.getResponseCode();
+            input = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            final byte[] response = input == null ? new byte[0] : read(input);
+
+            if (status >= 400) {
+                final Map<String, String> error = parse(response);
+                if (INVALID_SESSION.equals(error.get("exceptionCode"))) {
+                    throw new InvalidSessionException(error.get("exceptionMessage"));
+                }
+                throw new SalesforceException(String.format("%s %s failed with %s: %s %s", method, url, status,
+                    error.get("exceptionCode"), error.get("exceptionMessage")));
+            }
+            return response;
+        } catch (IOException e) {
+            throw new SalesforceException(String.format("%s %s failed", method, url), e);
+        } finally {
+            closeQuietly(output);
+            closeQuietly(input);
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    private static URL endpointOf(SalesforceSession session, String path) {
+        try {
+            final URL server = new URL(session.getServerUrl());
+            return new URL(server.getProtocol(), server.getHost(), server.getPort(),
+                "/services/async/" + VERSION + path);
+        } catch (MalformedURLException e) {
+            throw new SalesforceException(e);
+        }
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[4096];
+        int read;
+        while ((read = input.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Parses the top level elements of a jobInfo, batchInfo or error response.
+     */
+    private static Map<String, String> parse(byte[] xml) {
+        final Map<String, String> values = Maps.newHashMap();
+        if (xml.length == 0) return values;
+        try {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(new ByteArrayInputStream(xml));
+            int depth = 0;
+            String element = null;
+            final StringBuilder text = new StringBuilder();
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    element = depth == 2 ? reader.getLocalName() : null;
+                    text.setLength(0);
+                } else if (event == XMLStreamConstants.CHARACTERS && element != null) {
+                    text.append(reader.getText());
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2 && element != null) {
+                        values.put(element, text.toString().trim());
+                    }
+                    element = null;
+                    depth--;
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new SalesforceException(e);
+        }
+        return values;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOG.trace("Unable to close " + closeable, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HttpBulkClient [version=%s]", VERSION);
+    }
+
+    /**
+     * Signals an expired or invalid session.
+     */
+    private static final class InvalidSessionException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        InvalidSessionException(String message) {
+            super(message);
+        }
+
+    }
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.salesforce.sync.NullFieldCollector;
+
+/**
+ * Writes {@link SObject}s as Bulk API csv batches. The columns of a batch are the
+ * union of all fields set on any of its objects. Fields explicitly set to null
+ * are written as {@code #N/A}, which tells Salesforce to clear them.
+ *
+ * @author agent
+ */
+final class SObjectCsv {
+
+    private static final String NULL = "#N/A";
+
+    private SObjectCsv() {
+
+    }
+
+    /**
+     * Writes the given objects.
+     *
+     * @param objects the objects, all of the same type
+     * @return the utf-8 encoded csv content
+     * @throws NullPointerException if objects is null
+     */
+    static byte[] write(List<? extends SObject> objects) {
+        Preconditions.checkNotNull(objects, "Objects");
+
+        final List<Map<String, String>> rows = Lists.newArrayListWithCapacity(objects.size());
+        final Map<String, Boolean> columns = Maps.newLinkedHashMap();
+        for (SObject object : objects) {
+            final Map<String, String> row = read(object);
+            for (String column : row.keySet()) {
+                columns.put(column, Boolean.TRUE);
+            }
+            rows.add(row);
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            final Writer writer = new OutputStreamWriter(bytes, "UTF-8");
+            writeLine(writer, columns.keySet());
+            for (Map<String, String> row : rows) {
+                final List<String> values = Lists.newArrayListWithCapacity(columns.size());
+                for (String column : columns.keySet()) {
+                    final String value = row.get(column);
+                    values.add(value == null ? "" : value);
+                }
+                writeLine(writer, values);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, String> read(SObject object) {
+        final Map<String, String> row = Maps.newLinkedHashMap();
+        Class<?> type = object.getClass();
+        while (type != null && type != Object.class) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                if ("fieldsToNull".equals(field.getName())) continue;
+                final Object value;
+                try {
+                    final boolean accessible = field.isAccessible();
+                    field.setAccessible(true);
+                    value = field.get(object);
+                    field.setAccessible(accessible);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                if (value == null) continue;
+                final Object raw = value instanceof JAXBElement<?> ? JAXBElement.class.cast(value).getValue() : value;
+                if (raw instanceof SObject || raw instanceof QueryResult || raw instanceof Collection<?>) continue;
+                row.put(NullFieldCollector.nameOf(field), raw == null ? NULL : format(raw));
+            }
+            type = type.getSuperclass();
+        }
+        for (String field : object.getFieldsToNull()) {
+            row.put(field, NULL);
+        }
+        return row;
+    }
+
+    private static String format(Object value) {
+        if (value instanceof XMLGregorianCalendar) {
+            return XMLGregorianCalendar.class.cast(value).toXMLFormat();
+        } else {
+            return value.toString();
+        }
+    }
+
+    private static void writeLine(Writer writer, Iterable<String> values) throws IOException {
+        boolean first = true;
+        for (String value : values) {
+            if (!first) writer.write(',');
+            first = false;
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        }
+        writer.write('\n');
+    }
+
+}
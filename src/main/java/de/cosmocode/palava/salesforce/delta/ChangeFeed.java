@@ -0,0 +1,222 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.delta;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.sforce.soap.enterprise.DeletedRecord;
+import com.sforce.soap.enterprise.GetDeletedResult;
+import com.sforce.soap.enterprise.GetUpdatedResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceScheduler;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * Polls the changes of registered object types using {@link SalesforceService#getUpdated(String, Date, Date)}
+ * and {@link SalesforceService#getDeleted(String, Date, Date)}, so the cost of a poll depends on the
+ * number of changes instead of the number of objects.
+ *
+ * <p>
+ *   Every type has its own watermark in a {@link WatermarkStore}. A poll asks for the changes since
+ *   the watermark, retrieves the registered fields of updated objects in batches of
+ *   {@link Salesforce#MAXIMUM_RETRIEVE_SIZE}, reports them to the {@link ChangeListener} and
+ *   only then advances the watermark to the latest date covered by Salesforce. The first poll of a type
+ *   only establishes its watermark, existing objects have to be loaded using a complete sync.
+ *   Watermarks and time spans are based on {@link SalesforceService#getServerTimestamp()},
+ *   so a skewed local clock can't make a poll miss changes.
+ * </p>
+ *
+ * <p>
+ *   Salesforce keeps changes for 30 days. Types whose watermark is older fail until
+ *   a complete sync has been performed and their watermark has been reset.
+ * </p>
+ *
+ * @author agent
+ */
+public final class ChangeFeed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeFeed.class);
+
+    private static final long MAXIMUM_AGE = TimeUnit.DAYS.toMillis(30);
+
+    private static final long MINIMUM_SPAN = TimeUnit.MINUTES.toMillis(1);
+
+    private final SalesforceService service;
+
+    private final WatermarkStore store;
+
+    private final ChangeListener listener;
+
+    private final Map<String, String> types = new MapMaker().makeMap();
+
+    private ScheduledFuture<?> future;
+
+    public ChangeFeed(SalesforceService service, WatermarkStore store, ChangeListener listener) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        this.store = Preconditions.checkNotNull(store, "Store");
+        this.listener = Preconditions.checkNotNull(listener, "Listener");
+    }
+
+    /**
+     * Registers an object type whose changes should be polled.
+     *
+     * @param type the object type, e.g. "Account"
+     * @param fields the comma separated fields retrieved for updated objects, e.g. "Id, Name"
+     * @throws NullPointerException if type or fields is null
+     */
+    public void register(String type, String fields) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(fields, "Fields");
+        types.put(type, fields);
+    }
+
+    /**
+     * Starts polling all registered types periodically.
+     *
+     * @param scheduler the scheduler, usually the one bound using {@link SalesforceScheduler}
+     * @param interval the delay between the end of a poll and the start of the next one
+     * @param unit the unit of interval
+     * @throws NullPointerException if scheduler or unit is null
+     * @throws IllegalStateException if this feed is already started
+     */
+    public synchronized void start(ScheduledExecutorService scheduler, long interval, TimeUnit unit) {
+        Preconditions.checkNotNull(scheduler, "Scheduler");
+        Preconditions.checkNotNull(unit, "Unit");
+        Preconditions.checkState(future == null, "%s is already started", this);
+        future = scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                poll();
+            }
+
+        }, 0, interval, unit);
+        LOG.info("Polling changes of {} every {} {}", new Object[] {
+            types.keySet(), interval, unit.name().toLowerCase()
+        });
+    }
+
+    /**
+     * Stops polling. A running poll is completed.
+     */
+    public synchronized void stop() {
+        if (future == null) return;
+        future.cancel(false);
+        future = null;
+    }
+
+    /**
+     * Polls the changes of all registered types. Failures of single types are logged.
+     */
+    public void poll() {
+        for (Map.Entry<String, String> entry : types.entrySet()) {
+            try {
+                poll(entry.getKey(), entry.getValue());
+            } catch (RuntimeException e) {
+                LOG.error("Polling changes of " + entry.getKey() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Polls the changes of a single type.
+     *
+     * @param type the object type
+     * @param fields the fields retrieved for updated objects
+     * @return the number of reported changes
+     * @throws SalesforceException if polling failed
+     */
+    synchronized int poll(String type, String fields) {
+        final Date now = service.getServerTimestamp();
+        final Date watermark = store.load(type);
+
+        if (watermark == null) {
+            LOG.info("No watermark of {} found, starting change feed at {}", type, now);
+            store.save(type, now);
+            return 0;
+        } else if (now.getTime() - watermark.getTime() < MINIMUM_SPAN) {
+            LOG.trace("Skipping {}, last poll covered {}", type, watermark);
+            return 0;
+        } else if (now.getTime() - watermark.getTime() > MAXIMUM_AGE) {
+            throw new SalesforceException(String.format(
+                "Watermark %s of %s is older than 30 days, a complete sync is required", watermark, type));
+        }
+
+        final GetUpdatedResult updated = service.getUpdated(type, watermark, now);
+        final GetDeletedResult deleted = service.getDeleted(type, watermark, now);
+
+        int changes = 0;
+        for (List<String> chunk : Lists.partition(updated.getIds(), Salesforce.MAXIMUM_RETRIEVE_SIZE)) {
+            // objects deleted in the meantime are returned as null
+            final List<SObject> objects = Lists.newArrayList(
+                Iterables.filter(service.retrieve(fields, type, chunk), Predicates.notNull()));
+            if (objects.isEmpty()) continue;
+            listener.updated(type, objects);
+            changes += objects.size();
+        }
+
+        final List<String> identifiers = Lists.newArrayListWithCapacity(deleted.getDeletedRecords().size());
+        for (DeletedRecord record : deleted.getDeletedRecords()) {
+            identifiers.add(record.getId());
+        }
+        if (!identifiers.isEmpty()) {
+            listener.deleted(type, identifiers);
+            changes += identifiers.size();
+        }
+
+        final Date covered = earliest(now, updated.getLatestDateCovered(), deleted.getLatestDateCovered());
+        store.save(type, covered);
+        LOG.debug("Reported {} change(s) of {} up to {}", new Object[] {changes, type, covered});
+        return changes;
+    }
+
+    private static Date earliest(Date now, XMLGregorianCalendar... dates) {
+        Date earliest = now;
+        for (XMLGregorianCalendar date : dates) {
+            if (date == null) continue;
+            final Date current = date.toGregorianCalendar().getTime();
+            if (current.before(earliest)) {
+                earliest = current;
+            }
+        }
+        return earliest;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChangeFeed [types=%s, store=%s]", types.keySet(), store);
+    }
+
+}
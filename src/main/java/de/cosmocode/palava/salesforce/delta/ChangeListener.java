@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.delta;
+
+import java.util.List;
+
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Receives the remote changes detected by a {@link ChangeFeed}. Changes are delivered
+ * at least once, implementations should be idempotent.
+ *
+ * @author agent
+ */
+public interface ChangeListener {
+
+    /**
+     * Called with objects which were created or updated since the last poll.
+     *
+     * @param type the object type, e.g. "Account"
+     * @param objects the changed objects, containing the registered fields
+     */
+    void updated(String type, List<SObject> objects);
+
+    /**
+     * Called with the identifiers of objects which were deleted since the last poll.
+     *
+     * @param type the object type, e.g. "Account"
+     * @param identifiers the identifiers of the deleted objects
+     */
+    void deleted(String type, List<String> identifiers);
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.salesforce.AtomicFile;
+import de.cosmocode.palava.salesforce.SalesforceException;
+
+/**
+ * A {@link WatermarkStore} keeping all watermarks in a single properties file,
+ * which is replaced atomically using an {@link AtomicFile}.
+ *
+ * @author agent
+ */
+public final class FileWatermarkStore implements WatermarkStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileWatermarkStore.class);
+
+    private final AtomicFile file;
+
+    /**
+     * Guarded by this.
+     */
+    private Properties watermarks;
+
+    public FileWatermarkStore(File file) {
+        this.file = new AtomicFile(file);
+    }
+
+    @Override
+    public synchronized Date load(String type) {
+        Preconditions.checkNotNull(type, "Type");
+        final String value = watermarks().getProperty(type);
+        return value == null ? null : new Date(Long.parseLong(value));
+    }
+
+    @Override
+    public synchronized void save(String type, Date watermark) {
+        Preconditions.checkNotNull(type, "Type");
+        Preconditions.checkNotNull(watermark, "Watermark");
+        final Properties copy = new Properties();
+        copy.putAll(watermarks());
+        copy.setProperty(type, Long.toString(watermark.getTime()));
+        write(copy);
+        watermarks = copy;
+        LOG.debug("Stored watermark {} of {}", watermark, type);
+    }
+
+    private Properties watermarks() {
+        if (watermarks == null) {
+            watermarks = read();
+        }
+        return watermarks;
+    }
+
+    private Properties read() {
+        try {
+            return file.readProperties();
+        } catch (IOException e) {
+            throw new SalesforceException("Unable to read watermarks from " + file.getFile(), e);
+        }
+    }
+
+    private void write(Properties properties) {
+        try {
+            file.writeProperties(properties, "Salesforce change feed watermarks");
+        } catch (IOException e) {
+            throw new SalesforceException("Unable to write watermarks to " + file.getFile(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileWatermarkStore [file=%s]", file.getFile());
+    }
+
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.delta;
+
+import java.util.Date;
+
+/**
+ * Durably stores the point in time up to which the changes of an object type
+ * have been processed by a {@link ChangeFeed}.
+ *
+ * @author agent
+ */
+public interface WatermarkStore {
+
+    /**
+     * Loads the watermark of the given object type.
+     *
+     * @param type the object type
+     * @return the watermark or null if there is none
+     */
+    Date load(String type);
+
+    /**
+     * Stores the watermark of the given object type, replacing the previous one.
+     *
+     * @param type the object type
+     * @param watermark the new watermark
+     * @throws de.cosmocode.palava.salesforce.SalesforceException if the watermark could not be stored
+     */
+    void save(String type, Date watermark);
+
+}
@@ -16,17 +16,26 @@
 
 package de.cosmocode.palava.salesforce.sync;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.MapMaker;
+import com.sforce.soap.enterprise.UpsertResult;
 import com.sforce.soap.enterprise.sobject.SObject;
 
 import de.cosmocode.commons.concurrent.Runnables;
 import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.SalesforceException;
 import de.cosmocode.palava.salesforce.SalesforceService;
 
 /**
@@ -37,6 +46,15 @@ import de.cosmocode.palava.salesforce.SalesforceService;
 public abstract class AbstractSyncService implements SyncService {
 
     private static final Logger LOG = LoggerFactory.getLogger(AbstractSyncService.class);
+    
+    /**
+     * Syncs which did not start yet, used to coalesce syncs of the same entity.
+     */
+    private final ConcurrentMap<SyncKey, UpsertTask> queued = new MapMaker().makeMap();
+    
+    private final AtomicLong coalesced = new AtomicLong();
+    
+    private final AtomicLong skipped = new AtomicLong();
 
     /**
      * Retrieves the associated {@link SalesforceService}.
@@ -68,19 +86,160 @@ public abstract class AbstractSyncService implements SyncService {
         getExecutor().execute(task);
     }
 
+    /**
+     * Retrieves the {@link UpsertBatcher} used to coalesce {@link #sync(EntityBase, Function)} calls.
+     * The default implementation returns null, which sends every entity on its own.
+     * 
+     * @since 1.1
+     * @return the batcher or null if write-behind is disabled
+     */
+    protected UpsertBatcher getBatcher() {
+        return null;
+    }
+    
+    /**
+     * Retrieves the {@link SyncPipeline} used to run {@link #sync(EntityBase, Function)} calls
+     * in stages, which keeps copy functions from holding threads needed for network I/O.
+     * The default implementation returns null, which runs every sync as a single task
+     * using the {@link #getExecutor() executor}. The {@link UpsertBatcher} takes precedence.
+     * 
+     * <p>
+     *   <strong>Note</strong>: Implementations have to start and shut down the pipeline.
+     *   Syncs running through the pipeline are not coalesced. They are skipped and reduced
+     *   to their changed fields using the store and diff of the pipeline.
+     * </p>
+     * 
+     * @since 1.1
+     * @return the pipeline or null if syncs run as single tasks
+     */
+    protected SyncPipeline<?, ?, ?> getPipeline() {
+        return null;
+    }
+    
+    /**
+     * Retrieves the {@link SyncStateStore} used to skip syncs of entities whose copy did not
+     * change since their last successful upsert. The default implementation returns null,
+     * which sends every sync. Batched and pipelined syncs use the store of the {@link UpsertBatcher}
+     * or {@link SyncPipeline}, which has to be the same if this method provides one.
+     * 
+     * <p>
+     *   <strong>Note</strong>: Changes made in Salesforce are not detected. Remove the
+     *   state of entities which have to be sent again.
+     * </p>
+     * 
+     * @since 1.1
+     * @return the store or null if change detection is disabled
+     */
+    protected SyncStateStore getStateStore() {
+        return null;
+    }
+    
+    /**
+     * Retrieves the {@link FieldDiff} used to send only the fields which changed since
+     * the last successful upsert of an entity. The default implementation returns null,
+     * which sends all fields. Batched and pipelined syncs use the diff of the {@link UpsertBatcher}
+     * or {@link SyncPipeline}, which has to be the same if this method provides one.
+     * 
+     * @since 1.1
+     * @return the diff or null if delta updates are disabled
+     */
+    protected FieldDiff getFieldDiff() {
+        return null;
+    }
+    
     @Override
-    public <S extends EntityBase, T extends SObject> void sync(final S from, final Function<S, T> function) {
+    public <S extends EntityBase, T extends SObject> Future<UpsertResult> sync(final S from, 
+        final Function<S, T> function) {
         Preconditions.checkNotNull(from, "From");
         Preconditions.checkNotNull(function, "Function");
         
-        execute(new SyncTask() {
+        final UpsertBatcher batcher = getBatcher();
+        if (batcher != null) {
+            checkTracking(batcher, batcher.getStateStore(), batcher.getFieldDiff());
+            return batcher.add(from, function);
+        }
+        
+        final SyncPipeline<?, ?, ?> pipeline = getPipeline();
+        if (pipeline != null) {
+            checkTracking(pipeline, pipeline.getStateStore(), pipeline.getFieldDiff());
+            return pipeline.submit(from, function);
+        }
+        
+        final Supplier<T> copy = new Supplier<T>() {
             
             @Override
-            public void run() {
-                getService().upsert(function.apply(from));
+            public T get() {
+                return function.apply(from);
             }
             
-        });
+        };
+        
+        if (from.getId() == 0) {
+            // unsaved entities can neither be coalesced nor tracked
+            final UpsertTask task = new UpsertTask(null, new Upsert(null, copy));
+            execute(task);
+            return task;
+        }
+        
+        final SyncKey key = new SyncKey(from);
+        while (true) {
+            final UpsertTask existing = queued.get(key);
+            if (existing == null) {
+                final UpsertTask task = new UpsertTask(key, new Upsert(key, copy));
+                if (queued.putIfAbsent(key, task) == null) {
+                    try {
+                        execute(task);
+                    } catch (RuntimeException e) {
+                        queued.remove(key, task);
+                        throw e;
+                    }
+                    return task;
+                }
+            } else if (existing.replace(copy)) {
+                LOG.trace("Replaced queued sync of {}", key);
+                coalesced.incrementAndGet();
+                return existing;
+            } else {
+                // already running, the new sync has to be queued separately
+                queued.remove(key, existing);
+            }
+        }
+    }
+    
+    /**
+     * Rejects a store or diff of this service which the given batcher or pipeline would ignore.
+     */
+    private void checkTracking(Object target, SyncStateStore store, FieldDiff diff) {
+        final SyncStateStore expectedStore = getStateStore();
+        Preconditions.checkState(expectedStore == null || expectedStore == store,
+            "%s does not use the state store %s", target, expectedStore);
+        final FieldDiff expectedDiff = getFieldDiff();
+        Preconditions.checkState(expectedDiff == null || expectedDiff == diff,
+            "%s does not use the field diff %s", target, expectedDiff);
+    }
+    
+    /**
+     * Retrieves the number of syncs which replaced a queued sync of the same entity.
+     * 
+     * @since 1.1
+     * @return the number of coalesced syncs
+     */
+    public long getCoalesced() {
+        final UpsertBatcher batcher = getBatcher();
+        return coalesced.get() + (batcher == null ? 0 : batcher.getCoalesced());
+    }
+    
+    /**
+     * Retrieves the number of syncs which were skipped because the entity did not change.
+     * 
+     * @since 1.1
+     * @return the number of skipped syncs
+     */
+    public long getSkipped() {
+        final UpsertBatcher batcher = getBatcher();
+        final SyncPipeline<?, ?, ?> pipeline = getPipeline();
+        return skipped.get() + (batcher == null ? 0 : batcher.getSkipped())
+            + (pipeline == null ? 0 : pipeline.getSkipped());
     }
     
     @Override
@@ -88,4 +247,152 @@ public abstract class AbstractSyncService implements SyncService {
         complete(false);
     }
     
+    /**
+     * Upserts the copy of a single entity, created when the upsert is executed.
+     */
+    private final class Upsert implements Callable<UpsertResult> {
+        
+        /**
+         * Null for unsaved entities.
+         */
+        private final SyncKey key;
+        
+        /**
+         * Guarded by the owning {@link UpsertTask} until it starts.
+         */
+        private Supplier<? extends SObject> copy;
+        
+        Upsert(SyncKey key, Supplier<? extends SObject> copy) {
+            this.key = key;
+            this.copy = copy;
+        }
+        
+        @Override
+        public UpsertResult call() {
+            final SObject object = copy.get();
+            if (key == null) return getService().upsert(object);
+            
+            final String type = key.getType().getName();
+            final SyncStateStore store = getStateStore();
+            final long hash = store == null ? 0 : ContentHash.of(object);
+            if (store != null && store.get(type, key.getId()) == hash) {
+                LOG.trace("Skipping sync of unchanged {}", key);
+                skipped.incrementAndGet();
+                return ContentHash.unchanged();
+            }
+            
+            final FieldDiff diff = getFieldDiff();
+            final FieldDiff.Delta delta = diff == null ? null : diff.diff(key, object);
+            if (delta != null && delta.getObject() == null) {
+                LOG.trace("Skipping sync of {} without changed fields", key);
+                skipped.incrementAndGet();
+                return ContentHash.unchanged();
+            }
+            
+            final UpsertResult result;
+            try {
+                result = delta == null ? getService().upsert(object) : upsert(diff, delta);
+            } catch (RuntimeException e) {
+                // the next sync has to send all fields again
+                if (store != null) store.remove(type, key.getId());
+                if (diff != null) diff.forget(key);
+                throw e;
+            }
+            
+            if (result.isSuccess()) {
+                if (store != null) store.put(type, key.getId(), hash);
+                if (delta != null) diff.remember(delta);
+            }
+            return result;
+        }
+        
+        /**
+         * Sends the given delta. Partial deltas which fail or create a new record are
+         * sent again including all fields, because the record may have been deleted.
+         */
+        private UpsertResult upsert(FieldDiff diff, FieldDiff.Delta delta) {
+            if (!delta.isPartial()) {
+                return getService().upsert(delta.getObject());
+            }
+            
+            final UpsertResult result;
+            try {
+                result = getService().upsert(delta.getObject());
+            } catch (SalesforceException e) {
+                LOG.info("Partial upsert of " + delta + " failed, sending all fields", e);
+                diff.forget(key);
+                return getService().upsert(delta.getFull());
+            }
+            
+            if (!result.isSuccess()) {
+                LOG.info("Partial upsert of {} failed, sending all fields", delta);
+                diff.forget(key);
+                return getService().upsert(delta.getFull());
+            } else if (result.isCreated()) {
+                LOG.info("{} created a new record, sending all fields", delta);
+                return getService().upsert(delta.getFull());
+            } else {
+                return result;
+            }
+        }
+        
+    }
+    
+    /**
+     * A {@link SyncTask} upserting a single entity. The entity being sent
+     * can be replaced as long as the task did not start.
+     */
+    private final class UpsertTask extends FutureTask<UpsertResult> implements SyncTask {
+        
+        /**
+         * Null for unsaved entities, which are never queued.
+         */
+        private final SyncKey key;
+        
+        private final Upsert upsert;
+        
+        private boolean started;
+        
+        UpsertTask(SyncKey key, Upsert upsert) {
+            super(upsert);
+            this.key = key;
+            this.upsert = upsert;
+        }
+        
+        /**
+         * Replaces the copy being sent.
+         * 
+         * @param copy the new copy
+         * @return true if replaced, false if this task already started
+         */
+        synchronized boolean replace(Supplier<? extends SObject> copy) {
+            if (started) return false;
+            upsert.copy = copy;
+            return true;
+        }
+        
+        @Override
+        public void run() {
+            synchronized (this) {
+                started = true;
+            }
+            if (key != null) {
+                queued.remove(key, this);
+            }
+            super.run();
+        }
+        
+        @Override
+        protected void setException(Throwable t) {
+            LOG.warn("Sync of " + key + " failed", t);
+            super.setException(t);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("UpsertTask [entity=%s]", key);
+        }
+        
+    }
+    
 }
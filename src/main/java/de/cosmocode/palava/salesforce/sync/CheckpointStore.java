@@ -0,0 +1,50 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+/**
+ * Stores the progress of complete syncs, allowing interrupted runs to resume
+ * where they stopped.
+ *
+ * @author agent
+ */
+public interface CheckpointStore {
+
+    /**
+     * Retrieves the checkpoint of a sync.
+     *
+     * @param name the name of the sync
+     * @return the id of the last entity of the last committed batch or 0 if none
+     */
+    long load(String name);
+
+    /**
+     * Stores the checkpoint of a sync.
+     *
+     * @param name the name of the sync
+     * @param id the id of the last entity of the last committed batch
+     */
+    void save(String name, long id);
+
+    /**
+     * Removes the checkpoint of a sync after it completed.
+     *
+     * @param name the name of the sync
+     */
+    void remove(String name);
+
+}
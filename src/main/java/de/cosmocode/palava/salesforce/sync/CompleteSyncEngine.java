@@ -0,0 +1,357 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.BatchResult;
+import de.cosmocode.palava.salesforce.RequestPriority;
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * A resumable engine for implementations of {@link SyncService#complete(boolean)}.
+ *
+ * <p>
+ *   Entities are loaded page by page from an {@link EntitySource} and split into
+ *   batches of {@link Salesforce#MAXIMUM_BATCH_SIZE}, which are copied and upserted
+ *   on the given executor using {@link RequestPriority#LOW}. At most {@code window}
+ *   batches are in flight at the same time, so memory stays bounded regardless of
+ *   the number of entities. Batches are committed in id order: after a batch and
+ *   all batches before it have been sent, the id of its last entity is stored as
+ *   checkpoint. A run which crashed or has been interrupted resumes after the last
+ *   checkpoint, a run which completed without failed records removes it. If a run fails,
+ *   the batches in flight are committed before the exception is rethrown.
+ * </p>
+ *
+ * <p>
+ *   Records which could not be copied or were rejected by Salesforce are counted as
+ *   failed. The checkpoint does not advance past the first batch containing failed
+ *   records, so the next run sends them again. Requests which failed as a whole stop
+ *   the run, keeping the checkpoint.
+ * </p>
+ *
+ * <pre>
+ * public void complete(boolean failFast) {
+ *     engine.sync("accounts", accountSource, DefaultAccountCopyFunction.getInstance(), failFast);
+ * }
+ * </pre>
+ *
+ * @author agent
+ */
+public final class CompleteSyncEngine {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompleteSyncEngine.class);
+
+    private final SalesforceService service;
+
+    private final CheckpointStore store;
+
+    private final ExecutorService executor;
+
+    private final int pageSize;
+
+    private final int window;
+
+    private volatile SyncProgress progress;
+
+    /**
+     * Creates a new {@link CompleteSyncEngine}.
+     *
+     * @param service the service used to send batches
+     * @param store the store holding the checkpoints
+     * @param executor the executor used to copy and send batches
+     * @param pageSize the number of entities loaded at once
+     * @param window the maximum number of batches in flight
+     * @throws NullPointerException if service, store or executor is null
+     * @throws IllegalArgumentException if pageSize or window is not positive
+     */
+    public CompleteSyncEngine(SalesforceService service, CheckpointStore store, ExecutorService executor,
+        int pageSize, int window) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        this.store = Preconditions.checkNotNull(store, "Store");
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkArgument(pageSize > 0, "PageSize must be positive");
+        Preconditions.checkArgument(window > 0, "Window must be positive");
+        this.pageSize = pageSize;
+        this.window = window;
+    }
+
+    /**
+     * Upserts all entities of the given source, starting after the last checkpoint.
+     * Only one run per engine executes at a time.
+     *
+     * @param <S> the generic entity type
+     * @param <T> the generic salesforce object type
+     * @param name the name of the sync, identifying its checkpoint
+     * @param source the source of the entities
+     * @param function the copy function
+     * @param failFast if true, an exception is thrown as soon as a failed record was detected
+     * @return the final progress of the run
+     * @throws NullPointerException if name, source or function is null
+     * @throws SalesforceException if a request failed as a whole, the run has been interrupted
+     *         or a record failed and failFast is true
+     */
+    public synchronized <S extends EntityBase, T extends SObject> SyncProgress sync(String name,
+        EntitySource<S> source, Function<S, T> function, boolean failFast) {
+
+        Preconditions.checkNotNull(name, "Name");
+        Preconditions.checkNotNull(source, "Source");
+        Preconditions.checkNotNull(function, "Function");
+
+        final long checkpoint = store.load(name);
+        if (checkpoint > 0) {
+            LOG.info("Resuming {} after id {}", name, checkpoint);
+        }
+
+        final Run run = new Run(name, source.count(checkpoint), checkpoint);
+        progress = run.snapshot();
+
+        final Queue<Pending> inFlight = new LinkedList<Pending>();
+        boolean completed = false;
+
+        try {
+            long cursor = checkpoint;
+            while (true) {
+                final List<S> page = source.page(cursor, pageSize);
+                if (page.isEmpty()) break;
+
+                for (List<S> batch : Lists.partition(page, Salesforce.MAXIMUM_BATCH_SIZE)) {
+                    while (inFlight.size() >= window) {
+                        commit(run, inFlight.remove(), failFast);
+                    }
+                    final long last = batch.get(batch.size() - 1).getId();
+                    final Future<Integer> future = executor.submit(new Batch<S, T>(batch, function));
+                    inFlight.add(new Pending(future, last, batch.size()));
+                }
+
+                cursor = page.get(page.size() - 1).getId();
+                if (page.size() < pageSize) break;
+            }
+
+            while (!inFlight.isEmpty()) {
+                commit(run, inFlight.remove(), failFast);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                drain(run, inFlight);
+                LOG.warn("Stopped {} at checkpoint {}", name, run.checkpoint);
+            }
+        }
+
+        if (run.held) {
+            LOG.warn("Completed {} with failed records, keeping checkpoint {}", progress, run.checkpoint);
+        } else {
+            store.remove(name);
+            LOG.info("Completed {}", progress);
+        }
+        return progress;
+    }
+
+    private void commit(Run run, Pending pending, boolean failFast) {
+        final int failed;
+        try {
+            failed = pending.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SalesforceException("Interrupted while waiting for batch of " + run.name, e);
+        } catch (ExecutionException e) {
+            throw new SalesforceException("Batch of " + run.name + " failed", e.getCause());
+        }
+
+        run.processed += pending.size;
+        run.failed += failed;
+        if (failed > 0) {
+            // the next run has to send the failed records again
+            run.held = true;
+        }
+        if (!run.held) {
+            run.checkpoint = pending.last;
+            store.save(run.name, pending.last);
+        }
+        progress = run.snapshot();
+        LOG.info("{}", progress);
+
+        if (failFast && failed > 0) {
+            throw new SalesforceException(String.format("%s record(s) of %s failed", failed, run.name));
+        }
+    }
+
+    /**
+     * Commits the batches in flight of a failed run until one of them fails, so the
+     * checkpoint covers every batch which has been sent.
+     */
+    private void drain(Run run, Queue<Pending> inFlight) {
+        try {
+            while (!inFlight.isEmpty()) {
+                commit(run, inFlight.remove(), false);
+            }
+        } catch (RuntimeException e) {
+            LOG.debug("Unable to commit pending batch of " + run.name, e);
+            for (Pending pending : inFlight) {
+                pending.future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the progress of the current or last run.
+     *
+     * @return the progress or null if this engine did not run yet
+     */
+    public SyncProgress getProgress() {
+        return progress;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CompleteSyncEngine [pageSize=%s, window=%s, store=%s]", pageSize, window, store);
+    }
+
+    /**
+     * The mutable state of a single run, confined to the thread executing it.
+     */
+    private static final class Run {
+
+        private final String name;
+
+        private final long total;
+
+        private final long started = System.currentTimeMillis();
+
+        private long processed;
+
+        private long failed;
+
+        private long checkpoint;
+
+        /**
+         * Whether a batch with failed records has been committed, which stops the checkpoint.
+         */
+        private boolean held;
+
+        Run(String name, long total, long checkpoint) {
+            this.name = name;
+            this.total = total;
+            this.checkpoint = checkpoint;
+        }
+
+        SyncProgress snapshot() {
+            return new SyncProgress(name, total, processed, failed, checkpoint, started);
+        }
+
+    }
+
+    /**
+     * A batch which has been submitted but not yet committed.
+     */
+    private static final class Pending {
+
+        private final Future<Integer> future;
+
+        private final long last;
+
+        private final int size;
+
+        Pending(Future<Integer> future, long last, int size) {
+            this.future = future;
+            this.last = last;
+            this.size = size;
+        }
+
+    }
+
+    /**
+     * Copies and upserts one batch, returning the number of failed records.
+     *
+     * @param <S> the generic entity type
+     * @param <T> the generic salesforce object type
+     */
+    private final class Batch<S extends EntityBase, T extends SObject> implements Callable<Integer> {
+
+        private final List<S> entities;
+
+        private final Function<S, T> function;
+
+        Batch(List<S> entities, Function<S, T> function) {
+            this.entities = entities;
+            this.function = function;
+        }
+
+        @Override
+        public Integer call() {
+            final RequestPriority previous = RequestPriority.set(RequestPriority.LOW);
+            try {
+                final List<S> copied = Lists.newArrayListWithCapacity(entities.size());
+                final List<SObject> objects = Lists.newArrayListWithCapacity(entities.size());
+                int failed = 0;
+
+                for (S entity : entities) {
+                    try {
+                        final T object = function.apply(entity);
+                        Preconditions.checkNotNull(object, "Copy of %s", entity);
+                        NullFieldCollector.addNullFields(object);
+                        objects.add(object);
+                        copied.add(entity);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Unable to copy " + entity, e);
+                        failed++;
+                    }
+                }
+
+                if (objects.isEmpty()) return failed;
+
+                final BatchResult<UpsertResult> result = service.upsertBatch(objects);
+                for (int i = 0; i < copied.size(); i++) {
+                    final UpsertResult current = result.get(i);
+                    if (current == null) {
+                        LOG.warn("Sync of {} failed: {}", copied.get(i), result.getException(i).getMessage());
+                    } else if (current.isSuccess()) {
+                        continue;
+                    } else {
+                        LOG.warn("Sync of {} failed: {}", copied.get(i),
+                            new SalesforceException(current.getErrors()).getMessage());
+                    }
+                    failed++;
+                }
+                return failed;
+            } finally {
+                RequestPriority.set(previous);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Computes a 64-bit FNV-1a hash of the field values of a {@link SObject},
+ * used to detect copies which equal the last upserted one.
+ *
+ * @author agent
+ */
+final class ContentHash {
+
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long PRIME = 0x100000001b3L;
+
+    /**
+     * Separates names and values, can't be part of either.
+     */
+    private static final char SEPARATOR = '\u0000';
+
+    /**
+     * Marks fields which are explicitly set to null.
+     */
+    private static final char NIL = '\u0001';
+
+    private static final ConcurrentMap<Class<?>, Field[]> FIELDS = new MapMaker().weakKeys().makeMap();
+
+    private static final Comparator<Field> BY_NAME = new Comparator<Field>() {
+
+        @Override
+        public int compare(Field left, Field right) {
+            return left.getName().compareTo(right.getName());
+        }
+
+    };
+
+    private ContentHash() {
+
+    }
+
+    /**
+     * Computes the hash of all fields and the fields to null of the given object.
+     * Related objects and subquery results are ignored.
+     *
+     * @param object the object
+     * @return the hash, never 0
+     */
+    static long of(SObject object) {
+        long hash = update(OFFSET_BASIS, object.getClass().getName());
+        for (Field field : fieldsOf(object.getClass())) {
+            final Object value;
+            try {
+                value = field.get(object);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            if (value == null) continue;
+            final Object raw = value instanceof JAXBElement<?> ? JAXBElement.class.cast(value).getValue() : value;
+            if (raw instanceof SObject || raw instanceof QueryResult || raw instanceof Collection<?>) continue;
+
+            hash = update(hash, field.getName());
+            if (raw == null) {
+                hash = update(hash, NIL);
+            } else if (raw instanceof XMLGregorianCalendar) {
+                hash = update(hash, XMLGregorianCalendar.class.cast(raw).toXMLFormat());
+            } else {
+                hash = update(hash, raw.toString());
+            }
+        }
+
+        final List<String> nulls = Lists.newArrayList(object.getFieldsToNull());
+        Collections.sort(nulls);
+        for (String name : nulls) {
+            hash = update(update(hash, NIL), name);
+        }
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long update(long hash, String value) {
+        long current = hash;
+        for (int i = 0; i < value.length(); i++) {
+            current = update(current, value.charAt(i));
+        }
+        return update(current, SEPARATOR);
+    }
+
+    private static long update(long hash, char c) {
+        final long low = (hash ^ (c & 0xff)) * PRIME;
+        return (low ^ (c >>> 8)) * PRIME;
+    }
+
+    /**
+     * Retrieves all accessible instance fields of the given type, sorted by name.
+     *
+     * @param type the type
+     * @return the fields, excluding the fields to null
+     */
+    static Field[] fieldsOf(Class<?> type) {
+        final Field[] cached = FIELDS.get(type);
+        if (cached != null) return cached;
+
+        final List<Field> fields = Lists.newArrayList();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                if ("fieldsToNull".equals(field.getName())) continue;
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+
+        final Field[] sorted = fields.toArray(new Field[fields.size()]);
+        Arrays.sort(sorted, BY_NAME);
+        FIELDS.putIfAbsent(type, sorted);
+        return sorted;
+    }
+
+    /**
+     * Creates the result of a skipped upsert. The id of the record is not known
+     * without asking Salesforce, which is what skipping avoids.
+     *
+     * @return a successful result without id
+     */
+    static UpsertResult unchanged() {
+        final UpsertResult result = new UpsertResult();
+        result.setSuccess(true);
+        result.setCreated(false);
+        return result;
+    }
+
+}
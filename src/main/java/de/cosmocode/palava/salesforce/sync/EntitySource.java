@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.List;
+
+import de.cosmocode.palava.model.base.EntityBase;
+
+/**
+ * Pages through all entities of one type in ascending id order, used by the
+ * {@link CompleteSyncEngine}. Pages are requested using the last id of the
+ * previous page (keyset paging), so implementations can use an index on the id
+ * instead of increasingly expensive offsets, e.g.
+ * {@code from Account where id > :after order by id} with a maximum result size.
+ *
+ * @author agent
+ * @param <S> the generic entity type
+ */
+public interface EntitySource<S extends EntityBase> {
+
+    /**
+     * Loads the next page of entities.
+     *
+     * @param after the id of the last entity of the previous page, 0 for the first page
+     * @param limit the maximum number of entities
+     * @return the entities with an id greater than after, ordered by id, empty if there are none
+     */
+    List<S> page(long after, int limit);
+
+    /**
+     * Counts the entities which have not been synced yet, used to estimate the remaining time.
+     *
+     * @param after the id of the last synced entity, 0 if none
+     * @return the number of entities with an id greater than after or -1 if unknown
+     */
+    long count(long after);
+
+}
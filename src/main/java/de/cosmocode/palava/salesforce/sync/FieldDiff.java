@@ -0,0 +1,269 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Reduces the Salesforce copy of an entity to the fields which changed since its
+ * last successful upsert, as recorded by a {@link SnapshotStore}.
+ *
+ * <p>
+ *   Fields are named like {@link NullFieldCollector} names them. Fields whose value
+ *   did not change are omitted, fields which have been cleared are added to
+ *   {@link SObject#getFieldsToNull()}. The id and the external identifier are always
+ *   sent, related objects are always sent as well. Entities without a snapshot are
+ *   sent completely.
+ * </p>
+ *
+ * <p>
+ *   <strong>Note</strong>: Changes made in Salesforce are not detected. If a reduced
+ *   upsert fails or creates a new record, e.g. because the old one has been deleted,
+ *   the snapshot is discarded and the complete copy is sent right after.
+ * </p>
+ *
+ * @author agent
+ */
+public final class FieldDiff {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FieldDiff.class);
+
+    private final SnapshotStore store;
+
+    private final String externalIdentifier;
+
+    /**
+     * Creates a new {@link FieldDiff}.
+     *
+     * @param store the store holding the snapshots of the last upserts
+     * @param externalIdentifier the name of the external identifier field used for upserts
+     * @throws NullPointerException if store or externalIdentifier is null
+     */
+    public FieldDiff(SnapshotStore store, String externalIdentifier) {
+        this.store = Preconditions.checkNotNull(store, "Store");
+        this.externalIdentifier = Preconditions.checkNotNull(externalIdentifier, "ExternalIdentifier");
+    }
+
+    /**
+     * Compares the given copy with the snapshot of the last upsert of the same entity.
+     *
+     * @param key the key of the entity
+     * @param object the complete copy
+     * @return the delta to send
+     */
+    Delta diff(SyncKey key, SObject object) {
+        final Map<String, String> current = snapshotOf(object);
+        final Map<String, String> previous = store.get(key.getType().getName(), key.getId());
+        if (previous == null) {
+            LOG.trace("No snapshot of {} found, sending all fields", key);
+            return new Delta(key, object, object, current);
+        } else {
+            return new Delta(key, object, reduce(object, previous, current), current);
+        }
+    }
+
+    /**
+     * Stores the snapshot of the given delta after it has been upserted successfully.
+     *
+     * @param delta the upserted delta
+     */
+    void remember(Delta delta) {
+        store.put(delta.key.getType().getName(), delta.key.getId(), delta.snapshot);
+    }
+
+    /**
+     * Removes the snapshot of the given entity, e.g. because its last upsert failed.
+     * The next sync of the entity sends all fields.
+     *
+     * @param key the key of the entity
+     */
+    void forget(SyncKey key) {
+        store.remove(key.getType().getName(), key.getId());
+    }
+
+    /**
+     * Collects the values of all fields which are set and not null.
+     *
+     * @param object the object
+     * @return the values by field name
+     */
+    static Map<String, String> snapshotOf(SObject object) {
+        final Map<String, String> snapshot = Maps.newHashMap();
+        for (Field field : ContentHash.fieldsOf(object.getClass())) {
+            if (field.getDeclaringClass() == SObject.class) continue;
+            final Object raw = unwrap(get(field, object));
+            if (raw == null || isRelation(raw)) continue;
+            snapshot.put(NullFieldCollector.nameOf(field), format(raw));
+        }
+        for (String name : object.getFieldsToNull()) {
+            snapshot.remove(name);
+        }
+        return snapshot;
+    }
+
+    private SObject reduce(SObject object, Map<String, String> previous, Map<String, String> current) {
+        final SObject partial = newInstance(object.getClass());
+        final List<String> nulls = partial.getFieldsToNull();
+        boolean changed = false;
+
+        for (Field field : ContentHash.fieldsOf(object.getClass())) {
+            final Object value = get(field, object);
+            if (value == null) continue;
+            final String name = NullFieldCollector.nameOf(field);
+            final Object raw = unwrap(value);
+
+            if (field.getDeclaringClass() == SObject.class || externalIdentifier.equals(name)) {
+                // required to identify the record
+                set(field, partial, value);
+            } else if (raw == null) {
+                if (previous.containsKey(name)) {
+                    nulls.add(name);
+                    changed = true;
+                }
+            } else if (isRelation(raw) || !Objects.equal(current.get(name), previous.get(name))) {
+                set(field, partial, value);
+                changed = true;
+            }
+        }
+
+        for (String name : object.getFieldsToNull()) {
+            if (previous.containsKey(name) && !nulls.contains(name)) {
+                nulls.add(name);
+                changed = true;
+            }
+        }
+
+        return changed ? partial : null;
+    }
+
+    private static Object get(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(Field field, Object object, Object value) {
+        try {
+            field.set(object, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static SObject newInstance(Class<? extends SObject> type) {
+        try {
+            return type.newInstance();
+        } catch (InstantiationException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object unwrap(Object value) {
+        return value instanceof JAXBElement<?> ? JAXBElement.class.cast(value).getValue() : value;
+    }
+
+    private static boolean isRelation(Object raw) {
+        return raw instanceof SObject || raw instanceof QueryResult || raw instanceof Collection<?>;
+    }
+
+    private static String format(Object raw) {
+        if (raw instanceof XMLGregorianCalendar) {
+            return XMLGregorianCalendar.class.cast(raw).toXMLFormat();
+        } else {
+            return raw.toString();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FieldDiff [store=%s, externalIdentifier=%s]", store, externalIdentifier);
+    }
+
+    /**
+     * The result of a comparison, holding both the complete and the reduced copy.
+     */
+    static final class Delta {
+
+        private final SyncKey key;
+
+        private final SObject full;
+
+        private final SObject object;
+
+        private final Map<String, String> snapshot;
+
+        private Delta(SyncKey key, SObject full, SObject object, Map<String, String> snapshot) {
+            this.key = key;
+            this.full = full;
+            this.object = object;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Retrieves the complete copy.
+         *
+         * @return the complete copy
+         */
+        SObject getFull() {
+            return full;
+        }
+
+        /**
+         * Retrieves the object to send.
+         *
+         * @return the reduced or complete copy, null if nothing changed
+         */
+        SObject getObject() {
+            return object;
+        }
+
+        /**
+         * Checks whether the object to send lacks unchanged fields.
+         *
+         * @return true if reduced, false otherwise
+         */
+        boolean isPartial() {
+            return object != null && object != full;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Delta [entity=%s, partial=%s]", key, isPartial());
+        }
+
+    }
+
+}
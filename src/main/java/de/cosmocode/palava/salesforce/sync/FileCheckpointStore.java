@@ -0,0 +1,110 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+import de.cosmocode.palava.salesforce.AtomicFile;
+import de.cosmocode.palava.salesforce.SalesforceException;
+
+/**
+ * A {@link CheckpointStore} keeping all checkpoints in a single properties file,
+ * which is replaced atomically using an {@link AtomicFile}.
+ *
+ * @author agent
+ */
+public final class FileCheckpointStore implements CheckpointStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileCheckpointStore.class);
+
+    private final AtomicFile file;
+
+    /**
+     * Guarded by this.
+     */
+    private Properties checkpoints;
+
+    public FileCheckpointStore(File file) {
+        this.file = new AtomicFile(file);
+    }
+
+    @Override
+    public synchronized long load(String name) {
+        Preconditions.checkNotNull(name, "Name");
+        final String value = checkpoints().getProperty(name);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    @Override
+    public synchronized void save(String name, long id) {
+        Preconditions.checkNotNull(name, "Name");
+        final Properties copy = new Properties();
+        copy.putAll(checkpoints());
+        copy.setProperty(name, Long.toString(id));
+        write(copy);
+        checkpoints = copy;
+        LOG.trace("Stored checkpoint {} of {}", id, name);
+    }
+
+    @Override
+    public synchronized void remove(String name) {
+        Preconditions.checkNotNull(name, "Name");
+        if (!checkpoints().containsKey(name)) return;
+        final Properties copy = new Properties();
+        copy.putAll(checkpoints());
+        copy.remove(name);
+        write(copy);
+        checkpoints = copy;
+        LOG.debug("Removed checkpoint of {}", name);
+    }
+
+    private Properties checkpoints() {
+        if (checkpoints == null) {
+            checkpoints = read();
+        }
+        return checkpoints;
+    }
+
+    private Properties read() {
+        try {
+            return file.readProperties();
+        } catch (IOException e) {
+            throw new SalesforceException("Unable to read checkpoints from " + file.getFile(), e);
+        }
+    }
+
+    private void write(Properties properties) {
+        try {
+            file.writeProperties(properties, "Salesforce complete sync checkpoints");
+        } catch (IOException e) {
+            throw new SalesforceException("Unable to write checkpoints to " + file.getFile(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FileCheckpointStore [file=%s]", file.getFile());
+    }
+
+}
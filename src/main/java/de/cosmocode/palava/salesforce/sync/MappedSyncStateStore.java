@@ -0,0 +1,378 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import de.cosmocode.palava.salesforce.AtomicFile;
+import de.cosmocode.palava.salesforce.SalesforceException;
+
+/**
+ * A {@link SyncStateStore} keeping one memory-mapped hash table file per entity type.
+ *
+ * <p>
+ *   Every table uses open addressing with linear probing and stores 16 bytes per slot,
+ *   the entity id and the hash. Tables live outside of the java heap and survive restarts.
+ *   They double in size once they are three quarters full, up to {@link #MAXIMUM_CAPACITY}
+ *   slots per type. Changes are written to disk by the operating system,
+ *   {@link MappedSyncStateStore#flush()} forces them.
+ * </p>
+ *
+ * @author agent
+ */
+public final class MappedSyncStateStore implements SyncStateStore, Closeable {
+
+    /**
+     * The maximum number of slots per table, limited by the size of a single mapping.
+     */
+    public static final int MAXIMUM_CAPACITY = 1 << 26;
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedSyncStateStore.class);
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    private static final int MAGIC = 0x53594e43;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER = 16;
+
+    private static final int SLOT = 16;
+
+    private final File directory;
+
+    private final int initialCapacity;
+
+    private final Map<String, Table> tables = Maps.newHashMap();
+
+    private boolean closed;
+
+    /**
+     * Creates a new {@link MappedSyncStateStore}.
+     *
+     * @param directory the directory containing the table files, created if necessary
+     * @param initialCapacity the number of slots of new tables, rounded up to a power of two
+     * @throws NullPointerException if directory is null
+     * @throws IllegalArgumentException if initialCapacity is not positive or exceeds {@link #MAXIMUM_CAPACITY}
+     */
+    public MappedSyncStateStore(File directory, int initialCapacity) {
+        this.directory = Preconditions.checkNotNull(directory, "Directory");
+        Preconditions.checkArgument(initialCapacity > 0, "InitialCapacity must be positive");
+        Preconditions.checkArgument(initialCapacity <= MAXIMUM_CAPACITY,
+            "InitialCapacity must not exceed %s", MAXIMUM_CAPACITY);
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.initialCapacity = capacity;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new SalesforceException("Unable to create directory " + directory);
+        }
+    }
+
+    private Table tableOf(String type) {
+        Preconditions.checkNotNull(type, "Type");
+        synchronized (tables) {
+            Preconditions.checkState(!closed, "%s has been closed", this);
+            Table table = tables.get(type);
+            if (table == null) {
+                table = new Table(new File(directory, type + ".state"), initialCapacity);
+                tables.put(type, table);
+            }
+            return table;
+        }
+    }
+
+    @Override
+    public long get(String type, long id) {
+        return tableOf(type).get(id);
+    }
+
+    @Override
+    public void put(String type, long id, long hash) {
+        Preconditions.checkArgument(hash != 0, "Hash must not be 0");
+        tableOf(type).put(id, hash);
+    }
+
+    @Override
+    public void remove(String type, long id) {
+        tableOf(type).remove(id);
+    }
+
+    /**
+     * Retrieves the number of entries stored for the given type.
+     *
+     * @param type the entity type
+     * @return the number of entries
+     */
+    public int size(String type) {
+        return tableOf(type).size();
+    }
+
+    /**
+     * Forces all changes to be written to disk.
+     */
+    public void flush() {
+        synchronized (tables) {
+            for (Table table : tables.values()) {
+                table.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (tables) {
+            if (closed) return;
+            closed = true;
+            for (Table table : tables.values()) {
+                table.close();
+            }
+            tables.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MappedSyncStateStore [directory=%s]", directory);
+    }
+
+    /**
+     * Spreads the bits of an id, the finalizer of MurmurHash3.
+     */
+    private static long mix(long id) {
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * The table of a single type. Empty slots have a hash of 0.
+     */
+    private static final class Table {
+
+        private final File file;
+
+        private RandomAccessFile access;
+
+        private MappedByteBuffer buffer;
+
+        private int capacity;
+
+        private int size;
+
+        private Table(File file, int initialCapacity) {
+            this.file = file;
+            try {
+                if (file.exists()) {
+                    open();
+                    LOG.debug("Opened {} with {} of {} slots used", new Object[] {file, size, capacity});
+                } else {
+                    create(file, initialCapacity);
+                    open();
+                }
+            } catch (IOException e) {
+                throw new SalesforceException("Unable to open " + file, e);
+            }
+        }
+
+        private static void create(File target, int capacity) throws IOException {
+            final RandomAccessFile created = new RandomAccessFile(target, "rw");
+            try {
+                created.setLength(HEADER + (long) capacity * SLOT);
+                created.writeInt(MAGIC);
+                created.writeInt(VERSION);
+                created.writeInt(capacity);
+                created.writeInt(0);
+            } finally {
+                created.close();
+            }
+        }
+
+        private void open() throws IOException {
+            access = new RandomAccessFile(file, "rw");
+            final FileChannel channel = access.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                access.close();
+                throw new IOException(file + " is not a sync state table");
+            }
+            capacity = buffer.getInt(8);
+            size = buffer.getInt(12);
+            if (channel.size() < HEADER + (long) capacity * SLOT) {
+                access.close();
+                throw new IOException(file + " is truncated");
+            }
+        }
+
+        private int indexOf(long id) {
+            return (int) mix(id) & (capacity - 1);
+        }
+
+        private static int offsetOf(int index) {
+            return HEADER + index * SLOT;
+        }
+
+        synchronized long get(long id) {
+            for (int index = indexOf(id); ; index = (index + 1) & (capacity - 1)) {
+                final int offset = offsetOf(index);
+                final long hash = buffer.getLong(offset + 8);
+                if (hash == 0) {
+                    return 0;
+                } else if (buffer.getLong(offset) == id) {
+                    return hash;
+                }
+            }
+        }
+
+        synchronized void put(long id, long hash) {
+            for (int index = indexOf(id); ; index = (index + 1) & (capacity - 1)) {
+                final int offset = offsetOf(index);
+                if (buffer.getLong(offset + 8) == 0) {
+                    // at least one slot has to stay empty to terminate lookups
+                    if (size >= capacity - 1) {
+                        throw new SalesforceException(String.format("%s is full", file));
+                    }
+                    buffer.putLong(offset, id);
+                    buffer.putLong(offset + 8, hash);
+                    buffer.putInt(12, ++size);
+                    break;
+                } else if (buffer.getLong(offset) == id) {
+                    buffer.putLong(offset + 8, hash);
+                    return;
+                }
+            }
+
+            if (size > capacity / 4 * 3) {
+                grow();
+            }
+        }
+
+        /**
+         * Removes an entry and shifts the following entries of its probe sequence back,
+         * so lookups never stop early at the freed slot.
+         */
+        synchronized void remove(long id) {
+            int index = indexOf(id);
+            while (true) {
+                final int offset = offsetOf(index);
+                if (buffer.getLong(offset + 8) == 0) {
+                    return;
+                } else if (buffer.getLong(offset) == id) {
+                    break;
+                }
+                index = (index + 1) & (capacity - 1);
+            }
+
+            int free = index;
+            for (int next = (free + 1) & (capacity - 1); ; next = (next + 1) & (capacity - 1)) {
+                final int offset = offsetOf(next);
+                final long hash = buffer.getLong(offset + 8);
+                if (hash == 0) break;
+                final long key = buffer.getLong(offset);
+                final int home = indexOf(key);
+                // move the entry if its home slot is not within (free, next]
+                final boolean movable = free <= next ? home <= free || home > next : home <= free && home > next;
+                if (movable) {
+                    buffer.putLong(offsetOf(free), key);
+                    buffer.putLong(offsetOf(free) + 8, hash);
+                    free = next;
+                }
+            }
+
+            buffer.putLong(offsetOf(free), 0);
+            buffer.putLong(offsetOf(free) + 8, 0);
+            buffer.putInt(12, --size);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        private void grow() {
+            final int grown = capacity << 1;
+            if (grown > MAXIMUM_CAPACITY) {
+                LOG.warn("{} reached its maximum capacity of {} slots", file, capacity);
+                return;
+            }
+
+            LOG.debug("Growing {} to {} slots", file, grown);
+            final File temporary = new File(file.getPath() + ".tmp");
+            try {
+                create(temporary, grown);
+                final RandomAccessFile target = new RandomAccessFile(temporary, "rw");
+                try {
+                    final FileChannel channel = target.getChannel();
+                    final MappedByteBuffer copy = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                    for (int index = 0; index < capacity; index++) {
+                        final int offset = offsetOf(index);
+                        final long hash = buffer.getLong(offset + 8);
+                        if (hash == 0) continue;
+                        final long key = buffer.getLong(offset);
+                        int slot = (int) mix(key) & (grown - 1);
+                        while (copy.getLong(offsetOf(slot) + 8) != 0) {
+                            slot = (slot + 1) & (grown - 1);
+                        }
+                        copy.putLong(offsetOf(slot), key);
+                        copy.putLong(offsetOf(slot) + 8, hash);
+                    }
+                    copy.putInt(12, size);
+                    copy.force();
+                } finally {
+                    target.close();
+                }
+
+                access.close();
+                AtomicFile.replace(temporary, file);
+                open();
+            } catch (IOException e) {
+                throw new SalesforceException("Unable to grow " + file, e);
+            }
+        }
+
+        synchronized void flush() {
+            buffer.force();
+        }
+
+        synchronized void close() {
+            buffer.force();
+            try {
+                access.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close " + file, e);
+            }
+        }
+
+    }
+
+}
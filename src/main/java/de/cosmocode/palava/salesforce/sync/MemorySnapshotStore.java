@@ -0,0 +1,101 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A bounded in-memory {@link SnapshotStore} which evicts the least recently used
+ * snapshot once full. Evicted or lost snapshots only cause the next sync of the
+ * corresponding entity to send all fields.
+ *
+ * @author agent
+ */
+public final class MemorySnapshotStore implements SnapshotStore {
+
+    private final Map<String, Map<String, String>> snapshots;
+
+    /**
+     * Creates a new {@link MemorySnapshotStore}.
+     *
+     * @param maximumSize the maximum number of snapshots
+     * @throws IllegalArgumentException if maximumSize is not positive
+     */
+    public MemorySnapshotStore(final int maximumSize) {
+        Preconditions.checkArgument(maximumSize > 0, "MaximumSize must be positive");
+        this.snapshots = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                return size() > maximumSize;
+            }
+
+        };
+    }
+
+    private static String keyOf(String type, long id) {
+        return Preconditions.checkNotNull(type, "Type") + ':' + id;
+    }
+
+    @Override
+    public Map<String, String> get(String type, long id) {
+        final String key = keyOf(type, id);
+        synchronized (snapshots) {
+            return snapshots.get(key);
+        }
+    }
+
+    @Override
+    public void put(String type, long id, Map<String, String> snapshot) {
+        final String key = keyOf(type, id);
+        final Map<String, String> copy = ImmutableMap.copyOf(Preconditions.checkNotNull(snapshot, "Snapshot"));
+        synchronized (snapshots) {
+            snapshots.put(key, copy);
+        }
+    }
+
+    @Override
+    public void remove(String type, long id) {
+        final String key = keyOf(type, id);
+        synchronized (snapshots) {
+            snapshots.remove(key);
+        }
+    }
+
+    /**
+     * Retrieves the number of stored snapshots.
+     *
+     * @return the number of snapshots
+     */
+    public int size() {
+        synchronized (snapshots) {
+            return snapshots.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemorySnapshotStore [size=%s]", size());
+    }
+
+}
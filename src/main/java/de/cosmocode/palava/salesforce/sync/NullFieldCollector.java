@@ -43,6 +43,8 @@ public final class NullFieldCollector {
 
     private static final Logger LOG = LoggerFactory.getLogger(NullFieldCollector.class);
 
+    private static final String DEFAULT_NAME = "##default";
+
     private NullFieldCollector() {
         
     }
@@ -66,8 +68,7 @@ public final class NullFieldCollector {
      * the object graph. 
      * 
      * <p>
-     *   The field name is either the name as specified
-     *   by {@link XmlElement#name()} or {@link Field#getName()}.
+     *   The field name is the one provided by {@link NullFieldCollector#nameOf(Field)}.
      * </p>
      * 
      * @param object the object containing fields
@@ -106,13 +107,29 @@ public final class NullFieldCollector {
         LOG.trace("Null fields on {}: {}", object, nullFields);
     }
     
-    private static String nameOf(Field field) {
+    /**
+     * Provides the salesforce name of the given field of a generated {@link SObject}.
+     * 
+     * <p>
+     *   The name is either the name as specified by {@link XmlElementRef#name()}
+     *   or {@link XmlElement#name()} or the capitalized {@link Field#getName()}.
+     * </p>
+     * 
+     * @param field the field
+     * @return the salesforce name of field
+     * @throws NullPointerException if field is null
+     */
+    public static String nameOf(Field field) {
+        Preconditions.checkNotNull(field, "Field");
         final XmlElementRef ref = field.getAnnotation(XmlElementRef.class);
-        if (ref == null || StringUtils.isBlank(ref.name())) {
-            return field.getName();
-        } else {
+        if (ref != null && StringUtils.isNotBlank(ref.name())) {
             return ref.name();
         }
+        final XmlElement element = field.getAnnotation(XmlElement.class);
+        if (element != null && StringUtils.isNotBlank(element.name()) && !DEFAULT_NAME.equals(element.name())) {
+            return element.name();
+        }
+        return StringUtils.capitalize(field.getName());
     }
     
 }
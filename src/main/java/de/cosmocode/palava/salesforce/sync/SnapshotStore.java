@@ -0,0 +1,55 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.Map;
+
+/**
+ * Stores the field values of the Salesforce copy of every entity as of its last
+ * successful upsert, allowing later syncs to send only the fields which changed.
+ *
+ * @author agent
+ */
+public interface SnapshotStore {
+
+    /**
+     * Retrieves the snapshot of the last successful upsert of an entity.
+     *
+     * @param type the entity type
+     * @param id the entity id
+     * @return the field values by field name or null if unknown
+     */
+    Map<String, String> get(String type, long id);
+
+    /**
+     * Stores the snapshot of a successful upsert of an entity.
+     *
+     * @param type the entity type
+     * @param id the entity id
+     * @param snapshot the field values by field name
+     */
+    void put(String type, long id, Map<String, String> snapshot);
+
+    /**
+     * Removes the snapshot of an entity, forcing its next sync to send all fields.
+     *
+     * @param type the entity type
+     * @param id the entity id
+     */
+    void remove(String type, long id);
+
+}
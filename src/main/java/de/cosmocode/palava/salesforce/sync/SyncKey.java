@@ -0,0 +1,109 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.Set;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+import de.cosmocode.palava.model.base.EntityBase;
+
+/**
+ * Identifies the pending sync of one entity by its type and id. The type of
+ * lazy loading proxies, e.g. created by Hibernate, is the proxied entity class,
+ * so a proxy and the loaded entity share the same key.
+ *
+ * @author agent
+ */
+final class SyncKey {
+
+    /**
+     * Names of the interfaces implemented by generated proxy classes. Names are
+     * used to avoid depending on the libraries.
+     */
+    private static final Set<String> PROXIES = ImmutableSet.of(
+        "org.hibernate.proxy.HibernateProxy",
+        "javassist.util.proxy.ProxyObject",
+        "net.sf.cglib.proxy.Factory"
+    );
+
+    private final Class<?> type;
+
+    private final long id;
+
+    SyncKey(EntityBase entity) {
+        Preconditions.checkNotNull(entity, "Entity");
+        this.type = typeOf(entity.getClass());
+        this.id = entity.getId();
+        Preconditions.checkArgument(id != 0, "%s has not been saved yet", entity);
+    }
+
+    /**
+     * Resolves the entity class of the given, possibly generated proxy class.
+     *
+     * @param type the runtime class of an entity
+     * @return the first superclass of type which is not a proxy class
+     */
+    static Class<?> typeOf(Class<?> type) {
+        Class<?> current = type;
+        while (isProxy(current) && current.getSuperclass() != Object.class) {
+            current = current.getSuperclass();
+        }
+        return current;
+    }
+
+    private static boolean isProxy(Class<?> type) {
+        for (Class<?> each : type.getInterfaces()) {
+            if (PROXIES.contains(each.getName())) return true;
+        }
+        // javassist and cglib use $$, byte buddy proxies of hibernate $HibernateProxy$
+        final String name = type.getName();
+        return name.contains("$$") || name.contains("$HibernateProxy$");
+    }
+
+    Class<?> getType() {
+        return type;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        } else if (that instanceof SyncKey) {
+            final SyncKey other = SyncKey.class.cast(that);
+            return type == other.type && id == other.id;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + (int) (id ^ (id >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s#%s", type.getSimpleName(), id);
+    }
+
+}
@@ -0,0 +1,606 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * A staged sync which separates loading, mapping and network I/O.
+ * 
+ * <p>
+ *   Every {@link SyncStage} runs on its own threads and is fed by a bounded queue.
+ *   A stage which can't keep up blocks the threads of the previous stage as soon
+ *   as its queue is full, which eventually blocks {@link SyncPipeline#submit(Object)}.
+ *   The batch stage groups objects per {@link SObject} type and hands batches of
+ *   {@link Salesforce#MAXIMUM_BATCH_SIZE} objects to the send stage, or smaller ones
+ *   after the linger time passed. The send stage skips entities which did not change
+ *   and sends only changed fields if the pipeline has a {@link SyncStateStore} or a
+ *   {@link FieldDiff}.
+ * </p>
+ * 
+ * <p>
+ *   A pipeline has to be {@link SyncPipeline#start() started} before entities can be
+ *   submitted and should be {@link SyncPipeline#shutdown() shut down} when no longer needed.
+ *   {@link AbstractSyncService} uses a pipeline for its syncs if
+ *   {@link AbstractSyncService#getPipeline()} provides one.
+ * </p>
+ *
+ * @author agent
+ * @param <K> the generic key type used to load entities
+ * @param <S> the generic entity type
+ * @param <T> the generic salesforce object type
+ */
+public final class SyncPipeline<K, S extends EntityBase, T extends SObject> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncPipeline.class);
+
+    /**
+     * Blocks the submitting thread until the queue of a stage has room.
+     */
+    private static final RejectedExecutionHandler BLOCK = new RejectedExecutionHandler() {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Stage has been shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for stage capacity", e);
+            }
+        }
+
+    };
+
+    private final UpsertSender sender;
+
+    private final Function<? super K, ? extends S> loader;
+
+    private final Function<S, T> function;
+
+    private final long linger;
+
+    private final Map<SyncStage, Stage> stages = Maps.newEnumMap(SyncStage.class);
+
+    private final BlockingQueue<Item> batchQueue;
+
+    private final Thread batcher;
+
+    /**
+     * Signals the batch stage that no more items will follow.
+     */
+    private final Item end = new Item("end");
+
+    private final AtomicLong batched = new AtomicLong();
+
+    private volatile long started;
+
+    private volatile boolean shutdown;
+
+    /**
+     * Creates a new {@link SyncPipeline}. The pipeline does not accept entities
+     * until it has been started using {@link SyncPipeline#start()}.
+     *
+     * @param service the service used to send batches
+     * @param loader the function loading entities by key
+     * @param function the copy function creating the salesforce copy of an entity
+     * @param threads the number of threads of every stage except {@link SyncStage#BATCH}
+     * @param capacity the queue capacity of every stage
+     * @param linger the maximum time an object waits for its batch to fill up
+     * @param lingerUnit the unit of linger
+     * @throws NullPointerException if service, loader, function or lingerUnit is null
+     * @throws IllegalArgumentException if threads or capacity is not positive or linger is negative
+     */
+    public SyncPipeline(SalesforceService service, Function<? super K, ? extends S> loader,
+        Function<S, T> function, int threads, int capacity, long linger, TimeUnit lingerUnit) {
+        this(service, loader, function, threads, capacity, linger, lingerUnit, null, null);
+    }
+
+    /**
+     * Creates a new {@link SyncPipeline} whose send stage skips unchanged entities according
+     * to the given store and sends only the changed fields according to the given diff.
+     * The pipeline does not accept entities until it has been started.
+     *
+     * @param service the service used to send batches
+     * @param loader the function loading entities by key
+     * @param function the copy function creating the salesforce copy of an entity
+     * @param threads the number of threads of every stage except {@link SyncStage#BATCH}
+     * @param capacity the queue capacity of every stage
+     * @param linger the maximum time an object waits for its batch to fill up
+     * @param lingerUnit the unit of linger
+     * @param store the sync state store, may be null
+     * @param diff the field diff, may be null
+     * @throws NullPointerException if service, loader, function or lingerUnit is null
+     * @throws IllegalArgumentException if threads or capacity is not positive or linger is negative
+     */
+    public SyncPipeline(SalesforceService service, Function<? super K, ? extends S> loader,
+        Function<S, T> function, int threads, int capacity, long linger, TimeUnit lingerUnit,
+        SyncStateStore store, FieldDiff diff) {
+        this.sender = new UpsertSender(service, store, diff);
+        this.loader = Preconditions.checkNotNull(loader, "Loader");
+        this.function = Preconditions.checkNotNull(function, "Function");
+        Preconditions.checkArgument(threads > 0, "Threads must be positive");
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        Preconditions.checkArgument(linger >= 0, "Linger must not be negative");
+        Preconditions.checkNotNull(lingerUnit, "LingerUnit");
+        this.linger = lingerUnit.toMillis(linger);
+
+        for (SyncStage stage : SyncStage.values()) {
+            if (stage == SyncStage.BATCH) continue;
+            stages.put(stage, new Stage(stage, threads, capacity));
+        }
+
+        this.batchQueue = new ArrayBlockingQueue<Item>(capacity);
+        this.batcher = new Thread(new Batcher(), "salesforce-sync-batch");
+        batcher.setDaemon(true);
+    }
+
+    /**
+     * Starts the batch stage. Must be called exactly once before entities are submitted.
+     *
+     * @throws IllegalStateException if this pipeline has already been started
+     */
+    public synchronized void start() {
+        Preconditions.checkState(batcher.getState() == Thread.State.NEW, "%s has already been started", this);
+        started = System.currentTimeMillis();
+        batcher.start();
+        LOG.info("Started {}", this);
+    }
+
+    private void checkRunning() {
+        Preconditions.checkState(started != 0, "%s has not been started", this);
+        Preconditions.checkState(!shutdown, "%s has been shut down", this);
+    }
+
+    /**
+     * Submits the entity with the given key. Blocks if the load stage is saturated.
+     *
+     * @param key the key of the entity being synced
+     * @return a future holding the result of the upsert, failing with a
+     *         {@link SalesforceException} if any stage failed
+     * @throws NullPointerException if key is null
+     * @throws IllegalStateException if this pipeline has not been started or has been shut down
+     */
+    public Future<UpsertResult> submit(final K key) {
+        Preconditions.checkNotNull(key, "Key");
+        checkRunning();
+        final Item item = new Item(key);
+        stages.get(SyncStage.LOAD).execute(item, new Runnable() {
+
+            @Override
+            public void run() {
+                final S entity = loader.apply(key);
+                if (entity == null) {
+                    throw new SalesforceException(String.format("No entity found for %s", key));
+                }
+                item.tracked = keyOf(entity);
+                item.copy = new Supplier<T>() {
+
+                    @Override
+                    public T get() {
+                        return function.apply(entity);
+                    }
+
+                };
+                stages.get(SyncStage.COPY).execute(item, copy(item));
+            }
+
+        });
+        return item;
+    }
+
+    /**
+     * Submits the given, already loaded entity using the given copy function instead
+     * of the one of this pipeline. The entity skips the {@link SyncStage#LOAD} stage.
+     * Blocks if the copy stage is saturated.
+     *
+     * @param <E> the generic entity type
+     * @param <O> the generic salesforce object type
+     * @param entity the entity being synced
+     * @param copyFunction the copy function which creates the salesforce copy of entity
+     * @return a future holding the result of the upsert, failing with a
+     *         {@link SalesforceException} if any stage failed
+     * @throws NullPointerException if entity or copyFunction is null
+     * @throws IllegalStateException if this pipeline has not been started or has been shut down
+     */
+    public <E extends EntityBase, O extends SObject> Future<UpsertResult> submit(final E entity,
+        final Function<E, O> copyFunction) {
+        Preconditions.checkNotNull(entity, "Entity");
+        Preconditions.checkNotNull(copyFunction, "CopyFunction");
+        checkRunning();
+        final Item item = new Item(entity);
+        item.tracked = keyOf(entity);
+        item.copy = new Supplier<O>() {
+
+            @Override
+            public O get() {
+                return copyFunction.apply(entity);
+            }
+
+        };
+        stages.get(SyncStage.COPY).execute(item, copy(item));
+        return item;
+    }
+
+    private static SyncKey keyOf(EntityBase entity) {
+        // unsaved entities can't be tracked
+        return entity.getId() == 0 ? null : new SyncKey(entity);
+    }
+
+    private Runnable copy(final Item item) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                final SObject object = item.copy.get();
+                Preconditions.checkNotNull(object, "Copy of %s", item.key);
+                item.object = object;
+                stages.get(SyncStage.NULL_FIELDS).execute(item, nullFields(item));
+            }
+
+        };
+    }
+
+    private Runnable nullFields(final Item item) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                NullFieldCollector.addNullFields(item.object);
+                try {
+                    batchQueue.put(item);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SalesforceException("Interrupted while waiting for batch stage", e);
+                }
+            }
+
+        };
+    }
+
+    private void send(final List<Item> batch) {
+        stages.get(SyncStage.SEND).execute(batch, new Runnable() {
+
+            @Override
+            public void run() {
+                final List<SObject> objects = Lists.newArrayListWithCapacity(batch.size());
+                for (Item item : batch) {
+                    objects.add(item.object);
+                }
+
+                sender.send(batch, objects);
+            }
+
+        });
+    }
+
+    /**
+     * Stops accepting entities and waits until all submitted ones have been sent.
+     *
+     * @throws SalesforceException if interrupted while waiting
+     */
+    public void shutdown() {
+        shutdown = true;
+        try {
+            for (SyncStage stage : SyncStage.values()) {
+                if (stage == SyncStage.BATCH) {
+                    // nothing can be queued if the pipeline never started
+                    if (started == 0) continue;
+                    batchQueue.put(end);
+                    batcher.join();
+                } else {
+                    stages.get(stage).shutdown();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SalesforceException("Interrupted while shutting down " + this, e);
+        }
+        LOG.info("Shut down {}", this);
+    }
+
+    /**
+     * Retrieves the number of entries processed by the given stage.
+     *
+     * @param stage the stage
+     * @return the number of processed entries, batches in case of {@link SyncStage#SEND}
+     * @throws NullPointerException if stage is null
+     */
+    public long getProcessed(SyncStage stage) {
+        Preconditions.checkNotNull(stage, "Stage");
+        return stage == SyncStage.BATCH ? batched.get() : stages.get(stage).processed.get();
+    }
+
+    /**
+     * Retrieves the number of entities which were not sent because they did not change.
+     *
+     * @return the number of skipped entities
+     */
+    public long getSkipped() {
+        return sender.getSkipped();
+    }
+
+    SyncStateStore getStateStore() {
+        return sender.getStore();
+    }
+
+    FieldDiff getFieldDiff() {
+        return sender.getDiff();
+    }
+
+    /**
+     * Retrieves the number of entries waiting for the given stage.
+     *
+     * @param stage the stage
+     * @return the current queue depth
+     * @throws NullPointerException if stage is null
+     */
+    public int getQueueDepth(SyncStage stage) {
+        Preconditions.checkNotNull(stage, "Stage");
+        return stage == SyncStage.BATCH ? batchQueue.size() : stages.get(stage).executor.getQueue().size();
+    }
+
+    /**
+     * Retrieves the average throughput of the given stage since this pipeline started.
+     *
+     * @param stage the stage
+     * @return the number of processed entries per second
+     * @throws NullPointerException if stage is null
+     */
+    public double getThroughput(SyncStage stage) {
+        if (started == 0) return 0d;
+        final long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        return getProcessed(stage) * 1000d / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        final Map<SyncStage, String> states = new EnumMap<SyncStage, String>(SyncStage.class);
+        for (SyncStage stage : SyncStage.values()) {
+            states.put(stage, String.format("%s/%s", getProcessed(stage), getQueueDepth(stage)));
+        }
+        return String.format("SyncPipeline [processed/queued=%s]", states);
+    }
+
+    /**
+     * Groups objects per type and hands full or lingering batches to the send stage.
+     */
+    private final class Batcher implements Runnable {
+
+        private final Map<Class<?>, List<Item>> batches = Maps.newLinkedHashMap();
+
+        private final Map<Class<?>, Long> deadlines = Maps.newHashMap();
+
+        @Override
+        public void run() {
+            while (true) {
+                final Item item;
+                try {
+                    item = batchQueue.poll(nextDeadline(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    LOG.warn("Batch stage interrupted, flushing pending batches");
+                    break;
+                }
+                if (item == end) break;
+                if (item != null) add(item);
+                flush(false);
+            }
+            flush(true);
+        }
+
+        private long nextDeadline() {
+            long next = linger;
+            final long now = System.currentTimeMillis();
+            for (Long deadline : deadlines.values()) {
+                next = Math.min(next, deadline - now);
+            }
+            return Math.max(0, next);
+        }
+
+        private void add(Item item) {
+            batched.incrementAndGet();
+            final Class<?> type = item.object.getClass();
+            List<Item> batch = batches.get(type);
+            if (batch == null) {
+                batch = Lists.newArrayListWithCapacity(Salesforce.MAXIMUM_BATCH_SIZE);
+                batches.put(type, batch);
+                deadlines.put(type, System.currentTimeMillis() + linger);
+            }
+            batch.add(item);
+            if (batch.size() >= Salesforce.MAXIMUM_BATCH_SIZE) {
+                batches.remove(type);
+                deadlines.remove(type);
+                hand(batch);
+            }
+        }
+
+        private void flush(boolean all) {
+            final long now = System.currentTimeMillis();
+            final Iterator<Map.Entry<Class<?>, List<Item>>> iterator = batches.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Class<?>, List<Item>> entry = iterator.next();
+                if (all || deadlines.get(entry.getKey()) <= now) {
+                    iterator.remove();
+                    deadlines.remove(entry.getKey());
+                    hand(entry.getValue());
+                }
+            }
+        }
+
+        private void hand(List<Item> batch) {
+            try {
+                send(batch);
+            } catch (RejectedExecutionException e) {
+                for (Item item : batch) {
+                    item.fail(e);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * One stage backed by its own bounded thread pool.
+     */
+    private final class Stage {
+
+        private final SyncStage name;
+
+        private final ThreadPoolExecutor executor;
+
+        private final AtomicLong processed = new AtomicLong();
+
+        Stage(final SyncStage name, int threads, int capacity) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final String threadName = String.format("salesforce-sync-%s-%s",
+                            name.name().toLowerCase(), count.incrementAndGet());
+                        final Thread thread = new Thread(runnable, threadName);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+
+                }, BLOCK);
+        }
+
+        void execute(final Item item, final Runnable step) {
+            execute(Lists.newArrayList(item), step);
+        }
+
+        void execute(final List<Item> items, final Runnable step) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        step.run();
+                        processed.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        LOG.warn("Stage " + name + " failed", e);
+                        for (Item item : items) {
+                            item.fail(e);
+                        }
+                    }
+                }
+
+            });
+        }
+
+        void shutdown() throws InterruptedException {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOG.debug("Waiting for stage {} to drain", name);
+            }
+        }
+
+    }
+
+    /**
+     * One entity passing through the pipeline.
+     */
+    private final class Item extends FutureTask<UpsertResult> implements UpsertSender.Entry {
+
+        private final Object key;
+
+        /**
+         * The key used to skip and diff the entity, null until loaded or if unsaved.
+         */
+        private volatile SyncKey tracked;
+
+        private volatile Supplier<? extends SObject> copy;
+
+        private volatile SObject object;
+
+        Item(Object key) {
+            super(new Callable<UpsertResult>() {
+
+                @Override
+                public UpsertResult call() {
+                    throw new UnsupportedOperationException();
+                }
+
+            });
+            this.key = key;
+        }
+
+        @Override
+        public SyncKey getKey() {
+            return tracked;
+        }
+
+        @Override
+        public void succeed(UpsertResult result) {
+            set(result);
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        @Override
+        public void run() {
+            throw new UnsupportedOperationException("Items complete when their batch has been sent");
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Item [key=%s]", key);
+        }
+
+    }
+
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.Date;
+
+/**
+ * An immutable snapshot of the progress of a complete sync run.
+ *
+ * @author agent
+ */
+public final class SyncProgress {
+
+    private final String name;
+
+    private final long total;
+
+    private final long processed;
+
+    private final long failed;
+
+    private final long checkpoint;
+
+    private final long started;
+
+    private final long now;
+
+    SyncProgress(String name, long total, long processed, long failed, long checkpoint, long started) {
+        this.name = name;
+        this.total = total;
+        this.processed = processed;
+        this.failed = failed;
+        this.checkpoint = checkpoint;
+        this.started = started;
+        this.now = System.currentTimeMillis();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Retrieves the number of entities this run has to sync.
+     *
+     * @return the number of entities or -1 if unknown
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Retrieves the number of entities in committed batches, including failed ones.
+     *
+     * @return the number of processed entities
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Retrieves the id after which the next run resumes, i.e. the id of the last entity
+     * of the last committed batch before the first batch with failed records.
+     *
+     * @return the checkpoint or 0 if no batch has been committed yet
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Retrieves the average throughput of this run.
+     *
+     * @return the number of processed entities per second
+     */
+    public double getThroughput() {
+        return processed * 1000d / Math.max(1, now - started);
+    }
+
+    /**
+     * Estimates when this run will be finished based on its average throughput.
+     *
+     * @return the estimated completion time or null if unknown
+     */
+    public Date getEstimatedCompletion() {
+        if (total < 0 || processed == 0) return null;
+        final long remaining = Math.max(0, total - processed);
+        return new Date(now + (long) (remaining * 1000d / getThroughput()));
+    }
+
+    @Override
+    public String toString() {
+        final String of = total < 0 ? "?" : Long.toString(total);
+        return String.format("SyncProgress [name=%s, processed=%s/%s, failed=%s, checkpoint=%s, " +
+            "throughput=%.1f/s, eta=%s]", name, processed, of, failed, checkpoint, getThroughput(),
+            getEstimatedCompletion());
+    }
+
+}
@@ -16,7 +16,10 @@
 
 package de.cosmocode.palava.salesforce.sync;
 
+import java.util.concurrent.Future;
+
 import com.google.common.base.Function;
+import com.sforce.soap.enterprise.UpsertResult;
 import com.sforce.soap.enterprise.sobject.SObject;
 
 import de.cosmocode.palava.model.base.EntityBase;
@@ -52,13 +55,21 @@ public interface SyncService {
     /**
      * Synchronize a generic object with salesforce.
      * 
+     * <p>
+     *   <strong>Note</strong>: Implementations may skip entities which did not change since
+     *   their last successful upsert. The result of a skipped upsert is successful, not created
+     *   and has no {@link UpsertResult#getId() id}.
+     * </p>
+     * 
      * @param <S> the generic entity type
      * @param <T> the generic salesforce object type
      * @param from the source entity
      * @param function a copy function which creates a salesforce copy of the source entity
+     * @return a future holding the result of the upsert, failing with a
+     *         {@link SalesforceException} if the upsert failed
      * @throws NullPointerException if from or function is null
      */
-    <S extends EntityBase, T extends SObject> void sync(S from, Function<S, T> function);
+    <S extends EntityBase, T extends SObject> Future<UpsertResult> sync(S from, Function<S, T> function);
     
     /**
      * Synchronizes the complete database.
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+/**
+ * The stages of a {@link SyncPipeline}, in processing order.
+ *
+ * @author agent
+ */
+public enum SyncStage {
+
+    /**
+     * Loads the entity being synced.
+     */
+    LOAD,
+
+    /**
+     * Applies the copy function.
+     */
+    COPY,
+
+    /**
+     * Collects the fields which have to be nulled, see {@link NullFieldCollector}.
+     */
+    NULL_FIELDS,
+
+    /**
+     * Groups objects into batches.
+     */
+    BATCH,
+
+    /**
+     * Sends batches to Salesforce.
+     */
+    SEND;
+
+}
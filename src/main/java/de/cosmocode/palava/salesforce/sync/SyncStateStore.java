@@ -0,0 +1,53 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+/**
+ * Stores a hash of the Salesforce copy of every entity as of its last successful
+ * upsert, allowing syncs of unchanged entities to be skipped.
+ *
+ * @author agent
+ */
+public interface SyncStateStore {
+
+    /**
+     * Retrieves the hash of the last successful upsert of an entity.
+     *
+     * @param type the entity type
+     * @param id the entity id
+     * @return the hash or 0 if unknown
+     */
+    long get(String type, long id);
+
+    /**
+     * Stores the hash of a successful upsert of an entity.
+     *
+     * @param type the entity type
+     * @param id the entity id
+     * @param hash the hash of the upserted copy, never 0
+     */
+    void put(String type, long id, long hash);
+
+    /**
+     * Removes the hash of an entity, forcing its next sync to be sent.
+     *
+     * @param type the entity type
+     * @param id the entity id
+     */
+    void remove(String type, long id);
+
+}
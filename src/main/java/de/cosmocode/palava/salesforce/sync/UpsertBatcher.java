@@ -0,0 +1,442 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * A write-behind buffer which coalesces single upserts into batches.
+ * 
+ * <p>
+ *   Entities are buffered per entity type. A buffer is sent as soon as it contains
+ *   {@link Salesforce#MAXIMUM_BATCH_SIZE} entries or the configured linger time
+ *   passed since its first entry was added, whichever comes first. The copy functions
+ *   run when the buffer is sent and the resulting objects are sent using one
+ *   {@link SalesforceService#upsertBatch(List)} call per {@link SObject} type.
+ * </p>
+ * 
+ * <p>
+ *   Batches are sent using the given executor. The scheduler only runs the linger
+ *   timers, which keeps them on time while a slow batch is being sent.
+ * </p>
+ * 
+ * <p>
+ *   Adding an entity which is still buffered replaces the buffered entry. Both
+ *   callers receive the same future, because the last write wins anyway.
+ * </p>
+ *
+ * @author agent
+ */
+public final class UpsertBatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpsertBatcher.class);
+
+    private final UpsertSender sender;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor executor;
+
+    private final long linger;
+
+    private final TimeUnit lingerUnit;
+
+    private final Map<Class<?>, Buffer> buffers = Maps.newHashMap();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private boolean shutdown;
+
+    /**
+     * Creates a new {@link UpsertBatcher}.
+     *
+     * @param service the service used to send batches
+     * @param scheduler the scheduler used to enforce the linger time
+     * @param executor the executor used to send batches
+     * @param linger the maximum time an entry stays buffered
+     * @param lingerUnit the unit of linger
+     * @throws NullPointerException if service, scheduler, executor or lingerUnit is null
+     * @throws IllegalArgumentException if linger is negative
+     */
+    public UpsertBatcher(SalesforceService service, ScheduledExecutorService scheduler, Executor executor,
+        long linger, TimeUnit lingerUnit) {
+        this(service, scheduler, executor, linger, lingerUnit, null);
+    }
+
+    /**
+     * Creates a new {@link UpsertBatcher} which skips entities whose copy did not change
+     * since their last successful upsert according to the given store.
+     *
+     * @param service the service used to send batches
+     * @param scheduler the scheduler used to enforce the linger time
+     * @param executor the executor used to send batches
+     * @param linger the maximum time an entry stays buffered
+     * @param lingerUnit the unit of linger
+     * @param store the sync state store, may be null
+     * @throws NullPointerException if service, scheduler, executor or lingerUnit is null
+     * @throws IllegalArgumentException if linger is negative
+     */
+    public UpsertBatcher(SalesforceService service, ScheduledExecutorService scheduler, Executor executor,
+        long linger, TimeUnit lingerUnit, SyncStateStore store) {
+        this(service, scheduler, executor, linger, lingerUnit, store, null);
+    }
+
+    /**
+     * Creates a new {@link UpsertBatcher} which skips unchanged entities according to the
+     * given store and sends only the changed fields according to the given diff.
+     *
+     * @param service the service used to send batches
+     * @param scheduler the scheduler used to enforce the linger time
+     * @param executor the executor used to send batches
+     * @param linger the maximum time an entry stays buffered
+     * @param lingerUnit the unit of linger
+     * @param store the sync state store, may be null
+     * @param diff the field diff, may be null
+     * @throws NullPointerException if service, scheduler, executor or lingerUnit is null
+     * @throws IllegalArgumentException if linger is negative
+     */
+    public UpsertBatcher(SalesforceService service, ScheduledExecutorService scheduler, Executor executor,
+        long linger, TimeUnit lingerUnit, SyncStateStore store, FieldDiff diff) {
+        this.sender = new UpsertSender(service, store, diff);
+        this.scheduler = Preconditions.checkNotNull(scheduler, "Scheduler");
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        Preconditions.checkArgument(linger >= 0, "Linger must not be negative");
+        this.linger = linger;
+        this.lingerUnit = Preconditions.checkNotNull(lingerUnit, "LingerUnit");
+    }
+
+    /**
+     * Adds the given object to the buffer of its type. Objects added using
+     * this method are never coalesced.
+     *
+     * @param object the object being upserted
+     * @return a future holding the result of the upsert of the given object, failing
+     *         with a {@link SalesforceException} if the upsert failed
+     * @throws NullPointerException if object is null
+     * @throws IllegalStateException if this batcher has been shut down
+     */
+    public Future<UpsertResult> add(final SObject object) {
+        Preconditions.checkNotNull(object, "Object");
+        return add(object.getClass(), new Object(), new Supplier<SObject>() {
+
+            @Override
+            public SObject get() {
+                return object;
+            }
+
+        });
+    }
+
+    /**
+     * Adds the given entity to the buffer of its type, replacing a buffered
+     * entry of the same entity. The given function is applied when the buffer is sent.
+     * Unsaved entities are neither coalesced nor tracked by the store or diff.
+     *
+     * @param <S> the generic entity type
+     * @param <T> the generic salesforce object type
+     * @param from the entity being upserted
+     * @param function the copy function which creates the salesforce copy of from
+     * @return a future holding the result of the upsert of the given entity, failing
+     *         with a {@link SalesforceException} if the upsert failed
+     * @throws NullPointerException if from or function is null
+     * @throws IllegalStateException if this batcher has been shut down
+     */
+    public <S extends EntityBase, T extends SObject> Future<UpsertResult> add(final S from,
+        final Function<S, T> function) {
+        Preconditions.checkNotNull(from, "From");
+        Preconditions.checkNotNull(function, "Function");
+        final Object key = from.getId() == 0 ? new Object() : new SyncKey(from);
+        return add(SyncKey.typeOf(from.getClass()), key, new Supplier<SObject>() {
+
+            @Override
+            public SObject get() {
+                return function.apply(from);
+            }
+
+            @Override
+            public String toString() {
+                return from.toString();
+            }
+
+        });
+    }
+
+    private Future<UpsertResult> add(final Class<?> type, Object key, Supplier<? extends SObject> copy) {
+        final Pending pending;
+        final Buffer full;
+
+        synchronized (buffers) {
+            Preconditions.checkState(!shutdown, "%s has been shut down", this);
+            Buffer buffer = buffers.get(type);
+            if (buffer == null) {
+                buffer = new Buffer(type);
+                buffers.put(type, buffer);
+                buffer.linger = scheduler.schedule(buffer, linger, lingerUnit);
+            }
+
+            final Pending existing = buffer.pending.get(key);
+            if (existing == null) {
+                pending = new Pending(key, copy);
+                buffer.pending.put(key, pending);
+            } else {
+                LOG.trace("Replacing buffered {}", key);
+                existing.copy = copy;
+                coalesced.incrementAndGet();
+                return existing;
+            }
+
+            if (buffer.pending.size() >= Salesforce.MAXIMUM_BATCH_SIZE) {
+                buffers.remove(type);
+                buffer.linger.cancel(false);
+                full = buffer;
+            } else {
+                full = null;
+            }
+        }
+
+        if (full != null) {
+            LOG.trace("Buffer of {} is full", type.getSimpleName());
+            execute(full);
+        }
+
+        return pending;
+    }
+
+    /**
+     * Sends all buffered entries immediately on the calling thread.
+     */
+    public void flush() {
+        final List<Buffer> all;
+        synchronized (buffers) {
+            all = Lists.newArrayList(buffers.values());
+            buffers.clear();
+        }
+        for (Buffer buffer : all) {
+            buffer.linger.cancel(false);
+            send(buffer);
+        }
+    }
+
+    /**
+     * Rejects further entries and sends all buffered ones.
+     */
+    public void shutdown() {
+        synchronized (buffers) {
+            shutdown = true;
+        }
+        flush();
+    }
+
+    private void execute(final Buffer buffer) {
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    send(buffer);
+                }
+
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Unable to send " + buffer.pending.size() + " buffered entries", e);
+            for (Pending each : buffer.pending.values()) {
+                each.fail(e);
+            }
+        }
+    }
+
+    private void send(Buffer buffer) {
+        // buffer has been removed from buffers, no entries will be replaced anymore
+        final Map<Class<? extends SObject>, List<Pending>> types = Maps.newLinkedHashMap();
+        final Map<Class<? extends SObject>, List<SObject>> objects = Maps.newLinkedHashMap();
+
+        for (Pending pending : buffer.pending.values()) {
+            final SObject object;
+            try {
+                object = pending.copy.get();
+                Preconditions.checkNotNull(object, "Copy of %s", pending.copy);
+            } catch (RuntimeException e) {
+                pending.fail(e);
+                continue;
+            }
+
+            final Class<? extends SObject> type = object.getClass();
+            if (!types.containsKey(type)) {
+                types.put(type, Lists.<Pending>newArrayList());
+                objects.put(type, Lists.<SObject>newArrayList());
+            }
+            types.get(type).add(pending);
+            objects.get(type).add(object);
+        }
+
+        for (Map.Entry<Class<? extends SObject>, List<Pending>> entry : types.entrySet()) {
+            sender.send(entry.getValue(), objects.get(entry.getKey()));
+        }
+    }
+
+    SyncStateStore getStateStore() {
+        return sender.getStore();
+    }
+
+    FieldDiff getFieldDiff() {
+        return sender.getDiff();
+    }
+
+    /**
+     * Retrieves the number of batches sent.
+     *
+     * @return the number of batches
+     */
+    public long getBatches() {
+        return sender.getBatches();
+    }
+
+    /**
+     * Retrieves the number of objects sent.
+     *
+     * @return the number of objects
+     */
+    public long getRecords() {
+        return sender.getRecords();
+    }
+
+    /**
+     * Retrieves the number of entries which replaced a buffered entry of the same entity.
+     *
+     * @return the number of coalesced entries
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Retrieves the number of entries which were not sent because they did not change.
+     *
+     * @return the number of skipped entries
+     */
+    public long getSkipped() {
+        return sender.getSkipped();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UpsertBatcher [linger=%s %s]", linger, lingerUnit.name().toLowerCase());
+    }
+
+    /**
+     * The entries of one type waiting to be sent.
+     */
+    private final class Buffer implements Runnable {
+
+        private final Class<?> type;
+
+        private final Map<Object, Pending> pending = Maps.newLinkedHashMap();
+
+        private ScheduledFuture<?> linger;
+
+        private Buffer(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        public void run() {
+            synchronized (buffers) {
+                if (buffers.get(type) != this) return;
+                buffers.remove(type);
+            }
+            LOG.trace("Linger time of {} buffer passed", type.getSimpleName());
+            execute(this);
+        }
+
+    }
+
+    /**
+     * The future result of one buffered entry.
+     */
+    private static final class Pending extends FutureTask<UpsertResult> implements UpsertSender.Entry {
+
+        private static final Callable<UpsertResult> NEVER = new Callable<UpsertResult>() {
+
+            @Override
+            public UpsertResult call() {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+
+        private final Object key;
+
+        /**
+         * Creates the object being sent, guarded by {@link UpsertBatcher#buffers} while buffered.
+         */
+        private Supplier<? extends SObject> copy;
+
+        private Pending(Object key, Supplier<? extends SObject> copy) {
+            super(NEVER);
+            this.key = key;
+            this.copy = copy;
+        }
+
+        @Override
+        public SyncKey getKey() {
+            return key instanceof SyncKey ? SyncKey.class.cast(key) : null;
+        }
+
+        @Override
+        public void succeed(UpsertResult result) {
+            set(result);
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        @Override
+        public void run() {
+            throw new UnsupportedOperationException("Pending results complete when their batch has been sent");
+        }
+
+    }
+
+}
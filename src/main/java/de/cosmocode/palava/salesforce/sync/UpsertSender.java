@@ -0,0 +1,256 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.salesforce.BatchResult;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * Sends the batches of the {@link UpsertBatcher} and the {@link SyncPipeline}.
+ * Tracked entities whose copy did not change according to the {@link SyncStateStore}
+ * are not sent at all, the others are reduced to their changed fields according to
+ * the {@link FieldDiff}. Partial upserts which fail or create a new record are sent
+ * again including all fields.
+ *
+ * @author agent
+ */
+final class UpsertSender {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UpsertSender.class);
+
+    private final SalesforceService service;
+
+    private final SyncStateStore store;
+
+    private final FieldDiff diff;
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong records = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    UpsertSender(SalesforceService service, SyncStateStore store, FieldDiff diff) {
+        this.service = Preconditions.checkNotNull(service, "Service");
+        this.store = store;
+        this.diff = diff;
+    }
+
+    /**
+     * Sends the given objects, which must all be of the same type.
+     *
+     * @param entries the entries receiving the results, one per object
+     * @param objects the complete copies of the entries
+     */
+    void send(List<? extends Entry> entries, List<SObject> objects) {
+        final List<Tracked> tracked = Lists.newArrayListWithCapacity(entries.size());
+        final List<SObject> sending = Lists.newArrayListWithCapacity(objects.size());
+
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            final SyncKey key = entry.getKey();
+            SObject object = objects.get(i);
+            long hash = 0;
+            FieldDiff.Delta delta = null;
+
+            if (store != null && key != null) {
+                hash = ContentHash.of(object);
+                if (store.get(key.getType().getName(), key.getId()) == hash) {
+                    LOG.trace("Skipping unchanged {}", key);
+                    skipped.incrementAndGet();
+                    entry.succeed(ContentHash.unchanged());
+                    continue;
+                }
+            }
+
+            if (diff != null && key != null) {
+                delta = diff.diff(key, object);
+                if (delta.getObject() == null) {
+                    LOG.trace("Skipping {} without changed fields", key);
+                    skipped.incrementAndGet();
+                    entry.succeed(ContentHash.unchanged());
+                    continue;
+                }
+                object = delta.getObject();
+            }
+
+            tracked.add(new Tracked(entry, hash, delta));
+            sending.add(object);
+        }
+
+        if (!tracked.isEmpty()) {
+            upsert(tracked, sending);
+        }
+    }
+
+    private void upsert(List<Tracked> tracked, List<SObject> objects) {
+        batches.incrementAndGet();
+        records.addAndGet(objects.size());
+
+        final BatchResult<UpsertResult> result;
+        try {
+            result = service.upsertBatch(objects);
+        } catch (RuntimeException e) {
+            LOG.warn("Upsert of " + objects.size() + " object(s) failed", e);
+            for (Tracked each : tracked) {
+                forget(each);
+                each.entry.fail(e);
+            }
+            return;
+        }
+
+        if (result.isSuccess()) {
+            LOG.debug("Sent {}", result);
+        } else {
+            LOG.warn("Sent {}", result);
+        }
+
+        final List<Tracked> resend = Lists.newArrayList();
+        final List<SObject> full = Lists.newArrayList();
+
+        for (int i = 0; i < tracked.size(); i++) {
+            final UpsertResult current = result.get(i);
+            final Tracked each = tracked.get(i);
+            final boolean partial = each.delta != null && each.delta.isPartial()
+                && objects.get(i) == each.delta.getObject();
+            if (current == null) {
+                forget(each);
+                each.entry.fail(result.getException(i));
+            } else if (partial && !current.isSuccess()) {
+                // the record may have been deleted, the snapshot is useless
+                LOG.info("Partial upsert of {} failed, sending all fields", each.delta);
+                diff.forget(each.entry.getKey());
+                resend.add(each);
+                full.add(each.delta.getFull());
+            } else if (!current.isSuccess()) {
+                forget(each);
+                each.entry.fail(new SalesforceException(current.getErrors()));
+            } else if (partial && current.isCreated()) {
+                LOG.info("{} created a new record, sending all fields", each.delta);
+                resend.add(each);
+                full.add(each.delta.getFull());
+            } else {
+                remember(each);
+                each.entry.succeed(current);
+            }
+        }
+
+        if (!resend.isEmpty()) {
+            upsert(resend, full);
+        }
+    }
+
+    private void remember(Tracked tracked) {
+        if (tracked.hash != 0) {
+            final SyncKey key = tracked.entry.getKey();
+            store.put(key.getType().getName(), key.getId(), tracked.hash);
+        }
+        if (tracked.delta != null) {
+            diff.remember(tracked.delta);
+        }
+    }
+
+    /**
+     * Removes the state and snapshot of a failed entry, so its next sync sends all fields.
+     */
+    private void forget(Tracked tracked) {
+        final SyncKey key = tracked.entry.getKey();
+        if (key == null) return;
+        if (store != null) {
+            store.remove(key.getType().getName(), key.getId());
+        }
+        if (diff != null) {
+            diff.forget(key);
+        }
+    }
+
+    SyncStateStore getStore() {
+        return store;
+    }
+
+    FieldDiff getDiff() {
+        return diff;
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getRecords() {
+        return records.get();
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * One entity being sent.
+     */
+    interface Entry {
+
+        /**
+         * Provides the key used to track this entry.
+         *
+         * @return the key, null if this entry is not tracked
+         */
+        SyncKey getKey();
+
+        void succeed(UpsertResult result);
+
+        void fail(Throwable cause);
+
+    }
+
+    /**
+     * An entry being sent along with the state remembered after a successful upsert.
+     */
+    private static final class Tracked {
+
+        private final Entry entry;
+
+        /**
+         * The content hash of the object being sent, 0 if unknown.
+         */
+        private final long hash;
+
+        /**
+         * The delta being sent, null if field diffs are disabled.
+         */
+        private final FieldDiff.Delta delta;
+
+        Tracked(Entry entry, long hash, FieldDiff.Delta delta) {
+            this.entry = entry;
+            this.hash = hash;
+            this.delta = delta;
+        }
+
+    }
+
+}
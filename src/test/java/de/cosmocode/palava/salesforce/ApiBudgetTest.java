@@ -0,0 +1,118 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link ApiBudget}.
+ *
+ * @author agent
+ */
+public final class ApiBudgetTest {
+
+    /**
+     * Resets the priority of the current thread after each test.
+     */
+    @After
+    public void after() {
+        RequestPriority.set(RequestPriority.NORMAL);
+    }
+
+    /**
+     * Tests {@link ApiBudget#acquire()} without any reported usage.
+     */
+    @Test
+    public void acquireUnknown() {
+        final ApiBudget unit = new ApiBudget(10, 0);
+        RequestPriority.set(RequestPriority.LOW);
+        unit.acquire();
+        Assert.assertEquals(1d, unit.getRemaining(), 0d);
+        Assert.assertEquals(0, unit.getThrottled());
+    }
+
+    /**
+     * Tests {@link ApiBudget#acquire()} with low priority and a budget below twice the reserve.
+     */
+    @Test(expected = SalesforceException.class)
+    public void acquireLow() {
+        final ApiBudget unit = new ApiBudget(10, 0);
+        unit.update("API REQUESTS", "850", "1000");
+        RequestPriority.set(RequestPriority.LOW);
+        unit.acquire();
+    }
+
+    /**
+     * Tests {@link ApiBudget#acquire()} with normal priority and a budget below twice the reserve.
+     */
+    @Test
+    public void acquireNormal() {
+        final ApiBudget unit = new ApiBudget(10, 0);
+        unit.update("API REQUESTS", "850", "1000");
+        unit.acquire();
+        Assert.assertEquals(0, unit.getThrottled());
+    }
+
+    /**
+     * Tests {@link ApiBudget#acquire()} with normal priority and a budget below the reserve.
+     */
+    @Test(expected = SalesforceException.class)
+    public void acquireNormalReserved() {
+        final ApiBudget unit = new ApiBudget(10, 0);
+        unit.update("API REQUESTS", "950", "1000");
+        unit.acquire();
+    }
+
+    /**
+     * Tests {@link ApiBudget#acquire()} with high priority and an exhausted budget.
+     */
+    @Test
+    public void acquireHigh() {
+        final ApiBudget unit = new ApiBudget(10, 0);
+        unit.update("API REQUESTS", "1000", "1000");
+        RequestPriority.set(RequestPriority.HIGH);
+        unit.acquire();
+        Assert.assertEquals(0, unit.getThrottled());
+    }
+
+    /**
+     * Tests {@link ApiBudget#release()} with an empty token bucket, which has to
+     * allow the next request without throttling it.
+     */
+    @Test(timeout = 1000)
+    public void release() {
+        final ApiBudget unit = new ApiBudget(10, 1);
+        unit.acquire();
+        unit.release();
+        unit.acquire();
+        Assert.assertEquals(0, unit.getThrottled());
+    }
+
+    /**
+     * Tests {@link ApiBudget#update(String, String, String)} with a different limit type.
+     */
+    @Test
+    public void updateOtherType() {
+        final ApiBudget unit = new ApiBudget(10, 0);
+        unit.update("STREAMING API EVENTS", "1000", "1000");
+        Assert.assertEquals(-1, unit.getUsed());
+        Assert.assertEquals(-1, unit.getLimit());
+    }
+
+}
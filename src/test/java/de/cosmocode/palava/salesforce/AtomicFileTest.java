@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link AtomicFile}.
+ *
+ * @author agent
+ */
+public final class AtomicFileTest {
+
+    private File directory;
+
+    private File file;
+
+    /**
+     * Creates a new temporary directory before each test.
+     *
+     * @throws IOException if directory creation failed
+     */
+    @Before
+    public void before() throws IOException {
+        directory = File.createTempFile("atomic", "");
+        Assert.assertTrue(directory.delete());
+        Assert.assertTrue(directory.mkdir());
+        file = new File(directory, "test.properties");
+    }
+
+    /**
+     * Deletes the temporary directory after each test.
+     */
+    @After
+    public void after() {
+        for (File each : directory.listFiles()) {
+            each.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Tests {@link AtomicFile#readProperties()} without an existing file.
+     *
+     * @throws IOException if reading failed
+     */
+    @Test
+    public void readMissing() throws IOException {
+        Assert.assertTrue(new AtomicFile(file).readProperties().isEmpty());
+    }
+
+    /**
+     * Tests {@link AtomicFile#writeProperties(Properties, String)} twice.
+     *
+     * @throws IOException if reading or writing failed
+     */
+    @Test
+    public void replace() throws IOException {
+        final AtomicFile unit = new AtomicFile(file);
+        final Properties first = new Properties();
+        first.setProperty("a", "1");
+        unit.writeProperties(first, null);
+        final Properties second = new Properties();
+        second.setProperty("b", "2");
+        unit.writeProperties(second, null);
+
+        Assert.assertEquals(second, unit.readProperties());
+        Assert.assertEquals(1, directory.listFiles().length);
+    }
+
+    /**
+     * Tests {@link AtomicFile#write(AtomicFile.Content)} with failing content,
+     * which has to keep the previous content and remove the temporary file.
+     *
+     * @throws IOException if reading or writing failed
+     */
+    @Test
+    public void writeFailed() throws IOException {
+        final AtomicFile unit = new AtomicFile(file);
+        final Properties properties = new Properties();
+        properties.setProperty("a", "1");
+        unit.writeProperties(properties, null);
+
+        try {
+            unit.write(new AtomicFile.Content() {
+
+                @Override
+                public void writeTo(OutputStream output) throws IOException {
+                    output.write('b');
+                    throw new IOException("Disk full");
+                }
+
+            });
+            Assert.fail("Expected failed write");
+        } catch (IOException e) {
+            Assert.assertEquals("Disk full", e.getMessage());
+        }
+
+        Assert.assertEquals(properties, unit.readProperties());
+        Assert.assertEquals(1, directory.listFiles().length);
+    }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests {@link BatchDispatcher}.
+ *
+ * @author agent
+ */
+public final class BatchDispatcherTest {
+
+    private ExecutorService executor;
+
+    /**
+     * Creates the executor before each test.
+     */
+    @Before
+    public void before() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    /**
+     * Shuts the executor down after each test.
+     */
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    private static List<Integer> range(int size) {
+        final List<Integer> list = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            list.add(i);
+        }
+        return list;
+    }
+
+    /**
+     * Tests {@link BatchDispatcher#dispatch(List, Function)} preserves the input order.
+     */
+    @Test
+    public void dispatchOrder() {
+        final BatchDispatcher unit = new BatchDispatcher(executor, 4, 10);
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Integer> input = range(95);
+
+        final List<String> results = unit.dispatch(input, new Function<List<Integer>, List<String>>() {
+
+            @Override
+            public List<String> apply(List<Integer> chunk) {
+                Assert.assertTrue(chunk.size() <= 10);
+                calls.incrementAndGet();
+                final List<String> result = Lists.newArrayList();
+                for (Integer i : chunk) {
+                    result.add(String.valueOf(i));
+                }
+                return result;
+            }
+
+        });
+
+        Assert.assertEquals(10, calls.get());
+        Assert.assertEquals(95, results.size());
+        for (int i = 0; i < 95; i++) {
+            Assert.assertEquals(String.valueOf(i), results.get(i));
+        }
+    }
+
+    /**
+     * Tests {@link BatchDispatcher#dispatch(List, Function)} without an executor.
+     */
+    @Test
+    public void dispatchSequential() {
+        final BatchDispatcher unit = new BatchDispatcher(null, 4, 2);
+        final List<Integer> results = unit.dispatch(range(5), new Function<List<Integer>, List<Integer>>() {
+
+            @Override
+            public List<Integer> apply(List<Integer> chunk) {
+                return chunk;
+            }
+
+        });
+        Assert.assertEquals(ImmutableList.of(0, 1, 2, 3, 4), results);
+    }
+
+    /**
+     * Tests {@link BatchDispatcher#dispatch(List, Function)} with a failing chunk.
+     */
+    @Test(expected = SalesforceException.class)
+    public void dispatchFailure() {
+        final BatchDispatcher unit = new BatchDispatcher(executor, 4, 10);
+        unit.dispatch(range(50), new Function<List<Integer>, List<Integer>>() {
+
+            @Override
+            public List<Integer> apply(List<Integer> chunk) {
+                if (chunk.contains(25)) {
+                    throw new IllegalStateException();
+                }
+                return chunk;
+            }
+
+        });
+    }
+
+}
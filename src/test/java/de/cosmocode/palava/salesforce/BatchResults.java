@@ -0,0 +1,56 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.UpsertResult;
+
+/**
+ * Creates {@link BatchResult}s for tests outside of this package.
+ *
+ * @author agent
+ */
+public final class BatchResults {
+
+    private BatchResults() {
+        
+    }
+
+    /**
+     * Creates the result of a single attempt. Failed upserts are permanent failures.
+     *
+     * @param results the results of all records
+     * @return a new {@link BatchResult}
+     */
+    public static BatchResult<UpsertResult> ofUpserts(List<UpsertResult> results) {
+        final List<Integer> successes = Lists.newArrayList();
+        final List<Integer> permanent = Lists.newArrayList();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).isSuccess()) {
+                successes.add(i);
+            } else {
+                permanent.add(i);
+            }
+        }
+        return new BatchResult<UpsertResult>(results, successes, Collections.<Integer>emptyList(), permanent,
+            Collections.<Integer, RuntimeException>emptyMap(), 1);
+    }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.Contact;
+
+/**
+ * Tests {@link CachingSalesforceService}.
+ *
+ * @author agent
+ */
+public final class CachingSalesforceServiceTest {
+
+    private static QueryResult result() {
+        final QueryResult result = new QueryResult();
+        result.getRecords().add(new Account());
+        result.setSize(1);
+        result.setDone(true);
+        return result;
+    }
+
+    /**
+     * Tests {@link CachingSalesforceService#normalize(String)}.
+     */
+    @Test
+    public void normalize() {
+        Assert.assertEquals("SELECT Id FROM Account WHERE Name = 'a  b'",
+            CachingSalesforceService.normalize("  SELECT Id\n  FROM   Account WHERE Name = 'a  b' "));
+    }
+
+    /**
+     * Tests {@link CachingSalesforceService#objectOf(String)}.
+     */
+    @Test
+    public void objectOf() {
+        Assert.assertEquals("account", CachingSalesforceService.objectOf(
+            "SELECT Id, Name FROM Account WHERE Id = '1'"));
+        Assert.assertEquals("*", CachingSalesforceService.objectOf("SELECT Id, Account.Name FROM Contact"));
+        Assert.assertEquals("*", CachingSalesforceService.objectOf(
+            "SELECT Id FROM Account WHERE Id IN (SELECT AccountId FROM Contact)"));
+    }
+
+    /**
+     * Tests {@link CachingSalesforceService#execute(String)} with a repeated query.
+     */
+    @Test
+    public void hit() {
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.execute("SELECT Id FROM Account")).andReturn(result()).once();
+        EasyMock.replay(service);
+
+        final CachingSalesforceService unit = new CachingSalesforceService(service);
+        Assert.assertEquals(1, unit.execute("SELECT Id FROM Account").getRecords().size());
+        Assert.assertEquals(1, unit.execute("SELECT Id  FROM Account").getRecords().size());
+        Assert.assertEquals(1, unit.getHits());
+        Assert.assertEquals(1, unit.getMisses());
+        Assert.assertTrue(unit.getEstimatedSize() > 0);
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link CachingSalesforceService#execute(String)} after writing the queried type.
+     */
+    @Test
+    public void invalidate() {
+        final Contact contact = new Contact();
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.execute("SELECT Id FROM Account")).andReturn(result()).times(2);
+        EasyMock.expect(service.update(contact)).andReturn(null);
+        EasyMock.expect(service.update(EasyMock.isA(Account.class))).andReturn(null);
+        EasyMock.replay(service);
+
+        final CachingSalesforceService unit = new CachingSalesforceService(service);
+        unit.execute("SELECT Id FROM Account");
+        unit.update(contact);
+        unit.execute("SELECT Id FROM Account");
+        unit.update(new Account());
+        unit.execute("SELECT Id FROM Account");
+        Assert.assertEquals(1, unit.getInvalidations());
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link CachingSalesforceService#execute(String)} with a result exceeding the maximum size.
+     */
+    @Test
+    public void tooLarge() {
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.execute(EasyMock.<String>anyObject())).andReturn(result()).times(2);
+        EasyMock.replay(service);
+
+        final CachingSalesforceService unit = new CachingSalesforceService(service);
+        unit.setMaximumSize(1);
+        unit.execute("SELECT Id FROM Account");
+        unit.execute("SELECT Id FROM Account");
+        Assert.assertEquals(0, unit.getEstimatedSize());
+        EasyMock.verify(service);
+    }
+
+}
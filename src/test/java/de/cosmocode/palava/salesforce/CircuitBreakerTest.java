@@ -0,0 +1,154 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link CircuitBreaker}.
+ *
+ * @author agent
+ */
+public final class CircuitBreakerTest {
+
+    private CircuitBreaker unit(CircuitBreakerListener listener, long openDuration) {
+        return new CircuitBreaker(4, 0.5, openDuration, TimeUnit.MILLISECONDS, 1, listener);
+    }
+    
+    private CircuitBreakerListener niceListener() {
+        final CircuitBreakerListener listener = EasyMock.createNiceMock("listener", CircuitBreakerListener.class);
+        EasyMock.replay(listener);
+        return listener;
+    }
+    
+    private void call(CircuitBreaker unit, boolean failed) {
+        unit.acquire();
+        unit.release(failed);
+    }
+    
+    /**
+     * Tests that the circuit stays closed below the failure rate.
+     */
+    @Test
+    public void staysClosed() {
+        final CircuitBreaker unit = unit(niceListener(), 1000);
+        call(unit, true);
+        call(unit, false);
+        call(unit, false);
+        call(unit, false);
+        call(unit, true);
+        Assert.assertSame(CircuitState.CLOSED, unit.getState());
+    }
+    
+    /**
+     * Tests that the circuit opens and rejects calls when the failure rate is reached.
+     */
+    @Test
+    public void opens() {
+        final CircuitBreakerListener listener = EasyMock.createMock("listener", CircuitBreakerListener.class);
+        listener.circuitStateChanged(CircuitState.CLOSED, CircuitState.OPEN);
+        EasyMock.replay(listener);
+        
+        final CircuitBreaker unit = unit(listener, 1000);
+        call(unit, true);
+        call(unit, false);
+        call(unit, true);
+        call(unit, false);
+        Assert.assertSame(CircuitState.OPEN, unit.getState());
+        
+        try {
+            unit.acquire();
+            Assert.fail("Expected CircuitOpenException");
+        } catch (CircuitOpenException e) {
+            Assert.assertEquals(1, unit.getRejected());
+        }
+        EasyMock.verify(listener);
+    }
+    
+    /**
+     * Tests that a successful trial call closes the circuit again.
+     */
+    @Test
+    public void closesAfterTrial() {
+        final CircuitBreaker unit = unit(niceListener(), 0);
+        for (int i = 0; i < 4; i++) {
+            call(unit, true);
+        }
+        Assert.assertSame(CircuitState.OPEN, unit.getState());
+        
+        unit.acquire();
+        Assert.assertSame(CircuitState.HALF_OPEN, unit.getState());
+        unit.release(false);
+        Assert.assertSame(CircuitState.CLOSED, unit.getState());
+    }
+    
+    /**
+     * Tests that a failed trial call opens the circuit again.
+     */
+    @Test
+    public void reopensAfterFailedTrial() {
+        final CircuitBreaker unit = unit(niceListener(), 0);
+        for (int i = 0; i < 4; i++) {
+            call(unit, true);
+        }
+        
+        unit.acquire();
+        unit.release(true);
+        Assert.assertSame(CircuitState.OPEN, unit.getState());
+    }
+    
+    /**
+     * Tests that cancelled calls are not recorded as outcomes.
+     */
+    @Test
+    public void cancelRecordsNothing() {
+        final CircuitBreaker unit = unit(niceListener(), 1000);
+        call(unit, true);
+        call(unit, true);
+        for (int i = 0; i < 4; i++) {
+            unit.acquire();
+            unit.cancel();
+        }
+        call(unit, false);
+        Assert.assertSame(CircuitState.CLOSED, unit.getState());
+        call(unit, false);
+        Assert.assertSame(CircuitState.OPEN, unit.getState());
+    }
+    
+    /**
+     * Tests that a cancelled trial call allows another trial call.
+     */
+    @Test
+    public void cancelTrial() {
+        final CircuitBreaker unit = unit(niceListener(), 0);
+        for (int i = 0; i < 4; i++) {
+            call(unit, true);
+        }
+        
+        unit.acquire();
+        unit.cancel();
+        Assert.assertSame(CircuitState.HALF_OPEN, unit.getState());
+        unit.acquire();
+        unit.release(false);
+        Assert.assertSame(CircuitState.CLOSED, unit.getState());
+    }
+    
+}
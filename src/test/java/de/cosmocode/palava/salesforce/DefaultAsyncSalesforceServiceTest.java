@@ -0,0 +1,196 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.sforce.soap.enterprise.QueryResult;
+
+/**
+ * Tests {@link DefaultAsyncSalesforceService}.
+ *
+ * @author agent
+ */
+public final class DefaultAsyncSalesforceServiceTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final QueryResult slow = new QueryResult();
+
+    private final QueryResult fast = new QueryResult();
+
+    private ExecutorService executor;
+
+    private ScheduledExecutorService scheduler;
+
+    private SalesforceService service;
+
+    /**
+     * Creates the executors and a service with a slow and a fast query before each test.
+     */
+    @Before
+    public void before() {
+        executor = Executors.newCachedThreadPool();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.execute("slow")).andStubAnswer(new IAnswer<QueryResult>() {
+
+            @Override
+            public QueryResult answer() throws InterruptedException {
+                release.await();
+                return slow;
+            }
+
+        });
+        EasyMock.expect(service.execute("fast")).andStubReturn(fast);
+        EasyMock.expect(service.execute("failing")).andStubThrow(new SalesforceException("INVALID_FIELD"));
+        EasyMock.replay(service);
+    }
+
+    /**
+     * Releases all slow queries and shuts the executors down after each test.
+     */
+    @After
+    public void after() {
+        release.countDown();
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    private DefaultAsyncSalesforceService unit(int concurrency) {
+        final DefaultAsyncSalesforceService unit = new DefaultAsyncSalesforceService(service, executor);
+        unit.setConcurrency(concurrency);
+        return unit;
+    }
+
+    /**
+     * Tests {@link DefaultAsyncSalesforceService#execute(String)} with more calls than
+     * slots. Submitting must not block, the additional call has to wait instead.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if a call failed
+     * @throws TimeoutException if a call did not complete in time
+     */
+    @Test(timeout = 10000)
+    public void submitDoesNotBlock() throws InterruptedException, ExecutionException, TimeoutException {
+        final DefaultAsyncSalesforceService unit = unit(1);
+        unit.initialize();
+
+        final ListenableFuture<QueryResult> first = unit.execute("slow");
+        final ListenableFuture<QueryResult> second = unit.execute("fast");
+        Assert.assertEquals(1, unit.getWaiting());
+        Assert.assertFalse(first.isDone());
+        Assert.assertFalse(second.isDone());
+
+        release.countDown();
+        Assert.assertSame(slow, first.get(5, TimeUnit.SECONDS));
+        Assert.assertSame(fast, second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, unit.getWaiting());
+    }
+
+    /**
+     * Tests listeners of the futures returned by {@link DefaultAsyncSalesforceService#execute(String)}.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test(timeout = 10000)
+    public void listener() throws InterruptedException {
+        final DefaultAsyncSalesforceService unit = unit(1);
+        unit.initialize();
+
+        final CountDownLatch completed = new CountDownLatch(1);
+        final ListenableFuture<QueryResult> future = unit.execute("slow");
+        future.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                completed.countDown();
+            }
+
+        }, MoreExecutors.sameThreadExecutor());
+
+        Assert.assertFalse(completed.await(100, TimeUnit.MILLISECONDS));
+        release.countDown();
+        completed.await();
+        Assert.assertTrue(future.isDone());
+    }
+
+    /**
+     * Tests {@link DefaultAsyncSalesforceService#execute(String)} with a failing call.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test(timeout = 10000)
+    public void failure() throws InterruptedException {
+        final DefaultAsyncSalesforceService unit = unit(1);
+        unit.initialize();
+
+        try {
+            unit.execute("failing").get();
+            Assert.fail("Expected failed call");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SalesforceException);
+        }
+        Assert.assertEquals(0, unit.getWaiting());
+    }
+
+    /**
+     * Tests {@link DefaultAsyncSalesforceService#execute(String)} with a call exceeding the timeout.
+     * Its slot must not be reused before the underlying call finished.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if the fast call failed
+     * @throws TimeoutException if the fast call did not complete in time
+     */
+    @Test(timeout = 10000)
+    public void timeout() throws InterruptedException, ExecutionException, TimeoutException {
+        final DefaultAsyncSalesforceService unit = unit(1);
+        unit.setScheduler(scheduler);
+        unit.setTimeout(100);
+        unit.setTimeoutUnit(TimeUnit.MILLISECONDS);
+        unit.initialize();
+
+        final ListenableFuture<QueryResult> first = unit.execute("slow");
+        try {
+            first.get();
+            Assert.fail("Expected timeout");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SalesforceException);
+        }
+
+        final ListenableFuture<QueryResult> second = unit.execute("fast");
+        Assert.assertEquals(1, unit.getWaiting());
+        release.countDown();
+        Assert.assertSame(fast, second.get(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests the background boot of {@link DefaultSalesforceService} with failOnBoot disabled,
+ * using a {@link LocalSalesforce}.
+ *
+ * @author agent
+ */
+public final class DefaultSalesforceServiceBootTest {
+
+    private LocalSalesforce server;
+
+    private ScheduledExecutorService scheduler;
+
+    private DefaultSalesforceService unit;
+
+    /**
+     * Starts the server and creates a service which connects in the background.
+     *
+     * @throws IOException if the server could not be started
+     */
+    @Before
+    public void before() throws IOException {
+        server = new LocalSalesforce();
+        server.respondAlways("getServerTimestamp", LocalSalesforce.serverTimestamp());
+        server.respondAlways("logout", "<logoutResponse/>");
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        unit = new DefaultSalesforceService(server.getWsdl(),
+            "username", "password", "token", 5, TimeUnit.SECONDS);
+        unit.setFailOnBoot(false);
+        unit.setScheduler(scheduler);
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        unit.dispose();
+        scheduler.shutdownNow();
+        server.stop();
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#initialize()} with a server which rejects the first
+     * two logins. Initialization must not wait for the login, and calls have to wait until
+     * the third attempt, one and two seconds after the previous ones, succeeded.
+     *
+     * @throws LifecycleException if initialization failed
+     */
+    @Test(timeout = 10000)
+    public void bootWithBackoff() throws LifecycleException {
+        server.fail("login", "LoginFault", "INVALID_LOGIN");
+        server.fail("login", "LoginFault", "INVALID_LOGIN");
+        server.respondAlways("login", LocalSalesforce.login(server.getUrl(), "session"));
+
+        final long start = System.currentTimeMillis();
+        unit.initialize();
+        Assert.assertTrue(System.currentTimeMillis() - start < 500);
+
+        Assert.assertNotNull(unit.getServerTimestamp());
+        Assert.assertEquals(3, server.count("login"));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 3000);
+    }
+
+    /**
+     * Tests calls before the background boot established a session within the boot timeout.
+     *
+     * @throws LifecycleException if initialization failed
+     */
+    @Test(timeout = 10000)
+    public void bootTimeout() throws LifecycleException {
+        server.failAlways("login", "LoginFault", "INVALID_LOGIN");
+        unit.setBootTimeout(100);
+        unit.setBootTimeoutUnit(TimeUnit.MILLISECONDS);
+        unit.initialize();
+
+        try {
+            unit.getServerTimestamp();
+            Assert.fail("Expected failed call");
+        } catch (SalesforceException e) {
+            Assert.assertEquals(0, server.count("getServerTimestamp"));
+        }
+    }
+
+}
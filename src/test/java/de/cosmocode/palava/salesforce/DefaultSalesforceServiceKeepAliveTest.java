@@ -0,0 +1,119 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests the session keep-alive of {@link DefaultSalesforceService}, using a {@link LocalSalesforce}
+ * whose sessions expire after one second of inactivity.
+ *
+ * @author agent
+ */
+public final class DefaultSalesforceServiceKeepAliveTest {
+
+    private LocalSalesforce server;
+
+    private ScheduledExecutorService scheduler;
+
+    private DefaultSalesforceService unit;
+
+    /**
+     * Starts the server and creates a service checking its session every 50 milliseconds.
+     *
+     * @throws IOException if the server could not be started
+     */
+    @Before
+    public void before() throws IOException {
+        server = new LocalSalesforce();
+        server.respondAlways("login", LocalSalesforce.login(server.getUrl(), "session", 1));
+        server.respondAlways("getServerTimestamp", LocalSalesforce.serverTimestamp());
+        server.respondAlways("logout", "<logoutResponse/>");
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+
+        unit = new DefaultSalesforceService(server.getWsdl(),
+            "username", "password", "token", 5, TimeUnit.SECONDS);
+        unit.setScheduler(scheduler);
+        unit.setKeepAliveInterval(50);
+        unit.setKeepAliveIntervalUnit(TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        unit.dispose();
+        scheduler.shutdownNow();
+        server.stop();
+    }
+
+    private void awaitCount(String operation, int count) throws InterruptedException {
+        while (server.count(operation) < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Tests that an idle session is pinged before half of its timeout passed,
+     * which keeps it alive without logging in again.
+     *
+     * @throws LifecycleException if initialization failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test(timeout = 10000)
+    public void ping() throws LifecycleException, InterruptedException {
+        unit.initialize();
+        Assert.assertEquals(1, server.count("login"));
+
+        awaitCount("getServerTimestamp", 2);
+        // twice the session timeout
+        Thread.sleep(2000);
+        Assert.assertEquals(1, server.count("login"));
+        Assert.assertTrue(server.count("getServerTimestamp") >= 3);
+    }
+
+    /**
+     * Tests that a session which the server rejects during a ping is renewed in the background.
+     *
+     * @throws LifecycleException if initialization failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test(timeout = 10000)
+    public void renewRejected() throws LifecycleException, InterruptedException {
+        server.fail("getServerTimestamp", "UnexpectedErrorFault", "INVALID_SESSION_ID");
+        unit.initialize();
+
+        awaitCount("login", 2);
+        Assert.assertEquals(1, server.count("getServerTimestamp"));
+        awaitCount("getServerTimestamp", 2);
+        Assert.assertEquals(2, server.count("login"));
+    }
+
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests how {@link DefaultSalesforceService} replaces rejected sessions, using a {@link LocalSalesforce}.
+ *
+ * @author agent
+ */
+public final class DefaultSalesforceServiceRefreshTest {
+
+    private static final int THREADS = 4;
+
+    private LocalSalesforce server;
+
+    private ExecutorService executor;
+
+    private DefaultSalesforceService unit;
+
+    /**
+     * Starts the server and creates a service logging into it.
+     *
+     * @throws IOException if the server could not be started
+     * @throws LifecycleException if initialization failed
+     */
+    @Before
+    public void before() throws IOException, LifecycleException {
+        server = new LocalSalesforce();
+        server.respondAlways("login", LocalSalesforce.login(server.getUrl(), "session"));
+        server.respondAlways("getServerTimestamp", LocalSalesforce.serverTimestamp());
+        server.respondAlways("logout", "<logoutResponse/>");
+        executor = Executors.newFixedThreadPool(THREADS);
+
+        final Map<FailureCategory, ExponentialBackoffRetryPolicy.Schedule> schedules =
+            new EnumMap<FailureCategory, ExponentialBackoffRetryPolicy.Schedule>(FailureCategory.class);
+        schedules.put(FailureCategory.INVALID_SESSION,
+            new ExponentialBackoffRetryPolicy.Schedule(1, 0, 0, TimeUnit.MILLISECONDS));
+
+        unit = new DefaultSalesforceService(server.getWsdl(),
+            "username", "password", "token", 5, TimeUnit.SECONDS);
+        unit.setRetryPolicy(new ExponentialBackoffRetryPolicy(schedules, 0));
+        unit.setPoolSize(THREADS);
+        unit.initialize();
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        unit.dispose();
+        executor.shutdownNow();
+        server.stop();
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#getServerTimestamp()} with a rejected session.
+     * The call has to be sent again using a new session.
+     */
+    @Test
+    public void refresh() {
+        server.fail("getServerTimestamp", "UnexpectedErrorFault", "INVALID_SESSION_ID");
+
+        Assert.assertNotNull(unit.getServerTimestamp());
+        Assert.assertEquals(2, server.count("login"));
+        Assert.assertEquals(2, server.count("getServerTimestamp"));
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#getServerTimestamp()} on several threads whose
+     * session is rejected at the same time. Only one of them may log in again, the others
+     * have to wait for and reuse its session.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if a call failed
+     */
+    @Test(timeout = 10000)
+    public void refreshSingleFlight() throws InterruptedException, ExecutionException {
+        // a slow login keeps the refresh pending until all threads noticed the rejected session
+        server.delay("login", 500, LocalSalesforce.login(server.getUrl(), "renewed"));
+        for (int i = 0; i < THREADS; i++) {
+            server.fail("getServerTimestamp", "UnexpectedErrorFault", "INVALID_SESSION_ID");
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<Date>> futures = Lists.newArrayList();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<Date>() {
+
+                @Override
+                public Date call() throws InterruptedException {
+                    start.await();
+                    return unit.getServerTimestamp();
+                }
+
+            }));
+        }
+        start.countDown();
+
+        for (Future<Date> future : futures) {
+            Assert.assertNotNull(future.get());
+        }
+        Assert.assertEquals(2, server.count("login"));
+        Assert.assertEquals(2 * THREADS, server.count("getServerTimestamp"));
+        for (String request : server.requestsOf("getServerTimestamp").subList(THREADS, 2 * THREADS)) {
+            Assert.assertTrue(request.contains("renewed"));
+        }
+    }
+
+}
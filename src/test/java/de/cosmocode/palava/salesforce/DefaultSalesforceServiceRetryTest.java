@@ -0,0 +1,150 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests the retry behaviour of {@link DefaultSalesforceService} against a local
+ * server which never answers in time.
+ *
+ * @author agent
+ */
+public final class DefaultSalesforceServiceRetryTest {
+
+    private static final String SECRET = "secret";
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    private HttpServer server;
+
+    private File file;
+
+    private DefaultSalesforceService unit;
+
+    /**
+     * Starts the server and creates a service using a stored session pointing to it.
+     *
+     * @throws IOException if the server could not be started
+     * @throws LifecycleException if initialization failed
+     */
+    @Before
+    public void before() throws IOException, LifecycleException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                final InputStream body = exchange.getRequestBody();
+                final byte[] buffer = new byte[1024];
+                while (body.read(buffer) != -1) {
+                    continue;
+                }
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.close();
+            }
+
+        });
+        server.setExecutor(executor);
+        server.start();
+
+        final String url = String.format("http://localhost:%s/services/Soap/c/18.0", server.getAddress().getPort());
+        file = File.createTempFile("session", ".bin");
+        new FileSessionStore(file, SECRET).save(new Session("session", url, 7200, 1), System.currentTimeMillis());
+
+        final Map<FailureCategory, ExponentialBackoffRetryPolicy.Schedule> schedules = 
+            new EnumMap<FailureCategory, ExponentialBackoffRetryPolicy.Schedule>(FailureCategory.class);
+        schedules.put(FailureCategory.TIMEOUT, 
+            new ExponentialBackoffRetryPolicy.Schedule(2, 0, 0, TimeUnit.MILLISECONDS));
+
+        unit = new DefaultSalesforceService(Class.class.getResource("/enterprise.wsdl"),
+            "username", "password", "token", 250, TimeUnit.MILLISECONDS);
+        unit.setSessionStore(file, SECRET);
+        unit.setRetryPolicy(new ExponentialBackoffRetryPolicy(schedules, 0));
+        unit.initialize();
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        unit.dispose();
+        server.stop(0);
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    /**
+     * Tests that {@link DefaultSalesforceService#create(com.sforce.soap.enterprise.sobject.SObject)}
+     * is not sent again after a read timeout, because the server may have committed it.
+     */
+    @Test
+    public void createNotRetriedAfterReadTimeout() {
+        try {
+            unit.create(new Account());
+            Assert.fail("Expected read timeout");
+        } catch (SalesforceException e) {
+            Assert.assertEquals(1, requests.get());
+        }
+    }
+
+    /**
+     * Tests that {@link DefaultSalesforceService#execute(String)} is retried after a read timeout.
+     */
+    @Test
+    public void queryRetriedAfterReadTimeout() {
+        try {
+            unit.execute("SELECT Id FROM Account");
+            Assert.fail("Expected read timeout");
+        } catch (SalesforceException e) {
+            Assert.assertEquals(3, requests.get());
+        }
+    }
+
+}
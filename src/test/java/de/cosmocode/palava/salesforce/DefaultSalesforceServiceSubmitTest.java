@@ -0,0 +1,187 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.SaveResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests how {@link DefaultSalesforceService} classifies and resubmits the records
+ * of batch operations, using a {@link LocalSalesforce}.
+ *
+ * @author agent
+ */
+public final class DefaultSalesforceServiceSubmitTest {
+
+    private LocalSalesforce server;
+
+    private DefaultSalesforceService unit;
+
+    /**
+     * Starts the server and creates a service logging into it.
+     *
+     * @throws IOException if the server could not be started
+     * @throws LifecycleException if initialization failed
+     */
+    @Before
+    public void before() throws IOException, LifecycleException {
+        server = new LocalSalesforce();
+        server.respondAlways("login", LocalSalesforce.login(server.getUrl(), "session"));
+
+        final Map<FailureCategory, ExponentialBackoffRetryPolicy.Schedule> schedules =
+            new EnumMap<FailureCategory, ExponentialBackoffRetryPolicy.Schedule>(FailureCategory.class);
+        schedules.put(FailureCategory.TIMEOUT,
+            new ExponentialBackoffRetryPolicy.Schedule(1, 0, 0, TimeUnit.MILLISECONDS));
+        schedules.put(FailureCategory.LOCK_CONTENTION,
+            new ExponentialBackoffRetryPolicy.Schedule(2, 0, 0, TimeUnit.MILLISECONDS));
+
+        unit = new DefaultSalesforceService(server.getWsdl(),
+            "username", "password", "token", 250, TimeUnit.MILLISECONDS);
+        unit.setRetryPolicy(new ExponentialBackoffRetryPolicy(schedules, 0));
+        unit.initialize();
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        unit.dispose();
+        server.stop();
+    }
+
+    private static List<SObject> accounts(int count) {
+        final List<SObject> accounts = Lists.newArrayList();
+        for (int i = 1; i <= count; i++) {
+            final Account account = new Account();
+            account.setId(String.format("001%012d", i));
+            accounts.add(account);
+        }
+        return accounts;
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#updateBatch(List)} with a chunk which keeps timing out.
+     * Its records are retryable failures, because sending them later may succeed.
+     */
+    @Test
+    public void chunkTimeoutIsRetryable() {
+        final String body = "<updateResponse>" + LocalSalesforce.saveResult("001000000000001", null) +
+            "</updateResponse>";
+        server.delay("update", 2000, body);
+        server.delay("update", 2000, body);
+
+        final BatchResult<SaveResult> result = unit.updateBatch(accounts(1));
+        Assert.assertEquals(ImmutableList.of(0), result.getRetryableFailures());
+        Assert.assertTrue(result.getPermanentFailures().isEmpty());
+        Assert.assertNull(result.get(0));
+        Assert.assertNotNull(result.getException(0));
+        Assert.assertEquals(2, server.count("update"));
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#updateBatch(List)} with a chunk which was rejected
+     * by an unknown fault. Its records are permanent failures.
+     */
+    @Test
+    public void chunkFaultIsPermanent() {
+        server.fail("update", "UnknownFault", "INVALID_TYPE");
+
+        final BatchResult<SaveResult> result = unit.updateBatch(accounts(1));
+        Assert.assertEquals(ImmutableList.of(0), result.getPermanentFailures());
+        Assert.assertTrue(result.getRetryableFailures().isEmpty());
+        Assert.assertNotNull(result.getException(0));
+        Assert.assertEquals(1, server.count("update"));
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#updateBatch(List)} with records failing with
+     * retryable and permanent errors. Only records with retryable errors are resubmitted.
+     */
+    @Test
+    public void resubmitOnlyRetryable() {
+        server.respond("update", "<updateResponse>" +
+            LocalSalesforce.saveResult("001000000000001", null) +
+            LocalSalesforce.saveResult(null, "UNABLE_TO_LOCK_ROW") +
+            LocalSalesforce.saveResult(null, "INVALID_FIELD") +
+            "</updateResponse>");
+        server.respond("update", "<updateResponse>" +
+            LocalSalesforce.saveResult("001000000000002", null) +
+            "</updateResponse>");
+
+        final BatchResult<SaveResult> result = unit.updateBatch(accounts(3));
+        Assert.assertEquals(ImmutableList.of(0, 1), result.getSuccesses());
+        Assert.assertEquals(ImmutableList.of(2), result.getPermanentFailures());
+        Assert.assertTrue(result.getRetryableFailures().isEmpty());
+        Assert.assertEquals(2, result.getAttempts());
+
+        final List<String> requests = server.requestsOf("update");
+        Assert.assertEquals(2, requests.size());
+        Assert.assertTrue(requests.get(1).contains("001000000000002"));
+        Assert.assertFalse(requests.get(1).contains("001000000000001"));
+        Assert.assertFalse(requests.get(1).contains("001000000000003"));
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#updateBatch(List)} with records whose retryable
+     * errors persist. They are reported as retryable once the retries are exhausted.
+     */
+    @Test
+    public void retryableExhausted() {
+        final String body = "<updateResponse>" + LocalSalesforce.saveResult(null, "UNABLE_TO_LOCK_ROW") +
+            "</updateResponse>";
+        server.respondAlways("update", body);
+
+        final BatchResult<SaveResult> result = unit.updateBatch(accounts(1));
+        Assert.assertEquals(ImmutableList.of(0), result.getRetryableFailures());
+        Assert.assertTrue(result.getPermanentFailures().isEmpty());
+        Assert.assertNull(result.getException(0));
+        Assert.assertEquals(3, server.count("update"));
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#create(List)} with more objects than fit into one request.
+     */
+    @Test
+    public void createOversized() {
+        try {
+            unit.create(accounts(Salesforce.MAXIMUM_BATCH_SIZE + 1));
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(0, server.count("create"));
+        }
+    }
+
+}
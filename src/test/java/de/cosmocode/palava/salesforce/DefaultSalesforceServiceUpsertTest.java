@@ -0,0 +1,117 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests the upserts of {@link DefaultSalesforceService} using cached ids, against
+ * a {@link LocalSalesforce}.
+ *
+ * @author agent
+ */
+public final class DefaultSalesforceServiceUpsertTest {
+
+    private LocalSalesforce server;
+
+    private DefaultSalesforceService unit;
+
+    /**
+     * Starts the server and creates a service with an identifier cache.
+     *
+     * @throws IOException if the server could not be started
+     * @throws LifecycleException if initialization failed
+     */
+    @Before
+    public void before() throws IOException, LifecycleException {
+        server = new LocalSalesforce();
+        server.respondAlways("login", LocalSalesforce.login(server.getUrl(), "session"));
+
+        final Map<FailureCategory, ExponentialBackoffRetryPolicy.Schedule> schedules =
+            new EnumMap<FailureCategory, ExponentialBackoffRetryPolicy.Schedule>(FailureCategory.class);
+        schedules.put(FailureCategory.UNEXPECTED,
+            new ExponentialBackoffRetryPolicy.Schedule(1, 0, 0, TimeUnit.MILLISECONDS));
+
+        unit = new DefaultSalesforceService(server.getWsdl(),
+            "username", "password", "token", 1, TimeUnit.SECONDS);
+        unit.setRetryPolicy(new ExponentialBackoffRetryPolicy(schedules, 0));
+        unit.setExternalIdentifier("AccountNumber");
+        unit.setIdentifierCacheSize(10);
+        unit.initialize();
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        unit.dispose();
+        server.stop();
+    }
+
+    private static Account account(String number) {
+        final Account account = Salesforce.FACTORY.createAccount();
+        account.setAccountNumber(Salesforce.FACTORY.createAccountAccountNumber(number));
+        return account;
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#upsert(List)} with a cached and an unknown object
+     * whose upsert has to be retried. The update of the cached object must not be sent again.
+     */
+    @Test
+    public void retryUpsertOnly() {
+        server.respond("upsert", "<upsertResponse>" +
+            LocalSalesforce.upsertResult("001000000000001", true) + "</upsertResponse>");
+        unit.upsert(account("1"));
+
+        server.respond("update", "<updateResponse>" +
+            LocalSalesforce.saveResult("001000000000001", null) + "</updateResponse>");
+        server.fail("upsert", "UnexpectedErrorFault", "UNKNOWN_EXCEPTION");
+        server.respond("upsert", "<upsertResponse>" +
+            LocalSalesforce.upsertResult("001000000000002", true) + "</upsertResponse>");
+
+        final List<UpsertResult> results = unit.upsert(ImmutableList.<SObject>of(account("1"), account("2")));
+        Assert.assertEquals("001000000000001", results.get(0).getId());
+        Assert.assertFalse(results.get(0).isCreated());
+        Assert.assertEquals("001000000000002", results.get(1).getId());
+        Assert.assertTrue(results.get(1).isCreated());
+
+        Assert.assertEquals(1, server.count("update"));
+        Assert.assertEquals(3, server.count("upsert"));
+        Assert.assertFalse(server.requestsOf("upsert").get(2).contains("AccountNumber>1<"));
+    }
+
+}
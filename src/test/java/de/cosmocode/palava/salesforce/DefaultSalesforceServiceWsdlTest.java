@@ -0,0 +1,105 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.soap.enterprise.Soap;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests how {@link DefaultSalesforceService} parses its wsdl, using a {@link LocalSalesforce}.
+ *
+ * @author agent
+ */
+public final class DefaultSalesforceServiceWsdlTest {
+
+    private LocalSalesforce server;
+
+    private DefaultSalesforceService unit;
+
+    /**
+     * Starts the server and creates a service logging into it.
+     *
+     * @throws IOException if the server could not be started
+     * @throws LifecycleException if initialization failed
+     */
+    @Before
+    public void before() throws IOException, LifecycleException {
+        server = new LocalSalesforce();
+        server.respondAlways("login", LocalSalesforce.login(server.getUrl(), "session"));
+        server.respondAlways("logout", "<logoutResponse/>");
+
+        unit = new DefaultSalesforceService(server.getWsdl(),
+            "username", "password", "token", 5, TimeUnit.SECONDS);
+        unit.initialize();
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        unit.dispose();
+        server.stop();
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#getWsdlParsingTime(TimeUnit)} and
+     * {@link DefaultSalesforceService#getModelBuildingTime(TimeUnit)} after the initial login.
+     */
+    @Test
+    public void statistics() {
+        Assert.assertTrue(unit.getWsdlParsingTime(TimeUnit.NANOSECONDS) > 0);
+        Assert.assertTrue(unit.getModelBuildingTime(TimeUnit.NANOSECONDS) > 0);
+        Assert.assertTrue(unit.getLastLoginTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    /**
+     * Tests {@link DefaultSalesforceService#connect()} after the wsdl has been deleted.
+     * New endpoints have to reuse the model parsed during initialization.
+     *
+     * @throws IOException if the wsdl could not be located
+     * @throws URISyntaxException if the wsdl could not be located
+     */
+    @Test
+    public void connectReusesModel() throws IOException, URISyntaxException {
+        final long parsing = unit.getWsdlParsingTime(TimeUnit.NANOSECONDS);
+        final long building = unit.getModelBuildingTime(TimeUnit.NANOSECONDS);
+        Assert.assertTrue(new File(server.getWsdl().toURI()).delete());
+
+        final Soap first = unit.connect();
+        final Soap second = unit.connect();
+
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(3, server.count("login"));
+        Assert.assertEquals(parsing, unit.getWsdlParsingTime(TimeUnit.NANOSECONDS));
+        Assert.assertEquals(building, unit.getModelBuildingTime(TimeUnit.NANOSECONDS));
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import org.easymock.EasyMock;
+
+import de.cosmocode.palava.model.base.EntityBase;
+
+/**
+ * Creates {@link EntityBase}s for tests.
+ *
+ * @author agent
+ */
+public final class Entities {
+
+    private Entities() {
+        
+    }
+
+    /**
+     * Creates an entity which provides nothing but the given id.
+     *
+     * @param id the id
+     * @return a new replayed mock
+     */
+    public static EntityBase entity(long id) {
+        final EntityBase entity = EasyMock.createMock("entity", EntityBase.class);
+        EasyMock.expect(entity.getId()).andStubReturn(id);
+        EasyMock.replay(entity);
+        return entity;
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.QName;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPFactory;
+import javax.xml.soap.SOAPFault;
+import javax.xml.ws.soap.SOAPFaultException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.sforce.soap.enterprise.Error;
+import com.sforce.soap.enterprise.StatusCode;
+
+/**
+ * Tests {@link ExponentialBackoffRetryPolicy}.
+ *
+ * @author agent
+ */
+public final class ExponentialBackoffRetryPolicyTest {
+
+    private RetryPolicy unit(double jitter) {
+        final Map<FailureCategory, ExponentialBackoffRetryPolicy.Schedule> schedules = ImmutableMap.of(
+            FailureCategory.LOCK_CONTENTION, 
+            new ExponentialBackoffRetryPolicy.Schedule(4, 100, 500, TimeUnit.MILLISECONDS)
+        );
+        return new ExponentialBackoffRetryPolicy(schedules, jitter);
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#getDelay(FailureCategory, int, TimeUnit)}
+     * without jitter.
+     */
+    @Test
+    public void exponential() {
+        final RetryPolicy unit = unit(0);
+        Assert.assertEquals(100, unit.getDelay(FailureCategory.LOCK_CONTENTION, 1, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(200, unit.getDelay(FailureCategory.LOCK_CONTENTION, 2, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(400, unit.getDelay(FailureCategory.LOCK_CONTENTION, 3, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(500, unit.getDelay(FailureCategory.LOCK_CONTENTION, 4, TimeUnit.MILLISECONDS));
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#getDelay(FailureCategory, int, TimeUnit)}
+     * after the last retry.
+     */
+    @Test
+    public void exhausted() {
+        Assert.assertTrue(unit(0).getDelay(FailureCategory.LOCK_CONTENTION, 5, TimeUnit.MILLISECONDS) < 0);
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#getDelay(FailureCategory, int, TimeUnit)}
+     * using a category without schedule.
+     */
+    @Test
+    public void unscheduled() {
+        Assert.assertTrue(unit(0).getDelay(FailureCategory.TIMEOUT, 1, TimeUnit.MILLISECONDS) < 0);
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#getDelay(FailureCategory, int, TimeUnit)}
+     * with jitter.
+     */
+    @Test
+    public void jitter() {
+        final RetryPolicy unit = unit(0.5);
+        for (int i = 0; i < 100; i++) {
+            final long delay = unit.getDelay(FailureCategory.LOCK_CONTENTION, 2, TimeUnit.MILLISECONDS);
+            Assert.assertTrue(delay >= 100 && delay <= 200);
+        }
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#getDelay(FailureCategory, int, TimeUnit)}
+     * with an attempt of 0.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void attemptZero() {
+        unit(0).getDelay(FailureCategory.LOCK_CONTENTION, 0, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#classify(Error)}.
+     */
+    @Test
+    public void classifyError() {
+        final RetryPolicy unit = unit(0);
+        final Error error = new Error();
+        error.setStatusCode(StatusCode.UNABLE_TO_LOCK_ROW);
+        Assert.assertSame(FailureCategory.LOCK_CONTENTION, unit.classify(error));
+        error.setStatusCode(StatusCode.REQUIRED_FIELD_MISSING);
+        Assert.assertSame(FailureCategory.PERMANENT, unit.classify(error));
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#classify(Throwable)} with an unrelated exception.
+     */
+    @Test
+    public void classifyOther() {
+        Assert.assertSame(FailureCategory.PERMANENT, unit(0).classify(new IllegalStateException()));
+    }
+    
+    /**
+     * Tests {@link ExponentialBackoffRetryPolicy#classify(Throwable)} with faults which have
+     * not been mapped to their declared exception.
+     *
+     * @throws SOAPException should not happen
+     */
+    @Test
+    public void classifySoapFault() throws SOAPException {
+        final String namespace = "urn:fault.enterprise.soap.sforce.com";
+        final SOAPFault unexpected = SOAPFactory.newInstance().createFault("Invalid Session ID",
+            new QName(namespace, "INVALID_SESSION_ID", "sf"));
+        unexpected.addDetail().addDetailEntry(new QName(namespace, "UnexpectedErrorFault", "sf"));
+        Assert.assertSame(FailureCategory.INVALID_SESSION, unit(0).classify(new SOAPFaultException(unexpected)));
+
+        final SOAPFault malformed = SOAPFactory.newInstance().createFault("Malformed query",
+            new QName(namespace, "MALFORMED_QUERY", "sf"));
+        malformed.addDetail().addDetailEntry(new QName(namespace, "MalformedQueryFault", "sf"));
+        Assert.assertSame(FailureCategory.PERMANENT, unit(0).classify(new SOAPFaultException(malformed)));
+    }
+    
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link FileSessionStore}.
+ *
+ * @author agent
+ */
+public final class FileSessionStoreTest {
+
+    private File file;
+
+    /**
+     * Creates a new temporary file before each test.
+     *
+     * @throws IOException if file creation failed
+     */
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("session", ".bin");
+        Assert.assertTrue(file.delete());
+    }
+
+    /**
+     * Deletes the temporary file after each test.
+     */
+    @After
+    public void after() {
+        file.delete();
+    }
+
+    /**
+     * Tests {@link FileSessionStore#load(long)} without a stored session.
+     */
+    @Test
+    public void loadMissing() {
+        Assert.assertNull(new FileSessionStore(file, "secret").load(1));
+    }
+
+    /**
+     * Tests {@link FileSessionStore#save(Session, long)} and {@link FileSessionStore#load(long)}.
+     */
+    @Test
+    public void saveLoad() {
+        final FileSessionStore unit = new FileSessionStore(file, "secret");
+        unit.save(new Session("abc", "https://na1.salesforce.com", 7200, 1), System.currentTimeMillis());
+
+        final Session session = unit.load(2);
+        Assert.assertNotNull(session);
+        Assert.assertEquals("abc", session.getSessionId());
+        Assert.assertEquals("https://na1.salesforce.com", session.getServerUrl());
+        Assert.assertEquals(7200, session.getTimeout(TimeUnit.SECONDS));
+        Assert.assertEquals(2, session.getGeneration());
+    }
+
+    /**
+     * Tests {@link FileSessionStore#load(long)} with a different key.
+     */
+    @Test
+    public void loadWrongKey() {
+        new FileSessionStore(file, "secret").save(
+            new Session("abc", "https://na1.salesforce.com", 7200, 1), System.currentTimeMillis());
+        Assert.assertNull(new FileSessionStore(file, "other").load(2));
+    }
+
+    /**
+     * Tests {@link FileSessionStore#load(long)} with a modified file.
+     *
+     * @throws IOException if the file could not be modified
+     */
+    @Test
+    public void loadModified() throws IOException {
+        final FileSessionStore unit = new FileSessionStore(file, "secret");
+        unit.save(new Session("abc", "https://na1.salesforce.com", 7200, 1), System.currentTimeMillis());
+
+        final RandomAccessFile modified = new RandomAccessFile(file, "rw");
+        try {
+            // the last byte of the first ciphertext block
+            modified.seek(4 + 16 + 16 + 15);
+            final int value = modified.read();
+            modified.seek(4 + 16 + 16 + 15);
+            modified.write(value ^ 1);
+        } finally {
+            modified.close();
+        }
+        Assert.assertNull(unit.load(2));
+    }
+
+    /**
+     * Tests {@link FileSessionStore#load(long)} with an expired session.
+     */
+    @Test
+    public void loadExpired() {
+        final FileSessionStore unit = new FileSessionStore(file, "secret");
+        final long lastActivity = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(3);
+        unit.save(new Session("abc", "https://na1.salesforce.com", 7200, 1), lastActivity);
+        Assert.assertNull(unit.load(2));
+    }
+
+}
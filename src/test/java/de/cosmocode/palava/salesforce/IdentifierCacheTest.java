@@ -0,0 +1,105 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sforce.soap.enterprise.sobject.Account;
+
+/**
+ * Tests {@link IdentifierCache}.
+ *
+ * @author agent
+ */
+public final class IdentifierCacheTest {
+
+    private static Account account(String number) {
+        final Account account = Salesforce.FACTORY.createAccount();
+        account.setAccountNumber(Salesforce.FACTORY.createAccountAccountNumber(number));
+        return account;
+    }
+
+    /**
+     * Tests {@link IdentifierCache#put(com.sforce.soap.enterprise.sobject.SObject, String)}.
+     */
+    @Test
+    public void object() {
+        final IdentifierCache unit = new IdentifierCache("AccountNumber", 100);
+        Assert.assertNull(unit.get(account("42")));
+        unit.put(account("42"), "001A");
+        Assert.assertEquals("001A", unit.get(account("42")));
+        Assert.assertEquals("001A", unit.get("Account", "42"));
+        Assert.assertEquals(2, unit.getHits());
+        Assert.assertEquals(1, unit.getMisses());
+        unit.remove(account("42"));
+        Assert.assertNull(unit.get("Account", "42"));
+    }
+
+    /**
+     * Tests {@link IdentifierCache#put(com.sforce.soap.enterprise.sobject.SObject, String)} with a type
+     * lacking the external identifier field.
+     */
+    @Test
+    public void missingField() {
+        final IdentifierCache unit = new IdentifierCache("ObjectId__c_missing", 100);
+        unit.put(account("42"), "001A");
+        Assert.assertEquals(0, unit.size());
+        Assert.assertNull(unit.get(account("42")));
+    }
+
+    /**
+     * Tests that {@link IdentifierCache} respects its maximum size.
+     */
+    @Test
+    public void bounded() {
+        final IdentifierCache unit = new IdentifierCache("AccountNumber", 64);
+        for (int i = 0; i < 1000; i++) {
+            unit.put("Account", Integer.toString(i), "id" + i);
+        }
+        Assert.assertTrue(unit.size() <= 64);
+        Assert.assertEquals("id999", unit.get("Account", "999"));
+    }
+
+    /**
+     * Tests {@link IdentifierCache#save(File)} and {@link IdentifierCache#load(File)}.
+     *
+     * @throws IOException if the temporary file could not be created
+     */
+    @Test
+    public void saveLoad() throws IOException {
+        final File file = File.createTempFile("identifiers", ".bin");
+        try {
+            final IdentifierCache unit = new IdentifierCache("AccountNumber", 100);
+            unit.put("Account", "1", "001A");
+            unit.put("Contact", "1", "003A");
+            unit.save(file);
+
+            final IdentifierCache restored = new IdentifierCache("AccountNumber", 100);
+            restored.load(file);
+            Assert.assertEquals(2, restored.size());
+            Assert.assertEquals("001A", restored.get("Account", "1"));
+            Assert.assertEquals("003A", restored.get("Contact", "1"));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
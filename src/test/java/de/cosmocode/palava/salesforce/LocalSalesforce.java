@@ -0,0 +1,381 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local http server answering Soap requests with canned responses, queued per operation.
+ * Operations without a queued response are answered with their default response
+ * or, lacking one, with a fault.
+ *
+ * @author agent
+ */
+final class LocalSalesforce {
+
+    private static final Pattern OPERATION = Pattern.compile("<(?:\\w+:)?Body[^>]*>\\s*<(?:\\w+:)?(\\w+)");
+
+    private static final Pattern ADDRESS = Pattern.compile("location=\"[^\"]*\"");
+
+    private static final String ENVELOPE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+        "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" " +
+        "xmlns=\"urn:enterprise.soap.sforce.com\" xmlns:sf=\"urn:fault.enterprise.soap.sforce.com\" " +
+        "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"><soapenv:Body>%s</soapenv:Body></soapenv:Envelope>";
+
+    private final ConcurrentMap<String, Queue<Response>> responses = new MapMaker().makeMap();
+
+    private final Map<String, Response> defaults = new MapMaker().makeMap();
+
+    private final List<String> requests = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final HttpServer server;
+
+    private final File wsdl;
+
+    /**
+     * Starts a new server on a random port.
+     *
+     * @throws IOException if the server could not be started
+     */
+    LocalSalesforce() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LocalSalesforce.this.handle(exchange);
+            }
+
+        });
+        server.setExecutor(executor);
+        server.start();
+        wsdl = File.createTempFile("enterprise", ".wsdl");
+        writeWsdl();
+    }
+
+    private void writeWsdl() throws IOException {
+        final InputStream input = Class.class.getResourceAsStream("/enterprise.wsdl");
+        final String original;
+        try {
+            original = new String(read(input), "UTF-8");
+        } finally {
+            input.close();
+        }
+        final String rewritten = ADDRESS.matcher(original).replaceAll(
+            Matcher.quoteReplacement("location=\"" + getUrl() + "\""));
+        final OutputStream output = new FileOutputStream(wsdl);
+        try {
+            output.write(rewritten.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Provides the Soap endpoint url of this server.
+     *
+     * @return the endpoint url
+     */
+    String getUrl() {
+        return String.format("http://localhost:%s/services/Soap/c/18.0", server.getAddress().getPort());
+    }
+
+    /**
+     * Provides a copy of the enterprise wsdl whose endpoint, including the login endpoint,
+     * is this server.
+     *
+     * @return the wsdl url
+     * @throws IOException if the url could not be created
+     */
+    URL getWsdl() throws IOException {
+        return wsdl.toURI().toURL();
+    }
+
+    /**
+     * Queues the given response body of the next request of the given operation.
+     *
+     * @param operation the operation, e.g. "update"
+     * @param body the content of the Soap body
+     */
+    void respond(String operation, String body) {
+        queueOf(operation).add(new Response(200, body, 0));
+    }
+
+    /**
+     * Queues a fault answering the next request of the given operation.
+     *
+     * @param operation the operation, e.g. "query"
+     * @param type the fault type, e.g. "UnexpectedErrorFault"
+     * @param exceptionCode the exception code, e.g. "INVALID_SESSION_ID"
+     */
+    void fail(String operation, String type, String exceptionCode) {
+        queueOf(operation).add(new Response(500, fault(type, exceptionCode), 0));
+    }
+
+    /**
+     * Queues a response answering the next request of the given operation after the given delay.
+     *
+     * @param operation the operation
+     * @param millis the delay in milliseconds
+     * @param body the content of the Soap body
+     */
+    void delay(String operation, long millis, String body) {
+        queueOf(operation).add(new Response(200, body, millis));
+    }
+
+    /**
+     * Answers all requests of the given operation which have no queued response
+     * using the given body.
+     *
+     * @param operation the operation
+     * @param body the content of the Soap body
+     */
+    void respondAlways(String operation, String body) {
+        defaults.put(operation, new Response(200, body, 0));
+    }
+
+    /**
+     * Answers all requests of the given operation which have no queued response
+     * using a fault.
+     *
+     * @param operation the operation
+     * @param type the fault type
+     * @param exceptionCode the exception code
+     */
+    void failAlways(String operation, String type, String exceptionCode) {
+        defaults.put(operation, new Response(500, fault(type, exceptionCode), 0));
+    }
+
+    /**
+     * Counts the received requests of the given operation.
+     *
+     * @param operation the operation
+     * @return the number of requests
+     */
+    int count(String operation) {
+        return requestsOf(operation).size();
+    }
+
+    /**
+     * Provides the received request envelopes of the given operation.
+     *
+     * @param operation the operation
+     * @return all requests, in order
+     */
+    List<String> requestsOf(String operation) {
+        final List<String> matching = Lists.newArrayList();
+        synchronized (requests) {
+            for (String request : requests) {
+                if (operation.equals(operationOf(request))) {
+                    matching.add(request);
+                }
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Stops the server.
+     */
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        wsdl.delete();
+    }
+
+    /**
+     * Creates the body of a successful login.
+     *
+     * @param url the server url
+     * @param sessionId the new session id
+     * @return the body
+     */
+    static String login(String url, String sessionId) {
+        return login(url, sessionId, 7200);
+    }
+
+    /**
+     * Creates the body of a successful login whose session expires after the given
+     * period of inactivity.
+     *
+     * @param url the server url
+     * @param sessionId the new session id
+     * @param secondsValid the session timeout in seconds
+     * @return the body
+     */
+    static String login(String url, String sessionId, int secondsValid) {
+        return "<loginResponse><result><passwordExpired>false</passwordExpired><sandbox>false</sandbox>" +
+            "<serverUrl>" + url + "</serverUrl><sessionId>" + sessionId + "</sessionId>" +
+            "<userId>005000000000001</userId><userInfo><sessionSecondsValid>" + secondsValid +
+            "</sessionSecondsValid></userInfo></result></loginResponse>";
+    }
+
+    /**
+     * Creates the body of a successful getServerTimestamp call.
+     *
+     * @return the body
+     */
+    static String serverTimestamp() {
+        return "<getServerTimestampResponse><result><timestamp>2010-06-01T12:00:00.000Z</timestamp>" +
+            "</result></getServerTimestampResponse>";
+    }
+
+    /**
+     * Creates the body of a fault.
+     *
+     * @param type the fault type, e.g. "LoginFault"
+     * @param exceptionCode the exception code
+     * @return the body
+     */
+    static String fault(String type, String exceptionCode) {
+        return "<soapenv:Fault><faultcode>sf:" + exceptionCode + "</faultcode><faultstring>" + exceptionCode +
+            "</faultstring><detail><sf:" + type + " xsi:type=\"sf:" + type + "\"><sf:exceptionCode>" +
+            exceptionCode + "</sf:exceptionCode><sf:exceptionMessage>" + exceptionCode +
+            "</sf:exceptionMessage></sf:" + type + "></detail></soapenv:Fault>";
+    }
+
+    /**
+     * Creates the content of one save result.
+     *
+     * @param id the id of the record
+     * @param statusCode the status code of the error, null for a successful result
+     * @return the result
+     */
+    static String saveResult(String id, String statusCode) {
+        if (statusCode == null) {
+            return "<result><id>" + id + "</id><success>true</success></result>";
+        } else {
+            return "<result><errors><message>" + statusCode + "</message><statusCode>" + statusCode +
+                "</statusCode></errors><id xsi:nil=\"true\"/><success>false</success></result>";
+        }
+    }
+
+    /**
+     * Creates the content of one successful upsert result.
+     *
+     * @param id the id of the record
+     * @param created whether the record has been created
+     * @return the result
+     */
+    static String upsertResult(String id, boolean created) {
+        return "<result><created>" + created + "</created><id>" + id + "</id><success>true</success></result>";
+    }
+
+    private Queue<Response> queueOf(String operation) {
+        final Queue<Response> queue = new ConcurrentLinkedQueue<Response>();
+        final Queue<Response> existing = responses.putIfAbsent(operation, queue);
+        return existing == null ? queue : existing;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final InputStream body = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+            ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+        final String request = new String(read(body), "UTF-8");
+        requests.add(request);
+
+        final String operation = operationOf(request);
+        final Queue<Response> queue = responses.get(operation);
+        Response response = queue == null ? null : queue.poll();
+        if (response == null) {
+            response = defaults.get(operation);
+        }
+        if (response == null) {
+            response = new Response(500, fault("UnexpectedErrorFault", "UNKNOWN_EXCEPTION"), 0);
+        }
+
+        if (response.delay > 0) {
+            try {
+                Thread.sleep(response.delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exchange.close();
+                return;
+            }
+        }
+
+        final byte[] bytes = String.format(ENVELOPE, response.body).getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        final OutputStream output = exchange.getResponseBody();
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static String operationOf(String request) {
+        final Matcher matcher = OPERATION.matcher(request);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * A canned response.
+     */
+    private static final class Response {
+
+        private final int status;
+
+        private final String body;
+
+        private final long delay;
+
+        Response(int status, String body, long delay) {
+            this.status = status;
+            this.body = body;
+            this.delay = delay;
+        }
+
+    }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Tests {@link PartitionedQuery}.
+ *
+ * @author agent
+ */
+public final class PartitionedQueryTest {
+
+    private ExecutorService executor;
+
+    /**
+     * Creates a single threaded executor before each test.
+     */
+    @Before
+    public void before() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Shuts the executor down after each test.
+     */
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    private static QueryResult page(String name, String next) {
+        final QueryResult result = new QueryResult();
+        final Account account = new Account();
+        account.setName(Salesforce.FACTORY.createAccountName(name));
+        result.getRecords().add(account);
+        result.setDone(next == null);
+        result.setQueryLocator(next);
+        return result;
+    }
+
+    /**
+     * Creates a service which returns two pages per partition.
+     */
+    private static SalesforceService service(List<String> conditions) {
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        for (String condition : conditions) {
+            final String query = QueryPartitions.restrict("SELECT Name FROM Account", condition);
+            EasyMock.expect(service.execute(query)).andReturn(page(condition + "-1", condition));
+            EasyMock.expect(service.queryMore(condition)).andReturn(page(condition + "-2", null));
+        }
+        EasyMock.replay(service);
+        return service;
+    }
+
+    private static List<String> names(PartitionedQuery query) {
+        final List<String> names = Lists.newArrayList();
+        while (query.hasNext()) {
+            final SObject next = query.next();
+            names.add(Account.class.cast(next).getName().getValue());
+        }
+        return names;
+    }
+
+    /**
+     * Tests {@link PartitionedQuery} in ordered mode using an executor with a single thread
+     * which starts the partitions in reverse order. Later partitions must not block the
+     * only thread while the first one did not start yet.
+     */
+    @Test(timeout = 10000)
+    public void orderedWithFewerThreads() {
+        final List<String> conditions = ImmutableList.of("a", "b", "c");
+        final SalesforceService service = service(conditions);
+        final List<Runnable> tasks = Lists.newArrayList();
+        final AtomicBoolean started = new AtomicBoolean();
+        final PartitionedQuery unit = new PartitionedQuery(service, "SELECT Name FROM Account", conditions, true,
+            new Executor() {
+
+                @Override
+                public void execute(Runnable command) {
+                    if (started.get()) {
+                        executor.execute(command);
+                    } else {
+                        tasks.add(command);
+                    }
+                }
+
+            }, 1);
+
+        started.set(true);
+        for (Runnable task : Lists.reverse(tasks)) {
+            executor.execute(task);
+        }
+
+        Assert.assertEquals(ImmutableList.of("a-1", "a-2", "b-1", "b-2", "c-1", "c-2"), names(unit));
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link PartitionedQuery} in ordered mode using an executor which runs tasks
+     * in the calling thread. Partitions which have not been reached yet must stop fetching
+     * once their buffer is full and continue when the caller takes their pages.
+     */
+    @Test(timeout = 10000)
+    public void orderedBounded() {
+        final SalesforceService service = EasyMock.createStrictMock("service", SalesforceService.class);
+        final String a = QueryPartitions.restrict("SELECT Name FROM Account", "a");
+        final String b = QueryPartitions.restrict("SELECT Name FROM Account", "b");
+        EasyMock.expect(service.execute(a)).andReturn(page("a-1", "a"));
+        EasyMock.expect(service.execute(b)).andReturn(page("b-1", "b"));
+        EasyMock.expect(service.queryMore("a")).andReturn(page("a-2", null));
+        EasyMock.expect(service.queryMore("b")).andReturn(page("b-2", "b2"));
+        EasyMock.expect(service.queryMore("b2")).andReturn(page("b-3", null));
+        EasyMock.replay(service);
+
+        final PartitionedQuery unit = new PartitionedQuery(service, "SELECT Name FROM Account",
+            ImmutableList.of("a", "b"), true, new Executor() {
+
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+
+            }, 1);
+
+        Assert.assertEquals(ImmutableList.of("a-1", "a-2", "b-1", "b-2", "b-3"), names(unit));
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link PartitionedQuery} in unordered mode using an executor with a single thread.
+     */
+    @Test(timeout = 10000)
+    public void unorderedWithFewerThreads() {
+        final List<String> conditions = ImmutableList.of("a", "b", "c");
+        final SalesforceService service = service(conditions);
+        final PartitionedQuery unit = new PartitionedQuery(service, "SELECT Name FROM Account", conditions, false,
+            executor, 1);
+
+        final List<String> names = names(unit);
+        Assert.assertEquals(6, names.size());
+        Assert.assertTrue(names.containsAll(ImmutableList.of("a-1", "a-2", "b-1", "b-2", "c-1", "c-2")));
+        EasyMock.verify(service);
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+
+/**
+ * Tests {@link ProjectedQuery} against a {@link DefaultSalesforceService} using a {@link LocalSalesforce}.
+ *
+ * @author agent
+ */
+public final class ProjectedQueryTest {
+
+    private LocalSalesforce server;
+
+    private DefaultSalesforceService service;
+
+    /**
+     * Starts the server and creates a service logging into it.
+     *
+     * @throws IOException if the server could not be started
+     * @throws LifecycleException if initialization failed
+     */
+    @Before
+    public void before() throws IOException, LifecycleException {
+        server = new LocalSalesforce();
+        server.respondAlways("login", LocalSalesforce.login(server.getUrl(), "session"));
+        server.respondAlways("logout", "<logoutResponse/>");
+
+        final Map<FailureCategory, ExponentialBackoffRetryPolicy.Schedule> schedules =
+            new EnumMap<FailureCategory, ExponentialBackoffRetryPolicy.Schedule>(FailureCategory.class);
+        schedules.put(FailureCategory.INVALID_SESSION,
+            new ExponentialBackoffRetryPolicy.Schedule(1, 0, 0, TimeUnit.MILLISECONDS));
+
+        service = new DefaultSalesforceService(server.getWsdl(),
+            "username", "password", "token", 5, TimeUnit.SECONDS);
+        service.setRetryPolicy(new ExponentialBackoffRetryPolicy(schedules, 0));
+        service.initialize();
+    }
+
+    /**
+     * Disposes the service and stops the server after each test.
+     *
+     * @throws LifecycleException if disposing failed
+     */
+    @After
+    public void after() throws LifecycleException {
+        service.dispose();
+        server.stop();
+    }
+
+    private static String page(String locator, String id, String name) {
+        return "<queryResponse><result><done>" + (locator == null) + "</done>" +
+            (locator == null ? "<queryLocator xsi:nil=\"true\"/>" : "<queryLocator>" + locator + "</queryLocator>") +
+            "<records xmlns:so=\"urn:sobject.enterprise.soap.sforce.com\" xsi:type=\"so:Account\">" +
+            "<so:Id>" + id + "</so:Id><so:Name>" + name + "</so:Name></records>" +
+            "<size>2</size></result></queryResponse>";
+    }
+
+    /**
+     * Tests {@link ProjectedQuery} with two pages, whose first request is rejected because
+     * of an invalid session. The request has to be sent again using a new session.
+     */
+    @Test
+    public void pages() {
+        server.fail("query", "UnexpectedErrorFault", "INVALID_SESSION_ID");
+        server.respond("query", page("01g-200", "001A", "Acme"));
+        server.respond("queryMore", page(null, "001B", "Initech"));
+
+        final ProjectedQuery<String[]> unit = new ProjectedQuery<String[]>(service,
+            Projection.of("Id", "Name"), "Account", 200);
+        final List<String> names = Lists.newArrayList();
+        while (unit.hasNext()) {
+            names.add(unit.next()[1]);
+        }
+
+        Assert.assertEquals(ImmutableList.of("Acme", "Initech"), names);
+        Assert.assertEquals(2, server.count("login"));
+        Assert.assertEquals(2, server.count("query"));
+        Assert.assertTrue(server.requestsOf("query").get(1).contains("batchSize>200<"));
+        Assert.assertTrue(server.requestsOf("queryMore").get(0).contains("01g-200"));
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link ProjectionReader}.
+ *
+ * @author agent
+ */
+public final class ProjectionReaderTest {
+
+    private static final String NAMESPACES = " xmlns=\"urn:enterprise.soap.sforce.com\""
+        + " xmlns:sf=\"urn:sobject.enterprise.soap.sforce.com\""
+        + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"";
+
+    /**
+     * Creates a reader positioned at the start tag of the given payload.
+     */
+    private static XMLStreamReader payload(String payload) throws XMLStreamException {
+        final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(payload));
+        reader.nextTag();
+        return reader;
+    }
+
+    /**
+     * Tests {@link ProjectionReader#read(XMLStreamReader)} with a partial result.
+     *
+     * @throws XMLStreamException should not happen
+     */
+    @Test
+    public void read() throws XMLStreamException {
+        final ProjectionReader<String[]> unit = new ProjectionReader<String[]>(
+            Projection.of("Id", "Name", "Account.Name"));
+        final ProjectionReader.Page<String[]> page = unit.read(payload("<queryResponse" + NAMESPACES + "><result>"
+            + "<done>false</done><queryLocator>01g-200</queryLocator>"
+            + "<records xsi:type=\"sf:Contact\"><sf:Id>003A</sf:Id><sf:Name>Jane &amp; John</sf:Name>"
+            + "<sf:Account xsi:type=\"sf:Account\"><sf:Id>001A</sf:Id><sf:Name>Acme</sf:Name></sf:Account>"
+            + "<sf:Email>ignored@example.com</sf:Email></records>"
+            + "<records xsi:type=\"sf:Contact\"><sf:Id>003B</sf:Id><sf:Name xsi:nil=\"true\"/>"
+            + "<sf:Account xsi:nil=\"true\"/></records>"
+            + "<size>2</size></result></queryResponse>"));
+
+        Assert.assertFalse(page.isDone());
+        Assert.assertEquals("01g-200", page.getLocator());
+        Assert.assertEquals(2, page.getRecords().size());
+        Assert.assertArrayEquals(new String[] {"003A", "Jane & John", "Acme"}, page.getRecords().get(0));
+        Assert.assertArrayEquals(new String[] {"003B", null, null}, page.getRecords().get(1));
+    }
+
+    /**
+     * Tests {@link ProjectionReader#read(XMLStreamReader)} with a payload which is followed
+     * by further content. Reading has to stop at the end tag of the payload.
+     *
+     * @throws XMLStreamException should not happen
+     */
+    @Test
+    public void readPayloadOnly() throws XMLStreamException {
+        final ProjectionReader<String[]> unit = new ProjectionReader<String[]>(Projection.of("Id"));
+        final XMLStreamReader reader = payload("<Body" + NAMESPACES + "><queryResponse><result><done>true</done>"
+            + "<queryLocator xsi:nil=\"true\"/><size>0</size></result></queryResponse><trailer/></Body>");
+        reader.nextTag();
+        final ProjectionReader.Page<String[]> page = unit.read(reader);
+
+        Assert.assertTrue(page.isDone());
+        Assert.assertNull(page.getLocator());
+        Assert.assertTrue(page.getRecords().isEmpty());
+        Assert.assertEquals(XMLStreamReader.START_ELEMENT, reader.nextTag());
+        Assert.assertEquals("trailer", reader.getLocalName());
+    }
+
+}
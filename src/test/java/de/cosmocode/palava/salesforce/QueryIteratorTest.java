@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.QueryResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+/**
+ * Tests {@link QueryIterator}.
+ *
+ * @author agent
+ */
+public final class QueryIteratorTest {
+
+    private ExecutorService executor;
+
+    /**
+     * Creates the executor before each test.
+     */
+    @Before
+    public void before() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Shuts the executor down after each test.
+     */
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    private static QueryResult page(int size, String next) {
+        final QueryResult result = new QueryResult();
+        for (int i = 0; i < size; i++) {
+            result.getRecords().add(new Account());
+        }
+        result.setDone(next == null);
+        result.setQueryLocator(next);
+        return result;
+    }
+
+    private static SalesforceService service() {
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.execute("SELECT Id FROM Account")).andReturn(page(3, "loc-1"));
+        EasyMock.expect(service.queryMore("loc-1")).andReturn(page(2, "loc-2"));
+        EasyMock.expect(service.queryMore("loc-2")).andReturn(page(4, null));
+        EasyMock.replay(service);
+        return service;
+    }
+
+    private static int count(QueryIterator iterator) {
+        final List<SObject> all = Lists.newArrayList();
+        while (iterator.hasNext()) {
+            all.add(iterator.next());
+        }
+        return all.size();
+    }
+
+    /**
+     * Tests {@link QueryIterator} with background fetching.
+     */
+    @Test
+    public void prefetching() {
+        final SalesforceService service = service();
+        Assert.assertEquals(9, count(new QueryIterator(service, "SELECT Id FROM Account", executor, 1)));
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link QueryIterator} without an executor.
+     */
+    @Test
+    public void sequential() {
+        final SalesforceService service = service();
+        Assert.assertEquals(9, count(new QueryIterator(service, "SELECT Id FROM Account", null, 1)));
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link QueryIterator#cancel()}.
+     */
+    @Test
+    public void cancel() {
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.execute("SELECT Id FROM Account")).andReturn(page(1, "loc-1"));
+        EasyMock.expect(service.queryMore("loc-1")).andStubReturn(page(1, "loc-1"));
+        EasyMock.replay(service);
+
+        final QueryIterator unit = new QueryIterator(service, "SELECT Id FROM Account", executor, 2);
+        Assert.assertTrue(unit.hasNext());
+        unit.next();
+        unit.cancel();
+        Assert.assertFalse(unit.hasNext());
+    }
+
+    /**
+     * Tests {@link QueryIterator#hasNext()} after the background fetch has been interrupted
+     * while waiting for room in the page queue.
+     */
+    @Test(timeout = 10000)
+    public void interrupted() {
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.execute("SELECT Id FROM Account")).andReturn(page(1, "loc-1"));
+        EasyMock.expect(service.queryMore("loc-1")).andStubReturn(page(1, "loc-1"));
+        EasyMock.replay(service);
+
+        final QueryIterator unit = new QueryIterator(service, "SELECT Id FROM Account", executor, 1);
+        unit.next();
+        // the second page comes from the queue, so the background fetch is running
+        unit.next();
+        executor.shutdownNow();
+        try {
+            while (unit.hasNext()) {
+                unit.next();
+            }
+            Assert.fail("Expected SalesforceException");
+        } catch (SalesforceException e) {
+            Assert.assertTrue(e.getCause() instanceof InterruptedException);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests {@link QueryPartitions}.
+ *
+ * @author agent
+ */
+public final class QueryPartitionsTest {
+
+    /**
+     * Tests {@link QueryPartitions#restrict(String, String)} without a where clause.
+     */
+    @Test
+    public void restrict() {
+        Assert.assertEquals("SELECT Id FROM Account WHERE (Id < 'b') ORDER BY Id",
+            QueryPartitions.restrict("SELECT Id FROM Account ORDER BY Id", "Id < 'b'"));
+    }
+
+    /**
+     * Tests {@link QueryPartitions#restrict(String, String)} with an existing where clause.
+     */
+    @Test
+    public void restrictWhere() {
+        Assert.assertEquals("SELECT Id FROM Account WHERE (Id < 'b') AND (Name = 'x where y') ORDER BY Id",
+            QueryPartitions.restrict("SELECT Id FROM Account WHERE Name = 'x where y' ORDER BY Id", "Id < 'b'"));
+    }
+
+    /**
+     * Tests {@link QueryPartitions#restrict(String, String)} with a limit clause.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void restrictLimit() {
+        QueryPartitions.restrict("SELECT Id FROM Account ORDER BY Id LIMIT 10", "Id < 'b'");
+    }
+
+    /**
+     * Tests {@link QueryPartitions#restrict(String, String)} with an offset clause.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void restrictOffset() {
+        QueryPartitions.restrict("SELECT Id FROM Account ORDER BY Id OFFSET 20", "Id < 'b'");
+    }
+
+    /**
+     * Tests {@link QueryPartitions#restrict(String, String)} with a where clause in a sub query.
+     */
+    @Test
+    public void restrictSubQuery() {
+        Assert.assertEquals(
+            "SELECT Id, (SELECT Id FROM Contacts WHERE Email = null) FROM Account WHERE (Id < 'b')",
+            QueryPartitions.restrict("SELECT Id, (SELECT Id FROM Contacts WHERE Email = null) FROM Account",
+                "Id < 'b'"));
+    }
+
+    /**
+     * Tests {@link QueryPartitions#byNumber(String, long, long, int)}.
+     */
+    @Test
+    public void byNumber() {
+        final List<String> expected = ImmutableList.of(
+            "Number__c < 4",
+            "Number__c >= 4 AND Number__c < 7",
+            "Number__c >= 7 OR Number__c = null"
+        );
+        Assert.assertEquals(expected, QueryPartitions.byNumber("Number__c", 1, 9, 3));
+    }
+
+    /**
+     * Tests {@link QueryPartitions#byBoundaries(String, List)}.
+     */
+    @Test
+    public void byBoundaries() {
+        final List<String> expected = ImmutableList.of(
+            "Id < '001M'",
+            "Id >= '001M' OR Id = null"
+        );
+        Assert.assertEquals(expected, QueryPartitions.byBoundaries("Id", ImmutableList.of("001M")));
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.ws.BindingProvider;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.Soap;
+import com.sun.xml.ws.developer.WSBindingProvider;
+
+/**
+ * Tests {@link SoapPool}.
+ *
+ * @author agent
+ */
+public final class SoapPoolTest {
+
+    private int created;
+
+    /**
+     * Creates a pool whose factory counts the created endpoints.
+     */
+    private SoapPool unit(int size) {
+        return new SoapPool(size, new Supplier<Soap>() {
+
+            @Override
+            public Soap get() {
+                created++;
+                final Map<String, Object> context = Maps.newHashMap();
+                final BindingSoap soap = EasyMock.createNiceMock("soap", BindingSoap.class);
+                EasyMock.expect(soap.getRequestContext()).andStubReturn(context);
+                EasyMock.replay(soap);
+                return soap;
+            }
+
+        });
+    }
+
+    private static Session session(long generation) {
+        return new Session("session-" + generation, "https://" + generation + ".salesforce.com", 7200, generation);
+    }
+
+    private static Object addressOf(SoapPool.Endpoint endpoint) {
+        final BindingProvider provider = BindingProvider.class.cast(endpoint.getSoap());
+        return provider.getRequestContext().get(BindingProvider.ENDPOINT_ADDRESS_PROPERTY);
+    }
+
+    /**
+     * Tests {@link SoapPool#checkout(Session, long, TimeUnit)} after an endpoint has been returned.
+     * The endpoint has to be reused instead of creating another one.
+     */
+    @Test
+    public void checkoutReuses() {
+        final SoapPool unit = unit(2);
+        final SoapPool.Endpoint first = unit.checkout(session(1), 1, TimeUnit.SECONDS);
+        unit.checkin(first);
+        final SoapPool.Endpoint second = unit.checkout(session(1), 1, TimeUnit.SECONDS);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, created);
+        Assert.assertEquals(1, unit.getCreated());
+    }
+
+    /**
+     * Tests {@link SoapPool#checkout(Session, long, TimeUnit)} with more concurrent
+     * checkouts than the size of the pool.
+     */
+    @Test
+    public void checkoutBounded() {
+        final SoapPool unit = unit(2);
+        final SoapPool.Endpoint first = unit.checkout(session(1), 1, TimeUnit.SECONDS);
+        final SoapPool.Endpoint second = unit.checkout(session(1), 1, TimeUnit.SECONDS);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, created);
+
+        try {
+            unit.checkout(session(1), 50, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected timeout");
+        } catch (SalesforceException e) {
+            Assert.assertEquals(2, created);
+            Assert.assertEquals(1, unit.getTimeouts());
+        }
+
+        unit.checkin(second);
+        Assert.assertSame(second, unit.checkout(session(1), 50, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(2, created);
+    }
+
+    /**
+     * Tests {@link SoapPool#checkout(Session, long, TimeUnit)} with sessions of different generations.
+     * Newer sessions have to be applied, older ones must not replace a newer one.
+     */
+    @Test
+    public void checkoutAppliesNewerSessions() {
+        final SoapPool unit = unit(1);
+        final Session second = session(2);
+
+        SoapPool.Endpoint endpoint = unit.checkout(second, 1, TimeUnit.SECONDS);
+        Assert.assertSame(second, endpoint.getSession());
+        Assert.assertEquals("https://2.salesforce.com", addressOf(endpoint));
+        unit.checkin(endpoint);
+
+        endpoint = unit.checkout(session(1), 1, TimeUnit.SECONDS);
+        Assert.assertSame(second, endpoint.getSession());
+        Assert.assertEquals("https://2.salesforce.com", addressOf(endpoint));
+        unit.checkin(endpoint);
+
+        final Session third = session(3);
+        endpoint = unit.checkout(third, 1, TimeUnit.SECONDS);
+        Assert.assertSame(third, endpoint.getSession());
+        Assert.assertEquals("https://3.salesforce.com", addressOf(endpoint));
+    }
+
+    /**
+     * A {@link Soap} endpoint as created by JAX-WS.
+     */
+    private interface BindingSoap extends Soap, WSBindingProvider {
+
+    }
+
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.sobject.Account;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.Entities;
+import de.cosmocode.palava.salesforce.SalesforceException;
+
+/**
+ * Tests {@link BulkSyncEngine}.
+ *
+ * @author agent
+ */
+public final class BulkSyncEngineTest {
+
+    private static final Function<EntityBase, Account> COPY = new Function<EntityBase, Account>() {
+
+        @Override
+        public Account apply(EntityBase from) {
+            return new Account();
+        }
+
+    };
+
+    private static List<EntityBase> entities(int count) {
+        final List<EntityBase> entities = Lists.newArrayList();
+        for (int i = 1; i <= count; i++) {
+            entities.add(Entities.entity(i));
+        }
+        return entities;
+    }
+
+    /**
+     * Tests {@link BulkSyncEngine#sync(java.util.Iterator, Function, String, BulkSyncListener, boolean)}
+     * with multiple batches.
+     */
+    @Test
+    public void sync() {
+        final LocalBulkClient client = new LocalBulkClient(false);
+        final BulkSyncEngine unit = new BulkSyncEngine(client, 2, 1, TimeUnit.MILLISECONDS);
+        final Map<Long, BulkResult> results = Maps.newLinkedHashMap();
+
+        final long failed = unit.sync(entities(5).iterator(), COPY, "ObjectId__c", new BulkSyncListener() {
+
+            @Override
+            public void completed(long entityId, BulkResult result) {
+                results.put(entityId, result);
+            }
+
+        }, false);
+
+        Assert.assertEquals(0, failed);
+        Assert.assertEquals(Arrays.asList(2, 2, 1), client.sizes);
+        Assert.assertTrue(client.closed);
+        Assert.assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), Lists.newArrayList(results.keySet()));
+    }
+
+    /**
+     * Tests {@link BulkSyncEngine#sync(java.util.Iterator, Function, String, BulkSyncListener, boolean)}
+     * with failing records and failFast enabled.
+     */
+    @Test(expected = SalesforceException.class)
+    public void syncFailFast() {
+        final BulkSyncEngine unit = new BulkSyncEngine(new LocalBulkClient(true), 2, 1, TimeUnit.MILLISECONDS);
+        unit.sync(entities(3).iterator(), COPY, "ObjectId__c", new BulkSyncListener() {
+
+            @Override
+            public void completed(long entityId, BulkResult result) {
+
+            }
+
+        }, true);
+    }
+
+    /**
+     * Tests {@link BulkSyncEngine#sync(java.util.Iterator, Function, String, BulkSyncListener, boolean)}
+     * without any entities.
+     */
+    @Test
+    public void syncEmpty() {
+        final LocalBulkClient client = new LocalBulkClient(false);
+        final BulkSyncEngine unit = new BulkSyncEngine(client, 2, 1, TimeUnit.MILLISECONDS);
+        final List<EntityBase> empty = Lists.newArrayList();
+        Assert.assertEquals(0, unit.sync(empty.iterator(), COPY, "ObjectId__c", new BulkSyncListener() {
+
+            @Override
+            public void completed(long entityId, BulkResult result) {
+                Assert.fail();
+            }
+
+        }, false));
+        Assert.assertFalse(client.closed);
+    }
+
+    /**
+     * An in-memory {@link BulkClient} which completes every batch on the second poll.
+     */
+    private static final class LocalBulkClient implements BulkClient {
+
+        private final boolean failing;
+
+        private final List<Integer> sizes = Lists.newArrayList();
+
+        private final Map<String, Integer> polls = Maps.newHashMap();
+
+        private boolean closed;
+
+        LocalBulkClient(boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public String createJob(String object, BulkOperation operation, String externalIdentifier) {
+            Assert.assertEquals("Account", object);
+            Assert.assertEquals(BulkOperation.UPSERT, operation);
+            return "job";
+        }
+
+        @Override
+        public String addBatch(String jobId, byte[] csv) {
+            Assert.assertFalse(closed);
+            // every record is one line, plus the header
+            int lines = 0;
+            for (byte b : csv) {
+                if (b == '\n') lines++;
+            }
+            sizes.add(lines - 1);
+            return "batch" + sizes.size();
+        }
+
+        @Override
+        public void closeJob(String jobId) {
+            closed = true;
+        }
+
+        @Override
+        public BulkBatchState getBatchState(String jobId, String batchId) {
+            final Integer count = polls.get(batchId);
+            polls.put(batchId, count == null ? 1 : count + 1);
+            return count == null ? BulkBatchState.IN_PROGRESS : BulkBatchState.COMPLETED;
+        }
+
+        @Override
+        public List<BulkResult> getBatchResults(String jobId, String batchId) {
+            final int size = sizes.get(Integer.parseInt(batchId.substring("batch".length())) - 1);
+            final List<BulkResult> results = Lists.newArrayList();
+            for (int i = 0; i < size; i++) {
+                results.add(new BulkResult(failing ? null : "id" + i, !failing, !failing,
+                    failing ? "FIELD_INTEGRITY_EXCEPTION" : null));
+            }
+            return results;
+        }
+
+    }
+
+}
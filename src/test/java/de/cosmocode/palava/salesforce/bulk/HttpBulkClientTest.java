@@ -0,0 +1,103 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.bulk;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.palava.salesforce.SalesforceException;
+
+/**
+ * Tests {@link HttpBulkClient}.
+ *
+ * @author agent
+ */
+public final class HttpBulkClientTest {
+
+    private static byte[] csv(String content) throws UnsupportedEncodingException {
+        return content.getBytes("UTF-8");
+    }
+
+    /**
+     * Tests {@link HttpBulkClient#parseResults(byte[])} with simple rows.
+     *
+     * @throws UnsupportedEncodingException should not happen
+     */
+    @Test
+    public void parseResults() throws UnsupportedEncodingException {
+        final List<BulkResult> results = HttpBulkClient.parseResults(csv(
+            "\"Id\",\"Success\",\"Created\",\"Error\"\n" +
+            "\"001A\",\"true\",\"true\",\"\"\n" +
+            "\"\",\"false\",\"false\",\"REQUIRED_FIELD_MISSING:Required fields are missing: [Name]:Name --\"\n"));
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("001A", results.get(0).getId());
+        Assert.assertTrue(results.get(0).isSuccess());
+        Assert.assertTrue(results.get(0).isCreated());
+        Assert.assertNull(results.get(0).getError());
+        Assert.assertNull(results.get(1).getId());
+        Assert.assertFalse(results.get(1).isSuccess());
+        Assert.assertEquals("REQUIRED_FIELD_MISSING:Required fields are missing: [Name]:Name --",
+            results.get(1).getError());
+    }
+
+    /**
+     * Tests {@link HttpBulkClient#parseResults(byte[])} with quoted commas, escaped quotes
+     * and line breaks inside of a value.
+     *
+     * @throws UnsupportedEncodingException should not happen
+     */
+    @Test
+    public void parseResultsQuoted() throws UnsupportedEncodingException {
+        final List<BulkResult> results = HttpBulkClient.parseResults(csv(
+            "\"Id\",\"Success\",\"Created\",\"Error\"\r\n" +
+            "\"\",\"false\",\"false\",\"FIELD_CUSTOM_VALIDATION_EXCEPTION:\"\"Phone\"\", invalid\r\nsecond line\"\r\n" +
+            "\"001B\",\"true\",\"false\",\"\"\r\n"));
+        Assert.assertEquals(2, results.size());
+        Assert.assertEquals("FIELD_CUSTOM_VALIDATION_EXCEPTION:\"Phone\", invalid\r\nsecond line",
+            results.get(0).getError());
+        Assert.assertEquals("001B", results.get(1).getId());
+        Assert.assertTrue(results.get(1).isSuccess());
+        Assert.assertFalse(results.get(1).isCreated());
+    }
+
+    /**
+     * Tests {@link HttpBulkClient#parseResults(byte[])} without a trailing line break.
+     *
+     * @throws UnsupportedEncodingException should not happen
+     */
+    @Test
+    public void parseResultsUnterminatedLine() throws UnsupportedEncodingException {
+        final List<BulkResult> results = HttpBulkClient.parseResults(csv(
+            "\"Id\",\"Success\",\"Created\",\"Error\"\n\"001C\",\"true\",\"false\",\"\""));
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals("001C", results.get(0).getId());
+    }
+
+    /**
+     * Tests {@link HttpBulkClient#parseResults(byte[])} with an unterminated quoted value.
+     *
+     * @throws UnsupportedEncodingException should not happen
+     */
+    @Test(expected = SalesforceException.class)
+    public void parseResultsUnterminatedQuote() throws UnsupportedEncodingException {
+        HttpBulkClient.parseResults(csv("\"Id\",\"Success\",\"Created\",\"Error\"\n\"001D\",\"true"));
+    }
+
+}
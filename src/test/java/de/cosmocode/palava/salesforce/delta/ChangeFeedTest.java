@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.delta;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sforce.soap.enterprise.DeletedRecord;
+import com.sforce.soap.enterprise.GetDeletedResult;
+import com.sforce.soap.enterprise.GetUpdatedResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * Tests {@link ChangeFeed}.
+ *
+ * @author agent
+ */
+public final class ChangeFeedTest {
+
+    /**
+     * A {@link WatermarkStore} backed by a map.
+     */
+    private static final class MapWatermarkStore implements WatermarkStore {
+
+        private final Map<String, Date> watermarks = Maps.newHashMap();
+
+        @Override
+        public Date load(String type) {
+            return watermarks.get(type);
+        }
+
+        @Override
+        public void save(String type, Date watermark) {
+            watermarks.put(type, watermark);
+        }
+
+    }
+
+    /**
+     * A {@link ChangeListener} collecting all changes.
+     */
+    private static final class CollectingListener implements ChangeListener {
+
+        private final List<SObject> updated = Lists.newArrayList();
+
+        private final List<String> deleted = Lists.newArrayList();
+
+        @Override
+        public void updated(String type, List<SObject> objects) {
+            updated.addAll(objects);
+        }
+
+        @Override
+        public void deleted(String type, List<String> identifiers) {
+            deleted.addAll(identifiers);
+        }
+
+    }
+
+    /**
+     * Tests {@link ChangeFeed#poll(String, String)} without a watermark.
+     */
+    @Test
+    public void initial() {
+        final Date now = new Date();
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.getServerTimestamp()).andReturn(now);
+        EasyMock.replay(service);
+        final MapWatermarkStore store = new MapWatermarkStore();
+        final CollectingListener listener = new CollectingListener();
+
+        Assert.assertEquals(0, new ChangeFeed(service, store, listener).poll("Account", "Id"));
+        Assert.assertEquals(now, store.load("Account"));
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link ChangeFeed#poll(String, String)} with a server clock running behind the local one.
+     */
+    @Test
+    public void serverTime() {
+        final Date watermark = new Date(System.currentTimeMillis() - 3600000);
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.getServerTimestamp()).andReturn(new Date(watermark.getTime() + 30000));
+        EasyMock.replay(service);
+        final MapWatermarkStore store = new MapWatermarkStore();
+        store.save("Account", watermark);
+        final CollectingListener listener = new CollectingListener();
+
+        Assert.assertEquals(0, new ChangeFeed(service, store, listener).poll("Account", "Id"));
+        Assert.assertEquals(watermark, store.load("Account"));
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link ChangeFeed#poll(String, String)} with updated and deleted objects.
+     */
+    @Test
+    public void changes() {
+        final Date now = new Date();
+        final Date watermark = new Date(now.getTime() - 600000);
+        final Date covered = new Date(now.getTime() - 60000);
+
+        final GetUpdatedResult updated = new GetUpdatedResult();
+        updated.getIds().add("001A");
+        updated.getIds().add("001B");
+        updated.setLatestDateCovered(Salesforce.toXMLGregorianCalendar(covered));
+
+        final GetDeletedResult deleted = new GetDeletedResult();
+        final DeletedRecord record = new DeletedRecord();
+        record.setId("001C");
+        deleted.getDeletedRecords().add(record);
+        deleted.setLatestDateCovered(Salesforce.toXMLGregorianCalendar(now));
+
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.getServerTimestamp()).andReturn(now);
+        EasyMock.expect(service.getUpdated("Account", watermark, now)).andReturn(updated);
+        EasyMock.expect(service.getDeleted("Account", watermark, now)).andReturn(deleted);
+        final List<SObject> retrieved = Lists.newArrayList();
+        retrieved.add(new Account());
+        retrieved.add(null);
+        EasyMock.expect(service.retrieve("Id, Name", "Account", ImmutableList.of("001A", "001B")))
+            .andReturn(retrieved);
+        EasyMock.replay(service);
+
+        final MapWatermarkStore store = new MapWatermarkStore();
+        store.save("Account", watermark);
+        final CollectingListener listener = new CollectingListener();
+
+        Assert.assertEquals(2, new ChangeFeed(service, store, listener).poll("Account", "Id, Name"));
+        Assert.assertEquals(1, listener.updated.size());
+        Assert.assertEquals(ImmutableList.of("001C"), listener.deleted);
+        Assert.assertEquals(covered.getTime() / 1000, store.load("Account").getTime() / 1000);
+        EasyMock.verify(service);
+    }
+
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.Entities;
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * Tests the upsert path of {@link AbstractSyncService#sync(EntityBase, Function)}.
+ *
+ * @author agent
+ */
+public final class AbstractSyncServiceUpsertTest {
+
+    private final List<SObject> sent = Lists.newArrayList();
+
+    private ExecutorService executor;
+
+    private SalesforceService service;
+
+    /**
+     * Creates a new executor and service before each test.
+     */
+    @Before
+    public void before() {
+        executor = Executors.newSingleThreadExecutor();
+        service = EasyMock.createMock("service", SalesforceService.class);
+    }
+
+    /**
+     * Shuts the executor down after each test.
+     */
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    private static Function<EntityBase, Account> copy(final String name, final String phone) {
+        return new Function<EntityBase, Account>() {
+
+            @Override
+            public Account apply(EntityBase from) {
+                final Account account = Salesforce.FACTORY.createAccount();
+                account.setAccountNumber(Salesforce.FACTORY.createAccountAccountNumber(Long.toString(from.getId())));
+                account.setName(Salesforce.FACTORY.createAccountName(name));
+                account.setPhone(Salesforce.FACTORY.createAccountPhone(phone));
+                return account;
+            }
+
+        };
+    }
+
+    private static UpsertResult result(boolean created) {
+        final UpsertResult result = new UpsertResult();
+        result.setSuccess(true);
+        result.setCreated(created);
+        return result;
+    }
+
+    /**
+     * Records every upserted object and answers with the given results in order.
+     */
+    private void expectUpserts(final Object... outcomes) {
+        EasyMock.expect(service.upsert(EasyMock.isA(SObject.class))).andStubAnswer(new IAnswer<UpsertResult>() {
+
+            @Override
+            public UpsertResult answer() {
+                final SObject object = SObject.class.cast(EasyMock.getCurrentArguments()[0]);
+                final Object outcome = outcomes[sent.size()];
+                sent.add(object);
+                if (outcome instanceof RuntimeException) {
+                    throw RuntimeException.class.cast(outcome);
+                }
+                return UpsertResult.class.cast(outcome);
+            }
+
+        });
+        EasyMock.replay(service);
+    }
+
+    private AbstractSyncService unit(final FieldDiff diff) {
+        return new AbstractSyncService() {
+
+            @Override
+            protected SalesforceService getService() {
+                return service;
+            }
+
+            @Override
+            protected ExecutorService getExecutor() {
+                return executor;
+            }
+
+            @Override
+            protected FieldDiff getFieldDiff() {
+                return diff;
+            }
+
+            @Override
+            public void complete(boolean failFast) {
+                throw new UnsupportedOperationException();
+            }
+
+        };
+    }
+
+    /**
+     * Tests {@link AbstractSyncService#sync(EntityBase, Function)} with a partial upsert which
+     * fails, because the record has been deleted in Salesforce.
+     *
+     * @throws ExecutionException if a sync failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void failedPartialUpsert() throws ExecutionException, InterruptedException {
+        final SalesforceException missing = new SalesforceException("REQUIRED_FIELD_MISSING");
+        expectUpserts(result(true), missing, result(true));
+        final AbstractSyncService unit = unit(new FieldDiff(new MemorySnapshotStore(10), "AccountNumber"));
+        final EntityBase entity = Entities.entity(1);
+
+        unit.sync(entity, copy("Foo", "123")).get();
+        Assert.assertTrue(unit.sync(entity, copy("Bar", "123")).get().isCreated());
+
+        Assert.assertEquals(3, sent.size());
+        final Account partial = Account.class.cast(sent.get(1));
+        Assert.assertEquals("Bar", partial.getName().getValue());
+        Assert.assertNull(partial.getPhone());
+        final Account full = Account.class.cast(sent.get(2));
+        Assert.assertEquals("Bar", full.getName().getValue());
+        Assert.assertEquals("123", full.getPhone().getValue());
+
+        // the snapshot of the complete copy has been stored
+        Assert.assertFalse(unit.sync(entity, copy("Bar", "123")).get().isCreated());
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals(1, unit.getSkipped());
+    }
+
+    /**
+     * Tests {@link AbstractSyncService#sync(EntityBase, Function)} with a partial upsert and a complete
+     * upsert which both fail, so the next sync has to send all fields.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void failedCompleteUpsert() throws InterruptedException {
+        final SalesforceException missing = new SalesforceException("REQUIRED_FIELD_MISSING");
+        expectUpserts(result(true), missing, missing, result(true));
+        final AbstractSyncService unit = unit(new FieldDiff(new MemorySnapshotStore(10), "AccountNumber"));
+        final EntityBase entity = Entities.entity(1);
+
+        try {
+            unit.sync(entity, copy("Foo", "123")).get();
+            unit.sync(entity, copy("Bar", "123")).get();
+            Assert.fail("Expected failed upsert");
+        } catch (ExecutionException e) {
+            Assert.assertSame(missing, e.getCause());
+        }
+
+        try {
+            unit.sync(entity, copy("Bar", "123")).get();
+        } catch (ExecutionException e) {
+            throw new AssertionError(e);
+        }
+        Assert.assertEquals(4, sent.size());
+        Assert.assertEquals("123", Account.class.cast(sent.get(3)).getPhone().getValue());
+    }
+
+    /**
+     * Tests {@link AbstractSyncService#sync(EntityBase, Function)} twice for the same entity
+     * before the first sync started. Exactly one upsert of the latest copy has to be sent.
+     *
+     * @throws ExecutionException if the sync failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void coalesceQueuedSyncs() throws ExecutionException, InterruptedException {
+        expectUpserts(result(false));
+        final AbstractSyncService unit = unit(null);
+        final EntityBase entity = Entities.entity(1);
+
+        // blocks the only thread of the executor
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        });
+
+        final Future<UpsertResult> first = unit.sync(entity, copy("Foo", "123"));
+        final Future<UpsertResult> second = unit.sync(entity, copy("Bar", "456"));
+        release.countDown();
+
+        Assert.assertSame(first, second);
+        Assert.assertTrue(second.get().isSuccess());
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals("Bar", Account.class.cast(sent.get(0)).getName().getValue());
+        Assert.assertEquals(1, unit.getCoalesced());
+    }
+
+    /**
+     * Tests {@link AbstractSyncService#sync(EntityBase, Function)} twice with an entity
+     * which has not been saved yet. Unsaved entities are sent without being coalesced or
+     * tracked by the field diff.
+     *
+     * @throws ExecutionException if a sync failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void syncUnsaved() throws ExecutionException, InterruptedException {
+        expectUpserts(result(true), result(true));
+        final AbstractSyncService unit = unit(new FieldDiff(new MemorySnapshotStore(10), "AccountNumber"));
+        final EntityBase entity = Entities.entity(0);
+
+        final Future<UpsertResult> first = unit.sync(entity, copy("Foo", "123"));
+        final Future<UpsertResult> second = unit.sync(entity, copy("Foo", "123"));
+
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(first.get().isCreated());
+        Assert.assertTrue(second.get().isCreated());
+        Assert.assertEquals(2, sent.size());
+        Assert.assertEquals("123", Account.class.cast(sent.get(1)).getPhone().getValue());
+        Assert.assertEquals(0, unit.getCoalesced());
+    }
+
+}
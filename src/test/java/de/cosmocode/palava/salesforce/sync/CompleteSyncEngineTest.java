@@ -0,0 +1,253 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.BatchResult;
+import de.cosmocode.palava.salesforce.BatchResults;
+import de.cosmocode.palava.salesforce.Entities;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * Tests {@link CompleteSyncEngine}.
+ *
+ * @author agent
+ */
+public final class CompleteSyncEngineTest {
+
+    /**
+     * Fails every copy, so no batch reaches the service.
+     */
+    private static final Function<EntityBase, Account> FAILING = new Function<EntityBase, Account>() {
+
+        @Override
+        public Account apply(EntityBase from) {
+            throw new IllegalArgumentException("Unable to copy " + from.getId());
+        }
+
+    };
+
+    /**
+     * Copies every entity.
+     */
+    private static final Function<EntityBase, Account> COPY = failing(0);
+
+    private File file;
+
+    private ExecutorService executor;
+
+    /**
+     * Creates a new temporary file and executor before each test.
+     *
+     * @throws IOException if file creation failed
+     */
+    @Before
+    public void before() throws IOException {
+        file = File.createTempFile("checkpoints", ".properties");
+        Assert.assertTrue(file.delete());
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    /**
+     * Deletes the temporary file and shuts the executor down after each test.
+     */
+    @After
+    public void after() {
+        file.delete();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Creates a copy function which fails the entity with the given id.
+     */
+    private static Function<EntityBase, Account> failing(final long id) {
+        return new Function<EntityBase, Account>() {
+
+            @Override
+            public Account apply(EntityBase from) {
+                Preconditions.checkArgument(from.getId() != id, "Unable to copy %s", id);
+                return new Account();
+            }
+
+        };
+    }
+
+    /**
+     * Creates a service which accepts every upserted record.
+     */
+    private static SalesforceService service() {
+        final SalesforceService service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.upsertBatch(EasyMock.<List<SObject>>anyObject())).andStubAnswer(
+            new IAnswer<BatchResult<UpsertResult>>() {
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public BatchResult<UpsertResult> answer() {
+                    final List<SObject> objects = (List<SObject>) EasyMock.getCurrentArguments()[0];
+                    final List<UpsertResult> results = Lists.newArrayList();
+                    for (int i = 0; i < objects.size(); i++) {
+                        final UpsertResult result = new UpsertResult();
+                        result.setSuccess(true);
+                        results.add(result);
+                    }
+                    return BatchResults.ofUpserts(results);
+                }
+
+            });
+        EasyMock.replay(service);
+        return service;
+    }
+
+    /**
+     * Tests {@link CompleteSyncEngine#sync(String, EntitySource, Function, boolean)} with multiple pages.
+     */
+    @Test
+    public void pages() {
+        final Source source = new Source(10, -1);
+        final CheckpointStore store = new FileCheckpointStore(file);
+        final CompleteSyncEngine unit = new CompleteSyncEngine(service(), store, executor, 3, 2);
+
+        final SyncProgress progress = unit.sync("accounts", source, COPY, false);
+        Assert.assertEquals(ImmutableList.of(0L, 3L, 6L, 9L), source.requested);
+        Assert.assertEquals(10, progress.getTotal());
+        Assert.assertEquals(10, progress.getProcessed());
+        Assert.assertEquals(0, progress.getFailed());
+        Assert.assertEquals(10, progress.getCheckpoint());
+        Assert.assertEquals(0, store.load("accounts"));
+    }
+
+    /**
+     * Tests {@link CompleteSyncEngine#sync(String, EntitySource, Function, boolean)} after a failed run.
+     */
+    @Test
+    public void resume() {
+        final CheckpointStore store = new FileCheckpointStore(file);
+        final CompleteSyncEngine unit = new CompleteSyncEngine(service(), store, executor, 3, 2);
+
+        try {
+            unit.sync("accounts", new Source(10, 6), COPY, false);
+            Assert.fail("Expected failing source");
+        } catch (SalesforceException e) {
+            Assert.assertEquals(6, store.load("accounts"));
+            Assert.assertEquals(6, new FileCheckpointStore(file).load("accounts"));
+        }
+
+        final Source source = new Source(10, -1);
+        final SyncProgress progress = unit.sync("accounts", source, COPY, false);
+        Assert.assertEquals(ImmutableList.of(6L, 9L), source.requested);
+        Assert.assertEquals(4, progress.getProcessed());
+        Assert.assertEquals(0, store.load("accounts"));
+    }
+
+    /**
+     * Tests {@link CompleteSyncEngine#sync(String, EntitySource, Function, boolean)} with a failed
+     * record. The checkpoint must not advance past its batch, so the next run sends it again.
+     */
+    @Test
+    public void failed() {
+        final CheckpointStore store = new FileCheckpointStore(file);
+        final CompleteSyncEngine unit = new CompleteSyncEngine(service(), store, executor, 3, 2);
+
+        final SyncProgress failed = unit.sync("accounts", new Source(10, -1), failing(5), false);
+        Assert.assertEquals(10, failed.getProcessed());
+        Assert.assertEquals(1, failed.getFailed());
+        Assert.assertEquals(3, failed.getCheckpoint());
+        Assert.assertEquals(3, store.load("accounts"));
+
+        final Source source = new Source(10, -1);
+        final SyncProgress progress = unit.sync("accounts", source, COPY, false);
+        Assert.assertEquals(ImmutableList.of(3L, 6L, 9L), source.requested);
+        Assert.assertEquals(0, progress.getFailed());
+        Assert.assertEquals(0, store.load("accounts"));
+    }
+
+    /**
+     * Tests {@link CompleteSyncEngine#sync(String, EntitySource, Function, boolean)} using fail fast.
+     */
+    @Test
+    public void failFast() {
+        final CheckpointStore store = new FileCheckpointStore(file);
+        store.save("accounts", 3);
+        final CompleteSyncEngine unit = new CompleteSyncEngine(service(), store, executor, 3, 1);
+
+        try {
+            unit.sync("accounts", new Source(10, -1), FAILING, true);
+            Assert.fail("Expected failed records");
+        } catch (SalesforceException e) {
+            Assert.assertEquals(3, store.load("accounts"));
+        }
+    }
+
+    /**
+     * An {@link EntitySource} of consecutive ids.
+     */
+    private static final class Source implements EntitySource<EntityBase> {
+
+        private final List<Long> requested = Lists.newArrayList();
+
+        private final long size;
+
+        private final long failAfter;
+
+        Source(long size, long failAfter) {
+            this.size = size;
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public List<EntityBase> page(long after, int limit) {
+            if (after == failAfter) {
+                throw new SalesforceException("Unable to load page after " + after);
+            }
+            requested.add(after);
+            final List<EntityBase> page = Lists.newArrayList();
+            for (long id = after + 1; id <= size && page.size() < limit; id++) {
+                page.add(Entities.entity(id));
+            }
+            return page;
+        }
+
+        @Override
+        public long count(long after) {
+            return size - after;
+        }
+
+    }
+
+}
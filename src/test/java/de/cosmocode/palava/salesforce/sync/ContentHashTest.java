@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sforce.soap.enterprise.sobject.Account;
+
+import de.cosmocode.palava.salesforce.Salesforce;
+
+/**
+ * Tests {@link ContentHash}.
+ *
+ * @author agent
+ */
+public final class ContentHashTest {
+
+    private static Account account(String number, String name) {
+        final Account account = Salesforce.FACTORY.createAccount();
+        account.setAccountNumber(Salesforce.FACTORY.createAccountAccountNumber(number));
+        account.setName(Salesforce.FACTORY.createAccountName(name));
+        return account;
+    }
+
+    /**
+     * Tests {@link ContentHash#of(com.sforce.soap.enterprise.sobject.SObject)} with equal copies.
+     */
+    @Test
+    public void equalCopies() {
+        Assert.assertEquals(ContentHash.of(account("42", "Foo")), ContentHash.of(account("42", "Foo")));
+    }
+
+    /**
+     * Tests {@link ContentHash#of(com.sforce.soap.enterprise.sobject.SObject)} with a changed field.
+     */
+    @Test
+    public void changedField() {
+        Assert.assertFalse(ContentHash.of(account("42", "Foo")) == ContentHash.of(account("42", "Bar")));
+        Assert.assertFalse(ContentHash.of(account("42", "Foo")) == ContentHash.of(account("4", "2Foo")));
+    }
+
+    /**
+     * Tests {@link ContentHash#of(com.sforce.soap.enterprise.sobject.SObject)} with a field set to null.
+     */
+    @Test
+    public void nullField() {
+        final Account nulled = account("42", "Foo");
+        nulled.getFieldsToNull().add("Description");
+        Assert.assertFalse(ContentHash.of(account("42", "Foo")) == ContentHash.of(nulled));
+        Assert.assertFalse(0 == ContentHash.of(nulled));
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.sforce.soap.enterprise.sobject.Account;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.Salesforce;
+
+/**
+ * Tests {@link FieldDiff}.
+ *
+ * @author agent
+ */
+public final class FieldDiffTest {
+
+    private static SyncKey key(long id) {
+        final EntityBase entity = EasyMock.createMock("entity", EntityBase.class);
+        EasyMock.expect(entity.getId()).andStubReturn(id);
+        EasyMock.replay(entity);
+        return new SyncKey(entity);
+    }
+
+    private static Account account(String name, String phone) {
+        final Account account = Salesforce.FACTORY.createAccount();
+        account.setAccountNumber(Salesforce.FACTORY.createAccountAccountNumber("42"));
+        account.setName(Salesforce.FACTORY.createAccountName(name));
+        account.setPhone(Salesforce.FACTORY.createAccountPhone(phone));
+        return account;
+    }
+
+    /**
+     * Tests {@link FieldDiff#diff(SyncKey, com.sforce.soap.enterprise.sobject.SObject)} without a snapshot.
+     */
+    @Test
+    public void noSnapshot() {
+        final FieldDiff unit = new FieldDiff(new MemorySnapshotStore(10), "AccountNumber");
+        final Account account = account("Foo", "123");
+        final FieldDiff.Delta delta = unit.diff(key(1), account);
+        Assert.assertSame(account, delta.getObject());
+        Assert.assertFalse(delta.isPartial());
+    }
+
+    /**
+     * Tests {@link FieldDiff#diff(SyncKey, com.sforce.soap.enterprise.sobject.SObject)} with a changed field.
+     */
+    @Test
+    public void changedField() {
+        final FieldDiff unit = new FieldDiff(new MemorySnapshotStore(10), "AccountNumber");
+        unit.remember(unit.diff(key(1), account("Foo", "123")));
+
+        final FieldDiff.Delta delta = unit.diff(key(1), account("Bar", "123"));
+        Assert.assertTrue(delta.isPartial());
+        final Account partial = Account.class.cast(delta.getObject());
+        Assert.assertEquals("42", partial.getAccountNumber().getValue());
+        Assert.assertEquals("Bar", partial.getName().getValue());
+        Assert.assertNull(partial.getPhone());
+        Assert.assertTrue(partial.getFieldsToNull().isEmpty());
+    }
+
+    /**
+     * Tests {@link FieldDiff#diff(SyncKey, com.sforce.soap.enterprise.sobject.SObject)} with a cleared field.
+     */
+    @Test
+    public void clearedField() {
+        final FieldDiff unit = new FieldDiff(new MemorySnapshotStore(10), "AccountNumber");
+        unit.remember(unit.diff(key(1), account("Foo", "123")));
+
+        final FieldDiff.Delta delta = unit.diff(key(1), account("Foo", null));
+        final Account partial = Account.class.cast(delta.getObject());
+        Assert.assertNull(partial.getName());
+        Assert.assertNull(partial.getPhone());
+        Assert.assertEquals(NullFieldCollector.collect(account("Foo", null)),
+            Sets.newHashSet(partial.getFieldsToNull()));
+    }
+
+    /**
+     * Tests {@link FieldDiff#diff(SyncKey, com.sforce.soap.enterprise.sobject.SObject)} without changes.
+     */
+    @Test
+    public void unchanged() {
+        final FieldDiff unit = new FieldDiff(new MemorySnapshotStore(10), "AccountNumber");
+        unit.remember(unit.diff(key(1), account("Foo", "123")));
+        Assert.assertNull(unit.diff(key(1), account("Foo", "123")).getObject());
+        Assert.assertNotNull(unit.diff(key(2), account("Foo", "123")).getObject());
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MappedSyncStateStore}.
+ *
+ * @author agent
+ */
+public final class MappedSyncStateStoreTest {
+
+    private File directory;
+
+    /**
+     * Creates a new temporary directory before each test.
+     *
+     * @throws IOException if directory creation failed
+     */
+    @Before
+    public void before() throws IOException {
+        directory = File.createTempFile("sync", ".state");
+        Assert.assertTrue(directory.delete());
+    }
+
+    /**
+     * Deletes the temporary directory after each test.
+     */
+    @After
+    public void after() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Tests {@link MappedSyncStateStore#put(String, long, long)} and
+     * {@link MappedSyncStateStore#get(String, long)}.
+     */
+    @Test
+    public void putGet() {
+        final MappedSyncStateStore unit = new MappedSyncStateStore(directory, 16);
+        try {
+            Assert.assertEquals(0, unit.get("Account", 1));
+            unit.put("Account", 1, 42);
+            unit.put("Contact", 1, 43);
+            Assert.assertEquals(42, unit.get("Account", 1));
+            Assert.assertEquals(43, unit.get("Contact", 1));
+            unit.put("Account", 1, 44);
+            Assert.assertEquals(44, unit.get("Account", 1));
+            Assert.assertEquals(1, unit.size("Account"));
+        } finally {
+            unit.close();
+        }
+    }
+
+    /**
+     * Tests {@link MappedSyncStateStore#remove(String, long)} keeps colliding entries reachable.
+     */
+    @Test
+    public void remove() {
+        final MappedSyncStateStore unit = new MappedSyncStateStore(directory, 1 << 12);
+        try {
+            for (long id = 1; id <= 1000; id++) {
+                unit.put("Account", id, id);
+            }
+            for (long id = 1; id <= 1000; id += 2) {
+                unit.remove("Account", id);
+            }
+            Assert.assertEquals(500, unit.size("Account"));
+            for (long id = 1; id <= 1000; id++) {
+                Assert.assertEquals(id % 2 == 0 ? id : 0, unit.get("Account", id));
+            }
+        } finally {
+            unit.close();
+        }
+    }
+
+    /**
+     * Tests that {@link MappedSyncStateStore} grows and survives reopening.
+     */
+    @Test
+    public void growReopen() {
+        final MappedSyncStateStore unit = new MappedSyncStateStore(directory, 16);
+        try {
+            for (long id = 1; id <= 10000; id++) {
+                unit.put("Account", id, -id);
+            }
+        } finally {
+            unit.close();
+        }
+
+        final MappedSyncStateStore reopened = new MappedSyncStateStore(directory, 16);
+        try {
+            Assert.assertEquals(10000, reopened.size("Account"));
+            for (long id = 1; id <= 10000; id++) {
+                Assert.assertEquals(-id, reopened.get("Account", id));
+            }
+        } finally {
+            reopened.close();
+        }
+    }
+
+    /**
+     * Tests {@link MappedSyncStateStore#put(String, long, long)} with a hash of 0.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void putZero() {
+        final MappedSyncStateStore unit = new MappedSyncStateStore(directory, 16);
+        try {
+            unit.put("Account", 1, 0);
+        } finally {
+            unit.close();
+        }
+    }
+
+}
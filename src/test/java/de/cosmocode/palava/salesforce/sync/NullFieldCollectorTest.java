@@ -16,6 +16,12 @@
 
 package de.cosmocode.palava.salesforce.sync;
 
+import java.lang.reflect.Field;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementRef;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -33,6 +39,25 @@ import de.cosmocode.palava.salesforce.Salesforce;
  */
 public final class NullFieldCollectorTest {
     
+    /**
+     * A type using the annotations of generated sobjects.
+     */
+    @SuppressWarnings("unused")
+    private static final class Annotated {
+
+        @XmlElementRef(name = "Ref__c", type = JAXBElement.class)
+        private JAXBElement<String> ref;
+
+        @XmlElement(name = "Element__c")
+        private String element;
+
+        @XmlElement
+        private String unnamed;
+
+        private String plain;
+
+    }
+    
     /**
      * Tests {@link NullFieldCollector#collect(SObject)} with null.
      */
@@ -90,4 +115,44 @@ public final class NullFieldCollectorTest {
         ));
     }
     
+    /**
+     * Tests {@link NullFieldCollector#nameOf(Field)} with {@link XmlElementRef}.
+     *
+     * @throws NoSuchFieldException should not happen
+     */
+    @Test
+    public void nameOfElementRef() throws NoSuchFieldException {
+        Assert.assertEquals("Ref__c", NullFieldCollector.nameOf(Annotated.class.getDeclaredField("ref")));
+    }
+    
+    /**
+     * Tests {@link NullFieldCollector#nameOf(Field)} with {@link XmlElement}.
+     *
+     * @throws NoSuchFieldException should not happen
+     */
+    @Test
+    public void nameOfElement() throws NoSuchFieldException {
+        Assert.assertEquals("Element__c", NullFieldCollector.nameOf(Annotated.class.getDeclaredField("element")));
+    }
+    
+    /**
+     * Tests {@link NullFieldCollector#nameOf(Field)} with an unnamed {@link XmlElement}.
+     *
+     * @throws NoSuchFieldException should not happen
+     */
+    @Test
+    public void nameOfUnnamedElement() throws NoSuchFieldException {
+        Assert.assertEquals("Unnamed", NullFieldCollector.nameOf(Annotated.class.getDeclaredField("unnamed")));
+    }
+    
+    /**
+     * Tests {@link NullFieldCollector#nameOf(Field)} without annotations.
+     *
+     * @throws NoSuchFieldException should not happen
+     */
+    @Test
+    public void nameOfPlain() throws NoSuchFieldException {
+        Assert.assertEquals("Plain", NullFieldCollector.nameOf(Annotated.class.getDeclaredField("plain")));
+    }
+    
 }
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.Entities;
+
+/**
+ * Tests {@link SyncKey}.
+ *
+ * @author agent
+ */
+public final class SyncKeyTest {
+
+    /**
+     * Tests {@link SyncKey#equals(Object)} with the same id.
+     */
+    @Test
+    public void equalsSameId() {
+        final SyncKey first = new SyncKey(Entities.entity(1));
+        final SyncKey second = new SyncKey(Entities.entity(1));
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    /**
+     * Tests {@link SyncKey#equals(Object)} with different ids.
+     */
+    @Test
+    public void equalsDifferentId() {
+        Assert.assertFalse(new SyncKey(Entities.entity(1)).equals(new SyncKey(Entities.entity(2))));
+    }
+
+    /**
+     * Tests {@link SyncKey#SyncKey(EntityBase)} with a null entity.
+     */
+    @Test(expected = NullPointerException.class)
+    public void constructNull() {
+        new SyncKey(null);
+    }
+
+    /**
+     * Tests {@link SyncKey#SyncKey(EntityBase)} with an entity which has not been saved yet.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void constructUnsaved() {
+        new SyncKey(Entities.entity(0));
+    }
+
+    /**
+     * Tests {@link SyncKey#typeOf(Class)} with a class named like a javassist proxy.
+     */
+    @Test
+    public void typeOfProxy() {
+        Assert.assertSame(Entity.class, SyncKey.typeOf(Entity$$javassist_1.class));
+    }
+
+    /**
+     * Tests {@link SyncKey#typeOf(Class)} with a regular class.
+     */
+    @Test
+    public void typeOfEntity() {
+        Assert.assertSame(Entity.class, SyncKey.typeOf(Entity.class));
+    }
+
+    /**
+     * An entity class.
+     */
+    private static class Entity {
+
+    }
+
+    /**
+     * A class named like a proxy of {@link Entity} generated by javassist.
+     */
+    private static final class Entity$$javassist_1 extends Entity {
+
+    }
+
+}
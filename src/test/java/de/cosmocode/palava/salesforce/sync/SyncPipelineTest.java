@@ -0,0 +1,264 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.BatchResult;
+import de.cosmocode.palava.salesforce.BatchResults;
+import de.cosmocode.palava.salesforce.Entities;
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * Tests {@link SyncPipeline}.
+ *
+ * @author agent
+ */
+public final class SyncPipelineTest {
+
+    private static final Function<EntityBase, Account> COPY = new Function<EntityBase, Account>() {
+
+        @Override
+        public Account apply(EntityBase from) {
+            final Account account = Salesforce.FACTORY.createAccount();
+            account.setAccountNumber(Salesforce.FACTORY.createAccountAccountNumber(Long.toString(from.getId())));
+            return account;
+        }
+
+    };
+
+    private final List<SObject> sent = Collections.synchronizedList(Lists.<SObject>newArrayList());
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ExecutorService executor;
+
+    private SalesforceService service;
+
+    /**
+     * Creates the executor and a service which accepts every batch before each test.
+     */
+    @Before
+    public void before() {
+        executor = Executors.newSingleThreadExecutor();
+        service = EasyMock.createMock("service", SalesforceService.class);
+        EasyMock.expect(service.upsertBatch(EasyMock.<List<SObject>>anyObject())).andStubAnswer(
+            new IAnswer<BatchResult<UpsertResult>>() {
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public BatchResult<UpsertResult> answer() {
+                    final List<SObject> objects = (List<SObject>) EasyMock.getCurrentArguments()[0];
+                    sent.addAll(objects);
+                    final List<UpsertResult> results = Lists.newArrayList();
+                    for (int i = 0; i < objects.size(); i++) {
+                        final UpsertResult result = new UpsertResult();
+                        result.setSuccess(true);
+                        results.add(result);
+                    }
+                    return BatchResults.ofUpserts(results);
+                }
+
+            });
+        EasyMock.replay(service);
+    }
+
+    /**
+     * Shuts the executor down after each test.
+     */
+    @After
+    public void after() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private SyncPipeline<Long, EntityBase, Account> unit(Function<Long, EntityBase> loader, int threads,
+        int capacity) {
+        return new SyncPipeline<Long, EntityBase, Account>(service, loader, COPY, threads, capacity,
+            1, TimeUnit.HOURS);
+    }
+
+    /**
+     * A loader which waits for {@link SyncPipelineTest#release}.
+     */
+    private Function<Long, EntityBase> blocking() {
+        return new Function<Long, EntityBase>() {
+
+            @Override
+            public EntityBase apply(Long from) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                return Entities.entity(from);
+            }
+
+        };
+    }
+
+    /**
+     * Tests {@link SyncPipeline#submit(Object)} without starting the pipeline.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void submitNotStarted() {
+        unit(blocking(), 1, 1).submit(1L);
+    }
+
+    /**
+     * Tests {@link SyncPipeline#start()} twice.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void startTwice() {
+        final SyncPipeline<Long, EntityBase, Account> unit = unit(blocking(), 1, 1);
+        unit.start();
+        try {
+            unit.start();
+        } finally {
+            unit.shutdown();
+        }
+    }
+
+    /**
+     * Tests {@link SyncPipeline#submit(Object)} with a saturated load stage, which
+     * has to block the submitting thread until the stage has room again.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if a sync failed
+     * @throws TimeoutException if the blocked submit did not return in time
+     */
+    @Test
+    public void backpressure() throws InterruptedException, ExecutionException, TimeoutException {
+        final SyncPipeline<Long, EntityBase, Account> unit = unit(blocking(), 1, 1);
+        unit.start();
+
+        // the first one occupies the only thread, the second one the only queue slot
+        final Future<UpsertResult> first = unit.submit(1L);
+        final Future<UpsertResult> second = unit.submit(2L);
+        final Future<Future<UpsertResult>> third = executor.submit(new Callable<Future<UpsertResult>>() {
+
+            @Override
+            public Future<UpsertResult> call() {
+                return unit.submit(3L);
+            }
+
+        });
+
+        try {
+            third.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail("Expected blocked submit");
+        } catch (TimeoutException e) {
+            Assert.assertEquals(1, unit.getQueueDepth(SyncStage.LOAD));
+        }
+
+        release.countDown();
+        final Future<UpsertResult> last = third.get(5, TimeUnit.SECONDS);
+        unit.shutdown();
+
+        Assert.assertTrue(first.get().isSuccess());
+        Assert.assertTrue(second.get().isSuccess());
+        Assert.assertTrue(last.get().isSuccess());
+        Assert.assertEquals(3, sent.size());
+        Assert.assertEquals(3, unit.getProcessed(SyncStage.LOAD));
+    }
+
+    /**
+     * Tests {@link SyncPipeline#shutdown()} with a batch whose linger time did not pass yet.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if a sync failed
+     */
+    @Test
+    public void shutdown() throws InterruptedException, ExecutionException {
+        release.countDown();
+        final SyncPipeline<Long, EntityBase, Account> unit = unit(blocking(), 2, 10);
+        unit.start();
+
+        final List<Future<UpsertResult>> futures = Lists.newArrayList();
+        for (long id = 1; id <= 5; id++) {
+            futures.add(unit.submit(id));
+        }
+        futures.add(unit.submit(Entities.entity(6), COPY));
+        unit.shutdown();
+
+        for (Future<UpsertResult> future : futures) {
+            Assert.assertTrue(future.isDone());
+            Assert.assertTrue(future.get().isSuccess());
+        }
+        Assert.assertEquals(6, sent.size());
+        Assert.assertEquals(5, unit.getProcessed(SyncStage.LOAD));
+        Assert.assertEquals(6, unit.getProcessed(SyncStage.BATCH));
+        Assert.assertEquals(1, unit.getProcessed(SyncStage.SEND));
+
+        try {
+            unit.submit(7L);
+            Assert.fail("Expected rejected submit");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(6, sent.size());
+        }
+    }
+
+    /**
+     * Tests {@link SyncPipeline#submit(EntityBase, Function)} twice with an unchanged entity
+     * using a {@link FieldDiff}. The send stage has to skip the second one.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException if a sync failed
+     * @throws TimeoutException if a sync did not complete in time
+     */
+    @Test
+    public void skipUnchanged() throws InterruptedException, ExecutionException, TimeoutException {
+        final FieldDiff diff = new FieldDiff(new MemorySnapshotStore(10), "AccountNumber");
+        final SyncPipeline<Long, EntityBase, Account> unit = new SyncPipeline<Long, EntityBase, Account>(
+            service, blocking(), COPY, 1, 10, 10, TimeUnit.MILLISECONDS, null, diff);
+        unit.start();
+
+        final EntityBase entity = Entities.entity(1);
+        Assert.assertTrue(unit.submit(entity, COPY).get(5, TimeUnit.SECONDS).isSuccess());
+        Assert.assertTrue(unit.submit(entity, COPY).get(5, TimeUnit.SECONDS).isSuccess());
+        unit.shutdown();
+
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(1, unit.getSkipped());
+    }
+
+}
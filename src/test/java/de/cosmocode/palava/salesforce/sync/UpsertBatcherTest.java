@@ -0,0 +1,310 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.salesforce.sync;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.sforce.soap.enterprise.Error;
+import com.sforce.soap.enterprise.StatusCode;
+import com.sforce.soap.enterprise.UpsertResult;
+import com.sforce.soap.enterprise.sobject.Account;
+import com.sforce.soap.enterprise.sobject.SObject;
+
+import de.cosmocode.palava.model.base.EntityBase;
+import de.cosmocode.palava.salesforce.BatchResult;
+import de.cosmocode.palava.salesforce.BatchResults;
+import de.cosmocode.palava.salesforce.Salesforce;
+import de.cosmocode.palava.salesforce.SalesforceException;
+import de.cosmocode.palava.salesforce.SalesforceService;
+
+/**
+ * Tests {@link UpsertBatcher}.
+ *
+ * @author agent
+ */
+public final class UpsertBatcherTest {
+
+    private static final Executor DIRECT = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+    };
+
+    private final List<List<SObject>> sent = Lists.newArrayList();
+
+    private final List<String> threads = Lists.newArrayList();
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService executor;
+
+    private SalesforceService service;
+
+    /**
+     * Creates the scheduler, the executor and the service before each test.
+     */
+    @Before
+    public void before() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "sender");
+            }
+
+        });
+        service = EasyMock.createMock("service", SalesforceService.class);
+    }
+
+    /**
+     * Shuts the scheduler and the executor down after each test.
+     */
+    @After
+    public void after() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private static Account account(String name, String phone) {
+        final Account account = Salesforce.FACTORY.createAccount();
+        account.setAccountNumber(Salesforce.FACTORY.createAccountAccountNumber("42"));
+        account.setName(Salesforce.FACTORY.createAccountName(name));
+        account.setPhone(Salesforce.FACTORY.createAccountPhone(phone));
+        return account;
+    }
+
+    private static UpsertResult success(boolean created) {
+        final UpsertResult result = new UpsertResult();
+        result.setSuccess(true);
+        result.setCreated(created);
+        return result;
+    }
+
+    private static UpsertResult failure(StatusCode code) {
+        final UpsertResult result = new UpsertResult();
+        final Error error = new Error();
+        error.setStatusCode(code);
+        error.setMessage(code.name());
+        result.getErrors().add(error);
+        return result;
+    }
+
+    /**
+     * Records every sent batch and answers with the given results per batch in order.
+     */
+    private void expectBatches(final List<?>... batches) {
+        EasyMock.expect(service.upsertBatch(EasyMock.<List<SObject>>anyObject())).andStubAnswer(
+            new IAnswer<BatchResult<UpsertResult>>() {
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public BatchResult<UpsertResult> answer() {
+                    final List<SObject> objects = (List<SObject>) EasyMock.getCurrentArguments()[0];
+                    final List<UpsertResult> results = (List<UpsertResult>) batches[sent.size()];
+                    Assert.assertEquals(results.size(), objects.size());
+                    sent.add(ImmutableList.copyOf(objects));
+                    threads.add(Thread.currentThread().getName());
+                    return BatchResults.ofUpserts(results);
+                }
+
+            });
+        EasyMock.replay(service);
+    }
+
+    /**
+     * Tests {@link UpsertBatcher#add(SObject)} with a full buffer, which has to be sent
+     * without waiting for the linger time.
+     *
+     * @throws ExecutionException if an upsert failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void flushOnSize() throws ExecutionException, InterruptedException {
+        final List<UpsertResult> results = Lists.newArrayList();
+        for (int i = 0; i < Salesforce.MAXIMUM_BATCH_SIZE; i++) {
+            results.add(success(true));
+        }
+        expectBatches(results);
+        final UpsertBatcher unit = new UpsertBatcher(service, scheduler, DIRECT, 1, TimeUnit.HOURS);
+
+        final List<Future<UpsertResult>> futures = Lists.newArrayList();
+        for (int i = 0; i < Salesforce.MAXIMUM_BATCH_SIZE; i++) {
+            Assert.assertTrue(sent.isEmpty());
+            futures.add(unit.add(account("Foo" + i, "123")));
+        }
+
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(Salesforce.MAXIMUM_BATCH_SIZE, sent.get(0).size());
+        for (Future<UpsertResult> future : futures) {
+            Assert.assertTrue(future.isDone());
+            Assert.assertTrue(future.get().isSuccess());
+        }
+        Assert.assertEquals(1, unit.getBatches());
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link UpsertBatcher#add(SObject)} with a buffer which has to be sent
+     * on the executor as soon as the linger time passed.
+     *
+     * @throws ExecutionException if an upsert failed
+     * @throws InterruptedException if interrupted while waiting
+     * @throws TimeoutException if the buffer has not been sent in time
+     */
+    @Test
+    public void flushOnLinger() throws ExecutionException, InterruptedException, TimeoutException {
+        expectBatches(ImmutableList.of(success(true), success(true)));
+        final UpsertBatcher unit = new UpsertBatcher(service, scheduler, executor, 50, TimeUnit.MILLISECONDS);
+
+        final Future<UpsertResult> first = unit.add(account("Foo", "123"));
+        final Future<UpsertResult> second = unit.add(account("Bar", "456"));
+
+        Assert.assertTrue(first.get(5, TimeUnit.SECONDS).isSuccess());
+        Assert.assertTrue(second.get(5, TimeUnit.SECONDS).isSuccess());
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(2, sent.get(0).size());
+        Assert.assertEquals(ImmutableList.of("sender"), threads);
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link UpsertBatcher#flush()} with a batch in which a single record failed.
+     *
+     * @throws ExecutionException if the successful upsert failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void perRecordFailures() throws ExecutionException, InterruptedException {
+        expectBatches(ImmutableList.of(success(true), failure(StatusCode.REQUIRED_FIELD_MISSING)));
+        final UpsertBatcher unit = new UpsertBatcher(service, scheduler, DIRECT, 1, TimeUnit.HOURS);
+
+        final Future<UpsertResult> first = unit.add(account("Foo", "123"));
+        final Future<UpsertResult> second = unit.add(account("Bar", "456"));
+        unit.flush();
+
+        Assert.assertTrue(first.get().isSuccess());
+        try {
+            second.get();
+            Assert.fail("Expected failed upsert");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SalesforceException);
+        }
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link UpsertBatcher#add(EntityBase, Function)} with a partial upsert which
+     * created a new record, e.g. because the old one has been deleted in Salesforce.
+     * All fields have to be sent again.
+     *
+     * @throws ExecutionException if an upsert failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void resendAfterPartialCreate() throws ExecutionException, InterruptedException {
+        expectBatches(
+            ImmutableList.of(success(true)),
+            ImmutableList.of(success(true)),
+            ImmutableList.of(success(false))
+        );
+        final FieldDiff diff = new FieldDiff(new MemorySnapshotStore(10), "AccountNumber");
+        final UpsertBatcher unit = new UpsertBatcher(service, scheduler, DIRECT, 1, TimeUnit.HOURS, null, diff);
+        final EntityBase entity = EasyMock.createMock("entity", EntityBase.class);
+        EasyMock.expect(entity.getId()).andStubReturn(42L);
+        EasyMock.replay(entity);
+
+        final Future<UpsertResult> first = unit.add(entity, copy("Foo", "123"));
+        unit.flush();
+        Assert.assertTrue(first.get().isCreated());
+
+        final Future<UpsertResult> second = unit.add(entity, copy("Bar", "123"));
+        unit.flush();
+        Assert.assertFalse(second.get().isCreated());
+
+        Assert.assertEquals(3, sent.size());
+        final Account partial = Account.class.cast(sent.get(1).get(0));
+        Assert.assertEquals("Bar", partial.getName().getValue());
+        Assert.assertNull(partial.getPhone());
+        final Account full = Account.class.cast(sent.get(2).get(0));
+        Assert.assertEquals("Bar", full.getName().getValue());
+        Assert.assertEquals("123", full.getPhone().getValue());
+        EasyMock.verify(service);
+    }
+
+    /**
+     * Tests {@link UpsertBatcher#add(EntityBase, Function)} twice with an entity which has not
+     * been saved yet. Unsaved entities can't be identified, so both entries have to be sent.
+     *
+     * @throws ExecutionException if an upsert failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Test
+    public void addUnsaved() throws ExecutionException, InterruptedException {
+        expectBatches(ImmutableList.of(success(true), success(true)));
+        final UpsertBatcher unit = new UpsertBatcher(service, scheduler, DIRECT, 1, TimeUnit.HOURS);
+        final EntityBase entity = EasyMock.createMock("entity", EntityBase.class);
+        EasyMock.expect(entity.getId()).andStubReturn(0L);
+        EasyMock.replay(entity);
+
+        final Future<UpsertResult> first = unit.add(entity, copy("Foo", "123"));
+        final Future<UpsertResult> second = unit.add(entity, copy("Bar", "456"));
+        unit.flush();
+
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(first.get().isCreated());
+        Assert.assertTrue(second.get().isCreated());
+        Assert.assertEquals(1, sent.size());
+        Assert.assertEquals(2, sent.get(0).size());
+        Assert.assertEquals(0, unit.getCoalesced());
+        EasyMock.verify(service);
+    }
+
+    private static Function<EntityBase, Account> copy(final String name, final String phone) {
+        return new Function<EntityBase, Account>() {
+
+            @Override
+            public Account apply(EntityBase from) {
+                return account(name, phone);
+            }
+
+        };
+    }
+
+}